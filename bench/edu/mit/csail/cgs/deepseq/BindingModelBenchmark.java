@@ -0,0 +1,50 @@
+package edu.mit.csail.cgs.deepseq;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.mit.csail.cgs.deepseq.bench.SyntheticData;
+
+/**
+ * Benchmark of BindingModel.probability() lookups, sweeping the distances
+ * of every base in a window against one event, as the EM initialization does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BindingModelBenchmark {
+
+	private BindingModel model;
+	private int[] distances;
+
+	@Setup
+	public void setup(){
+		model = SyntheticData.bindingModel();
+		// include distances outside the model range
+		int range = model.getRange()+100;
+		distances = new int[2*range+1];
+		for (int i=0;i<distances.length;i++)
+			distances[i] = i-range;
+	}
+
+	@Benchmark
+	public double probabilitySweep(){
+		double sum = 0;
+		for (int d: distances)
+			sum += model.probability(d);
+		return sum;
+	}
+}
@@ -0,0 +1,111 @@
+package edu.mit.csail.cgs.deepseq.bench;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import edu.mit.csail.cgs.datasets.species.Genome;
+import edu.mit.csail.cgs.deepseq.ReadHit;
+import edu.mit.csail.cgs.deepseq.BindingModel;
+import edu.mit.csail.cgs.deepseq.utilities.ReadCache;
+import edu.mit.csail.cgs.deepseq.utilities.ReadSimulator;
+import edu.mit.csail.cgs.utils.Pair;
+import edu.mit.csail.cgs.utils.sequence.SequenceUtils;
+
+/**
+ * Synthetic inputs for the benchmarks, generated in-process so that the
+ * benchmarks do not depend on any read files, genome files or database.
+ *
+ * All generators are deterministic given the seed.
+ */
+public class SyntheticData {
+
+	/** Half width of the synthetic read distribution */
+	public static final int MODEL_RANGE = 250;
+
+	/**
+	 * A ChIP-seq like read distribution: a Gaussian shifted 20bp downstream
+	 * of the event, with a small flat tail
+	 */
+	public static BindingModel bindingModel(){
+		List<Pair<Integer,Double>> dist = new ArrayList<Pair<Integer,Double>>();
+		double sigma = 40;
+		for (int d=-MODEL_RANGE; d<=MODEL_RANGE; d++)
+			dist.add(new Pair<Integer,Double>(d, Math.exp(-(d-20)*(d-20)/(2*sigma*sigma))+1e-4));
+		return new BindingModel(dist);
+	}
+
+	/**
+	 * Simulate the 5' ends of reads from <tt>numEvents</tt> events spaced <tt>eventSpacing</tt> bp apart. <br>
+	 * ReadSimulator scans its whole window for every read, so each event is simulated
+	 * in its own small window and then shifted to its genomic offset.
+	 * @return sorted 5' positions, [0] for '+' strand, [1] for '-' strand
+	 */
+	public static int[][] fivePrimes(BindingModel model, int numEvents, int readsPerEvent, int eventSpacing, long seed){
+		int center = model.getRange()+50;
+		int[][] starts = new int[2][numEvents*readsPerEvent];
+		int[] idx = new int[2];
+		for (int e=0;e<numEvents;e++){
+			ReadSimulator sim = new ReadSimulator(model, new int[][]{{center, readsPerEvent}});
+			sim.setRandSeed(seed*1000+2*e+1);
+			sim.setNoiseRandSeed(seed*1000+2*e+2);
+			int shift = eventSpacing*e+eventSpacing/2-center;
+			for (ReadHit hit: sim.simulateBothStrands()){
+				int s = hit.getStrand()=='+' ? 0 : 1;
+				int fivePrime = s==0 ? hit.getStart() : hit.getEnd();
+				starts[s][idx[s]++] = Math.max(0, fivePrime+shift);
+			}
+		}
+		for (int s=0;s<2;s++){
+			starts[s] = Arrays.copyOf(starts[s], idx[s]);
+			Arrays.sort(starts[s]);
+		}
+		return starts;
+	}
+
+	/**
+	 * Load sorted 5' positions into a ReadCache on chromosome <tt>chrom</tt> of <tt>g</tt>
+	 */
+	public static ReadCache readCache(Genome g, String chrom, int[][] fivePrimes){
+		ReadCache cache = new ReadCache(g, "bench", null, null);
+		for (int s=0;s<2;s++){
+			ArrayList<Integer> coords = new ArrayList<Integer>();
+			ArrayList<Float> counts = new ArrayList<Float>();
+			int[] starts = fivePrimes[s];
+			for (int i=0;i<starts.length;i++){
+				if (!coords.isEmpty() && coords.get(coords.size()-1)==starts[i])
+					counts.set(counts.size()-1, counts.get(counts.size()-1)+1);
+				else{
+					coords.add(starts[i]);
+					counts.add(1f);
+				}
+			}
+			cache.addHits(chrom, s==0?'+':'-', coords, counts);
+		}
+		cache.populateArrays(false);
+		return cache;
+	}
+
+	/**
+	 * Random uniform DNA sequences, with <tt>motif</tt> (or its reverse complement)
+	 * planted at a random position in <tt>motifFraction</tt> of them
+	 */
+	public static ArrayList<String> sequences(int numSeqs, int length, String motif, double motifFraction, long seed){
+		final char[] BASES = {'A','C','G','T'};
+		Random rand = new Random(seed);
+		ArrayList<String> seqs = new ArrayList<String>(numSeqs);
+		char[] seq = new char[length];
+		for (int n=0;n<numSeqs;n++){
+			for (int i=0;i<length;i++)
+				seq[i] = BASES[rand.nextInt(4)];
+			if (motif!=null && rand.nextDouble()<motifFraction){
+				String m = rand.nextBoolean() ? motif : SequenceUtils.reverseComplement(motif);
+				m.getChars(0, m.length(), seq, rand.nextInt(length-m.length()+1));
+			}
+			seqs.add(new String(seq));
+		}
+		return seqs;
+	}
+
+}
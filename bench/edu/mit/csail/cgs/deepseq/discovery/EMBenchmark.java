@@ -0,0 +1,156 @@
+package edu.mit.csail.cgs.deepseq.discovery;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.mit.csail.cgs.deepseq.BindingModel;
+import edu.mit.csail.cgs.deepseq.bench.SyntheticData;
+import edu.mit.csail.cgs.utils.Pair;
+
+/**
+ * Benchmark of one EM_MAP call on a simulated region, for the original
+ * jagged-array kernel and the flat kernel (--flat_EM). <br>
+ * The region holds one event per 300bp; components are placed every bp,
+ * as in the first pass of EM on a region.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EMBenchmark {
+
+	@Param({"500", "2000"})
+	public int width;
+
+	@Param({"false", "true"})
+	public boolean flat;
+
+	@Param({"1", "2"})
+	public int numConditions;
+
+	private EMKernel kernel;
+
+	// inputs, never modified
+	private double[][] counts;
+	private double[][][] h;
+	private int[][][] c2b;
+	private double[][] prob_bg;
+	private double[] pos_alpha;
+	private double alpha;
+	private double[][][] r0;
+	private double[][] b0;
+	private double[] pi0;
+
+	// EM_MAP updates r, b and pi in place, they are reset before each call
+	private double[][][] r;
+	private double[][] b;
+	private double[] pi;
+
+	@Setup(Level.Trial)
+	public void setup(){
+		BindingModel model = SyntheticData.bindingModel();
+		Config config = new Config();
+		kernel = new EMKernel(model, config, numConditions);
+
+		int numEvents = Math.max(1, width/300);
+		int numComp = width;
+		counts = new double[numConditions][];
+		h = new double[numConditions][numComp][];
+		r0 = new double[numConditions][numComp][];
+		c2b = new int[numConditions][numComp][];
+		b0 = new double[numConditions][numComp];
+		prob_bg = new double[numConditions][];
+		pi0 = new double[numComp];
+		pos_alpha = new double[numComp];
+		for (int j=0;j<numComp;j++)
+			pi0[j] = 1.0/numComp;
+		double totalCount = 0;
+		for (int c=0;c<numConditions;c++){
+			int[][] fivePrimes = SyntheticData.fivePrimes(model, numEvents, 100, width/numEvents, c+1);
+			// collapse reads to bases with counts, clipped to the region
+			ArrayList<Integer> coords = new ArrayList<Integer>();
+			ArrayList<Character> strands = new ArrayList<Character>();
+			ArrayList<Double> baseCounts = new ArrayList<Double>();
+			for (int s=0;s<2;s++){
+				for (int pos: fivePrimes[s]){
+					if (pos>=width)
+						continue;
+					int last = coords.size()-1;
+					if (last>=0 && coords.get(last)==pos && strands.get(last)==(s==0?'+':'-'))
+						baseCounts.set(last, baseCounts.get(last)+1);
+					else{
+						coords.add(pos);
+						strands.add(s==0?'+':'-');
+						baseCounts.add(1.0);
+					}
+				}
+			}
+			int numBases = coords.size();
+			counts[c] = new double[numBases];
+			prob_bg[c] = new double[numBases];
+			for (int i=0;i<numBases;i++){
+				counts[c][i] = baseCounts.get(i);
+				prob_bg[c][i] = 1.0/width;
+				totalCount += counts[c][i];
+			}
+			for (int j=0;j<numComp;j++){
+				b0[c][j] = 1.0/numConditions;
+				ArrayList<Integer> nz = new ArrayList<Integer>();
+				ArrayList<Double> hv = new ArrayList<Double>();
+				for (int i=0;i<numBases;i++){
+					int dist = strands.get(i)=='+' ? coords.get(i)-j : j-coords.get(i);
+					if (dist<model.getMin() || dist>model.getMax())
+						continue;
+					nz.add(i);
+					hv.add(model.probability(dist));
+				}
+				c2b[c][j] = new int[nz.size()];
+				h[c][j] = new double[nz.size()];
+				r0[c][j] = new double[nz.size()];
+				for (int i=0;i<nz.size();i++){
+					c2b[c][j][i] = nz.get(i);
+					h[c][j][i] = hv.get(i);
+					r0[c][j][i] = h[c][j][i]*pi0[j]*b0[c][j];
+				}
+			}
+		}
+		alpha = Math.max(Math.sqrt(totalCount)/config.alpha_factor, config.sparseness);
+
+		r = new double[numConditions][numComp][];
+		b = new double[numConditions][numComp];
+		pi = new double[numComp];
+		for (int c=0;c<numConditions;c++)
+			for (int j=0;j<numComp;j++)
+				r[c][j] = new double[r0[c][j].length];
+	}
+
+	@Setup(Level.Invocation)
+	public void reset(){
+		for (int c=0;c<numConditions;c++){
+			for (int j=0;j<r0[c].length;j++)
+				System.arraycopy(r0[c][j], 0, r[c][j], 0, r0[c][j].length);
+			System.arraycopy(b0[c], 0, b[c], 0, b0[c].length);
+		}
+		System.arraycopy(pi0, 0, pi, 0, pi0.length);
+	}
+
+	@Benchmark
+	public Pair<double[][][], Double> emMap(){
+		return kernel.run(flat, counts, h, r, b, c2b, pi, alpha, pos_alpha, prob_bg);
+	}
+}
@@ -0,0 +1,65 @@
+package edu.mit.csail.cgs.deepseq.discovery;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import edu.mit.csail.cgs.deepseq.BindingModel;
+import edu.mit.csail.cgs.utils.Pair;
+
+/**
+ * Test-support seam for the benchmarks: runs the private EM_MAP kernels of a
+ * KPPMixture EM worker through reflection, so that KPPMixture does not open
+ * them up for bench/. <br>
+ * The mixture has no data loaders, only the binding model and the config.
+ */
+public class EMKernel {
+	private KPPMixture.GPS2Thread worker;
+	private Method emMap, emMapFlat;
+
+	public EMKernel(BindingModel model, Config config, int numConditions){
+		try{
+			Constructor<KPPMixture> mixtureConstructor = 
+				KPPMixture.class.getDeclaredConstructor(BindingModel.class, Config.class, int.class);
+			mixtureConstructor.setAccessible(true);
+			KPPMixture mixture = mixtureConstructor.newInstance(model, config, numConditions);
+			worker = mixture.new GPS2Thread(null, null, null, null, null, null, true);
+			Class<?>[] params = new Class<?>[]{double[][].class, double[][][].class, double[][][].class, double[][].class, 
+					int[][][].class, double[].class, double.class, double[].class, double[][].class};
+			emMap = KPPMixture.GPS2Thread.class.getDeclaredMethod("EM_MAP", params);
+			emMap.setAccessible(true);
+			emMapFlat = KPPMixture.GPS2Thread.class.getDeclaredMethod("EM_MAP_flat", params);
+			emMapFlat.setAccessible(true);
+		}
+		catch (NoSuchMethodException e){
+			throw new IllegalStateException("KPPMixture EM kernels have changed, update EMKernel", e);
+		}
+		catch (InstantiationException e){
+			throw new IllegalStateException(e);
+		}
+		catch (IllegalAccessException e){
+			throw new IllegalStateException(e);
+		}
+		catch (InvocationTargetException e){
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	/**
+	 * Runs one EM_MAP (or EM_MAP_flat) call, at 1bp component spacing
+	 */
+	@SuppressWarnings("unchecked")
+	public Pair<double[][][], Double> run(boolean flat, double[][] counts, double[][][] h, double[][][] r,
+			double[][] b, int[][][] c2b, double[] pi, double alpha, double[] pos_alpha, double[][] prob_bg){
+		try{
+			return (Pair<double[][][], Double>) (flat ? emMapFlat : emMap).invoke(worker, 
+					counts, h, r, b, c2b, pi, alpha, pos_alpha, prob_bg);
+		}
+		catch (IllegalAccessException e){
+			throw new IllegalStateException(e);
+		}
+		catch (InvocationTargetException e){
+			throw new RuntimeException(e.getCause());
+		}
+	}
+}
@@ -0,0 +1,60 @@
+package edu.mit.csail.cgs.deepseq.discovery.kmer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.mit.csail.cgs.deepseq.bench.SyntheticData;
+import edu.mit.csail.cgs.deepseq.discovery.Config;
+
+/**
+ * Benchmark of KMAC.generateKmers() on random sequences with a planted motif.
+ * Negative sequences are the dinucleotide shuffles made by loadFileSequences().
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class KMACBenchmark {
+
+	@Param({"2000"})
+	public int numSeqs;
+
+	@Param({"6", "8"})
+	public int k;
+
+	private KMAC kmac;
+
+	@Setup
+	public void setup(){
+		Config config = new Config();
+		config.k_win = 61;
+		kmac = new KMAC();
+		kmac.setStandalone();
+		kmac.setConfig(config, "kmac_bench", "");
+		ArrayList<String> seqs = SyntheticData.sequences(numSeqs, config.k_win, "CCACGAGGTGGC", 0.5, 0);
+		ArrayList<Double> weights = new ArrayList<Double>();
+		for (int i=0;i<seqs.size();i++)
+			weights.add(10.0);
+		kmac.loadFileSequences(seqs, new ArrayList<String>(), weights);
+	}
+
+	@Benchmark
+	public HashMap<String, Kmer> generateKmers(){
+		return kmac.generateKmers(k);
+	}
+}
@@ -0,0 +1,87 @@
+package edu.mit.csail.cgs.deepseq.utilities;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.mit.csail.cgs.datasets.general.Region;
+import edu.mit.csail.cgs.datasets.species.Genome;
+import edu.mit.csail.cgs.deepseq.BindingModel;
+import edu.mit.csail.cgs.deepseq.StrandedBase;
+import edu.mit.csail.cgs.deepseq.bench.SyntheticData;
+
+/**
+ * Benchmark of ReadCache region queries (getStrandedBases, getStrandedView, countHits)
+ * over a simulated chromosome with one event every 2kb. <br>
+ * Query regions are drawn at random, each benchmark call runs one query.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReadCacheBenchmark {
+
+	private static final int EVENT_SPACING = 2000;
+	private static final int NUM_QUERIES = 1024;
+
+	@Param({"5000"})
+	public int numEvents;
+
+	@Param({"200", "2000"})
+	public int regionWidth;
+
+	private ReadCache cache;
+	private Region[] queries;
+	private int next;
+
+	@Setup
+	public void setup(){
+		BindingModel model = SyntheticData.bindingModel();
+		int chromLength = numEvents*EVENT_SPACING;
+		Genome g = new Genome("Bench", chromLength);
+		String chrom = g.getChromList().get(0);
+		int[][] fivePrimes = SyntheticData.fivePrimes(model, numEvents, 50, EVENT_SPACING, 1);
+		cache = SyntheticData.readCache(g, chrom, fivePrimes);
+
+		Random rand = new Random(0);
+		queries = new Region[NUM_QUERIES];
+		for (int i=0;i<queries.length;i++){
+			int start = rand.nextInt(chromLength-regionWidth);
+			queries[i] = new Region(g, chrom, start, start+regionWidth-1);
+		}
+	}
+
+	private Region nextQuery(){
+		next = (next+1) & (NUM_QUERIES-1);
+		return queries[next];
+	}
+
+	@Benchmark
+	public List<StrandedBase> getStrandedBases(){
+		return cache.getStrandedBases(nextQuery(), '+');
+	}
+
+	@Benchmark
+	public StrandedBaseView getStrandedView(){
+		return cache.getStrandedView(nextQuery(), '+');
+	}
+
+	@Benchmark
+	public float countHits(){
+		return cache.countHits(nextQuery());
+	}
+}
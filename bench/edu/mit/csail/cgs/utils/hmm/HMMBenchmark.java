@@ -0,0 +1,229 @@
+package edu.mit.csail.cgs.utils.hmm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of one Baum-Welch iteration and of Viterbi decoding, with the state layout
+ * of the dnaseq HMMTrain model (insensitive, sensitive, and a forward and reverse state
+ * for each motif position) over read count symbols. <br>
+ * The observations are split into <tt>numSeqs</tt> sequences of <tt>length</tt> each,
+ * as HMMTrain collects one sequence per training region. <br>
+ * <tt>legacy</tt> runs the former unscaled implementation (copied in <tt>Legacy</tt>)
+ * on a short sequence, since it underflows and is cubic in the number of states on long ones.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HMMBenchmark {
+
+	private static final int MOTIF_LENGTH = 12;
+	private static final int NUM_STATES = 2+2*MOTIF_LENGTH;
+	private static final int NUM_SYMBOLS = 8;
+	private static final int LEGACY_LENGTH = 2000;
+
+	@Param({"100000", "1000000"})
+	public int length;
+
+	@Param({"4"})
+	public int numSeqs;
+
+	@Param({"1", "4"})
+	public int threads;
+
+	private HMM hmm;
+	private List<int[]> seqs;
+	private int[] shortSeq;
+
+	@Setup
+	public void setup(){
+		Random rand = new Random(0);
+		seqs = new ArrayList<int[]>();
+		for (int n=0;n<numSeqs;n++)
+			seqs.add(observations(length, rand));
+		shortSeq = observations(LEGACY_LENGTH, rand);
+		hmm = new HMM(NUM_STATES, NUM_SYMBOLS);
+		initModel(hmm.pi, hmm.a, hmm.b, new Random(1));
+	}
+
+	/** mostly low counts, with stretches of high counts */
+	private static int[] observations(int length, Random rand){
+		int[] o = new int[length];
+		boolean sensitive = false;
+		for (int t=0;t<length;t++){
+			if (rand.nextInt(200)==0)
+				sensitive = !sensitive;
+			int mean = sensitive ? NUM_SYMBOLS/2 : 1;
+			o[t] = Math.min(NUM_SYMBOLS-1, Math.max(0, mean+(int)Math.round(rand.nextGaussian())));
+		}
+		return o;
+	}
+
+	private static void initModel(double[] pi, double[][] a, double[][] b, Random rand){
+		normalize(pi, rand);
+		for (double[] row: a)
+			normalize(row, rand);
+		for (double[] row: b)
+			normalize(row, rand);
+	}
+
+	private static void normalize(double[] v, Random rand){
+		double sum = 0;
+		for (int i=0;i<v.length;i++){
+			v[i] = 0.1+rand.nextDouble();
+			sum += v[i];
+		}
+		for (int i=0;i<v.length;i++)
+			v[i] /= sum;
+	}
+
+	@Benchmark
+	public double baumWelchStep(){
+		return hmm.baumWelch(seqs, 1, threads);
+	}
+
+	@Benchmark
+	public double viterbi(){
+		return hmm.viterbi(seqs.get(0))[0][0];
+	}
+
+	@Benchmark
+	public double legacy(){
+		Legacy legacy = new Legacy(NUM_STATES, NUM_SYMBOLS);
+		initModel(legacy.pi, legacy.a, legacy.b, new Random(1));
+		legacy.baumWelch(shortSeq, 1);
+		return legacy.a[0][0];
+	}
+
+	@Benchmark
+	public double engineShort(){
+		HMM h = new HMM(NUM_STATES, NUM_SYMBOLS);
+		initModel(h.pi, h.a, h.b, new Random(1));
+		h.baumWelch(shortSeq, 1);
+		return h.a[0][0];
+	}
+
+	/**
+	 * The HMM Baum-Welch methods before the scaled implementation, for comparison
+	 */
+	static class Legacy{
+		int numStates, sigmaSize;
+		double[] pi;
+		double[][] a, b;
+
+		Legacy(int numStates, int sigmaSize){
+			this.numStates = numStates;
+			this.sigmaSize = sigmaSize;
+			pi = new double[numStates];
+			a = new double[numStates][numStates];
+			b = new double[numStates][sigmaSize];
+		}
+
+		void baumWelch(int[] o, int steps){
+			int T = o.length;
+			double pi1[] = new double[numStates];
+			double a1[][] = new double[numStates][numStates];
+			double b1[][] = new double[numStates][sigmaSize];
+			for (int s=0;s<steps;s++){
+				double[][] fwd = forwardProc(o);
+				double[][] bwd = backwardProc(o);
+				for (int i=0;i<numStates;i++)
+					pi1[i] = gamma(i, 0, o, fwd, bwd);
+				for (int i=0;i<numStates;i++){
+					for (int j=0;j<numStates;j++){
+						double num = 0, denom = 0;
+						for (int t=0;t<=T-1;t++){
+							num += xi(t, i, j, o, fwd, bwd);
+							denom += gamma(i, t, o, fwd, bwd);
+						}
+						a1[i][j] = divide(num, denom);
+					}
+				}
+				for (int i=0;i<numStates;i++){
+					for (int k=0;k<sigmaSize;k++){
+						double num = 0, denom = 0;
+						for (int t=0;t<=T-1;t++){
+							double g = gamma(i, t, o, fwd, bwd);
+							num += g*(k==o[t]?1:0);
+							denom += g;
+						}
+						b1[i][k] = divide(num, denom);
+					}
+				}
+				pi = pi1;
+				a = a1;
+				b = b1;
+			}
+		}
+
+		double[][] forwardProc(int[] o){
+			int T = o.length;
+			double[][] fwd = new double[numStates][T];
+			for (int i=0;i<numStates;i++)
+				fwd[i][0] = pi[i]*b[i][o[0]];
+			for (int t=0;t<=T-2;t++){
+				for (int j=0;j<numStates;j++){
+					fwd[j][t+1] = 0;
+					for (int i=0;i<numStates;i++)
+						fwd[j][t+1] += fwd[i][t]*a[i][j];
+					fwd[j][t+1] *= b[j][o[t+1]];
+				}
+			}
+			return fwd;
+		}
+
+		double[][] backwardProc(int[] o){
+			int T = o.length;
+			double[][] bwd = new double[numStates][T];
+			for (int i=0;i<numStates;i++)
+				bwd[i][T-1] = 1;
+			for (int t=T-2;t>=0;t--){
+				for (int i=0;i<numStates;i++){
+					bwd[i][t] = 0;
+					for (int j=0;j<numStates;j++)
+						bwd[i][t] += bwd[j][t+1]*a[i][j]*b[j][o[t+1]];
+				}
+			}
+			return bwd;
+		}
+
+		double xi(int t, int i, int j, int[] o, double[][] fwd, double[][] bwd){
+			double num, denom = 0.0;
+			if (t==o.length-1)
+				num = fwd[i][t]*a[i][j];
+			else
+				num = fwd[i][t]*a[i][j]*b[j][o[t+1]]*bwd[j][t+1];
+			for (int k=0;k<numStates;k++)
+				denom += fwd[k][t]*bwd[k][t];
+			return divide(num, denom);
+		}
+
+		double gamma(int i, int t, int[] o, double[][] fwd, double[][] bwd){
+			double num = fwd[i][t]*bwd[i][t], denom = 0.0;
+			for (int j=0;j<numStates;j++)
+				denom += fwd[j][t]*bwd[j][t];
+			return divide(num, denom);
+		}
+
+		static double divide(double n, double d){
+			return n==0 ? 0 : n/d;
+		}
+	}
+}
@@ -0,0 +1,236 @@
+package edu.mit.csail.cgs.utils.stats;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of the k-mer HGP computation of KMAC.computeHGP() with the HyperGeometric engine,
+ * against the former String-keyed tables of StatUtil (copied in <tt>Legacy</tt>). <br>
+ * Each call computes the HGP of one (posHit, negHit) pair drawn from a fixed set of pairs,
+ * so that after the warmup both implementations mostly hit their caches. <br>
+ * The <tt>*Cold</tt> benchmarks compute every value from scratch.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HyperGeometricBenchmark {
+
+	private static final int NUM_QUERIES = 1<<14;
+
+	@Param({"5000"})
+	public int seqCount;
+
+	private int[] posHits, negHits;
+	private int next;
+	private int coldCount;
+
+	@Setup
+	public void setup(){
+		Random rand = new Random(0);
+		posHits = new int[NUM_QUERIES];
+		negHits = new int[NUM_QUERIES];
+		for (int i=0;i<NUM_QUERIES;i++){
+			// mostly rare k-mers, a few enriched ones
+			negHits[i] = rand.nextInt(seqCount/20);
+			posHits[i] = negHits[i] + rand.nextInt(seqCount/10) + 1;
+		}
+	}
+
+	private int nextQuery(){
+		next = (next+1) & (NUM_QUERIES-1);
+		return next;
+	}
+
+	@Benchmark
+	public double engine(){
+		int i = nextQuery();
+		return computeHGP(HyperGeometric.forPopulation(seqCount*2), seqCount, seqCount, posHits[i], negHits[i]);
+	}
+
+	@Benchmark
+	public double legacy(){
+		int i = nextQuery();
+		return Legacy.computeHGP(seqCount, seqCount, posHits[i], negHits[i]);
+	}
+
+	@Benchmark
+	public double engineCold(){
+		int i = nextQuery();
+		// a new negHit each call, so that the cached value is never reused
+		int negHit = (coldCount++ % (seqCount/20)) + negHits[i];
+		return computeHGP(HyperGeometric.forPopulation(seqCount*2), seqCount, seqCount, posHits[i]+negHit, negHit);
+	}
+
+	@Benchmark
+	public double legacyCold(){
+		int i = nextQuery();
+		int negHit = (coldCount++ % (seqCount/20)) + negHits[i];
+		Legacy.clear();
+		return Legacy.computeHGP(seqCount, seqCount, posHits[i]+negHit, negHit);
+	}
+
+	/** KMAC.computeHGP() */
+	private static double computeHGP(HyperGeometric hg, int posSeq, int negSeq, int posHit, int negHit){
+		int allHit = posHit + negHit;
+		if (posHit<negHit){
+			double hgcdf = hg.cdf(posHit, allHit, posSeq);
+			if (hgcdf>0.99)
+				return negHit==0 ? hg.log10Cdf(0, allHit+2+1, negSeq) : hg.log10Cdf(negHit-1, allHit, negSeq);
+			else
+				return Math.log(1-hgcdf);
+		}
+		else{
+			double hgcdf = negHit==0 ? hg.cdf(0, allHit+2+1, negSeq) : hg.cdf(negHit-1, allHit, negSeq);
+			if (hgcdf==0||hgcdf<=Double.MIN_VALUE)
+				return negHit==0 ? hg.log10Cdf(0, allHit+2+1, negSeq) : hg.log10Cdf(negHit-1, allHit, negSeq);
+			else
+				return Math.log10(hgcdf);
+		}
+	}
+
+	/**
+	 * The StatUtil hypergeometric methods before HyperGeometric, for comparison
+	 */
+	static class Legacy{
+		static private double[] logFactorials;
+		static private ConcurrentHashMap<String, Double> HGP_table = new ConcurrentHashMap<String, Double>();
+		static private ConcurrentHashMap<String, Double> log10_HGP_table = new ConcurrentHashMap<String, Double>();
+		static private ConcurrentHashMap<String, Double> HGPDF_table = new ConcurrentHashMap<String, Double>();
+		static private ConcurrentHashMap<String, Double> log10_HGPDF_table = new ConcurrentHashMap<String, Double>();
+
+		static void clear(){
+			HGP_table.clear();
+			log10_HGP_table.clear();
+			HGPDF_table.clear();
+			log10_HGPDF_table.clear();
+		}
+
+		static double computeHGP(int posSeq, int negSeq, int posHit, int negHit){
+			int allHit = posHit + negHit;
+			int allSeq = posSeq + negSeq;
+			if (posHit<negHit){
+				double hgcdf = hyperGeometricCDF_cache(posHit, allSeq, allHit, posSeq);
+				if (hgcdf>0.99)
+					return computeHGP_TINY(posSeq, negSeq, posHit, negHit);
+				else
+					return Math.log(1-hgcdf);
+			}
+			else{
+				double hgcdf=0;
+				if (negHit==0)
+					hgcdf = hyperGeometricCDF_cache(0, allSeq, allHit+2+1, negSeq);
+				else
+					hgcdf = hyperGeometricCDF_cache(negHit-1, allSeq, allHit, negSeq);
+				if (hgcdf==0||hgcdf<=Double.MIN_VALUE)
+					return computeHGP_TINY(posSeq, negSeq, posHit, negHit);
+				else
+					return Math.log10(hgcdf);
+			}
+		}
+
+		static double computeHGP_TINY(int posSeq, int negSeq, int posHit, int negHit){
+			int allHit = posHit + negHit;
+			int allSeq = posSeq + negSeq;
+			if (negHit==0)
+				return log10_hyperGeometricCDF_cache_appr(0, allSeq, allHit+2+1, negSeq);
+			else
+				return log10_hyperGeometricCDF_cache_appr(negHit-1, allSeq, allHit, negSeq);
+		}
+
+		static double hyperGeometricCDF_cache(int x, int N, int s, int n) {
+			String key = String.format("%d_%d_%d_%d", x, N, s, n);
+			if (HGP_table.containsKey(key)){
+				return HGP_table.get(key);
+			}
+			else{
+				double v = 0.0;
+				for (int k=0;k<=x;k++)
+					v += hyperGeometricPDF_cache(k,N,s,n);
+				if (v > 1.0)
+					v = 1.0;
+				HGP_table.put(key, v);
+				return v;
+			}
+		}
+
+		static double log10_hyperGeometricCDF_cache_appr(int x, int N, int s, int n) {
+			String key = String.format("%d_%d_%d_%d", x, N, s, n);
+			if (log10_HGP_table.containsKey(key)){
+				return log10_HGP_table.get(key);
+			}
+			else{
+				double Lx = log10_hyperGeometricPDF_cache(x,N,s,n);
+				double sum = 1;
+				for (int k=x-1;k>=0;k--)
+					sum += Math.pow(10, log10_hyperGeometricPDF_cache(k,N,s,n)-Lx);
+				Lx += Math.log10(sum);
+				HGP_table.put(key, Lx);
+				return Lx;
+			}
+		}
+
+		static double hyperGeometricPDF_cache(int x, int N, int s, int n) {
+			if (x+N-s-n<0)
+				return 0;
+			String key = String.format("%d_%d_%d_%d", x, N, s, n);
+			if (HGPDF_table.containsKey(key)){
+				return HGPDF_table.get(key);
+			}
+			else{
+				double result = Math.exp(logPdf(x, N, s, n));
+				HGPDF_table.put(key, result);
+				return result;
+			}
+		}
+
+		static double log10_hyperGeometricPDF_cache (int x, int N, int s, int n) {
+			if (x+N-s-n<0)
+				return Double.NEGATIVE_INFINITY;
+			String key = String.format("%d_%d_%d_%d", x, N, s, n);
+			if (log10_HGPDF_table.containsKey(key)){
+				return log10_HGPDF_table.get(key);
+			}
+			else{
+				double result = logPdf(x, N, s, n)*Math.log10(Math.exp(1));
+				log10_HGPDF_table.put(key, result);
+				return result;
+			}
+		}
+
+		private static double logPdf(int x, int N, int s, int n){
+			int len = (logFactorials==null)?0:logFactorials.length;
+			if (logFactorials==null || logFactorials.length < N+1){
+				double[] old = logFactorials;
+				logFactorials = new double[N+1];
+				if (len!=0)
+					System.arraycopy(old, 0, logFactorials, 0, len);
+				else{
+					logFactorials[0]=0;
+					len++;
+				}
+				for (int i=len;i<=N;i++)
+					logFactorials[i] = logFactorials[i-1]+Math.log(i);
+			}
+			double kx = logFactorials[s]-logFactorials[x]-logFactorials[s-x];
+			double mknx = logFactorials[N-s]-logFactorials[n-x]-logFactorials[N-s-(n-x)];
+			double mn = logFactorials[N]-logFactorials[n]-logFactorials[N-n];
+			return kx + mknx - mn;
+		}
+	}
+}
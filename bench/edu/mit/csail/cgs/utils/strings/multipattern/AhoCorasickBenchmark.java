@@ -0,0 +1,69 @@
+package edu.mit.csail.cgs.utils.strings.multipattern;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.mit.csail.cgs.deepseq.bench.SyntheticData;
+
+/**
+ * Benchmark of AhoCorasick search over a batch of DNA sequences, collecting
+ * the distinct k-mers hit in each sequence as KMAC does for the negative set.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AhoCorasickBenchmark {
+
+	@Param({"1000", "20000"})
+	public int numKmers;
+
+	private static final int K = 8;
+
+	private AhoCorasick tree;
+	private byte[][] seqs;
+
+	@Setup
+	public void setup(){
+		ArrayList<String> kmers = SyntheticData.sequences(numKmers, K, null, 0, 1);
+		tree = new AhoCorasick();
+		for (String s: new HashSet<String>(kmers))
+			tree.add(s.getBytes(), s);
+		tree.prepare();
+		ArrayList<String> strs = SyntheticData.sequences(1000, 100, null, 0, 2);
+		seqs = new byte[strs.size()][];
+		for (int i=0;i<seqs.length;i++)
+			seqs[i] = strs.get(i).getBytes();
+	}
+
+	@Benchmark
+	public int search(){
+		int hits = 0;
+		for (byte[] seq: seqs){
+			HashSet<Object> kmerHits = new HashSet<Object>();
+			Iterator searcher = tree.search(seq);
+			while (searcher.hasNext()) {
+				SearchResult result = (SearchResult) searcher.next();
+				kmerHits.addAll(result.getOutputs());
+			}
+			hits += kmerHits.size();
+		}
+		return hits;
+	}
+}
@@ -0,0 +1,278 @@
+package edu.mit.csail.cgs.clustering.hierarchical;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import edu.mit.csail.cgs.clustering.Cluster;
+import edu.mit.csail.cgs.clustering.ClusterRepresentative;
+import edu.mit.csail.cgs.clustering.ClusteringMethod;
+import edu.mit.csail.cgs.clustering.PairwiseElementMetric;
+import edu.mit.csail.cgs.clustering.SingletonCluster;
+
+/**
+ * Agglomerative clustering with a fixed linkage, in O(n^2) time and n(n-1)/2 doubles of memory.
+ * <p>
+ * The representatives of the elements (from the ClusterRepresentative) are compared once,
+ * in parallel, into a packed upper-triangular matrix.  The clusters are then merged with the
+ * nearest-neighbor chain algorithm, and the distances to a merged cluster are computed from
+ * the distances to its two parts with the Lance-Williams formula, so the metric and the
+ * representative are not called again.
+ * <p>
+ * Unlike HierarchicalClustering, the distance between two clusters does not come from a
+ * representative of each merged cluster, it is the single, complete, average (UPGMA), weighted (WPGMA)
+ * or Ward linkage.  Ward assumes that the metric is Euclidean.  NaN distances are treated as infinite.
+ * <p>
+ * The weight of each ClusterNode is its merge distance.
+ */
+public class LinkageClustering<X> implements ClusteringMethod<X> {
+
+    public enum Linkage { SINGLE, COMPLETE, AVERAGE, WEIGHTED, WARD }
+
+    private ClusterRepresentative<X> repr;
+    private PairwiseElementMetric<X> metric;
+    private Linkage linkage;
+    private double maxDistanceToAccept;
+    private int numThreads;
+
+    public LinkageClustering(ClusterRepresentative<X> rep, PairwiseElementMetric<X> m, Linkage l) {
+        repr = rep;
+        metric = m;
+        linkage = l;
+        maxDistanceToAccept = Double.MAX_VALUE;
+        numThreads = 1;
+    }
+
+    public void setMaxDistanceToAccept(double d) {
+        maxDistanceToAccept = d;
+    }
+
+    /**
+     * Number of threads used to compute the distance matrix.  The metric must be
+     * safe to call from several threads when this is more than one.
+     */
+    public void setNumThreads(int t) {
+        numThreads = Math.max(1, t);
+    }
+
+    /* (non-Javadoc)
+     * @see edu.mit.csail.cgs.clustering.ClusteringMethod#clusterElements(java.util.Collection)
+     */
+    public Collection<Cluster<X>> clusterElements(Collection<X> elmts) {
+        int n = elmts.size();
+        List<Cluster<X>> leaves = new ArrayList<Cluster<X>>();
+        List<X> reps = new ArrayList<X>();
+        for(X ce : elmts) {
+            Cluster<X> c = new SingletonCluster<X>(ce);
+            leaves.add(c);
+            reps.add(repr.getRepresentative(c));
+        }
+        Vector<Cluster<X>> output = new Vector<Cluster<X>>();
+        if (n == 0) {
+            return output;
+        }
+
+        double[] distances = distanceMatrix(reps);
+        Merge[] merges = nearestNeighborChain(n, distances);
+        distances = null;
+
+        // merges from the chain are not in order of distance, build the tree in increasing order
+        Arrays.sort(merges, new Comparator<Merge>() {
+            public int compare(Merge m1, Merge m2) {
+                return Double.compare(m1.distance, m2.distance);
+            }
+        });
+        int[] parent = new int[n];          // union-find over the element indices
+        List<Cluster<X>> roots = new ArrayList<Cluster<X>>(leaves);   // the cluster of each root index
+        for (int i = 0; i < n; i++) {
+            parent[i] = i;
+        }
+        for (Merge m : merges) {
+            double height = linkage == Linkage.WARD ? Math.sqrt(m.distance) : m.distance;
+            if (!(height <= maxDistanceToAccept)) {
+                break;
+            }
+            int a = find(parent, m.a), b = find(parent, m.b);
+            int left = Math.min(a, b), right = Math.max(a, b);
+            // the smaller index is the root, so the root of a cluster is its first element
+            parent[right] = left;
+            roots.set(left, new ClusterNode<X>(height, roots.get(left), roots.get(right)));
+            roots.set(right, null);
+        }
+        for (int i = 0; i < n; i++) {
+            if (roots.get(i) != null) {
+                output.add(roots.get(i));
+            }
+        }
+        return output;
+    }
+
+    private static int find(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    /* index of (i,j), i<j, in the packed upper triangle */
+    private static long index(int n, int i, int j) {
+        return (long)i * (2L * n - i - 1) / 2 + (j - i - 1);
+    }
+
+    private double[] distanceMatrix(final List<X> reps) {
+        final int n = reps.size();
+        long cells = (long)n * (n - 1) / 2;
+        if (cells > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Too many elements to cluster: " + n);
+        }
+        final double[] distances = new double[(int)cells];
+        final int threads = Math.min(numThreads, Math.max(1, n / 64));
+        if (threads == 1) {
+            fillRows(reps, distances, 0, 1);
+            return distances;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int t = 0; t < threads; t++) {
+            final int first = t;
+            // interleaved rows, so that each thread gets long and short rows
+            futures.add(pool.submit(new Callable<Object>() {
+                public Object call() {
+                    fillRows(reps, distances, first, threads);
+                    return null;
+                }
+            }));
+        }
+        pool.shutdown();
+        try {
+            for (Future<?> f : futures) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            pool.shutdownNow();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            pool.shutdownNow();
+            throw new RuntimeException(e.getCause());
+        }
+        return distances;
+    }
+
+    private void fillRows(List<X> reps, double[] distances, int first, int step) {
+        int n = reps.size();
+        for (int i = first; i < n - 1; i += step) {
+            X r1 = reps.get(i);
+            int k = (int)index(n, i, i + 1);
+            for (int j = i + 1; j < n; j++, k++) {
+                double d = metric.evaluate(r1, reps.get(j));
+                if (Double.isNaN(d)) {
+                    d = Double.POSITIVE_INFINITY;
+                } else if (linkage == Linkage.WARD) {
+                    d = d * d;
+                }
+                distances[k] = d;
+            }
+        }
+    }
+
+    /*
+     * Follows a chain of nearest neighbors until two clusters are each other's nearest neighbor,
+     * merges them and continues from the rest of the chain.  The merged cluster takes the slot of b.
+     * Ties go to the previous cluster in the chain, then to the smallest index, so the chain
+     * always ends.
+     */
+    private Merge[] nearestNeighborChain(int n, double[] d) {
+        Merge[] merges = new Merge[n - 1];
+        boolean[] active = new boolean[n];
+        int[] size = new int[n];
+        Arrays.fill(active, true);
+        Arrays.fill(size, 1);
+        int[] chain = new int[n];
+        int chainLength = 0;
+        int next = 0;       // smallest index that may still be active
+
+        for (int m = 0; m < n - 1; m++) {
+            if (chainLength == 0) {
+                while (!active[next]) {
+                    next++;
+                }
+                chain[chainLength++] = next;
+            }
+            int a, b;
+            while (true) {
+                a = chain[chainLength - 1];
+                int prev = chainLength >= 2 ? chain[chainLength - 2] : -1;
+                b = prev;
+                double min = prev >= 0 ? d[(int)(a < prev ? index(n, a, prev) : index(n, prev, a))] : Double.POSITIVE_INFINITY;
+                for (int c = 0; c < n; c++) {
+                    if (c == a || !active[c]) {
+                        continue;
+                    }
+                    double dc = d[(int)(a < c ? index(n, a, c) : index(n, c, a))];
+                    if (dc < min || b < 0) {
+                        min = dc;
+                        b = c;
+                    }
+                }
+                if (b == prev) {
+                    break;
+                }
+                chain[chainLength++] = b;
+            }
+            chainLength -= 2;
+            double dab = d[(int)(a < b ? index(n, a, b) : index(n, b, a))];
+            merges[m] = new Merge(a, b, dab);
+
+            // Lance-Williams update of the distances to the merged cluster, kept in slot b
+            int na = size[a], nb = size[b];
+            for (int k = 0; k < n; k++) {
+                if (!active[k] || k == a || k == b) {
+                    continue;
+                }
+                int ka = (int)(k < a ? index(n, k, a) : index(n, a, k));
+                int kb = (int)(k < b ? index(n, k, b) : index(n, b, k));
+                double dk = update(d[ka], d[kb], dab, na, nb, size[k]);
+                d[kb] = Double.isNaN(dk) ? Double.POSITIVE_INFINITY : dk;     // eg Ward with infinite distances
+            }
+            active[a] = false;
+            size[b] = na + nb;
+        }
+        return merges;
+    }
+
+    private double update(double dka, double dkb, double dab, int na, int nb, int nk) {
+        switch (linkage) {
+        case SINGLE:
+            return Math.min(dka, dkb);
+        case COMPLETE:
+            return Math.max(dka, dkb);
+        case AVERAGE:
+            return (na * dka + nb * dkb) / (na + nb);
+        case WEIGHTED:
+            return (dka + dkb) / 2;
+        case WARD:
+            return ((na + nk) * dka + (nb + nk) * dkb - nk * dab) / (na + nb + nk);
+        default:
+            throw new IllegalStateException("Unknown linkage " + linkage);
+        }
+    }
+
+    private static class Merge {
+        int a, b;
+        double distance;
+        Merge(int a, int b, double distance) {
+            this.a = a;
+            this.b = b;
+            this.distance = distance;
+        }
+    }
+}
@@ -0,0 +1,399 @@
+package edu.mit.csail.cgs.clustering.kmeans;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import edu.mit.csail.cgs.clustering.Cluster;
+import edu.mit.csail.cgs.clustering.ClusteringMethod;
+import edu.mit.csail.cgs.clustering.DefaultCluster;
+import edu.mit.csail.cgs.clustering.vectorcluster.VectorClusterElement;
+
+/**
+ * K-means with the Euclidean distance, for VectorClusterElements.
+ * <p>
+ * The element values are copied once into a double[] (missing values are taken as 0.0),
+ * and the cluster means are kept as double[] rows, so an iteration does not allocate.
+ * The assignment step skips most distance computations with Hamerly's bounds:
+ * an upper bound on the distance of each element to its mean, and a lower bound on the
+ * distance to any other mean.  It gives the same clusters as KMeansClustering with the
+ * EuclideanDistance metric and the Mean representative, from the same starting means.
+ * <p>
+ * The elements are split into one block per thread; each block sums its elements per cluster,
+ * and the sums are added in block order, so the result does not depend on the thread timing.
+ * <p>
+ * The starting means are either given, or chosen with k-means++ seeding.  It iterates until
+ * no element changes cluster, or for at most setIterations() iterations.  A mean that loses
+ * all its elements stays where it was.
+ */
+public class VectorKMeansClustering<X extends VectorClusterElement> implements ClusteringMethod<X> {
+
+    private int numClusters;
+    private double[][] startMeans;
+    private int iterations;
+    private int numThreads;
+    private long seed;
+
+    private int n, dim;
+    private double[] values;            // element i is values[i*dim .. (i+1)*dim)
+    private double[][] means;
+    private int[] assignment;
+    private double[] upper, lower;
+    private int iterationsRun;
+    private long distanceCount;
+    private double sumOfSquares;
+
+    /**
+     * K-means with k-means++ seeding
+     */
+    public VectorKMeansClustering(int k) {
+        numClusters = k;
+        iterations = 100;
+        numThreads = 1;
+        seed = 0;
+    }
+
+    /**
+     * K-means from the given starting means
+     */
+    public VectorKMeansClustering(Collection<? extends VectorClusterElement> starts) {
+        this(starts.size());
+        startMeans = new double[numClusters][];
+        int c = 0;
+        for (VectorClusterElement s : starts) {
+            startMeans[c++] = toArray(s);
+        }
+    }
+
+    public void setIterations(int i) { iterations = i; }
+    public void setNumThreads(int t) { numThreads = Math.max(1, t); }
+    /** seed of the random number generator for k-means++ seeding */
+    public void setSeed(long s) { seed = s; }
+
+    public int getIterationsRun() { return iterationsRun; }
+    /** number of element-to-mean distances computed by the last clusterElements() call */
+    public long getDistanceCount() { return distanceCount; }
+    public double[][] getClusterMeans() { return means; }
+
+    public Collection<Cluster<X>> clusterElements(Collection<X> e) {
+        List<X> elmts = new ArrayList<X>(e);
+        n = elmts.size();
+        Vector<Cluster<X>> clusters = new Vector<Cluster<X>>();
+        if (n == 0) {
+            return clusters;
+        }
+        dim = elmts.get(0).dimension();
+        values = new double[n * dim];
+        for (int i = 0; i < n; i++) {
+            X x = elmts.get(i);
+            if (x.dimension() != dim) { throw new IllegalArgumentException(x.toString()); }
+            for (int j = 0; j < dim; j++) {
+                values[i * dim + j] = x.isMissingValue(j) ? 0.0 : x.getValue(j);
+            }
+        }
+        assignment = new int[n];
+        upper = new double[n];
+        lower = new double[n];
+        distanceCount = 0;
+
+        int blocks = Math.max(1, Math.min(numThreads, n / 1000));
+        ExecutorService pool = blocks > 1 ? Executors.newFixedThreadPool(blocks) : null;
+        try {
+            means = startMeans != null ? copy(startMeans) : seedMeans(pool, blocks);
+            for (int c = 0; c < numClusters; c++) {
+                if (means[c].length != dim) { throw new IllegalArgumentException("Starting mean " + c + " has the wrong dimension"); }
+            }
+            List<Block> results = new ArrayList<Block>();
+            for (int b = 0; b < blocks; b++) {
+                results.add(new Block((int)((long)n * b / blocks), (int)((long)n * (b + 1) / blocks)));
+            }
+            iterationsRun = 0;
+            boolean changed = true;
+            while (changed && iterationsRun < iterations) {
+                assign(pool, results, iterationsRun == 0);
+                changed = false;
+                for (Block b : results) {
+                    changed |= b.changed;
+                    distanceCount += b.distances;
+                }
+                iterationsRun++;
+                if (changed) {
+                    moveMeans(results);
+                }
+            }
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+
+        for (int c = 0; c < numClusters; c++) {
+            clusters.add(new DefaultCluster<X>());
+        }
+        sumOfSquares = 0;
+        for (int i = 0; i < n; i++) {
+            ((DefaultCluster<X>)clusters.get(assignment[i])).addElement(elmts.get(i));
+            sumOfSquares += squaredDistance(i, means[assignment[i]]);
+        }
+        values = null;
+        upper = null;
+        lower = null;
+        return clusters;
+    }
+
+    /**
+     * Sum of the squared distances of the elements to their cluster means, for the last clustering.
+     */
+    public double sumOfSquaredDistance() {
+        return sumOfSquares;
+    }
+
+    /* the elements of one block: partial sums of the next means */
+    private class Block implements Callable<Block> {
+        int start, end;
+        boolean first;
+        double[] halfMinSeparation;
+        double[][] sums;
+        int[] counts;
+        boolean changed;
+        long distances;
+
+        Block(int start, int end) {
+            this.start = start;
+            this.end = end;
+            sums = new double[numClusters][dim];
+            counts = new int[numClusters];
+        }
+
+        public Block call() {
+            changed = false;
+            distances = 0;
+            for (int c = 0; c < numClusters; c++) {
+                Arrays.fill(sums[c], 0.0);
+                counts[c] = 0;
+            }
+            for (int i = start; i < end; i++) {
+                if (first) {
+                    nearest(i);
+                    changed = true;
+                } else {
+                    int a = assignment[i];
+                    double bound = Math.max(halfMinSeparation[a], lower[i]);
+                    if (upper[i] > bound) {
+                        upper[i] = Math.sqrt(squaredDistance(i, means[a]));
+                        distances++;
+                        if (upper[i] > bound) {
+                            nearest(i);
+                            changed |= assignment[i] != a;
+                        }
+                    }
+                }
+                double[] sum = sums[assignment[i]];
+                int offset = i * dim;
+                for (int j = 0; j < dim; j++) {
+                    sum[j] += values[offset + j];
+                }
+                counts[assignment[i]]++;
+            }
+            return this;
+        }
+
+        /* exact nearest and second nearest means of element i */
+        private void nearest(int i) {
+            double d1 = Double.MAX_VALUE, d2 = Double.MAX_VALUE;
+            int c1 = 0;
+            for (int c = 0; c < numClusters; c++) {
+                double d = squaredDistance(i, means[c]);
+                if (d < d1) {
+                    d2 = d1;
+                    d1 = d;
+                    c1 = c;
+                } else if (d < d2) {
+                    d2 = d;
+                }
+            }
+            distances += numClusters;
+            assignment[i] = c1;
+            upper[i] = Math.sqrt(d1);
+            lower[i] = Math.sqrt(d2);
+        }
+    }
+
+    private void assign(ExecutorService pool, List<Block> blocks, boolean first) {
+        // half the distance of each mean to the closest other mean
+        double[] halfMinSeparation = new double[numClusters];
+        Arrays.fill(halfMinSeparation, Double.MAX_VALUE);
+        for (int c = 0; c < numClusters; c++) {
+            for (int c2 = c + 1; c2 < numClusters; c2++) {
+                double d = Math.sqrt(squaredDistance(means[c], means[c2])) / 2;
+                halfMinSeparation[c] = Math.min(halfMinSeparation[c], d);
+                halfMinSeparation[c2] = Math.min(halfMinSeparation[c2], d);
+            }
+        }
+        for (Block b : blocks) {
+            b.first = first;
+            b.halfMinSeparation = halfMinSeparation;
+        }
+        run(pool, blocks);
+    }
+
+    /* new means from the block sums, then loosen the bounds by how far the means moved */
+    private void moveMeans(List<Block> results) {
+        double[] moved = new double[numClusters];
+        int farthest = -1, secondFarthest = -1;
+        for (int c = 0; c < numClusters; c++) {
+            int count = 0;
+            double[] mean = new double[dim];
+            for (Block b : results) {
+                count += b.counts[c];
+                double[] sum = b.sums[c];
+                for (int j = 0; j < dim; j++) {
+                    mean[j] += sum[j];
+                }
+            }
+            if (count == 0) {
+                continue;       // an empty cluster keeps its mean
+            }
+            for (int j = 0; j < dim; j++) {
+                mean[j] /= count;
+            }
+            moved[c] = Math.sqrt(squaredDistance(mean, means[c]));
+            means[c] = mean;
+            if (farthest < 0 || moved[c] > moved[farthest]) {
+                secondFarthest = farthest;
+                farthest = c;
+            } else if (secondFarthest < 0 || moved[c] > moved[secondFarthest]) {
+                secondFarthest = c;
+            }
+        }
+        if (farthest < 0) {
+            return;
+        }
+        double secondMove = secondFarthest < 0 ? 0 : moved[secondFarthest];
+        for (int i = 0; i < n; i++) {
+            int a = assignment[i];
+            upper[i] += moved[a];
+            lower[i] -= (a == farthest ? secondMove : moved[farthest]);
+        }
+    }
+
+    /* k-means++: each next mean is an element drawn with probability proportional to its squared distance to the closest mean */
+    private double[][] seedMeans(ExecutorService pool, int numBlocks) {
+        if (numClusters > n) { throw new IllegalArgumentException("More clusters than elements: " + numClusters + " > " + n); }
+        Random rand = new Random(seed);
+        double[][] seeds = new double[numClusters][];
+        final double[] closest = new double[n];
+        Arrays.fill(closest, Double.MAX_VALUE);
+        int next = rand.nextInt(n);
+        for (int c = 0; c < numClusters; c++) {
+            final double[] mean = new double[dim];
+            System.arraycopy(values, next * dim, mean, 0, dim);
+            seeds[c] = mean;
+            if (c == numClusters - 1) {
+                break;
+            }
+            List<Callable<Double>> tasks = new ArrayList<Callable<Double>>();
+            for (int b = 0; b < numBlocks; b++) {
+                final int start = (int)((long)n * b / numBlocks), end = (int)((long)n * (b + 1) / numBlocks);
+                tasks.add(new Callable<Double>() {
+                    public Double call() {
+                        double total = 0;
+                        for (int i = start; i < end; i++) {
+                            closest[i] = Math.min(closest[i], squaredDistance(i, mean));
+                            total += closest[i];
+                        }
+                        return total;
+                    }
+                });
+            }
+            distanceCount += n;
+            double total = 0;
+            for (Double t : run(pool, tasks)) {
+                total += t;
+            }
+            if (total == 0) {       // fewer distinct elements than clusters
+                next = rand.nextInt(n);
+                continue;
+            }
+            double r = rand.nextDouble() * total;
+            next = n - 1;
+            for (int i = 0; i < n; i++) {
+                r -= closest[i];
+                if (r < 0) {
+                    next = i;
+                    break;
+                }
+            }
+        }
+        return seeds;
+    }
+
+    private <T> List<T> run(ExecutorService pool, Collection<? extends Callable<T>> tasks) {
+        List<T> results = new ArrayList<T>();
+        try {
+            if (pool == null) {
+                for (Callable<T> t : tasks) {
+                    results.add(t.call());
+                }
+                return results;
+            }
+            List<Future<T>> futures = new ArrayList<Future<T>>();
+            for (Callable<T> t : tasks) {
+                futures.add(pool.submit(t));
+            }
+            for (Future<T> f : futures) {
+                results.add(f.get());
+            }
+            return results;
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private double squaredDistance(int i, double[] mean) {
+        int offset = i * dim;
+        double sum = 0;
+        for (int j = 0; j < dim; j++) {
+            double d = values[offset + j] - mean[j];
+            sum += d * d;
+        }
+        return sum;
+    }
+
+    private static double squaredDistance(double[] x, double[] y) {
+        double sum = 0;
+        for (int j = 0; j < x.length; j++) {
+            double d = x[j] - y[j];
+            sum += d * d;
+        }
+        return sum;
+    }
+
+    private static double[] toArray(VectorClusterElement e) {
+        double[] array = new double[e.dimension()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = e.isMissingValue(i) ? 0.0 : e.getValue(i);
+        }
+        return array;
+    }
+
+    private static double[][] copy(double[][] m) {
+        double[][] c = new double[m.length][];
+        for (int i = 0; i < m.length; i++) {
+            c[i] = m[i].clone();
+        }
+        return c;
+    }
+}
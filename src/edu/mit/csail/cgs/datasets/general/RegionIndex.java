@@ -0,0 +1,461 @@
+package edu.mit.csail.cgs.datasets.general;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import edu.mit.csail.cgs.utils.Pair;
+
+/**
+ * A <code>RegionIndex</code> is an immutable index of Regions for overlap,
+ * containment and nearest region queries. <br>
+ * The regions of each chromosome are kept in arrays sorted by start, together
+ * with the maximum end of each subtree of an implicit binary tree over the
+ * sorted array, so a query takes O(log(N) + K) time for K results, instead of
+ * a loop over all the N regions. <br>
+ * <i>Note</i>: We assume 0-based, inclusive coordinate, as in Region.
+ */
+public class RegionIndex<R extends Region> {
+
+  /**
+   * The regions of one chromosome
+   */
+  private static class Chrom {
+    /** the regions, sorted by start, then end */
+    Region[] regions;
+    int[] starts;
+    int[] ends;
+    /** maxEnds[i]: the maximum end of the subtree rooted at i */
+    int[] maxEnds;
+    /** prefixMax[i]: the index of the region with the maximum end among regions 0..i */
+    int[] prefixMax;
+    /** position of each region in the collection the index was built from */
+    int[] ids;
+    /** level of the root of the tree */
+    int rootLevel;
+  }
+
+  private Map<String, Chrom> chroms = new HashMap<String, Chrom>();
+
+  private int size;
+
+
+  /**
+   * Builds the index of <code>regions</code>. Later changes to the collection
+   * don't change the index.
+   */
+  public RegionIndex(Collection<? extends R> regions) {
+    final Region[] all = regions.toArray(new Region[regions.size()]);
+    size = all.length;
+    // group regions by chrom
+    Map<String, ArrayList<Integer>> chr2ids = new HashMap<String, ArrayList<Integer>>();
+    for (int i = 0; i < all.length; i++) {
+      String chrom = all[i].getChrom();
+      if (!chr2ids.containsKey(chrom))
+        chr2ids.put(chrom, new ArrayList<Integer>());
+      chr2ids.get(chrom).add(i);
+    }
+    for (String chrom : chr2ids.keySet()) {
+      ArrayList<Integer> ids = chr2ids.get(chrom);
+      Collections.sort(ids, new Comparator<Integer>() {
+        public int compare(Integer o1, Integer o2) {
+          Region r1 = all[o1], r2 = all[o2];
+          if (r1.getStart() != r2.getStart())
+            return r1.getStart() < r2.getStart() ? -1 : 1;
+          if (r1.getEnd() != r2.getEnd())
+            return r1.getEnd() < r2.getEnd() ? -1 : 1;
+          return o1.compareTo(o2);
+        }
+      });
+      int n = ids.size();
+      Chrom c = new Chrom();
+      c.regions = new Region[n];
+      c.starts = new int[n];
+      c.ends = new int[n];
+      c.ids = new int[n];
+      c.prefixMax = new int[n];
+      for (int i = 0; i < n; i++) {
+        c.ids[i] = ids.get(i);
+        c.regions[i] = all[c.ids[i]];
+        c.starts[i] = c.regions[i].getStart();
+        c.ends[i] = c.regions[i].getEnd();
+        c.prefixMax[i] = i > 0 && c.ends[c.prefixMax[i - 1]] >= c.ends[i] ? c.prefixMax[i - 1] : i;
+      }
+      c.maxEnds = new int[n];
+      c.rootLevel = buildTree(c.ends, c.maxEnds);
+      chroms.put(chrom, c);
+    }
+  }
+
+
+  /**
+   * Fills in maxEnds for the implicit tree over the sorted regions: the nodes
+   * of level k are the indexes whose lowest k+1 bits are 0 followed by k 1s,
+   * and the children of node x at level k are x-2^(k-1) and x+2^(k-1). The
+   * children beyond the last region are missing, their maximum end is that of
+   * the last subtree that exists.
+   *
+   * @return the level of the root
+   */
+  private static int buildTree(int[] ends, int[] maxEnds) {
+    int n = ends.length;
+    long lastIndex = 0;
+    int last = 0;
+    for (int i = 0; i < n; i += 2) {
+      lastIndex = i;
+      last = maxEnds[i] = ends[i];
+    }
+    int k;
+    for (k = 1; (1L << k) <= n; k++) {
+      long x = 1L << (k - 1);
+      for (long i = (x << 1) - 1; i < n; i += x << 2) {
+        int leftMax = maxEnds[(int) (i - x)];
+        int rightMax = i + x < n ? maxEnds[(int) (i + x)] : last;
+        maxEnds[(int) i] = Math.max(ends[(int) i], Math.max(leftMax, rightMax));
+      }
+      lastIndex = ((lastIndex >> k) & 1) != 0 ? lastIndex - x : lastIndex + x;
+      if (lastIndex < n && maxEnds[(int) lastIndex] > last)
+        last = maxEnds[(int) lastIndex];
+    }
+    return k - 1;
+  }
+
+
+  /**
+   * Adds to <code>found</code> the indexes (into the sorted arrays of
+   * <code>c</code>) of the regions overlapping start..end, in ascending order.
+   * Stops at the first one if <code>firstOnly</code>.
+   */
+  private static void search(Chrom c, int start, int end, boolean firstOnly, List<Integer> found) {
+    int n = c.starts.length;
+    // stack of nodes, each packed as index << 7 | level << 1 | (left child done ? 1 : 0)
+    long[] stack = new long[64];
+    int top = 0;
+    stack[top++] = ((1L << c.rootLevel) - 1) << 7 | c.rootLevel << 1;
+    while (top > 0) {
+      long node = stack[--top];
+      long x = node >>> 7;
+      int k = (int) (node >> 1) & 63;
+      if (k <= 3) {
+        // small subtree, check every region in it
+        long i0 = x >> k << k;
+        long i1 = Math.min(i0 + (1L << (k + 1)) - 1, n);
+        for (long i = i0; i < i1 && c.starts[(int) i] <= end; i++) {
+          if (c.ends[(int) i] >= start) {
+            found.add((int) i);
+            if (firstOnly)
+              return;
+          }
+        }
+      }
+      else if ((node & 1) == 0) {
+        // visit the left child first, if any region in it can reach start
+        long y = x - (1L << (k - 1));
+        stack[top++] = node | 1;
+        if (y >= n || c.maxEnds[(int) y] >= start)
+          stack[top++] = y << 7 | (k - 1) << 1;
+      }
+      else if (x < n && c.starts[(int) x] <= end) {
+        if (c.ends[(int) x] >= start) {
+          found.add((int) x);
+          if (firstOnly)
+            return;
+        }
+        stack[top++] = (x + (1L << (k - 1))) << 7 | (k - 1) << 1;
+      }
+    }
+  }
+
+
+  /**
+   * Returns the indexes (into the sorted arrays of the chromosome) of the
+   * regions overlapping start..end
+   */
+  private List<Integer> search(String chrom, int start, int end) {
+    List<Integer> found = new ArrayList<Integer>();
+    Chrom c = chroms.get(chrom);
+    if (c != null && start <= end)
+      search(c, start, end, false, found);
+    return found;
+  }
+
+
+  @SuppressWarnings("unchecked")
+  private List<R> getRegions(Chrom c, List<Integer> found) {
+    List<R> regions = new ArrayList<R>(found.size());
+    for (int i : found)
+      regions.add((R) c.regions[i]);
+    return regions;
+  }
+
+
+  /**
+   * Returns the number of regions in the index.
+   */
+  public int size() {
+    return size;
+  }
+
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+
+  /**
+   * Returns the chromosomes that have any region in the index.
+   */
+  public Set<String> getChroms() {
+    return Collections.unmodifiableSet(chroms.keySet());
+  }
+
+
+  /**
+   * Returns the regions on <code>chrom</code> that overlap
+   * <code>start</code>..<code>end</code>, sorted by start.
+   */
+  public List<R> getOverlapping(String chrom, int start, int end) {
+    return getRegions(chroms.get(chrom), search(chrom, start, end));
+  }
+
+
+  /**
+   * Returns the regions that overlap <code>r</code>, sorted by start.
+   */
+  public List<R> getOverlapping(Region r) {
+    return getOverlapping(r.getChrom(), r.getStart(), r.getEnd());
+  }
+
+
+  /**
+   * Returns the positions, in the collection the index was built from, of the
+   * regions on <code>chrom</code> that overlap
+   * <code>start</code>..<code>end</code>, in ascending order.
+   */
+  public ArrayList<Integer> getOverlappingIdx(String chrom, int start, int end) {
+    ArrayList<Integer> idxs = new ArrayList<Integer>();
+    Chrom c = chroms.get(chrom);
+    for (int i : search(chrom, start, end))
+      idxs.add(c.ids[i]);
+    Collections.sort(idxs);
+    return idxs;
+  }
+
+
+  /**
+   * Returns the positions, in the collection the index was built from, of the
+   * regions that overlap <code>r</code>, in ascending order.
+   */
+  public ArrayList<Integer> getOverlappingIdx(Region r) {
+    return getOverlappingIdx(r.getChrom(), r.getStart(), r.getEnd());
+  }
+
+
+  /**
+   * Checks whether any region on <code>chrom</code> overlaps
+   * <code>start</code>..<code>end</code>.
+   */
+  public boolean overlaps(String chrom, int start, int end) {
+    Chrom c = chroms.get(chrom);
+    if (c == null || start > end)
+      return false;
+    List<Integer> found = new ArrayList<Integer>(1);
+    search(c, start, end, true, found);
+    return !found.isEmpty();
+  }
+
+
+  /**
+   * Checks whether any region overlaps <code>r</code>.
+   */
+  public boolean overlaps(Region r) {
+    return overlaps(r.getChrom(), r.getStart(), r.getEnd());
+  }
+
+
+  /**
+   * Checks whether point <tt>p</tt> is contained in any region.
+   */
+  public boolean contains(Point p) {
+    return overlaps(p.getChrom(), p.getLocation(), p.getLocation());
+  }
+
+
+  /**
+   * Returns the regions that contain point <tt>p</tt>, sorted by start.
+   */
+  public List<R> getContaining(Point p) {
+    return getOverlapping(p.getChrom(), p.getLocation(), p.getLocation());
+  }
+
+
+  /**
+   * Returns the regions that fully contain <tt>r</tt>, sorted by start.
+   */
+  public List<R> getContaining(Region r) {
+    List<R> regions = new ArrayList<R>();
+    for (R region : getOverlapping(r.getChrom(), r.getStart(), r.getStart()))
+      if (region.getEnd() >= r.getEnd())
+        regions.add(region);
+    return regions;
+  }
+
+
+  /**
+   * Returns the regions that are fully contained in <tt>r</tt>, sorted by
+   * start.
+   */
+  public List<R> getContainedIn(Region r) {
+    List<R> regions = new ArrayList<R>();
+    for (R region : getOverlapping(r))
+      if (region.getStart() >= r.getStart() && region.getEnd() <= r.getEnd())
+        regions.add(region);
+    return regions;
+  }
+
+
+  /**
+   * Returns the region nearest to <code>start</code>..<code>end</code> on
+   * <code>chrom</code>, with distance as in Region.distance(): the overlapping
+   * region with the lowest start if any, else the region with the shortest
+   * gap, the upstream one if tied. Returns null if there is no region on
+   * <code>chrom</code>.
+   */
+  @SuppressWarnings("unchecked")
+  public R getNearest(String chrom, int start, int end) {
+    Chrom c = chroms.get(chrom);
+    if (c == null)
+      return null;
+    int n = c.starts.length;
+    // the last region that starts before the query ends
+    int last = -1;
+    for (int lo = 0, hi = n - 1; lo <= hi;) {
+      int mid = (lo + hi) >>> 1;
+      if (c.starts[mid] <= end) {
+        last = mid;
+        lo = mid + 1;
+      }
+      else
+        hi = mid - 1;
+    }
+    if (last >= 0 && c.ends[c.prefixMax[last]] >= start) {
+      List<Integer> found = new ArrayList<Integer>(1);
+      search(c, start, end, true, found);
+      return (R) c.regions[found.get(0)];
+    }
+    int upstream = last >= 0 ? c.prefixMax[last] : -1;
+    int downstream = last + 1 < n ? last + 1 : -1;
+    if (downstream == -1 || (upstream != -1 && start - c.ends[upstream] <= c.starts[downstream] - end))
+      return (R) c.regions[upstream];
+    return (R) c.regions[downstream];
+  }
+
+
+  /**
+   * Returns the region nearest to <code>r</code>, see getNearest(String, int,
+   * int).
+   */
+  public R getNearest(Region r) {
+    return getNearest(r.getChrom(), r.getStart(), r.getEnd());
+  }
+
+
+  /**
+   * Returns the region nearest to <code>p</code>, see getNearest(String, int,
+   * int).
+   */
+  public R getNearest(Point p) {
+    return getNearest(p.getChrom(), p.getLocation(), p.getLocation());
+  }
+
+
+  /**
+   * Joins two streams of regions that are both sorted as by Region.compareTo()
+   * (by chromosome name, then start). Each region of <code>left</code> is paired
+   * with the regions of <code>right</code> that overlap it (an empty list if
+   * none), in the order of <code>left</code>. <br>
+   * Only the right regions that can still overlap later left regions are held,
+   * so neither stream needs to fit in memory.
+   *
+   * @throws IllegalArgumentException
+   *           from next() if either stream is not sorted
+   */
+  public static <A extends Region, B extends Region> Iterator<Pair<A, List<B>>> join(Iterator<A> left, Iterator<B> right) {
+    return new SortedJoin<A, B>(left, right);
+  }
+
+
+  private static class SortedJoin<A extends Region, B extends Region> implements Iterator<Pair<A, List<B>>> {
+    private Iterator<A> left;
+    private Iterator<B> right;
+    private A previousLeft;
+    /** the next right region that is not yet active, null at the end */
+    private B nextRight;
+    /** right regions that have started and may overlap the next left regions, sorted by start */
+    private LinkedList<B> active = new LinkedList<B>();
+
+    SortedJoin(Iterator<A> left, Iterator<B> right) {
+      this.left = left;
+      this.right = right;
+      nextRight = right.hasNext() ? right.next() : null;
+    }
+
+    public boolean hasNext() {
+      return left.hasNext();
+    }
+
+    public Pair<A, List<B>> next() {
+      if (!left.hasNext())
+        throw new NoSuchElementException();
+      A a = left.next();
+      if (previousLeft != null && compare(previousLeft, a) > 0)
+        throw new IllegalArgumentException("left regions are not sorted: " + previousLeft + " before " + a);
+      previousLeft = a;
+      String chrom = a.getChrom();
+      if (!active.isEmpty() && !active.getFirst().getChrom().equals(chrom))
+        active.clear();
+      for (Iterator<B> i = active.iterator(); i.hasNext();)
+        if (i.next().getEnd() < a.getStart())
+          i.remove();
+      while (nextRight != null) {
+        int cmp = nextRight.getChrom().compareTo(chrom);
+        if (cmp > 0 || (cmp == 0 && nextRight.getStart() > a.getEnd()))
+          break;
+        if (cmp == 0 && nextRight.getEnd() >= a.getStart())
+          active.add(nextRight);
+        advanceRight();
+      }
+      List<B> overlaps = new ArrayList<B>();
+      for (B b : active)
+        if (b.getStart() <= a.getEnd())
+          overlaps.add(b);
+      return new Pair<A, List<B>>(a, overlaps);
+    }
+
+    private void advanceRight() {
+      B previous = nextRight;
+      nextRight = right.hasNext() ? right.next() : null;
+      if (nextRight != null && compare(previous, nextRight) > 0)
+        throw new IllegalArgumentException("right regions are not sorted: " + previous + " before " + nextRight);
+    }
+
+    private static int compare(Region r1, Region r2) {
+      int cmp = r1.getChrom().compareTo(r2.getChrom());
+      if (cmp != 0)
+        return cmp;
+      return r1.getStart() < r2.getStart() ? -1 : (r1.getStart() > r2.getStart() ? 1 : 0);
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
@@ -78,10 +78,18 @@ public class DeepSeqExpt {
 		this(g,files,useNonUnique, format,readLen, 1);
 	}
 	public DeepSeqExpt(Genome g, List<File> files, boolean useNonUnique, String format,int readLen, int idStart){
+		this(g,files,useNonUnique, format,readLen, idStart, 1, false);
+	}
+	/**
+	 * @param numThreads number of threads to load each SAM/BAM file
+	 * @param useBamIndex load indexed BAM files one chromosome per thread
+	 */
+	public DeepSeqExpt(Genome g, List<File> files, boolean useNonUnique, String format,int readLen, int idStart, 
+			int numThreads, boolean useBamIndex){
 		gen = g;
 		rLen = readLen;
 		useNonUniqueReads=useNonUnique;
-		loader = new FileReadLoader(gen, files, format,maxMismatches,useNonUniqueReads, rLen, idStart);
+		loader = new FileReadLoader(gen, files, format,maxMismatches,useNonUniqueReads, rLen, idStart, numThreads, useBamIndex);
 		if(gen==null)
 			gen = loader.getGenome();
 		rLen = loader.getReadLen();
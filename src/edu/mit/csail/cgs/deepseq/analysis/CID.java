@@ -1,10 +1,7 @@
 package edu.mit.csail.cgs.deepseq.analysis;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -15,10 +12,10 @@ import java.util.List;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
-import java.util.zip.GZIPInputStream;
 
 import edu.mit.csail.cgs.datasets.general.Point;
 import edu.mit.csail.cgs.datasets.general.Region;
+import edu.mit.csail.cgs.datasets.general.RegionIndex;
 import edu.mit.csail.cgs.datasets.general.StrandedPoint;
 import edu.mit.csail.cgs.datasets.species.Genome;
 import edu.mit.csail.cgs.deepseq.DeepSeqExpt;
@@ -26,6 +23,7 @@ import edu.mit.csail.cgs.deepseq.discovery.KPPMixture;
 import edu.mit.csail.cgs.deepseq.features.ComponentFeature;
 import edu.mit.csail.cgs.deepseq.features.Feature;
 import edu.mit.csail.cgs.deepseq.utilities.CommonUtils;
+import edu.mit.csail.cgs.deepseq.utilities.FieldTokenizer;
 import edu.mit.csail.cgs.deepseq.utilities.ReadCache;
 import edu.mit.csail.cgs.ewok.verbs.chipseq.GPSParser;
 import edu.mit.csail.cgs.ewok.verbs.chipseq.GPSPeak;
@@ -268,15 +266,15 @@ public class CID {
 		String coords_name = Args.parseString(args, "coords_name", null);
 		if (coords_file != null) {
 			ArrayList<Point> coords = CommonUtils.loadCgsPointFile(coords_file, genome);
+			ArrayList<Region> coordRegions = new ArrayList<Region>();
+			for (Point p : coords)
+				coordRegions.add(new Region(genome, p.getChrom(), p.getLocation(), p.getLocation()));
+			RegionIndex<Region> coordIndex = new RegionIndex<Region>(coordRegions);
 			for (Region r : r2it.keySet()) {
-				for (Point p : coords) {
-					if (!r.getChrom().equalsIgnoreCase(p.getChrom()))
-						continue;
-					if (r.distance(p) <= 500) { // add distal anchor if overlap
-												// with enhancer coords
-						rs.add(r);
-						r2it.get(r).overlapCoords.add(p);
-					}
+				// add distal anchor if overlap with enhancer coords (within 500bp)
+				for (int idx : coordIndex.getOverlappingIdx(r.getChrom(), r.getStart() - 500, r.getEnd() + 500)) {
+					rs.add(r);
+					r2it.get(r).overlapCoords.add(coords.get(idx));
 				}
 			}
 
@@ -431,39 +429,28 @@ public class CID {
 	void StatsTAD() {
 		String tad_file = Args.parseString(args, "tad", null);
 		ArrayList<Region> tads = CommonUtils.load_BED_regions(genome, tad_file).car();
-		Collections.sort(tads);
+		RegionIndex<Region> tadIndex = new RegionIndex<Region>(tads);
 		ArrayList<InteractionCall> itNonTAD = new ArrayList<InteractionCall>();
 		ArrayList<InteractionCall> itSameTAD = new ArrayList<InteractionCall>();
 		ArrayList<InteractionCall> itCrossTAD = new ArrayList<InteractionCall>();
 
 		for (Region r : r2it.keySet()) {
-			Region mid = r.getMidpoint().expand(0);
-			int idx = Collections.binarySearch(tads, mid);
-			Region tad = null;
-			if (idx < 0) {
-				idx = -(idx + 1) - 1; // insert point - 1 ==> Previous object
-				tad = tads.get(idx);
-				if (!tad.contains(mid)) {
-					// System.err.println(String.format("Point %s is not within
-					// any TAD!", p.toString()));
-					itNonTAD.add(r2it.get(r));
-				} else {// now tad contains the distal coord
-					if (tad.contains(r2it.get(r).tss))
-						itSameTAD.add(r2it.get(r));
-					else { // find the tad that TSS is in
-						Region tss = r2it.get(r).tss.expand(0);
-						idx = Collections.binarySearch(tads, tss);
-						if (idx < 0) {
-							idx = -(idx + 1) - 1; // insert point - 1 ==>
-													// Previous object
-							tad = tads.get(idx);
-							if (!tad.contains(tss)) // TSS is not in a TAD
-								itNonTAD.add(r2it.get(r));
-							else // in TAD, must be another TAD
-								itCrossTAD.add(r2it.get(r));
-						}
-					}
+			InteractionCall it = r2it.get(r);
+			List<Region> distalTads = tadIndex.getContaining(r.getMidpoint());
+			if (distalTads.isEmpty()) // distal coord is not in a TAD
+				itNonTAD.add(it);
+			else {
+				boolean sameTad = false;
+				for (Region tad : distalTads) {
+					if (tad.contains(it.tss))
+						sameTad = true;
 				}
+				if (sameTad)
+					itSameTAD.add(it);
+				else if (!tadIndex.contains(it.tss)) // TSS is not in a TAD
+					itNonTAD.add(it);
+				else // in TAD, must be another TAD
+					itCrossTAD.add(it);
 			}
 		}
 
@@ -499,6 +486,16 @@ public class CID {
 		System.exit(0);
 	}
 	
+	// chromosome name without "chr", cached by the read name String
+	private static String chromName(String name, HashMap<String, String> chromNames){
+		String chr = chromNames.get(name);
+		if (chr==null){
+			chr = name.replace("chr", "");
+			chromNames.put(name, chr);
+		}
+		return chr;
+	}
+	
 	// find interactions by 2D density clustering
 	private void findAllInteractions() {
 		long tic0 = System.currentTimeMillis();
@@ -566,19 +563,12 @@ public class CID {
 		int numExcluded = 0;
 		fileName = Args.parseString(args, "data", "No --data paired-end read file");
 		try {	
-			BufferedReader bin = null;
-			FileInputStream fis = new FileInputStream(fileName);
-			try {
-				bin = new BufferedReader(new InputStreamReader(new GZIPInputStream(fis)));
-			}
-			catch(IOException e) {
-				fis.close();
-				bin = new BufferedReader(new InputStreamReader(new FileInputStream(fileName)));
-			}
+			// fields are parsed from the bytes, gzip is detected from the file content
+			FieldTokenizer bin = new FieldTokenizer(new File(fileName), true);
+			HashMap<String, String> chromNames = new HashMap<String, String>();
 
-	        String line;
-	        bin.mark(1000);
-	        int numFields  = bin.readLine().split("\t").length;
+	        boolean hasLine = bin.nextLine();
+	        int numFields  = hasLine ? bin.numFields() : 0;
 	        boolean isBEDPE = numFields >= 6;
 	    		if (isBEDPE){
 	    			System.out.println("Detected input data to be BEDPE format!");
@@ -587,18 +577,15 @@ public class CID {
 	    				System.exit(-1);
 	    			}
 	    		}
-	    		bin.reset();
 	    		
 	    		StrandedPoint tmp1 = null;
-	        while((line = bin.readLine()) != null) { 
+	        for (; hasLine; hasLine = bin.nextLine()) { 
 				numTotalLoaded++;
-				line = line.trim();
-	    			String[] f = line.split("\t");
 	    			StrandedPoint r1;
 	    			StrandedPoint r2;
 	    			if (!isBEDPE){		// cgsPoints 
-	    				r1 = StrandedPoint.fromString(genome, f[0]);
-	    				r2 = StrandedPoint.fromString(genome, f[1]);
+	    				r1 = StrandedPoint.fromString(genome, bin.getString(0));
+	    				r2 = StrandedPoint.fromString(genome, bin.getString(1));
 	    				if (excludedChroms.contains(r1.getChrom()) || excludedChroms.contains(r2.getChrom())){
 	    					numExcluded++;
 	    					continue;
@@ -606,15 +593,15 @@ public class CID {
 	    				numBothEnds++;
 	    			}
 	    			else{	// BEDPE format
-	    				if (!use_1_end_reads && (f[0].charAt(0)=='*' || f[3].charAt(0)=='*'))
+	    				if (!use_1_end_reads && (bin.getChar(0)=='*' || bin.getChar(3)=='*'))
 	    					continue;
 	    				
-	    				char strand1 = f[8].charAt(0);
+	    				char strand1 = bin.getChar(8);
 //	    				r1 = new StrandedPoint(genome, f[0].replace("chr", ""), (Integer.parseInt(f[1])+Integer.parseInt(f[2]))/2, strand1);
-	    				r1 = new StrandedPoint(genome, f[0].replace("chr", ""), strand1=='+'?Integer.parseInt(f[1]):Integer.parseInt(f[2]), strand1);
-	    				char strand2 = f[9].charAt(0);
+	    				r1 = new StrandedPoint(genome, chromName(bin.getString(0), chromNames), strand1=='+'?bin.getInt(1):bin.getInt(2), strand1);
+	    				char strand2 = bin.getChar(9);
 //	    				r2 = new StrandedPoint(genome, f[3].replace("chr", ""), (Integer.parseInt(f[4])+Integer.parseInt(f[5]))/2, strand2);
-	    				r2 = new StrandedPoint(genome, f[3].replace("chr", ""), strand1=='+'?Integer.parseInt(f[4]):Integer.parseInt(f[5]), strand2);
+	    				r2 = new StrandedPoint(genome, chromName(bin.getString(3), chromNames), strand1=='+'?bin.getInt(4):bin.getInt(5), strand2);
 	    				if (excludedChroms.contains(r1.getChrom()) || excludedChroms.contains(r2.getChrom())) {
 	    					numExcluded++;
 	    					continue;
@@ -679,9 +666,7 @@ public class CID {
 	    			rp2.r2 = r2;
 	    			high.add(rp2);
 	    		}
-	        if (bin != null) {
-	            bin.close();
-	        }
+	        bin.close();
         } catch (IOException e) {
 	        	if (e instanceof java.io.FileNotFoundException){
 	        		System.err.println("\nFile not found: "+fileName);
@@ -15,6 +15,7 @@ import edu.mit.csail.cgs.deepseq.discovery.Config;
 import edu.mit.csail.cgs.deepseq.discovery.kmer.KMAC;
 import edu.mit.csail.cgs.deepseq.discovery.kmer.KmerGroup;
 import edu.mit.csail.cgs.deepseq.utilities.CommonUtils;
+import edu.mit.csail.cgs.ewok.verbs.motifs.WeightMatrixBatchScanner;
 import edu.mit.csail.cgs.ewok.verbs.motifs.WeightMatrixScoreProfile;
 import edu.mit.csail.cgs.ewok.verbs.motifs.WeightMatrixScorer;
 import edu.mit.csail.cgs.tools.utils.Args;
@@ -322,9 +323,6 @@ public class MotifScan {
 	public static ArrayList<MotifInstance> scan_multiKSMs(String[] seqs, ArrayList<KMAC> kmacs, ArrayList<String> knames) {
 		System.out.println("Scanning KSM motifs ...");
 	    ArrayList<MotifInstance> instances = new ArrayList<MotifInstance>();
-	    String[] seqs_rc = new String[seqs.length];
-	    for (int i=0;i<seqs.length;i++)
-	    	seqs_rc[i]=SequenceUtil.reverseComplement(seqs[i]);
 	    
 	    for (int m=0; m<kmacs.size(); m++){
 	    	System.out.println("  ... "+knames.get(m)+" ...");
@@ -335,7 +333,7 @@ public class MotifScan {
 	//	    			kmac.setIsDebugging(); // debug
 	//	    			System.out.println();
 	//	    		}
-		    		KmerGroup[] kgs = kmac.findKsmGroupHits(seqs[s], seqs_rc[s]);
+		    		KmerGroup[] kgs = kmac.findKsmGroupHits(seqs[s]);
 		    		if (kgs==null)
 		    			continue;
 		    		for (int i=0;i<kgs.length;i++){
@@ -399,9 +397,6 @@ public class MotifScan {
 	public static ArrayList<MotifInstance> scan_singleKSM(String[] seqs, KMAC kmac, String kname, int motifId) {
 		System.out.println("Scanning KSM motifs ...");
 	    ArrayList<MotifInstance> instances = new ArrayList<MotifInstance>();
-	    String[] seqs_rc = new String[seqs.length];
-	    for (int i=0;i<seqs.length;i++)
-	    	seqs_rc[i]=SequenceUtil.reverseComplement(seqs[i]);
 		    
 	    	System.out.println("  ... "+kname+" ...");
 	    	for (int s=0; s<seqs.length;s++){
@@ -409,7 +404,8 @@ public class MotifScan {
 	//    			kmac.setIsDebugging(); // debug
 	//    			System.out.println();
 	//    		}
-	    		KmerGroup[] kgs = kmac.findKsmGroupHits(seqs[s], seqs_rc[s]);
+	    		// the reverse compliment is searched in place, not copied for every sequence
+	    		KmerGroup[] kgs = kmac.findKsmGroupHits(seqs[s]);
 	    		if (kgs==null)
 	    			continue;
 	    		for (int i=0;i<kgs.length;i++){
@@ -440,9 +436,12 @@ public class MotifScan {
 	public static double[][] makePwmScoreMatrix(String[] seqs, List<WeightMatrix> pwms){
 		System.out.println("Making PWM motif score matrix ...");
 		double[][] matrix = new double[seqs.length][pwms.size()];
+		// all the PWMs are scored in one pass over each sequence, both strands
+		WeightMatrixBatchScanner scanner = new WeightMatrixBatchScanner(pwms);
 		for (int i=0;i<seqs.length;i++){
+			float[] maxScores = scanner.maxScores(WeightMatrixBatchScanner.encode(seqs[i]));
 			for (int j=0; j<pwms.size();j++)
-				matrix[i][j] = WeightMatrixScorer.getMaxSeqScore(pwms.get(j), seqs[i], false);
+				matrix[i][j] = maxScores[j];
 		}
 		return matrix;
 	}
@@ -18,6 +18,7 @@ import edu.mit.csail.cgs.clustering.affinitypropagation.CorrelationSimilarity;
 import edu.mit.csail.cgs.datasets.chipseq.ChipSeqLocator;
 import edu.mit.csail.cgs.datasets.general.Point;
 import edu.mit.csail.cgs.datasets.general.Region;
+import edu.mit.csail.cgs.datasets.general.RegionIndex;
 import edu.mit.csail.cgs.datasets.general.StrandedPoint;
 import edu.mit.csail.cgs.datasets.motifs.WeightMatrix;
 import edu.mit.csail.cgs.datasets.motifs.WeightMatrixImport;
@@ -273,15 +274,8 @@ public class RegionAnnotator {
 		ArrayList<Region> tads = new ArrayList<Region>();
 		if (tad_file!=null){
 			tads = CommonUtils.load_BED_regions(genome, tad_file).car();
-			Collections.sort(tads);
-		}
-		HashMap<String, ArrayList<Region>> chr2tads = new HashMap<String, ArrayList<Region>>();
-		for (Region r:tads){
-			String chr = r.getChrom();
-			if (!chr2tads.containsKey(chr))
-				chr2tads.put(chr, new ArrayList<Region>());
-			chr2tads.get(chr).add(r);
 		}
+		RegionIndex<Region> tadIndex = new RegionIndex<Region>(tads);
 		
 		// load refSeq gene annotation
 		int tssRange = Args.parseInteger(args, "tss_range", -1);
@@ -357,70 +351,49 @@ public class RegionAnnotator {
 			
 			// if with TAD constraint
 			if (tad_file!=null){
-				ArrayList<Region> tadsChr = null;
-				if (chr2tads.containsKey(chr))
-					tadsChr = chr2tads.get(chr);
-				else{
+				List<Region> tadsContaining = tadIndex.getContaining(p);
+				if (tadsContaining.isEmpty()){
+//					System.err.println(String.format("Point %s is not within any TAD!", p.toString()));
 					for (String g:tss2genes.get(nearestTSS))
 						sb.append(p.expand(500).toString()+"\t"+g+"\t"+p.toString()+"\t"+nearestTSS.toString()+"\t"+offset+"\t"+-9+"\n");
 					continue;
 				}
-				int idx = Collections.binarySearch(tadsChr, p.expand(0));
-				Region tad = null;
-				if (idx<0){
-					idx = -(idx+1) -1;  // insert point - 1 ==> Previous object
-					if (idx==-1){	// point p coordinate is less than first region in the tadsChr list
-						for (String g:tss2genes.get(nearestTSS))
-							sb.append(p.expand(500).toString()+"\t"+g+"\t"+p.toString()+"\t"+nearestTSS.toString()+"\t"+offset+"\t"+-9+"\n");
-						continue;
+				Region tad = tadsContaining.get(tadsContaining.size()-1);		// the last starting TAD, if nested
+				// now tad contains the enhancer coord
+				if (tad.contains(nearestTSS)){
+					// the nearest TSS is within the TAD
+					for (String g:tss2genes.get(nearestTSS))
+						sb.append(p.expand(500).toString()+"\t"+g+"\t"+p.toString()+"\t"+nearestTSS.toString()+"\t"+offset+"\t"+1+"\n");
+				}
+				else{ // the nearest TSS is not within the TAD
+					// do we have other TSS in TAD?
+					int idx_tad_start = Collections.binarySearch(tsss_in_chr, new Point(genome, chr, tad.getStart()));
+					if (idx_tad_start<0)
+						idx_tad_start = -(idx_tad_start+1);
+					int idx_tad_end = Collections.binarySearch(tsss_in_chr, new Point(genome, chr, tad.getEnd()));
+					if (idx_tad_end<0)
+						idx_tad_end = -(idx_tad_end+1)-1;
+					if (idx_tad_start<=idx_tad_end){	// found TSSs within TAD
+						// either the start or the end should be the nearest in TAD
+						if (p.distance(tsss_in_chr.get(idx_tad_start)) > p.distance(tsss_in_chr.get(idx_tad_end))){
+							nearestTSS = tsss_in_chr.get(idx_tad_end);
+						}
+						else
+							nearestTSS = tsss_in_chr.get(idx_tad_start);
 					}
-					tad = tadsChr.get(idx);
-					if (!tad.contains(p)){
-//						System.err.println(String.format("Point %s is not within any TAD!", p.toString()));
+					offset = p.offset(nearestTSS);
+					if (((StrandedPoint) nearestTSS).getStrand()=='-')
+						offset = -offset;
+					if (tad.contains(nearestTSS)){
+						// the new nearest TSS is within the TAD
 						for (String g:tss2genes.get(nearestTSS))
-							sb.append(p.expand(500).toString()+"\t"+g+"\t"+p.toString()+"\t"+nearestTSS.toString()+"\t"+offset+"\t"+-9+"\n");
+							sb.append(p.expand(500).toString()+"\t"+g+"\t"+p.toString()+"\t"+nearestTSS.toString()+"\t"+offset+"\t"+2+"\n");
 					}
-					else{
-						// now tad contains the enhancer coord
-						if (tad.contains(nearestTSS)){
-							// the nearest TSS is within the TAD
-							for (String g:tss2genes.get(nearestTSS))
-								sb.append(p.expand(500).toString()+"\t"+g+"\t"+p.toString()+"\t"+nearestTSS.toString()+"\t"+offset+"\t"+1+"\n");
-						}
-						else{ // the nearest TSS is not within the TAD
-							// do we have other TSS in TAD?
-							int idx_tad_start = Collections.binarySearch(tsss_in_chr, new Point(genome, chr, tad.getStart()));
-							if (idx_tad_start<0)
-								idx_tad_start = -(idx_tad_start+1);
-							int idx_tad_end = Collections.binarySearch(tsss_in_chr, new Point(genome, chr, tad.getEnd()));
-							if (idx_tad_end<0)
-								idx_tad_end = -(idx_tad_end+1)-1;
-							if (idx_tad_start<=idx_tad_end){	// found TSSs within TAD
-								// either the start or the end should be the nearest in TAD
-								if (p.distance(tsss_in_chr.get(idx_tad_start)) > p.distance(tsss_in_chr.get(idx_tad_end))){
-									nearestTSS = tsss_in_chr.get(idx_tad_end);
-								}
-								else
-									nearestTSS = tsss_in_chr.get(idx_tad_start);
-							}
-							offset = p.offset(nearestTSS);
-							if (((StrandedPoint) nearestTSS).getStrand()=='-')
-								offset = -offset;
-							if (tad.contains(nearestTSS)){
-								// the new nearest TSS is within the TAD
-								for (String g:tss2genes.get(nearestTSS))
-									sb.append(p.expand(500).toString()+"\t"+g+"\t"+p.toString()+"\t"+nearestTSS.toString()+"\t"+offset+"\t"+2+"\n");
-							}
-							else{ 							
-								for (String g:tss2genes.get(nearestTSS))
-									sb.append(p.expand(500).toString()+"\t"+g+"\t"+p.toString()+"\t"+nearestTSS.toString()+"\t"+offset+"\t"+0+"\n");
-							}
-						}
+					else{ 							
+						for (String g:tss2genes.get(nearestTSS))
+							sb.append(p.expand(500).toString()+"\t"+g+"\t"+p.toString()+"\t"+nearestTSS.toString()+"\t"+offset+"\t"+0+"\n");
 					}
 				}
-				else{
-					System.err.println(String.format("Point %s matches TAD!", chr2tads.get(chr).get(idx).toString()));
-				}
 			}
 			else{ // if without TAD constraint
 				for (String g:tss2genes.get(nearestTSS))
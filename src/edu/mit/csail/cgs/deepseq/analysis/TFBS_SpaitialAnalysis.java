@@ -21,6 +21,7 @@ import edu.mit.csail.cgs.clustering.affinitypropagation.CorrelationSimilarity;
 import edu.mit.csail.cgs.datasets.chipseq.ChipSeqLocator;
 import edu.mit.csail.cgs.datasets.general.Point;
 import edu.mit.csail.cgs.datasets.general.Region;
+import edu.mit.csail.cgs.datasets.general.RegionIndex;
 import edu.mit.csail.cgs.datasets.general.StrandedPoint;
 import edu.mit.csail.cgs.datasets.motifs.WeightMatrix;
 import edu.mit.csail.cgs.datasets.motifs.WeightMatrixImport;
@@ -331,6 +332,7 @@ public class TFBS_SpaitialAnalysis {
 		if(exclude_sites_file!=null){
 			ex_regions = CommonUtils.loadCgsRegionFile(exclude_sites_file, genome);
 		}
+		RegionIndex<Region> ex_index = new RegionIndex<Region>(ex_regions);
 		for (int tf=0;tf<tf_names.size();tf++){
 			if (tf_names.get(tf).startsWith("i_"))		// names start with i_ are artificially created id for TFSS indirect binding
 				continue;
@@ -354,10 +356,8 @@ public class TFBS_SpaitialAnalysis {
 					site.bs = p.summit;
 					
 					// skip site in the ex_regions
-					for (Region rr: ex_regions){
-						if (rr.contains(site.bs))
-							continue eachpeak;
-					}
+					if (ex_index.contains(site.bs))
+						continue eachpeak;
 					sites.add(site);
 				}
 				System.out.println(",\t n="+sites.size());
@@ -381,10 +381,8 @@ public class TFBS_SpaitialAnalysis {
 					site.bs = (Point)p;
 					
 					// skip site in the ex_regions
-					for (Region r: ex_regions){
-						if (r.contains(site.bs))
-							continue eachpeak;
-					}
+					if (ex_index.contains(site.bs))
+						continue eachpeak;
 					if (tfss && site.motifStrand=='*'){
 						// for factor that are TFSS, thus considering indirect
 						site.tf_id = directid2indirectid.get(site.tf_id);
@@ -421,6 +419,7 @@ public class TFBS_SpaitialAnalysis {
 		if(exclude_sites_file!=null){
 			ex_regions = CommonUtils.loadCgsRegionFile(exclude_sites_file, genome);
 		}
+		RegionIndex<Region> ex_index = new RegionIndex<Region>(ex_regions);
 		for (int tf=0;tf<tf_names.size();tf++){
 			if (tf_names.get(tf).startsWith("i_"))		// names start with i_ are artificially created id for TFSS indirect binding
 				continue;
@@ -454,10 +453,8 @@ public class TFBS_SpaitialAnalysis {
 					site.bs = (Point)p;
 					
 					// skip site in the ex_regions
-					for (Region r: ex_regions){
-						if (r.contains(site.bs))
-							continue eachpeak;
-					}
+					if (ex_index.contains(site.bs))
+						continue eachpeak;
 					if (tfss && site.motifStrand=='*'){
 						// for factor that are TFSS, thus considering indirect
 						site.tf_id = directid2indirectid.get(site.tf_id);
@@ -505,6 +502,8 @@ public class TFBS_SpaitialAnalysis {
 		if(query_region_file!=null){
 			queryRegions = CommonUtils.load_BED_regions(genome, query_region_file).car();
 		}
+		RegionIndex<Region> exclude_index = new RegionIndex<Region>(exclude_regions);
+		RegionIndex<Region> query_index = new RegionIndex<Region>(queryRegions);
 
 		for (int tf=0;tf<tf_names.size();tf++){
 			String expt = expts.get(tf);
@@ -518,10 +517,8 @@ public class TFBS_SpaitialAnalysis {
 			eachpeak:	for (int i=0;i<ps.size();i++){
 					NarrowPeak p = ps.get(i);
 					// skip site in the ex_regions
-					for (Region rr: exclude_regions){
-						if (rr.contains(p.summit))
-							continue eachpeak;
-					}
+					if (exclude_index.contains(p.summit))
+						continue eachpeak;
 					Site site = new Site();
 					site.tf_id = tf;
 					site.event_id = i;
@@ -553,22 +550,10 @@ public class TFBS_SpaitialAnalysis {
 					}					
 					
 					// skip site in the ex_regions and those not in queryRegion
-					// TODO: this loop can be more efficient
-					if(query_region_file!=null){
-						boolean isPeakInRegion = false;
-						for (Region r:queryRegions){
-							if (r.contains(p)){
-								isPeakInRegion = true;
-								break;
-							}
-						}
-						if (!isPeakInRegion)
-							continue eachpeak;
-					}
-					for (Region r: exclude_regions){
-						if (r.contains(p))
-							continue eachpeak;
-					}
+					if (query_region_file!=null && !query_index.contains(p))
+						continue eachpeak;
+					if (exclude_index.contains(p))
+						continue eachpeak;
 						
 					Site site = new Site();
 					site.tf_id = tf;
@@ -632,22 +617,10 @@ public class TFBS_SpaitialAnalysis {
 						Point p = new Point(genome, q[1].replaceAll("\"", "").replaceAll("chr", ""), Integer.parseInt(q[2]));
 					
 						// skip site in the ex_regions and those not in queryRegion
-						// TODO: this loop can be more efficient
-						if(query_region_file!=null){
-							boolean isPeakInRegion = false;
-							for (Region r:queryRegions){
-								if (r.contains(p)){
-									isPeakInRegion = true;
-									break;
-								}
-							}
-							if (!isPeakInRegion)
-								continue eachpiq;
-						}
-						for (Region r: exclude_regions){
-							if (r.contains(p))
-								continue eachpiq;
-						}
+						if (query_region_file!=null && !query_index.contains(p))
+							continue eachpiq;
+						if (exclude_index.contains(p))
+							continue eachpiq;
 
 						Site site = new Site();
 						site.tf_id = newTFID+l;
@@ -659,10 +632,6 @@ public class TFBS_SpaitialAnalysis {
 							site.readScore = Double.parseDouble(q[8]);
 						}
 						site.bs = p;					
-						for (Region r: exclude_regions){
-							if (r.contains(site.bs))
-								continue eachpiq;
-						}
 						sites.add(site);					
 					}
 				}		
@@ -674,22 +643,10 @@ public class TFBS_SpaitialAnalysis {
 						Point p = new Point(genome, q[1].replaceAll("\"", "").replaceAll("chr", ""), Integer.parseInt(q[2]));
 						
 						// skip site in the ex_regions and those not in queryRegion
-						// TODO: this loop can be more efficient
-						if(query_region_file!=null){
-							boolean isPeakInRegion = false;
-							for (Region r:queryRegions){
-								if (r.contains(p)){
-									isPeakInRegion = true;
-									break;
-								}
-							}
-							if (!isPeakInRegion)
-								continue eachpiq2;
-						}
-						for (Region r: exclude_regions){
-							if (r.contains(p))
-								continue eachpiq2;
-						}
+						if (query_region_file!=null && !query_index.contains(p))
+							continue eachpiq2;
+						if (exclude_index.contains(p))
+							continue eachpiq2;
 						Site site = new Site();
 						site.tf_id = newTFID+l;
 						site.event_id = -i;
@@ -700,10 +657,6 @@ public class TFBS_SpaitialAnalysis {
 							site.readScore = Double.parseDouble(q[8]);
 						}
 						site.bs = p;					
-						for (Region r: exclude_regions){
-							if (r.contains(site.bs))
-								continue eachpiq2;
-						}
 						sites.add(site);					
 					}
 				}	// for
@@ -855,20 +808,21 @@ public class TFBS_SpaitialAnalysis {
 			Collections.sort(sites);
 		}
 		
-		// add sites to regions
-		// NOTE: this is not very efficient for large data set, because it just loops over everything in a chromosome
+		// add sites to regions, looking up the sites of each region in an index of the site positions
+		ArrayList<Site> allSites = new ArrayList<Site>();
+		ArrayList<Region> siteRegions = new ArrayList<Region>();
+		for (String chr: chrom2sites.keySet()){
+			for (Site s: chrom2sites.get(chr)){
+				allSites.add(s);
+				siteRegions.add(new Region(genome, chr, s.bs.getLocation(), s.bs.getLocation()));
+			}
+		}
+		RegionIndex<Region> siteIndex = new RegionIndex<Region>(siteRegions);
 		ArrayList<ArrayList<Site>> clusters = new ArrayList<ArrayList<Site>>();		
 		for (Region r: rs){
-			ArrayList<Site> sites = chrom2sites.get(r.getChrom());
-			ArrayList<Site> cluster = new ArrayList<Site>();
-			if (sites==null || sites.isEmpty()){
-				clusters.add(cluster);		// add a empty cluster
-				continue;
-			}
-			for (Site s: sites){
-				if (r.contains(s.bs))
-					cluster.add(s);			
-			}
+			ArrayList<Site> cluster = new ArrayList<Site>();		// empty cluster if no site in the region
+			for (int idx: siteIndex.getOverlappingIdx(r))
+				cluster.add(allSites.get(idx));
 			cluster.trimToSize();
 			clusters.add(cluster);
 		}
@@ -64,6 +64,8 @@ public class Config {
     public int ml = 0; // Machine learning type for KSM scoring - 0: no ML, 1: logistic classification, 2: linear regression
     /** number of top k-mers (for each k value) selected from density clustering to run KMAC */
     public int k_top = 5;
+    /** number of k values to run concurrently in KMAC motif discovery, 1 runs them one by one; each concurrent k keeps its own k-mers and sequence alignments in memory */
+    public int k_threads = 1;
     /** kmer distance cutoff, kmers with smaller or equal distance are consider neighbors when computing local density, in density clustering */
     public int dc = -1;		// dc=-1, estimate dc based on k values
     public int max_gkmer = 1500;
@@ -178,6 +180,7 @@ public class Config {
     public boolean bic = false;				// use BIC or AIC for model selection
 //    public boolean model_noise = false;		// have a noise component for background reads
     public boolean ML_speedup = false;		
+    public boolean use_flat_EM = false;		// run EM on flat primitive arrays (EM_MAP_flat), same results as EM_MAP
     public boolean use_dynamic_sparseness = true;
     public boolean use_scanPeak  = true;
     public boolean refine_regions = false;		// refine the enrichedRegions for next round using EM results
@@ -272,6 +275,7 @@ public class Config {
             sort_by_location = true;
         }
         ML_speedup = !flags.contains("no_fast_ML");
+        use_flat_EM = flags.contains("flat_EM");
         use_scanPeak = ! flags.contains("no_scanPeak");
         do_model_selection = !flags.contains("no_model_selection");
         match_base_kmer = flags.contains("bk_match");
@@ -317,6 +321,7 @@ public class Config {
         ml = Args.parseInteger(args, "ml", ml);
         mtree = Args.parseInteger(args, "mtree", mtree);
         k_top = Args.parseInteger(args, "k_top", k_top);
+        k_threads = Args.parseInteger(args, "kt", k_threads);
         gap = Args.parseInteger(args, "gap", gap);
         dc = Args.parseInteger(args, "dc", dc);
         k_seqs = Args.parseInteger(args, "k_seqs", k_seqs);
@@ -46,6 +46,8 @@ public class GEM {
         //Experiments : Load each condition expt:ctrl Pair
 		ArrayList<Pair<DeepSeqExpt,DeepSeqExpt>> experiments = new ArrayList<Pair<DeepSeqExpt,DeepSeqExpt>>();
 		long loadData_tic = System.currentTimeMillis();
+		int loadThreads = Args.parseInteger(args, "t", java.lang.Runtime.getRuntime().availableProcessors());
+		boolean useBamIndex = flags.contains("bam_index");
 		ArrayList<String> conditionNames = new ArrayList<String>();
 		Vector<String> exptTags=new Vector<String>();
 		for(String s : args)
@@ -123,8 +125,8 @@ public class GEM {
 	
 	            if(expts.size()>0 && rdbexpts.size()==0){
 	                int readLength = -1;	// For file, read length will be obtained from the data
-	                DeepSeqExpt e = new DeepSeqExpt(genome, expts, nonUnique, fileFormat, readLength);
-	                DeepSeqExpt c = new DeepSeqExpt(genome, ctrls, nonUnique, fileFormat, readLength);
+	                DeepSeqExpt e = new DeepSeqExpt(genome, expts, nonUnique, fileFormat, readLength, 1, loadThreads, useBamIndex);
+	                DeepSeqExpt c = new DeepSeqExpt(genome, ctrls, nonUnique, fileFormat, readLength, 1, loadThreads, useBamIndex);
 	                experiments.add(new Pair<DeepSeqExpt,DeepSeqExpt>(e,c));
 	            } else if(rdbexpts.size()>0 && expts.size() == 0){
 	                if(genome==null){
@@ -375,8 +377,11 @@ public class GEM {
                          "      --t <maximum number of threads to run GEM in paralell (default=#CPU)>\n" +
                          "      --out <output folder name and file name prefix>\n" +
                          "      --k_seqs <number of binding events to use for motif discovery (default=5000)>\n" +
+                         "      --kt <number of k values to run concurrently in motif discovery (default=1)>\n" +
                          "   Optional flags: \n" +
                          "      --fa use a fixed user-specified alpha value for all the regions\n" +
+                         "      --flat_EM run the EM on packed primitive arrays (same results, fewer allocations)\n" +
+                         "      --bam_index load an indexed BAM file one chromosome per thread\n" +
                          "      --help print this help information and exit\n" +
 //                         "\n   Output format:\n" +
 //                         "      The output file contains eight fields in a tab-delimited file:\n" +
@@ -6,6 +6,11 @@ package edu.mit.csail.cgs.deepseq.discovery;
  */
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.awt.BasicStroke;
 import java.awt.Color;
 import java.awt.Font;
@@ -20,6 +25,7 @@ import cern.jet.random.engine.DRand;
 
 import edu.mit.csail.cgs.datasets.general.Point;
 import edu.mit.csail.cgs.datasets.general.Region;
+import edu.mit.csail.cgs.datasets.general.RegionIndex;
 import edu.mit.csail.cgs.datasets.species.Genome;
 import edu.mit.csail.cgs.deepseq.*;
 import edu.mit.csail.cgs.deepseq.discovery.kmer.Kmer;
@@ -31,6 +37,7 @@ import edu.mit.csail.cgs.deepseq.features.*;
 import edu.mit.csail.cgs.deepseq.multicond.MultiIndependentMixtureCounts;
 import edu.mit.csail.cgs.deepseq.utilities.CommonUtils;
 import edu.mit.csail.cgs.deepseq.utilities.ReadCache;
+import edu.mit.csail.cgs.deepseq.utilities.StrandedBaseView;
 import edu.mit.csail.cgs.ewok.verbs.SequenceGenerator;
 import edu.mit.csail.cgs.ewok.verbs.motifs.WeightMatrixScoreProfile;
 import edu.mit.csail.cgs.ewok.verbs.motifs.WeightMatrixScorer;
@@ -604,7 +611,21 @@ public class KPPMixture extends MultiConditionFeatureFinder {
 		System.gc();
 	}//end of BindingMixture constructor
 
-	
+	/**********************************************************
+	 * Constructer with no data loaders, only the binding model and config
+	 * It is private, the benchmark harness (bench/) reaches it by reflection
+	 **********************************************************/
+	private KPPMixture(BindingModel model, Config config, int numConditions) {
+		super(new Genome("Bench"), new ArrayList<Pair<DeepSeqExpt,DeepSeqExpt>>());
+        constants = new GPSConstants();
+        this.config = config;
+        this.model = model;
+        modelWidth = model.getWidth();
+        modelRange = model.getRange();
+        this.numConditions = numConditions;
+        background_proportion = config.pi_bg_r0;
+	}
+
 	protected void finalize() throws Throwable {
 	    try {
 	    	cleanUpDataLoader();        
@@ -740,16 +761,15 @@ public class KPPMixture extends MultiConditionFeatureFinder {
 			log(1,"Running EM with motif positional prior ...");
 		}
 		
-		// create threads and run EM algorithms
+		// run EM algorithms on a pool of worker threads
 		// the results are put into compFeatures
-        Thread[] threads = new Thread[config.maxThreads];
         log(1,String.format("\nRunning with %d threads ...\n", config.maxThreads));
         Vector<Region> regionsRunning = new Vector<Region>();		// object to pass info of currently running regions
 
         if (config.strand_type ==1)
         		log(1, "Calling events in single-strand mode ...\n");
         
-        // regionsToRun is shared by all threads. Each thread will access it exclusively, lock the obj, get first region, remove it, then unlock.
+        // regionsToRun is shared by all threads. Each thread takes the next region from the shared iterator.
         ArrayList<Region> regionsToRun = new ArrayList<Region>();
         if (!config.process_all_regions){		// first round, only process some of the region, sort to put the strong regions on top
 	        	int[] idx = StatUtil.findSort(enrichedRegionReadCounts);
@@ -759,55 +779,18 @@ public class KPPMixture extends MultiConditionFeatureFinder {
 	        	for (int i=skipIdx;i>=0;i--)
 	        		regionsToRun.add(restrictRegions.get(idx[i]));
         }
-        else
-        		regionsToRun.addAll(restrictRegions);
-        
-        Iterator<Region> iterator = regionsToRun.iterator();
-        for (int i = 0 ; i < threads.length; i++) {
-            Thread t = new Thread(new GPS2Thread(iterator,
-            									processedRegionCount,
-            									regionsRunning,
-                                                compFeatures,
-                                                goodFeatures,
-                                                allKmerHits,
-                                                true));
-            t.start();
-            threads[i] = t;
+        else{	// process all regions, put the most expensive regions on top so that they do not finish last on a single thread
+        		double[] regionCosts = new double[totalRegionCount];
+        		for (int i=0;i<totalRegionCount;i++)
+        			regionCosts[i] = estimateRegionCost(restrictRegions.get(i), enrichedRegionReadCounts[i]);
+	        	int[] idx = StatUtil.findSort(regionCosts);
+	        	for (int i=totalRegionCount-1;i>=0;i--)
+	        		regionsToRun.add(restrictRegions.get(idx[i]));
         }
-        boolean anyrunning = true;
-        int count = 0;
+        
         HashSet<Region> heavyRegions = new HashSet<Region>();
-        while (anyrunning) {
-            anyrunning = false;
-            try {
-                Thread.sleep(1000);
-            } catch (InterruptedException e) { }
-            for (int i = 0; i < threads.length; i++) {
-                if (threads[i].isAlive()) {
-                    anyrunning = true;
-                    if (count == processedRegionCount.size()){
-	                    	try{
-		                    	heavyRegions.addAll(regionsRunning);
-		                    	if (config.verbose>1 && !regionsRunning.isEmpty())
-		                    		System.out.println("Analyzing "+regionsRunning.elementAt(0).toString());
-	                    	}
-	                    	catch (ConcurrentModificationException e){
-	                    		//ignore
-	                    	}
-                    }
-                    break;
-                }
-            }    
-            count = processedRegionCount.size();
-//            System.out.println(count);
-            int trigger = totalRegionCount;
-            if (!reportTriggers.isEmpty())
-            	trigger = reportTriggers.first();
-            if (count>trigger){
-				System.out.println(trigger+"\t/"+totalRegionCount+"\t"+CommonUtils.timeElapsed(tic));
-				reportTriggers.remove(reportTriggers.first());
-            }
-        } // while thread running loop
+        runGPS2Threads(regionsToRun, processedRegionCount, regionsRunning, compFeatures, goodFeatures, allKmerHits, 
+        		true, heavyRegions, reportTriggers, totalRegionCount, tic);
         
         if (config.process_all_regions)
         		System.out.println(totalRegionCount+"\t/"+totalRegionCount+"\t"+CommonUtils.timeElapsed(tic));
@@ -1351,55 +1334,15 @@ public class KPPMixture extends MultiConditionFeatureFinder {
 		reportTriggers.add(1000);
 		reportTriggers.add(10000);
 
-		// create threads and run EM algorithms
-		// the results are put into compFeatures
+		// run EM algorithms on a pool of worker threads
+		// the results are put into ctrlFeatures
 		Collection<KmerPP> allKmerHits = new Vector<KmerPP>();
-        Thread[] threads = new Thread[config.maxThreads];
         log(1,String.format("Running EM on control data: creating %d threads", config.maxThreads));
-        int regionsPerThread = regions.size()/threads.length;
         TreeSet<Region> regionsToRun = new TreeSet<Region>();
         regionsToRun.addAll(regions);
         Vector<Region> regionsRunning = new Vector<Region>();		// object to pass info of currently running regions
-        for (int i = 0 ; i < threads.length; i++) {
-//            ArrayList<Region> threadRegions = new ArrayList<Region>();
-//            int nextStartIndex = (i+1)*regionsPerThread;
-//            if (i==threads.length-1)		// last thread
-//            	nextStartIndex = regions.size();
-//            // get the regions as same chrom as possible, to minimize chrom sequence that each thread need to cache
-//            for (int j = i*regionsPerThread; j < nextStartIndex; j++) {
-//                threadRegions.add(regions.get(j));
-//            }
-            Thread t = new Thread(new GPS2Thread(regionsToRun.iterator(),
-            									processRegionCount,
-            									regionsRunning,
-                                                ctrlFeatures,
-                                                goodFeatures,
-                                                allKmerHits,
-                                                false));
-            t.start();
-            threads[i] = t;
-        }
-        boolean anyrunning = true;
-        while (anyrunning) {
-            anyrunning = false;
-            try {
-                Thread.sleep(1000);
-            } catch (InterruptedException e) { }
-            for (int i = 0; i < threads.length; i++) {
-                if (threads[i].isAlive()) {
-                    anyrunning = true;
-                    break;
-                }
-            }    
-            int count = processRegionCount.size();
-            int trigger = totalRegionCount;
-            if (!reportTriggers.isEmpty())
-            	trigger = reportTriggers.first();
-            if (count>trigger){
-				System.out.println(trigger+"\t/"+totalRegionCount+"\t"+CommonUtils.timeElapsed(tic));
-				reportTriggers.remove(reportTriggers.first());
-            }
-        }
+        runGPS2Threads(regionsToRun, processRegionCount, regionsRunning, ctrlFeatures, goodFeatures, allKmerHits, 
+        		false, null, reportTriggers, totalRegionCount, tic);
         System.out.println(totalRegionCount+"\t/"+totalRegionCount+"\t"+CommonUtils.timeElapsed(tic));
         processRegionCount.clear();
         
@@ -1410,6 +1353,78 @@ public class KPPMixture extends MultiConditionFeatureFinder {
         return ctrlFeatures;
 	}
 	
+	/**
+	 * Estimated EM cost of a region, used to schedule the expensive regions first.<br>
+	 * The EM time grows with both the number of reads and the number of components (region width).
+	 */
+	private double estimateRegionCost(Region r, double readCount){
+		return (readCount+1) * r.getWidth();
+	}
+	
+	/**
+	 * Run GPS2Thread workers on a fixed thread pool until all the regions are processed.<br>
+	 * All the workers share the same region iterator, so an idle worker always picks up the next region in the list. 
+	 * The caller waits on the pool termination instead of polling the threads, 
+	 * progress is reported at most once per second.
+	 * @param heavyRegions if not null, collect the regions that take more than one second to process
+	 */
+	private void runGPS2Threads(Collection<Region> regionsToRun, Vector<Integer> processedRegionCount, Vector<Region> regionsRunning, 
+			Collection<ComponentFeature> compFeatures, Collection<ComponentFeature> goodFeatures, Collection<KmerPP> allKmerHits, 
+			boolean isIP, Set<Region> heavyRegions, TreeSet<Integer> reportTriggers, int totalRegionCount, long tic){
+		Iterator<Region> iterator = regionsToRun.iterator();
+		int numThreads = Math.max(1, Math.min(config.maxThreads, regionsToRun.size()));
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		ArrayList<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int i = 0 ; i < numThreads; i++) {
+            futures.add(pool.submit(new GPS2Thread(iterator,
+            									processedRegionCount,
+            									regionsRunning,
+                                                compFeatures,
+                                                goodFeatures,
+                                                allKmerHits,
+                                                isIP)));
+        }
+        pool.shutdown();
+        int count = 0;
+        try{
+	        while (!pool.awaitTermination(1, TimeUnit.SECONDS)) {
+	            if (heavyRegions!=null && count == processedRegionCount.size()){
+	            	try{
+	                	heavyRegions.addAll(regionsRunning);
+	                	if (config.verbose>1 && !regionsRunning.isEmpty())
+	                		System.out.println("Analyzing "+regionsRunning.elementAt(0).toString());
+	            	}
+	            	catch (ConcurrentModificationException e){
+	            		//ignore
+	            	}
+	            }
+	            count = processedRegionCount.size();
+	            int trigger = totalRegionCount;
+	            if (!reportTriggers.isEmpty())
+	            	trigger = reportTriggers.first();
+	            if (count>trigger){
+					System.out.println(trigger+"\t/"+totalRegionCount+"\t"+CommonUtils.timeElapsed(tic));
+					reportTriggers.remove(reportTriggers.first());
+	            }
+	        }
+	        for (Future<?> f : futures)
+	        	f.get();
+        }
+        catch (InterruptedException e){
+        	// the regions that were not run would be missing from the results, so don't go on
+        	pool.shutdownNow();
+            System.err.println("ERROR: Interrupted when running EM threads");
+			cleanUpDataLoader();
+            System.exit(-1);
+        }
+        catch (ExecutionException e){
+            System.err.println("ERROR: Java Exception when running EM threads");
+            e.getCause().printStackTrace(System.err);
+			cleanUpDataLoader();
+            System.exit(-1);
+        }
+	}
+	
 	// split a region into smaller windows if the width is larger than windowSize
 	private ArrayList<Region> splitWindows(Region r, int windowSize, int overlapSize, boolean isIP){
 		ArrayList<Region> windows=new ArrayList<Region>();
@@ -1484,15 +1499,15 @@ public class KPPMixture extends MultiConditionFeatureFinder {
 	 * @param w a region
 	 * @return
 	 */
-	private ArrayList<List<StrandedBase>> loadData_checkEnrichment(Region w){
-		ArrayList<List<StrandedBase>> signals = loadBasesInWindow(w, "IP");
-		if (signals==null || signals.isEmpty())
+	private ArrayList<StrandedBaseView[]> loadData_checkEnrichment(Region w){
+		if (caches.isEmpty())
 			return null;
 
-		//initialize count arrays
+		//initialize count arrays, from the cache views
 		totalSigCount=0;
 		for (int c=0; c<numConditions; c++){
-			sigHitCounts[c]=StrandedBase.countBaseHits(signals.get(c));
+			ReadCache ip = caches.get(c).car();
+			sigHitCounts[c]=StrandedBaseView.countBaseHits(ip.getStrandedView(w, '+'), ip.getStrandedView(w, '-'));
 			totalSigCount+=sigHitCounts[c];
 		}
 		// if less than significant number of reads
@@ -1532,33 +1547,7 @@ public class KPPMixture extends MultiConditionFeatureFinder {
 				return null;
 			}
 		}
-		return signals;
-	}
-
-	/*
-	 * return the bottom elements of x 
-	 * so that their sum is less than maxSum
-	 * alpha is passed in as maxSum, this essentially ensure that 
-	 * we do not eliminate too much, but as quick as possible to reduce run time
-	 */
-	private Pair<Double, TreeSet<Integer>> findSmallestCases(double[] x, double maxSum){
-		TreeSet<Integer> cases = new TreeSet<Integer>();
-		double maxSmallest = 0; 
-		double sum = 0;
-		int[] oldIdx = StatUtil.findSort(x);
-		for (int i=0;i<x.length;i++){
-			sum += x[i];
-			if (sum < maxSum){
-				cases.add(oldIdx[i]);
-				maxSmallest = x[i];
-			}
-			else
-				break;
-		}
-		if (cases.isEmpty())
-			maxSmallest = x[0];
-		Pair<Double, TreeSet<Integer>> result = new Pair<Double, TreeSet<Integer>>(maxSmallest, cases);
-		return result;
+		return loadBasesInWindow(w, "IP");
 	}
 
 	
@@ -1884,29 +1873,18 @@ public class KPPMixture extends MultiConditionFeatureFinder {
 	}
 
 	// Load the reads from all conditions in the region
-	private ArrayList<List<StrandedBase>> loadBasesInWindow(Region w, String channel){
-		ArrayList<List<StrandedBase>> signals = new ArrayList<List<StrandedBase>>();
-		if(channel.equalsIgnoreCase("IP")) {
-			//Load each condition's read hits
-			for(Pair<ReadCache,ReadCache> e : caches){
-				List<StrandedBase> bases_p= e.car().getStrandedBases(w, '+');  // reads of the current region - IP channel
-				List<StrandedBase> bases_m= e.car().getStrandedBases(w, '-');  // reads of the current region - IP channel
-				bases_p.addAll(bases_m);
-				signals.add(bases_p);
-			} // for loop
-		}
-		else if(channel.equalsIgnoreCase("CTRL")) {
-			//Load each condition's read hits
-			for(Pair<ReadCache,ReadCache> e : caches){
-				List<StrandedBase> bases_p= e.cdr().getStrandedBases(w, '+');  // reads of the current region - Ctrl channel
-				List<StrandedBase> bases_m= e.cdr().getStrandedBases(w, '-');  // reads of the current region - Ctrl channel
-				bases_p.addAll(bases_m);
-				signals.add(bases_p);
-			} // for loop
-
-		}
-		else
+	// each condition is the plus and minus strand views of the cache, no StrandedBase is created
+	private ArrayList<StrandedBaseView[]> loadBasesInWindow(Region w, String channel){
+		ArrayList<StrandedBaseView[]> signals = new ArrayList<StrandedBaseView[]>();
+		boolean isIP = channel.equalsIgnoreCase("IP");
+		if(!isIP && !channel.equalsIgnoreCase("CTRL"))
 			throw new IllegalArgumentException("The only valid values for channel is either IP or CTRL.");
+		//Load each condition's read hits
+		for(Pair<ReadCache,ReadCache> e : caches){
+			ReadCache cache = isIP ? e.car() : e.cdr();
+			signals.add(new StrandedBaseView[]{cache.getStrandedView(w, '+'),	// reads of the current region
+											   cache.getStrandedView(w, '-')});
+		} // for loop
 		signals.trimToSize();
 		return signals;
 	}
@@ -1917,7 +1895,7 @@ public class KPPMixture extends MultiConditionFeatureFinder {
 	 * @param signals
 	 * @return
 	 */
-	private double estimateAlpha(Region window, ArrayList<List<StrandedBase>> signals){
+	private double estimateAlpha(Region window, ArrayList<StrandedBaseView[]> signals){
 		float maxCount = 0;
 		int left = Math.abs(model.getMin());
 		int right = Math.abs(model.getMax());
@@ -1926,16 +1904,17 @@ public class KPPMixture extends MultiConditionFeatureFinder {
 			// i is each possible event position
 			float count=0;
 			for (int c=0;c<signals.size();c++){
-				List<StrandedBase> bases = signals.get(c);
-				for (StrandedBase b: bases){
-					int coor = b.getCoordinate();
-					if (b.getStrand()=='+'){
-						if (coor>i-left && coor<i+right)
-							count += b.getCount();
-					}
-					else{
-						if (coor>i-right && coor<i+left)
-							count += b.getCount();
+				for (StrandedBaseView v: signals.get(c)){
+					for (int k=0;k<v.size();k++){
+						int coor = v.getCoordinate(k);
+						if (v.getStrand()=='+'){
+							if (coor>i-left && coor<i+right)
+								count += v.getCount(k);
+						}
+						else{
+							if (coor>i-right && coor<i+left)
+								count += v.getCount(k);
+						}
 					}
 				}
 			}
@@ -2999,30 +2978,16 @@ public class KPPMixture extends MultiConditionFeatureFinder {
 				continue;
 			}
 				
-			// Construct the non-excluded regions and check for overlapping with the excluded regions
-			int start = 0;
-			int prev_reg_idx = 0;
-			int curr_reg_idx = 0;
-			while(start < chromLen) {
-				Region non_specific_reg = new Region(gen, chrom, start, Math.min(start + non_specific_reg_len -1, chromLen-1));
-				
-				if(chr_enriched_regs.size() > 0) {
-					if(!(non_specific_reg.overlaps(chr_enriched_regs.get(prev_reg_idx)) || non_specific_reg.overlaps(chr_enriched_regs.get(curr_reg_idx)))) {
-						chrom_non_specific_regs.add(non_specific_reg);
-					}
-					else {
-						while(curr_reg_idx < chr_enriched_regs.size() && non_specific_reg.overlaps(chr_enriched_regs.get(curr_reg_idx)))
-							curr_reg_idx++;
-						curr_reg_idx = Math.min(chr_enriched_regs.size()-1, curr_reg_idx);
-						prev_reg_idx = Math.max(prev_reg_idx, curr_reg_idx-1);
-					}
-				}
-				else {
-					chrom_non_specific_regs.add(non_specific_reg);
-				}
-				
-				start += non_specific_reg_len;
-			}//end of while LOOP
+			// Construct the non-excluded regions, keep those not overlapping with the excluded regions
+			List<Region> windows = new ArrayList<Region>();
+			for (int start = 0; start < chromLen; start += non_specific_reg_len)
+				windows.add(new Region(gen, chrom, start, Math.min(start + non_specific_reg_len -1, chromLen-1)));
+			Iterator<Pair<Region, List<Region>>> joined = RegionIndex.join(windows.iterator(), chr_enriched_regs.iterator());
+			while (joined.hasNext()) {
+				Pair<Region, List<Region>> window = joined.next();
+				if (window.cdr().isEmpty())
+					chrom_non_specific_regs.add(window.car());
+			}
 			
 			if(flag.equalsIgnoreCase("IP")) {
 				// Estimate the (ipCounts_cond1, ipCounts_cond2) pairs
@@ -3353,16 +3318,16 @@ public class KPPMixture extends MultiConditionFeatureFinder {
 			// Each List contains the read counts for each condition
 			List<List<Integer>> currChromCondCounts = new ArrayList<List<Integer>>();
 			currChromCondCounts.add(new ArrayList<Integer>()); currChromCondCounts.add(new ArrayList<Integer>());
-			List<List<StrandedBase>> ip_chrom_signals = loadBasesInWindow(chromRegion, "IP");
-			for(List<StrandedBase> ip_chrom_signal_cond:ip_chrom_signals) {
-				int currCondHitCounts = (int)StrandedBase.countBaseHits(ip_chrom_signal_cond);
+			List<StrandedBaseView[]> ip_chrom_signals = loadBasesInWindow(chromRegion, "IP");
+			for(StrandedBaseView[] ip_chrom_signal_cond:ip_chrom_signals) {
+				int currCondHitCounts = (int)StrandedBaseView.countBaseHits(ip_chrom_signal_cond);
 				currChromCondCounts.get(0).add(currCondHitCounts);
 				counts += currCondHitCounts;
 			}
 			if (config.local_neighborhood_control){
-				List<List<StrandedBase>> ctrl_chrom_signals = loadBasesInWindow(chromRegion, "CTRL");
-				for(List<StrandedBase> ctrl_chrom_signal_cond:ctrl_chrom_signals) {
-					int currCondHitCounts = (int)StrandedBase.countBaseHits(ctrl_chrom_signal_cond);
+				List<StrandedBaseView[]> ctrl_chrom_signals = loadBasesInWindow(chromRegion, "CTRL");
+				for(StrandedBaseView[] ctrl_chrom_signal_cond:ctrl_chrom_signals) {
+					int currCondHitCounts = (int)StrandedBaseView.countBaseHits(ctrl_chrom_signal_cond);
 					currChromCondCounts.get(1).add(currCondHitCounts);
 				}
 			}
@@ -4007,11 +3972,13 @@ public class KPPMixture extends MultiConditionFeatureFinder {
             this.allKmerHits = allKmerHits;
             this.isIP = isIP;
         }
-        
+
         public void simpleRun(List<StrandedBase> bases, Region r) {
             components = new ArrayList<BindingComponent>();
             ArrayList<List<StrandedBase>> signals = new ArrayList<List<StrandedBase>>();
             signals.add(bases);
+            ArrayList<StrandedBaseView[]> views = new ArrayList<StrandedBaseView[]>();
+            views.add(StrandedBaseView.fromBases(bases));
 
             Pair<double[][][], int[][][]> result = null;
             if (!doScanning){
@@ -4019,12 +3986,12 @@ public class KPPMixture extends MultiConditionFeatureFinder {
                 initializeComponents(r, numConditions );
                 while(nonZeroComponentNum>0){
                     double alpha = Math.max(Math.sqrt(StrandedBase.countBaseHits(bases))/config.alpha_factor, config.sparseness);
-                    result = EMTrain(signals, null, alpha, new double[r.getWidth()]);
+                    result = EMTrain(views, null, alpha, new double[r.getWidth()]);
                     if(componentSpacing==1)
                         break;
                     updateComponentResolution(r, 1, componentSpacing);
                 }
-                setComponentResponsibilities(signals, result.car(), result.cdr());
+                setComponentResponsibilities(views, result.car(), result.cdr());
             } else{		// scan it
                 BindingComponent peak = scanPeak(signals, r);
                 components.add(peak);
@@ -4358,11 +4325,11 @@ public class KPPMixture extends MultiConditionFeatureFinder {
 
         private ArrayList<BindingComponent> analyzeWindow(Region w, SequenceGenerator<Region> seqgen){
 
-            ArrayList<List<StrandedBase>> signals = loadData_checkEnrichment(w);
+            ArrayList<StrandedBaseView[]> signals = loadData_checkEnrichment(w);
             if (signals==null)
                 return null;
 
-            ArrayList<List<StrandedBase>> bg_signals = null;
+            ArrayList<StrandedBaseView[]> bg_signals = null;
             if (controlDataExist && config.noise_distribution==2){		// if want to use control to set bg dist. 
             	bg_signals = loadBasesInWindow(w, "CTRL");
             }
@@ -4375,24 +4342,20 @@ public class KPPMixture extends MultiConditionFeatureFinder {
             else{	// process each single strand separately
 	            	char[] strands = new char[]{'+','-'};
 	            	for (char s:strands){
-	            		// get stranded data
-	            		ArrayList<List<StrandedBase>> signals_stranded = new ArrayList<List<StrandedBase>>();
-	            		for (List<StrandedBase> l:signals){
-	            			List<StrandedBase> l_s = new ArrayList<StrandedBase>();
-	            			for (StrandedBase b:l)
-	            				if (b.getStrand()==s)
-	            					l_s.add(b);
-	            			signals_stranded.add(l_s);
+	            		// get stranded data, keep only the view of this strand
+	            		ArrayList<StrandedBaseView[]> signals_stranded = new ArrayList<StrandedBaseView[]>();
+	            		for (StrandedBaseView[] l:signals){
+	            			for (StrandedBaseView v:l)
+	            				if (v.getStrand()==s)
+	            					signals_stranded.add(new StrandedBaseView[]{v});
 	            		}
-	            		ArrayList<List<StrandedBase>> bg_signals_stranded = null;
+	            		ArrayList<StrandedBaseView[]> bg_signals_stranded = null;
 	            		if (bg_signals!=null){
-	            			bg_signals_stranded = new ArrayList<List<StrandedBase>>();
-		            		for (List<StrandedBase> l:bg_signals){
-		            			List<StrandedBase> l_s = new ArrayList<StrandedBase>();
-		            			for (StrandedBase b:l)
-		            				if (b.getStrand()==s)
-		            					l_s.add(b);
-		            			bg_signals_stranded.add(l_s);
+	            			bg_signals_stranded = new ArrayList<StrandedBaseView[]>();
+		            		for (StrandedBaseView[] l:bg_signals){
+		            			for (StrandedBaseView v:l)
+		            				if (v.getStrand()==s)
+		            					bg_signals_stranded.add(new StrandedBaseView[]{v});
 		            		}
 	            		}
 	            		
@@ -4409,8 +4372,8 @@ public class KPPMixture extends MultiConditionFeatureFinder {
             return results;
         } 
         
-        private ArrayList<BindingComponent> analyzeWindow(Region w, ArrayList<List<StrandedBase>> signals,
-        		ArrayList<List<StrandedBase>> bg_signals, SequenceGenerator<Region> seqgen, char readStrand){
+        private ArrayList<BindingComponent> analyzeWindow(Region w, ArrayList<StrandedBaseView[]> signals,
+        		ArrayList<StrandedBaseView[]> bg_signals, SequenceGenerator<Region> seqgen, char readStrand){
             // We want to run EM only for potential homotypic regions
             // After first round, if we are sure the region contains unary event, we will just scan for peak
         	
@@ -4420,8 +4383,8 @@ public class KPPMixture extends MultiConditionFeatureFinder {
 //        		config.sparseness += 0;
 //        	}
     		int sum = 0;
-    		for (List<StrandedBase> bases: signals)
-    			sum += StrandedBase.countBaseHits(bases);
+    		for (StrandedBaseView[] views: signals)
+    			sum += StrandedBaseView.countBaseHits(views);
             if (sum==0)
             	return new ArrayList<BindingComponent>();
         	
@@ -4755,7 +4718,7 @@ public class KPPMixture extends MultiConditionFeatureFinder {
          * purely matrix/array operations
          * After EM training, components list will only contains non-zero components
          */
-        private Pair<double[][][], int[][][]>  EMTrain(ArrayList<List<StrandedBase>> signals, ArrayList<List<StrandedBase>> bg_signals, double alpha, double[] pos_alpha){
+        private Pair<double[][][], int[][][]>  EMTrain(ArrayList<StrandedBaseView[]> signals, ArrayList<StrandedBaseView[]> bg_signals, double alpha, double[] pos_alpha){
             int numComp = components.size();
             // H function and responsibility will be stored using an indirect indexing method
             // Because only the components within the modelRange will have an effect, we only store those components around the reads
@@ -4780,44 +4743,71 @@ public class KPPMixture extends MultiConditionFeatureFinder {
             int minPlus=Integer.MAX_VALUE, maxPlus=Integer.MIN_VALUE,minMinus=Integer.MAX_VALUE, maxMinus=Integer.MIN_VALUE;
 
             for(int c=0; c<numConditions; c++){
-                List<StrandedBase> bases_input = signals.get(c);
-                List<StrandedBase> bases = new ArrayList<StrandedBase>();
+                StrandedBaseView[] views = signals.get(c);
+                // the bases (or data bins) of this condition, plus strand first
+                int maxBases = 0;
+                for (StrandedBaseView v:views)
+                    maxBases += v.size();
+                int[] coords = new int[maxBases];
+                char[] strands = new char[maxBases];
+                float[] hits = new float[maxBases];
+                int numBases = 0;
                 if (componentSpacing==1 || no_data_bin) {
-                    bases = bases_input;
+                    for (StrandedBaseView v:views){
+                        for (int k=0;k<v.size();k++){
+                            coords[numBases] = v.getCoordinate(k);
+                            strands[numBases] = v.getStrand();
+                            hits[numBases] = v.getCount(k);
+                            numBases++;
+                        }
+                    }
                 } else {		// merge read counts into data bin
-                    if (!bases_input.isEmpty()){
+                    if (maxBases!=0){
                         char strand = '+';
-                        int pos = bases_input.get(0).getCoordinate()+componentSpacing/2;
-                        float count = 0;
-                        for (StrandedBase bb:bases_input){
-                            if (bb.getStrand()!=strand){
-                                if (count!=0)
-                                    bases.add(new StrandedBase(strand, pos, count));
-                                strand = '-';
-                                pos = bb.getCoordinate()+componentSpacing/2;
-                                count = 0;
+                        int pos = 0;
+                        for (StrandedBaseView v:views){
+                            if (!v.isEmpty()){
+                                pos = v.getCoordinate(0)+componentSpacing/2;
+                                break;
                             }
-                            if( bb.getCoordinate()>=pos-componentSpacing/2 &&
-                                bb.getCoordinate()<=pos+componentSpacing-componentSpacing/2-1){
-                                count += bb.getCount();
-                            }else{
-                                if (count!=0)
-                                    bases.add(new StrandedBase(strand, pos, count));
-                                count=bb.getCount();
-                                pos = bb.getCoordinate()+componentSpacing/2;
+                        }
+                        float count = 0;
+                        for (StrandedBaseView v:views){
+                            for (int k=0;k<v.size();k++){
+                                int coord = v.getCoordinate(k);
+                                if (v.getStrand()!=strand){
+                                    if (count!=0){
+                                        coords[numBases] = pos; strands[numBases] = strand; hits[numBases] = count;
+                                        numBases++;
+                                    }
+                                    strand = '-';
+                                    pos = coord+componentSpacing/2;
+                                    count = 0;
+                                }
+                                if( coord>=pos-componentSpacing/2 &&
+                                    coord<=pos+componentSpacing-componentSpacing/2-1){
+                                    count += v.getCount(k);
+                                }else{
+                                    if (count!=0){
+                                        coords[numBases] = pos; strands[numBases] = strand; hits[numBases] = count;
+                                        numBases++;
+                                    }
+                                    count=v.getCount(k);
+                                    pos = coord+componentSpacing/2;
+                                }
                             }
                         }
-                        if (count!=0)
-                            bases.add(new StrandedBase(strand, pos, count));
+                        if (count!=0){
+                            coords[numBases] = pos; strands[numBases] = strand; hits[numBases] = count;
+                            numBases++;
+                        }
                     }
                 }
-				
-                int numBases = bases.size();
 
                 // compute the range of the reads, to estimate the init prob. for bg component
                 for(int i=0;i<numBases;i++){
-                    int coord = bases.get(i).getCoordinate();
-                    if (bases.get(i).getStrand()=='+'){
+                    int coord = coords[i];
+                    if (strands[i]=='+'){
                     	if (coord<minPlus)
                     		minPlus = coord;
                     	if (coord>maxPlus)
@@ -4831,8 +4821,6 @@ public class KPPMixture extends MultiConditionFeatureFinder {
                     }
                 }
                 
-                //			System.out.println(StrandedBase.countBaseHits(bases));
-                //			System.out.println(StrandedBase.countBaseHits(bases_old));
                 double[] bc= new double[numComp];
                 for(int j=0;j<numComp;j++)
                     bc[j]=1.0/numConditions;
@@ -4840,7 +4828,7 @@ public class KPPMixture extends MultiConditionFeatureFinder {
 
                 double[] countc= new double[numBases];
                 for(int i=0;i<numBases;i++)
-                    countc[i]=bases.get(i).getCount();
+                    countc[i]=hits[i];
                 counts[c]=countc;
 			
                 int[][] c2b_c = new int[numComp][];
@@ -4850,8 +4838,7 @@ public class KPPMixture extends MultiConditionFeatureFinder {
                     BindingComponent comp = components.get(j);
                     ArrayList<Integer> nzBases = new ArrayList<Integer>();
                     for(int i=0;i<numBases;i++){
-                        StrandedBase base = bases.get(i);
-                        int dist = base.getStrand()=='+' ? base.getCoordinate()-comp.getLocation().getLocation(): comp.getLocation().getLocation()-base.getCoordinate();
+                        int dist = strands[i]=='+' ? coords[i]-comp.getLocation().getLocation(): comp.getLocation().getLocation()-coords[i];
                         prob_comp[i] = model.probability(dist);
                         if (prob_comp[i]>1e-10){
                             nzBases.add(i);
@@ -4881,40 +4868,44 @@ public class KPPMixture extends MultiConditionFeatureFinder {
                 
                 // background probability
                 if (config.noise_distribution==2 && controlDataExist){ //config.noise_distribution==2 smoothed shape using control data
-                	List<StrandedBase> ctrls = bg_signals.get(c);
+                	StrandedBaseView[] ctrls = bg_signals.get(c);
+                	float ctrlCount = StrandedBaseView.countBaseHits(ctrls);
                 	double[] plusProfile = new double[Math.max(model.getRange(), maxPlus-minPlus+1)];
-                	for (StrandedBase base_ctrl: ctrls){
-                		if (base_ctrl.getStrand()=='+'){
-	                		int offset = base_ctrl.getCoordinate() - minPlus;
-	                		if (offset>=0 && offset<plusProfile.length)
-	                			plusProfile[offset] = base_ctrl.getCount();
+                	for (StrandedBaseView ctrl: ctrls){
+                		if (ctrl.getStrand()=='+'){
+                			for (int k=0;k<ctrl.size();k++){
+		                		int offset = ctrl.getCoordinate(k) - minPlus;
+		                		if (offset>=0 && offset<plusProfile.length)
+		                			plusProfile[offset] = ctrl.getCount(k);
+                			}
                 		}
                 	}
                 	for (int i=0;i<plusProfile.length;i++)			// pseudo-count to deal with 0 ctrl reads
-                		plusProfile[i] += StrandedBase.countBaseHits(ctrls)/plusProfile.length;
+                		plusProfile[i] += ctrlCount/plusProfile.length;
 //                	System.out.println();
 //                	System.out.println(CommonUtils.arrayToString(plusProfile, "%.4f"));
                 	plusProfile = StatUtil.symmetricKernelSmoother(plusProfile, gaussian);
 //                	System.out.println(CommonUtils.arrayToString(plusProfile, "%.4f"));
                 	double[] minusProfile = new double[Math.max(model.getRange(), maxMinus-minMinus+1)];
-                	for (StrandedBase base_ctrl: ctrls){
-                		if (base_ctrl.getStrand()=='-'){
-	                		int offset = base_ctrl.getCoordinate() - minMinus;
-	                		if (offset>=0 && offset<minusProfile.length)
-	                			minusProfile[offset] = base_ctrl.getCount();
+                	for (StrandedBaseView ctrl: ctrls){
+                		if (ctrl.getStrand()=='-'){
+                			for (int k=0;k<ctrl.size();k++){
+		                		int offset = ctrl.getCoordinate(k) - minMinus;
+		                		if (offset>=0 && offset<minusProfile.length)
+		                			minusProfile[offset] = ctrl.getCount(k);
+                			}
                 		}
                 	}
                 	for (int i=0;i<minusProfile.length;i++)			// pseudo-count to deal with 0 ctrl reads
-                		minusProfile[i] += StrandedBase.countBaseHits(ctrls)/minusProfile.length;
+                		minusProfile[i] += ctrlCount/minusProfile.length;
                 	minusProfile = StatUtil.symmetricKernelSmoother(minusProfile, gaussian);
                 	
                 	double [] prob_bg_c = new double[numBases];
                 	for(int i=0;i<numBases;i++){
-                		StrandedBase base = bases.get(i);
-                		if (base.getStrand()=='+')
-                			prob_bg_c[i] = plusProfile[base.getCoordinate()-minPlus];
+                		if (strands[i]=='+')
+                			prob_bg_c[i] = plusProfile[coords[i]-minPlus];
                 		else
-                			prob_bg_c[i] = minusProfile[base.getCoordinate()-minMinus];
+                			prob_bg_c[i] = minusProfile[coords[i]-minMinus];
                 	}
 	                prob_bg[c] = prob_bg_c;
                 }
@@ -4933,7 +4924,9 @@ public class KPPMixture extends MultiConditionFeatureFinder {
             //////////
             // Run EM steps
             //////////
-            Pair<double[][][], Double> result = EM_MAP(counts, h, r, b, c2b, pi, alpha, pos_alpha, prob_bg);
+            Pair<double[][][], Double> result = config.use_flat_EM ? 
+            		EM_MAP_flat(counts, h, r, b, c2b, pi, alpha, pos_alpha, prob_bg) :
+            		EM_MAP(counts, h, r, b, c2b, pi, alpha, pos_alpha, prob_bg);
             r = result.car();
             double noiseProb = result.cdr();
             //////////
@@ -5036,8 +5029,65 @@ public class KPPMixture extends MultiConditionFeatureFinder {
                                                         double alpha,
                                                         double[] pos_alpha, 
                                                         double[][] prob_bg) {
+        	return EM_MAP(new NestedResponsibilities(r, h, c2b), counts, r, b, pi, alpha, pos_alpha, prob_bg, "EM_MAP()");
+        }//end of EM_MAP method
+
+        /** 
+         * Same as EM_MAP(), but runs on responsibilities packed into one flat primitive array per condition 
+         * (see FlatResponsibilities). The results are identical. 
+         * The responsibilities are copied back into <tt>r</tt> at the end.
+         */
+        private Pair<double[][][], Double> EM_MAP_flat(	double[][]   counts,
+                                                        double[][][] h,
+                                                        double[][][] r,
+                                                        double[][]   b,
+                                                        int[][][] c2b,
+                                                        double[] pi,
+                                                        double alpha,
+                                                        double[] pos_alpha, 
+                                                        double[][] prob_bg) {
+        	return EM_MAP(new FlatResponsibilities(r, h, c2b, pi.length), counts, r, b, pi, alpha, pos_alpha, prob_bg, "EM_MAP_flat()");
+        }//end of EM_MAP_flat method
+
+        // per-thread scratch buffers for EM_MAP(), grown as needed and reused across windows
+        private double[][] flat_r = new double[0][];		// responsibility [cond][packed comp-base]
+        private double[][] flat_h = new double[0][];		// H function [cond][packed comp-base]
+        private int[][] flat_base = new int[0][];			// base index [cond][packed comp-base]
+        private int[][] flat_offset = new int[0][];			// start of each component in the packed arrays [cond][comp+1]
+        private double[] flat_totalResp = new double[0];	// per base sum, also used as per base likelihood
+        private double[] flat_r_sum = new double[0];
+        private double[] flat_sorted = new double[0];
+        private int[] flat_nzComps = new int[0];
+        private int[] flat_sortIdx = new int[0];
+        private int[] flat_sortTmp = new int[0];
+        private boolean[] flat_worst = new boolean[0];
+
+        /** 
+         * The EM iterations of EM_MAP() and EM_MAP_flat(): pruning, component elimination, 
+         * convergence and model selection. The non-zero components are kept in an int[]. 
+         * @param resp the responsibilities, in the storage of the caller
+         * @param method name of the caller, for the log
+         */
+        private Pair<double[][][], Double> EM_MAP(Responsibilities resp, double[][] counts, double[][][] r, double[][] b, 
+        		double[] pi, double alpha, double[] pos_alpha, double[][] prob_bg, String method) {
         	
         	boolean model_noise = config.noise_distribution !=0;
+        	int numComp = pi.length;
+        	
+        	int maxNumBases = 0;
+        	for(int c=0; c<numConditions; c++)
+        		maxNumBases = Math.max(maxNumBases, counts[c].length);
+        	if (flat_totalResp.length<maxNumBases)
+        		flat_totalResp = new double[maxNumBases];
+        	if (flat_nzComps.length<numComp){
+        		flat_nzComps = new int[numComp];
+        		flat_r_sum = new double[numComp];
+        		flat_sorted = new double[numComp];
+        		flat_sortIdx = new int[numComp];
+        		flat_sortTmp = new int[numComp];
+        		flat_worst = new boolean[numComp];
+        	}
+        	int[] nzComps = flat_nzComps;
         	
         	double totalCounts = 0;
         	for (int i=0;i<counts.length;i++){
@@ -5045,7 +5095,6 @@ public class KPPMixture extends MultiConditionFeatureFinder {
         			totalCounts += counts[i][j];
         	}
         	
-            long tic=System.currentTimeMillis();
             ArrayList<EM_State> models = new  ArrayList<EM_State> ();
 
             // variable for bg (noise) component
@@ -5060,16 +5109,10 @@ public class KPPMixture extends MultiConditionFeatureFinder {
             	b_bg[c] = 1.0/numConditions;
             }
             if (model_noise){
-            	for (int j=0;j<pi.length;j++){
+            	for (int j=0;j<numComp;j++){
             		pi[j]=pi[j] * pi_signal;
             	}
-            	for(int c=0; c<numConditions; c++){
-            		for (int j=0;j<pi.length;j++){
-                        int[] baseIdx = c2b[c][j];
-                        for(int i=0;i<baseIdx.length;i++)
-                        	r[c][j][i] *= pi_signal;
-                    }
-            	}
+            	resp.scale(pi_signal);
             	for(int c=0; c<numConditions; c++){
             		for(int i=0;i<r_bg[c].length;i++)
             			r_bg[c][i] = prob_bg[c][i] * pi_bg * b_bg[c];
@@ -5094,25 +5137,21 @@ public class KPPMixture extends MultiConditionFeatureFinder {
             double currAlpha = alpha/config.gentle_elimination_factor;
             double effectiveAlpha = 0;	// the real Alpha applied to compute pi (may be different from currAlpha because of the dynamic elimination schedule)
             
-            double minProb = 1.0/(pi.length*2);		// in ML speedup, threshold to eliminate ML components, length*2 to make sure it is smaller than 1/m
+            double minProb = 1.0/(numComp*2);		// in ML speedup, threshold to eliminate ML components, length*2 to make sure it is smaller than 1/m
             double maxMinProb = currAlpha / totalCounts;		// the max minProb is bound by alpha
             
             boolean minElimination = false;
             int gentleCounts = 0; 	// count the iterations that we run on gentle mode after last elimination
             // when reach the threshold, increase currAlpha value
             // index of non-zero components, used to iterate components
-            ArrayList<Integer> nzComps = new ArrayList<Integer>();	
-            for (int j=0;j<pi.length;j++){
-                nzComps.add(j);
+            int nzCount = numComp;
+            for (int j=0;j<numComp;j++){
+                nzComps[j] = j;
             }
-            log(5, (int)nonZeroComponentNum+" ");            
+            log(5, nonZeroComponentNum+" ");            
             
             //Run EM
-//            System.out.println("maxMinProb="+maxMinProb);
             for(t=0; t<constants.MAX_EM_ITER ; t++){
-//            	long toc = System.currentTimeMillis();
-//            	System.out.println("t="+t+"\t"+minProb+"\t"+(toc-tic)+"\t"+nzComps.size());
-//            	tic = toc;
                 lastLAP=LAP;
 
                 //////////
@@ -5120,38 +5159,7 @@ public class KPPMixture extends MultiConditionFeatureFinder {
                 //Simply normalize responsibilities here
                 //////////
                 for(int c=0; c<numConditions; c++){
-                    double[][] rc = r[c];
-                    int numBases = counts[c].length;
-                    double totalResp[] = new double[numBases];
-                    // init
-                    for(int i=0;i<numBases;i++){
-                        totalResp[i] = 0;
-                    }
-                    
-                    // sum
-                    for(int j:nzComps){
-                        int[] baseIdx = c2b[c][j];
-                        for(int i=0;i<baseIdx.length;i++)
-                            totalResp[baseIdx[i]] += rc[j][i];
-                    }
-                    if (model_noise && pi_bg!=0){
-	                    for(int i=0;i<numBases;i++){
-	                    	totalResp[i] += r_bg[c][i];
-	                    }
-                	}
-                    
-                    // normalize
-                    for(int j:nzComps){
-                        int[] baseIdx = c2b[c][j];
-                        for(int i=0;i<baseIdx.length;i++)
-                            if (totalResp[baseIdx[i]]>0)
-                                rc[j][i] = rc[j][i]/totalResp[baseIdx[i]];
-                    }
-                    if (model_noise && pi_bg!=0){
-	                    for(int i=0;i<numBases;i++){
-	                    	r_bg[c][i] = r_bg[c][i]/totalResp[i];
-	                    }
-                	}
+                	resp.normalize(c, counts[c].length, nzComps, nzCount, model_noise && pi_bg!=0 ? r_bg[c] : null);
                 }
 
                 //////////
@@ -5161,14 +5169,9 @@ public class KPPMixture extends MultiConditionFeatureFinder {
                 //Pi
                 // ML: standard EM
                 if (t<=config.ML_ITER || currAlpha==0){
-                    for(int j:nzComps){
-                        double r_sum=0;
-                        for(int c=0; c<numConditions; c++){
-                            int[] baseIdx = c2b[c][j];
-                            for(int i=0;i<baseIdx.length;i++)
-                                r_sum += r[c][j][i]*counts[c][baseIdx[i]];
-                        }
-                        pi[j]=r_sum;    // standard EM ML
+                    for(int jnz=0;jnz<nzCount;jnz++){
+                    	int j = nzComps[jnz];
+                        pi[j]=resp.sum(j, counts, 0, numConditions);    // standard EM ML
                     }
                 }
                 // MAP: EM with sparce prior
@@ -5178,10 +5181,6 @@ public class KPPMixture extends MultiConditionFeatureFinder {
                             currAlpha = alpha * (t-config.ML_ITER)/(constants.ANNEALING_ITER-config.ML_ITER);
                         else
                             currAlpha = alpha;
-                        // adjust alpha for coarse resolution
-                        //                	if (currAlpha>1 && INITIAL_SPARCENESS)
-                        //                		currAlpha = Math.max(1, currAlpha/componentSpacing);
-
                         // Batch elimination, all the component with support less than
                         // currAlpha will be eliminated altogether
                         // Risk: all the components might be eliminated pre-maturely
@@ -5189,80 +5188,59 @@ public class KPPMixture extends MultiConditionFeatureFinder {
                         // 		 when pi[j] is too small (too many components)
                         // 		 That is the reason of having the annealing cycles.
                         effectiveAlpha = currAlpha;
-                        for(int j:nzComps){
-                            double r_sum=0;
-                            for(int c=0; c<numConditions; c++){
-                                int[] baseIdx = c2b[c][j];
-                                for(int i=0;i<baseIdx.length;i++)
-                                    r_sum += r[c][j][i]*counts[c][baseIdx[i]];
-                            }
+                        for(int jnz=0;jnz<nzCount;jnz++){
+                        	int j = nzComps[jnz];
+                            double r_sum=resp.sum(j, counts, 0, numConditions);
 
                             // component elimination
                             pi[j]=Math.max(0,r_sum-currAlpha+pos_alpha[j]);
 
                             // if component prob becomes 0, clear responsibility
-                            if (pi[j]==0){
-                                for(int c=0; c<numConditions; c++){
-                                    for(int i=0;i<c2b[c][j].length;i++)
-                                        r[c][j][i] = 0;
-                                }
-                            }
-	                	
+                            if (pi[j]==0)
+                            	resp.clear(j);
                         }
                     }else{ 	//batch_elimination is false
                         // eliminate only the worst cases
                         // redistribute to boost neighbor component by next round of EM
                         // in this case, we do not need annealing schedule for alpha
-            		
-                        double r_sum[]=new double[nzComps.size()];
-                        for(int jnz=0;jnz<r_sum.length;jnz++){
-                            for(int c=0; c<numConditions; c++){
-                                int[] baseIdx = c2b[c][nzComps.get(jnz)];
-                                for(int i=0;i<baseIdx.length;i++)
-                                    r_sum[jnz] += r[c][nzComps.get(jnz)][i]*counts[c][baseIdx[i]];
-                            }
-                            r_sum[jnz] += pos_alpha[nzComps.get(jnz)];	// adding positional prior as pseudo-count
+                        double[] r_sum = flat_r_sum;
+                        for(int jnz=0;jnz<nzCount;jnz++){
+                        	int j = nzComps[jnz];
+                        	r_sum[jnz] = resp.sum(j, counts, 0, numConditions) + pos_alpha[j];	// adding positional prior as pseudo-count
                         }
                         if (gentleCounts>=config.gentle_elimination_iterations && currAlpha<alpha )
                             currAlpha=Math.min(alpha, currAlpha*2);
             		
                         // find the worst components
-                        Pair<Double, TreeSet<Integer>> worst=null;	// worst components
+                        double worst;
                         if ( (!minElimination) && (componentSpacing!=1))
-                            worst = findSmallestCases(r_sum, currAlpha);
+                            worst = findSmallestCasesFlat(r_sum, nzCount, currAlpha, flat_worst);
                         else
-                            worst = StatUtil.findMin(r_sum);
-                        if (worst.car() > currAlpha){
+                            worst = findMinFlat(r_sum, nzCount, flat_worst);
+                        if (worst > currAlpha){
                             // no component to be eliminated, update pi(j)
-                            for(int jnz=0;jnz<r_sum.length;jnz++)
-                                pi[nzComps.get(jnz)]=r_sum[jnz]-currAlpha;	// not normailzed yet
+                            for(int jnz=0;jnz<nzCount;jnz++)
+                                pi[nzComps[jnz]]=r_sum[jnz]-currAlpha;	// not normailzed yet
                             // stop Smallest cases elimination, only eliminate min from now on
                             minElimination = true;
                             gentleCounts ++;
                             effectiveAlpha = currAlpha;
-                            //                     	System.out.println(t+":\t"+currAlpha+"\t iterating");
                         }else{
                             // eliminate worst case components, could be 1 or multiple components
                             // not apply alpha here, redistribute responsibilities in next E step
-                        	for(int jnz=0;jnz<r_sum.length;jnz++){
-	                            if (worst.cdr().contains(jnz)){
-	                                pi[nzComps.get(jnz)]=0;                        	
-	                                // clear responsibility
-	                                for(int c=0; c<numConditions; c++){
-	                                    for(int i=0; i<c2b[c][nzComps.get(jnz)].length;i++)
-	                                        r[c][nzComps.get(jnz)][i] = 0;
-	                                }
+                        	for(int jnz=0;jnz<nzCount;jnz++){
+	                            if (flat_worst[jnz]){
+	                                pi[nzComps[jnz]]=0;                        	
+	                                resp.clear(nzComps[jnz]);
 	                            }
 	                            else
-	                            	pi[nzComps.get(jnz)]=r_sum[jnz];	// not normailzed, not apply alpha
+	                            	pi[nzComps[jnz]]=r_sum[jnz];	// not normailzed, not apply alpha
                         	}
-                        	effectiveAlpha = worst.car();
+                        	effectiveAlpha = worst;
                             // keep iterating on this Alpha value, until converge, then we raise it up to eliminate next one
                             // give EM some time to stabilize before eliminating the next components
-                            //                    	System.out.println(t+":\t"+currAlpha+"\t elimination");
-                            currAlpha = Math.max(worst.car(), alpha/config.gentle_elimination_factor/2);
+                            currAlpha = Math.max(worst, alpha/config.gentle_elimination_factor/2);
                             gentleCounts = 0;
-                            //                    	currAlpha = 0;
                         }
                     }
                 }
@@ -5273,17 +5251,13 @@ public class KPPMixture extends MultiConditionFeatureFinder {
                 		for(int i=0;i<r_bg[c].length;i++)
                 			r_bg_sum += r_bg[c][i]*counts[c][i];
                 	}
-//                	pi_bg = r_bg_sum;
                 	pi_bg = r_bg_sum-effectiveAlpha;
                 	if (pi_bg<0)
                 		pi_bg = 0;
                 }
-//                if (config.print_PI)
-//                	System.out.println(t+"Resp\t"+CommonUtils.arrayToString(pi, "%.4f")+
-//                			(model_noise?String.format("\t%.4f",pi_bg):""));                
                 // normalize pi
                 double totalPi=0;
-                for(int j=0;j<pi.length;j++){
+                for(int j=0;j<numComp;j++){
                     if (pi[j]!=0){
                         totalPi+=pi[j];
                     }
@@ -5292,44 +5266,40 @@ public class KPPMixture extends MultiConditionFeatureFinder {
                 	totalPi+=pi_bg;
                 }
                 if (totalPi!=0){
-                    for(int j:nzComps){
-                        pi[j]=pi[j]/totalPi;
+                    for(int jnz=0;jnz<nzCount;jnz++){
+                        pi[nzComps[jnz]]/=totalPi;
                     }                
                     if (model_noise && pi_bg!=0){
                     	pi_bg/=totalPi;
                     }
-
                 }
                 // EM speed up, eliminate components with probability less than initial avg prob.
                 // Only do this for coase spacing, which has more components
-                
                 if (t<=config.ML_ITER && componentSpacing!=1 && config.ML_speedup){
                 	boolean eliminated = false;
-                	for (int j:nzComps){
+                	for(int jnz=0;jnz<nzCount;jnz++){
+                		int j = nzComps[jnz];
                 		if (pi[j]<minProb && pos_alpha[j]==0){
                 			// eliminate component, clear responsibility
                 			pi[j]=0;
                 			eliminated = true;
-                			for(int c=0; c<numConditions; c++){
-                                for(int i=0; i<c2b[c][j].length;i++)
-                                    r[c][j][i] = 0;
-                            }
+                			resp.clear(j);
                 		}
                 	}
                 	if (eliminated){
 	                	 // normalize pi here again
 	                    totalPi=0;
-	                    for(int j:nzComps){
-	                        if (pi[j]!=0){
-	                            totalPi+=pi[j];
+	                    for(int jnz=0;jnz<nzCount;jnz++){
+	                        if (pi[nzComps[jnz]]!=0){
+	                            totalPi+=pi[nzComps[jnz]];
 	                        }
 	                    }      
 	                    if (model_noise){
 	                    	totalPi+=pi_bg;
 	                    }       	
 	                    if (totalPi!=0){
-	                        for(int j:nzComps){
-	                            pi[j]=pi[j]/totalPi;
+	                        for(int jnz=0;jnz<nzCount;jnz++){
+	                            pi[nzComps[jnz]]/=totalPi;
 	                        }
 		                    if (model_noise){
 		                    	pi_bg/=totalPi;
@@ -5342,17 +5312,16 @@ public class KPPMixture extends MultiConditionFeatureFinder {
                 	}
                 }
                 
-                // update component count
-                nzComps.clear();
-                for(int j=0;j<pi.length;j++){
-                    if (pi[j]!=0){
-                        nzComps.add(j);
-                    }
+                // update component count, compact the non-zero component index
+                int nz = 0;
+                for(int jnz=0;jnz<nzCount;jnz++){
+                    if (pi[nzComps[jnz]]!=0)
+                        nzComps[nz++] = nzComps[jnz];
                 }
-                nonZeroComponentNum = nzComps.size();
+                nzCount = nz;
+                nonZeroComponentNum = nzCount;
                 if (nonZeroComponentNum==0)
                 	break;
-//                    return new Pair<double[][][], Double>(r, pi_bg);
                 
                 if (config.print_PI)
                 	System.out.println(t+"\t"+CommonUtils.arrayToString(pi, "%.4f")+
@@ -5360,14 +5329,11 @@ public class KPPMixture extends MultiConditionFeatureFinder {
 
                 //Beta parameters
                 if(numConditions>1){
-                    for(int j:nzComps){
+                    for(int jnz=0;jnz<nzCount;jnz++){
+                    	int j = nzComps[jnz];
                         double b_sum=0;
                         for(int c=0; c<numConditions; c++){
-                            double sum_i=0;		// sum over i
-                            int[] baseIdx = c2b[c][j];
-                            for(int i=0;i<baseIdx.length;i++)
-                                sum_i += r[c][j][i]*counts[c][baseIdx[i]];	
-
+                            double sum_i=resp.sum(j, counts, c, c+1);		// sum over i
                             b[c][j]=sum_i;
                             b_sum+=sum_i;
                         }
@@ -5400,12 +5366,11 @@ public class KPPMixture extends MultiConditionFeatureFinder {
                 }
 
                 //Semi-E-step:Calculate next un-normalized responsibilities
-                for(int j:nzComps){
-                    for(int c=0; c<numConditions; c++){
-                        int[] baseIdx = c2b[c][j];
-                        for(int i=0;i<baseIdx.length;i++)
-                            r[c][j][i] = pi[j]*b[c][j]*h[c][j][i];
-                    }
+                for(int c=0; c<numConditions; c++){
+	                for(int jnz=0;jnz<nzCount;jnz++){
+	                	int j = nzComps[jnz];
+	                	resp.update(c, j, pi[j]*b[c][j]);
+	                }
                 }
                 if (model_noise && pi_bg!=0){
 	            	for(int c=0; c<numConditions; c++){
@@ -5420,48 +5385,40 @@ public class KPPMixture extends MultiConditionFeatureFinder {
                 double baselineProb = Math.min(model.probability(model.getMax()),
                                          model.probability(model.getMin()));
                 for(int c=0; c<numConditions; c++){
-                    for(int i=0;i<counts[c].length;i++){
-                        // for each read, each event will give a conditional prob or bg prob
-                        double j_sum=0;
-                        for(int j:nzComps){
-                            boolean found = false;
-                            for (int ii=0;ii<c2b[c][j].length;ii++)
-                                if (i==c2b[c][j][ii] ){
-                                    if (r[c][j][ii]!=0){
-                                        j_sum += r[c][j][ii];
-                                        found = true;
-                                        break;
-                                    }
-                                }
-                            if (!found)
-                                j_sum += pi[j]*b[c][j]*baselineProb;
-                        }
+                	int numBases = counts[c].length;
+                	// for each read, each event will give a conditional prob or bg prob
+                	double[] j_sum = flat_totalResp;
+                	for(int i=0;i<numBases;i++)
+                		j_sum[i] = 0;
+                	for(int jnz=0;jnz<nzCount;jnz++){
+                		int j = nzComps[jnz];
+                		resp.addLikelihood(c, j, numBases, pi[j]*b[c][j]*baselineProb, j_sum);
+                	}
+                    for(int i=0;i<numBases;i++){
                         if (model_noise && pi_bg!=0){
-                        	j_sum += r_bg[c][i];
+                        	j_sum[i] += r_bg[c][i];
                         }
-                        if (j_sum!=0)
-                            LL += Math.log(j_sum)*counts[c][i];
+                        if (j_sum[i]!=0)
+                            LL += Math.log(j_sum[i])*counts[c][i];
                     }
                 }
-//                if (t==31)
-//                	t=t;
                 // log prior
                 double LP=0;
-                for(int j:nzComps)
+                for(int jnz=0;jnz<nzCount;jnz++){
+                	int j = nzComps[jnz];
                     if (pi[j]!=0)
                         LP+=(pos_alpha[j]-currAlpha)*Math.log(pi[j]);		// positional prior and sparse prior
+                }
                 //add sparse prior for noise component
                 if (model_noise && pi_bg!=0){
                 	LP += -effectiveAlpha * Math.log(pi_bg);
                 }
                 LAP = LL+LP;
 
-                //			System.out.println("EM: "+t+"\t"+currAlpha+"\t"+LAP+"\t"+lastLAP+"\t("+nzComps.size()+" non-zero components).");
                 if (t<2 || Math.abs(LAP-lastLAP)>constants.EM_CONVERGENCE){
                     continue;
                 }
                 else{
-                    //				System.out.println("Converged\t"+currAlpha);
                     // if converge on smallest alpha, raise one level
                     if (currAlpha<alpha/config.gentle_elimination_factor){
                         currAlpha = alpha/config.gentle_elimination_factor;
@@ -5470,7 +5427,6 @@ public class KPPMixture extends MultiConditionFeatureFinder {
                     // if converge on a smaller alpha value
                     if (currAlpha<alpha){
                         currAlpha = alpha;		// raise alpha, it may come down again after eliminating the next comp
-                        //					System.out.println(t+"::\t"+currAlpha);
                         continue;
                     }
                     // else: converge on full alpha value
@@ -5480,14 +5436,7 @@ public class KPPMixture extends MultiConditionFeatureFinder {
                         EM_State state = new EM_State(numConditions);
                         state.LAP = LAP;		// LAP for penalized likelihood
                         state.numComponent = nonZeroComponentNum;
-                        for (int c=0;c<numConditions;c++){
-                            double[][]rc = r[c];
-                            double[][]copy = new double[rc.length][];
-                            for (int j=0;j<rc.length;j++){
-                                copy[j] = rc[j].clone();
-                            }
-                            state.resp[c]= copy;
-                        }
+                        resp.save(state);
                         for (int c=0;c<numConditions;c++){
                             state.beta[c]=b[c].clone();
                         }
@@ -5512,8 +5461,6 @@ public class KPPMixture extends MultiConditionFeatureFinder {
                 }
             } //LOOP: Run EM while not converged
 
-            //		System.out.println("numIters\t" + t + "\t MLIters\t" + config.ML_ITER + "\t annealIters\t" + constants.ANNEALING_ITER + "\tmaxIters\t" + constants.MAX_EM_ITER);
-
             if (componentSpacing==1 && config.do_model_selection && models.size()>=1 && (!constants.BATCH_ELIMINATION)){
                 // BIC model selection to decide which solution is better
                 // 3. find best solution
@@ -5526,80 +5473,373 @@ public class KPPMixture extends MultiConditionFeatureFinder {
                 double bestBIC = models.get(0).BIC(totalBaseCount, hasPP);
                 for (int i=1;i<models.size();i++){
                     double bic = models.get(i).BIC(totalBaseCount, hasPP);
-//                   System.out.println(String.format("%.3f\t%.3f\t", bestBIC, bic)+models.get(i).toString());
                     if (bestBIC <= bic){
                         best = i;
                         bestBIC = bic;
                     }
                 }
                 // copy the best model state back to memory
+                // beta and the noise responsibilities are not restored, they are not used after this point
                 EM_State bestModel = models.get(best);
-//                r=new double[numConditions][][];
-                for (int c=0;c<numConditions; c++){
-                    r[c]=bestModel.resp[c];
-                }
-                b=new double[numConditions][];
-                for (int c=0;c<numConditions; c++){
-                    b[c] = bestModel.beta[c];
-                }
-                nzComps.clear();
-                for (int j=0;j<pi.length;j++){
+                resp.restore(bestModel);
+                nzCount = 0;
+                for (int j=0;j<numComp;j++){
                     pi[j] = bestModel.pi[j];
                     if (pi[j]!=0)
-                        nzComps.add(j);
-                    //				System.out.print(String.format("%.2f ", pi[j]));
+                        nzComps[nzCount++] = j;
                 }
-                nonZeroComponentNum = nzComps.size();
+                nonZeroComponentNum = nzCount;
                 if (model_noise){
-                	for (int c=0;c<numConditions;c++){
-                		r_bg[c]=bestModel.resp_bg[c];
-                	}
-                    b_bg = bestModel.beta_bg;
                     pi_bg = bestModel.pi_bg;
                 }
-                //			System.out.println();
             }
             
-            // normalize responsibilities here
+            // normalize responsibilities here, with all real components only
             for(int c=0; c<numConditions; c++){
+            	resp.normalize(c, counts[c].length, nzComps, nzCount, null);
+            }
+            resp.finish();
+
+            log(4, method+": "+"\tt="+t+"\t"+
+                        String.format("%.6f",LAP)+"\t("+nonZeroComponentNum+" events)");
+
+            return new Pair<double[][][], Double>(r, pi_bg);
+        }
+        
+        /**
+         * The responsibilities of the components for the bases, as EM_MAP() updates them. 
+         * The implementations only differ in how the responsibilities are stored, 
+         * and do the arithmetic in the same order.
+         */
+        private abstract class Responsibilities {
+        	/** multiplies all the responsibilities by f */
+        	abstract void scale(double f);
+        	/**
+        	 * Normalizes the responsibilities of condition c by the per base total responsibility.
+        	 * @param r_bg_c background responsibility to include in the total, and to normalize, or null
+        	 */
+        	abstract void normalize(int c, int numBases, int[] nzComps, int nzCount, double[] r_bg_c);
+        	/** sum of read counts weighted by the responsibilities of component j, over conditions [fromCond, toCond) */
+        	abstract double sum(int j, double[][] counts, int fromCond, int toCond);
+        	abstract void clear(int j);
+        	/** sets the responsibilities of component j in condition c to pb times the H function */
+        	abstract void update(int c, int j, double pb);
+        	/** 
+        	 * adds the responsibility of component j to the likelihood of each base of condition c, 
+        	 * or baseline for the bases where the responsibility is zero or missing
+        	 */
+        	abstract void addLikelihood(int c, int j, int numBases, double baseline, double[] j_sum);
+        	abstract void save(EM_State state);
+        	abstract void restore(EM_State state);
+        	/** writes the responsibilities back to the arrays of the caller */
+        	void finish(){}
+        }
+        
+        /** The responsibilities in the <tt>r[cond][comp][i]</tt> arrays of the caller, updated in place */
+        private class NestedResponsibilities extends Responsibilities {
+        	final double[][][] r, h;
+        	final int[][][] c2b;
+        	
+        	NestedResponsibilities(double[][][] r, double[][][] h, int[][][] c2b){
+        		this.r = r;
+        		this.h = h;
+        		this.c2b = c2b;
+        	}
+        	void scale(double f){
+            	for(int c=0; c<numConditions; c++){
+            		for (int j=0;j<r[c].length;j++){
+                        for(int i=0;i<c2b[c][j].length;i++)
+                        	r[c][j][i] *= f;
+                    }
+            	}
+        	}
+        	void normalize(int c, int numBases, int[] nzComps, int nzCount, double[] r_bg_c){
                 double[][] rc = r[c];
-                int numBases = counts[c].length;
-                double totalResp[] = new double[numBases];
-                // init
-                for(int i=0;i<numBases;i++){
+                double[] totalResp = flat_totalResp;
+                for(int i=0;i<numBases;i++)
                     totalResp[i] = 0;
-                }
-                // sum                
-                for(int j:nzComps){
-                    int[] baseIdx = c2b[c][j];
+                // sum
+                for(int jnz=0;jnz<nzCount;jnz++){
+                    int[] baseIdx = c2b[c][nzComps[jnz]];
+                    double[] rj = rc[nzComps[jnz]];
                     for(int i=0;i<baseIdx.length;i++)
-                        totalResp[baseIdx[i]] += rc[j][i];
+                        totalResp[baseIdx[i]] += rj[i];
                 }
-//                if (model_noise){			// Only normalize with all real components
-//                    for(int i=0;i<numBases;i++){
-//                    	totalResp[i] += r_bg[c][i];
-//                    }
-//            	}
-                
+                if (r_bg_c!=null){
+                    for(int i=0;i<numBases;i++)
+                    	totalResp[i] += r_bg_c[i];
+            	}
                 // normalize
-                for(int j:nzComps){
-                    int[] baseIdx = c2b[c][j];
+                for(int jnz=0;jnz<nzCount;jnz++){
+                    int[] baseIdx = c2b[c][nzComps[jnz]];
+                    double[] rj = rc[nzComps[jnz]];
                     for(int i=0;i<baseIdx.length;i++)
                         if (totalResp[baseIdx[i]]>0)
-                            rc[j][i] = rc[j][i]/totalResp[baseIdx[i]];
+                            rj[i] = rj[i]/totalResp[baseIdx[i]];
                 }
-//                if (model_noise){
-//                    for(int i=0;i<numBases;i++){
-//                    	r_bg[c][i] = r_bg[c][i]/totalResp[i];
-//                    }
-//            	}
-            }
-
-            log(4, "EM_MAP(): "+"\tt="+t+"\t"+
-                        String.format("%.6f",LAP)+"\t("+(int)nonZeroComponentNum+" events)");
+                if (r_bg_c!=null){
+                    for(int i=0;i<numBases;i++)
+                    	r_bg_c[i] = r_bg_c[i]/totalResp[i];
+            	}
+        	}
+        	double sum(int j, double[][] counts, int fromCond, int toCond){
+                double r_sum=0;
+                for(int c=fromCond; c<toCond; c++){
+                    int[] baseIdx = c2b[c][j];
+                    for(int i=0;i<baseIdx.length;i++)
+                        r_sum += r[c][j][i]*counts[c][baseIdx[i]];
+                }
+                return r_sum;
+        	}
+        	void clear(int j){
+                for(int c=0; c<numConditions; c++)
+                	Arrays.fill(r[c][j], 0);
+        	}
+        	void update(int c, int j, double pb){
+        		double[] rj = r[c][j];
+        		double[] hj = h[c][j];
+        		for(int i=0;i<rj.length;i++)
+        			rj[i] = pb*hj[i];
+        	}
+        	// the c2b index of each component is sorted by base
+        	void addLikelihood(int c, int j, int numBases, double baseline, double[] j_sum){
+        		int[] baseIdx = c2b[c][j];
+        		double[] rj = r[c][j];
+        		int ii = 0;
+        		for(int i=0;i<numBases;i++){
+        			if (ii<baseIdx.length && baseIdx[ii]==i){
+        				double rv = rj[ii++];
+        				j_sum[i] += rv!=0 ? rv : baseline;
+        			}
+        			else
+        				j_sum[i] += baseline;
+        		}
+        	}
+        	void save(EM_State state){
+                for (int c=0;c<numConditions;c++){
+                    double[][]rc = r[c];
+                    double[][]copy = new double[rc.length][];
+                    for (int j=0;j<rc.length;j++){
+                        copy[j] = rc[j].clone();
+                    }
+                    state.resp[c]= copy;
+                }
+        	}
+        	void restore(EM_State state){
+                for (int c=0;c<numConditions; c++){
+                    r[c]=state.resp[c];
+                }
+        	}
+        }
+        
+        /** 
+         * The responsibilities, H function and base index of each condition packed into one flat primitive 
+         * array (the per-thread flat_* buffers), copied back to <tt>r</tt> by finish()
+         */
+        private class FlatResponsibilities extends Responsibilities {
+        	final double[][][] r;
+        	final int numComp;
+        	
+        	FlatResponsibilities(double[][][] r, double[][][] h, int[][][] c2b, int numComp){
+        		this.r = r;
+        		this.numComp = numComp;
+            	if (flat_r.length!=numConditions){
+            		flat_r = new double[numConditions][0];
+            		flat_h = new double[numConditions][0];
+            		flat_base = new int[numConditions][0];
+            		flat_offset = new int[numConditions][0];
+            	}
+            	for(int c=0; c<numConditions; c++){
+            		if (flat_offset[c].length<numComp+1)
+            			flat_offset[c] = new int[numComp+1];
+            		int[] off = flat_offset[c];
+            		int size = 0;
+            		for (int j=0;j<numComp;j++){
+            			off[j] = size;
+            			size += c2b[c][j].length;
+            		}
+            		off[numComp] = size;
+            		if (flat_r[c].length<size){
+            			flat_r[c] = new double[size];
+            			flat_h[c] = new double[size];
+            			flat_base[c] = new int[size];
+            		}
+            		for (int j=0;j<numComp;j++){
+            			int o = off[j];
+            			int len = c2b[c][j].length;
+            			System.arraycopy(r[c][j], 0, flat_r[c], o, len);
+            			System.arraycopy(h[c][j], 0, flat_h[c], o, len);
+            			System.arraycopy(c2b[c][j], 0, flat_base[c], o, len);
+            		}
+            	}
+        	}
+        	void scale(double f){
+            	for(int c=0; c<numConditions; c++){
+            		double[] rf = flat_r[c];
+            		int size = flat_offset[c][numComp];
+            		for(int p=0;p<size;p++)
+            			rf[p] *= f;
+            	}
+        	}
+        	void normalize(int c, int numBases, int[] nzComps, int nzCount, double[] r_bg_c){
+            	double[] rf = flat_r[c];
+            	int[] bf = flat_base[c];
+            	int[] off = flat_offset[c];
+            	double[] totalResp = flat_totalResp;
+            	for(int i=0;i<numBases;i++)
+            		totalResp[i] = 0;
+            	// sum
+            	for(int jnz=0;jnz<nzCount;jnz++){
+            		int j = nzComps[jnz];
+            		for(int p=off[j];p<off[j+1];p++)
+            			totalResp[bf[p]] += rf[p];
+            	}
+            	if (r_bg_c!=null){
+            		for(int i=0;i<numBases;i++)
+            			totalResp[i] += r_bg_c[i];
+            	}
+            	// normalize
+            	for(int jnz=0;jnz<nzCount;jnz++){
+            		int j = nzComps[jnz];
+            		for(int p=off[j];p<off[j+1];p++)
+            			if (totalResp[bf[p]]>0)
+            				rf[p] = rf[p]/totalResp[bf[p]];
+            	}
+            	if (r_bg_c!=null){
+            		for(int i=0;i<numBases;i++)
+            			r_bg_c[i] = r_bg_c[i]/totalResp[i];
+            	}
+        	}
+        	double sum(int j, double[][] counts, int fromCond, int toCond){
+            	double r_sum=0;
+            	for(int c=fromCond; c<toCond; c++){
+            		double[] rf = flat_r[c];
+            		int[] bf = flat_base[c];
+            		int[] off = flat_offset[c];
+            		double[] countc = counts[c];
+            		for(int p=off[j];p<off[j+1];p++)
+            			r_sum += rf[p]*countc[bf[p]];
+            	}
+            	return r_sum;
+        	}
+        	void clear(int j){
+            	for(int c=0; c<numConditions; c++){
+            		int[] off = flat_offset[c];
+            		Arrays.fill(flat_r[c], off[j], off[j+1], 0);
+            	}
+        	}
+        	void update(int c, int j, double pb){
+            	double[] rf = flat_r[c];
+            	double[] hf = flat_h[c];
+            	int[] off = flat_offset[c];
+            	for(int p=off[j];p<off[j+1];p++)
+            		rf[p] = pb*hf[p];
+        	}
+        	void addLikelihood(int c, int j, int numBases, double baseline, double[] j_sum){
+            	double[] rf = flat_r[c];
+            	int[] bf = flat_base[c];
+            	int p = flat_offset[c][j];
+            	int end = flat_offset[c][j+1];
+            	for(int i=0;i<numBases;i++){
+            		if (p<end && bf[p]==i){
+            			double rv = rf[p++];
+            			j_sum[i] += rv!=0 ? rv : baseline;
+            		}
+            		else
+            			j_sum[i] += baseline;
+            	}
+        	}
+        	void save(EM_State state){
+                state.resp_flat = new double[numConditions][];
+                for (int c=0;c<numConditions;c++){
+                    state.resp_flat[c]= Arrays.copyOf(flat_r[c], flat_offset[c][numComp]);
+                }
+        	}
+        	void restore(EM_State state){
+                for (int c=0;c<numConditions; c++){
+                	System.arraycopy(state.resp_flat[c], 0, flat_r[c], 0, state.resp_flat[c].length);
+                }
+        	}
+        	void finish(){
+                for(int c=0; c<numConditions; c++){
+                	double[] rf = flat_r[c];
+                	int[] off = flat_offset[c];
+                	for (int j=0;j<numComp;j++)
+                		System.arraycopy(rf, off[j], r[c][j], 0, off[j+1]-off[j]);
+                }
+        	}
+        }
+        
 
-            return new Pair<double[][][], Double>(r, pi_bg);
-        }//end of EM_MAP method
+        /**
+         * Primitive version of StatUtil.findMin() on the first n elements of x.
+         * @param isMin set to true for the indices of the minimum value
+         * @return the minimum value
+         */
+        private double findMinFlat(double[] x, int n, boolean[] isMin){
+        	double minimum = x[0];
+        	for (int i=1;i<n;i++)
+        		if (Double.compare(x[i], minimum)<0)
+        			minimum = x[i];
+        	for (int i=0;i<n;i++)
+        		isMin[i] = Double.compare(x[i], minimum)==0;
+        	return minimum;
+        }
+        
+        /**
+         * Return the bottom elements of the first n elements of x, so that their sum is less than maxSum.<br>
+         * alpha is passed in as maxSum, this essentially ensure that 
+         * we do not eliminate too much, but as quick as possible to reduce run time.<br>
+         * Note: x is left sorted (as StatUtil.findSort() does), EM_MAP() reads it afterwards.
+         * @param isCase set to true for the (original) indices of the smallest cases
+         * @return the largest of the smallest cases
+         */
+        private double findSmallestCasesFlat(double[] x, int n, double maxSum, boolean[] isCase){
+        	int[] idx = flat_sortIdx;
+        	for (int i=0;i<n;i++){
+        		idx[i] = i;
+        		isCase[i] = false;
+        	}
+        	stableSortIndex(x, idx, flat_sortTmp, 0, n);
+        	for (int i=0;i<n;i++)
+        		flat_sorted[i] = x[idx[i]];
+        	System.arraycopy(flat_sorted, 0, x, 0, n);
+        	double maxSmallest = 0; 
+        	double sum = 0;
+        	boolean found = false;
+        	for (int i=0;i<n;i++){
+        		sum += x[i];
+        		if (sum < maxSum){
+        			isCase[idx[i]] = true;
+        			found = true;
+        			maxSmallest = x[i];
+        		}
+        		else
+        			break;
+        	}
+        	if (!found)
+        		maxSmallest = x[0];
+        	return maxSmallest;
+        }
+        
+        /** stable merge sort of idx[from, to) by the values x[idx], in Double.compare() order */
+        private void stableSortIndex(double[] x, int[] idx, int[] tmp, int from, int to){
+        	if (to-from<2)
+        		return;
+        	int mid = (from+to)>>>1;
+        	stableSortIndex(x, idx, tmp, from, mid);
+        	stableSortIndex(x, idx, tmp, mid, to);
+        	if (Double.compare(x[idx[mid-1]], x[idx[mid]])<=0)
+        		return;
+        	System.arraycopy(idx, from, tmp, from, to-from);
+        	int i=from, j=mid, k=from;
+        	while (i<mid && j<to)
+        		idx[k++] = Double.compare(x[tmp[j]], x[tmp[i]])<0 ? tmp[j++] : tmp[i++];
+        	while (i<mid)
+        		idx[k++] = tmp[i++];
+        	while (j<to)
+        		idx[k++] = tmp[j++];
+        }
 
         //Update the resolution of the components
         //Add new components in around non-zero components
@@ -5720,28 +5960,32 @@ public class KPPMixture extends MultiConditionFeatureFinder {
         }
         
         // This is for beta EM method
-        private void setComponentResponsibilities(ArrayList<List<StrandedBase>> signals, 
+        private void setComponentResponsibilities(ArrayList<StrandedBaseView[]> signals, 
                                                   double[][][] responsibilities, int[][][] c2b) {
             // Set responsibility profile for each component (for kernel density and KL calculation)
             for(int j=0;j<components.size();j++){
                 BindingComponent comp = components.get(j);
                 int jr = comp.getOld_index();
                 for(int c=0; c<numConditions; c++){
-                    List<StrandedBase> bases = signals.get(c);
+                    StrandedBaseView[] views = signals.get(c);
                     double[][] rc = responsibilities[c];
 
                     // store binding profile (read responsibilities in c condition) of this component
                     double[] profile_plus = new double[modelWidth];
                     double[] profile_minus = new double[modelWidth];
                     for(int i=0;i<c2b[c][jr].length;i++){
-                        int base_idx = c2b[c][jr][i];
-                        StrandedBase base = bases.get(base_idx);
+                        // base index in the views of this condition, in the order of the views
+                        int k = c2b[c][jr][i];
+                        int vi = 0;
+                        while (k>=views[vi].size() && vi<views.length-1)
+                            k -= views[vi++].size();
+                        StrandedBaseView v = views[vi];
                         if (rc[jr][i]>0){
                             try{
-                                if (base.getStrand()=='+')
-                                    profile_plus[base.getCoordinate()-comp.getLocation().getLocation()-model.getMin()]=rc[jr][i]*base.getCount();
+                                if (v.getStrand()=='+')
+                                    profile_plus[v.getCoordinate(k)-comp.getLocation().getLocation()-model.getMin()]=rc[jr][i]*v.getCount(k);
                                 else
-                                    profile_minus[comp.getLocation().getLocation()-base.getCoordinate()-model.getMin()]=rc[jr][i]*base.getCount();
+                                    profile_minus[comp.getLocation().getLocation()-v.getCoordinate(k)-model.getMin()]=rc[jr][i]*v.getCount(k);
                             }
                             catch (Exception e){
                             }
@@ -5758,6 +6002,7 @@ public class KPPMixture extends MultiConditionFeatureFinder {
             double[][]beta;
             double[] pi;
             double[][] resp_bg;
+            double[][] resp_flat;		// packed responsibilities, used by EM_MAP_flat()
             double[]beta_bg;
             double pi_bg;
 
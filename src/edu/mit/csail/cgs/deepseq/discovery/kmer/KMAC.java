@@ -24,9 +24,19 @@ import java.util.Iterator;
 import java.util.Random;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.imageio.ImageIO;
 
+import cern.colt.list.IntArrayList;
+import cern.colt.list.LongArrayList;
+import cern.colt.map.OpenLongObjectHashMap;
+
 import edu.mit.csail.cgs.datasets.general.Region;
 import edu.mit.csail.cgs.datasets.motifs.WeightMatrix;
 import edu.mit.csail.cgs.datasets.species.Genome;
@@ -45,10 +55,12 @@ import edu.mit.csail.cgs.ewok.verbs.motifs.WeightMatrixScorer;
 import edu.mit.csail.cgs.tools.utils.Args;
 import edu.mit.csail.cgs.utils.Pair;
 import edu.mit.csail.cgs.utils.sequence.SequenceUtils;
+import edu.mit.csail.cgs.utils.stats.HyperGeometric;
 import edu.mit.csail.cgs.utils.stats.ROC;
 import edu.mit.csail.cgs.utils.stats.StatUtil;
 import edu.mit.csail.cgs.utils.stats.StatUtil.DensityClusteringPoint;
 import edu.mit.csail.cgs.utils.strings.multipattern.AhoCorasick;
+import edu.mit.csail.cgs.utils.strings.multipattern.DnaAhoCorasick;
 import edu.mit.csail.cgs.utils.strings.multipattern.SearchResult;
 import weka.classifiers.Classifier;
 import weka.classifiers.Evaluation;
@@ -143,21 +155,23 @@ public class KMAC {
 	private HashMap<Integer, HashMap<String, Kmer>> allKmerMap = null;
 	
 	/** AhoCorasick algorithm tree object for multi-pattern search<br>
-	 if run in parallel, this instance variable should be move to the thread local environment<br>
+	 not shared between threads, the concurrent k values each run on their own KMAC (see discoverMotifsConcurrently())<br>
 	 initAhoCorasick(): Pre-processing is to build the tree with all the patterns (kmers). <br>
 	 findKSMGroupHits(): individual search can be done after init*/
-	private AhoCorasick treeAhoCorasick;
-	/** For mapping k-mer string from AhoCorasick tree to Kmer Object<br>One string may map to multiple gapped k-mers */
-	private HashMap<String, Kmer[]> str2kmers = new HashMap<String, Kmer[]>();	
-	/** Paired with str2kmers HashMap, one string may have different offsets in different gapped k-mers <br>
+	private DnaAhoCorasick treeAhoCorasick;
+	/** For mapping the pattern ID of a k-mer string in the AhoCorasick tree to Kmer Objects<br>One string may map to multiple gapped k-mers */
+	private Kmer[][] id2kmers;	
+	/** Paired with id2kmers, one string may have different offsets in different gapped k-mers <br>
 	 * Here the offset is relative to the end of the k-mer, called EndOffset, 
 	 * which is computed in initAhoCorasick() method, then used in findKSMGroupHits() to compute the KSM match position */
-	private HashMap<String, int[]> str2kmerEndOffsets = new HashMap<String, int[]>();
+	private int[][] id2kmerEndOffsets;
 	
 	public boolean isInitialized(){ return engineInitialized;}
 	
 	private SequenceGenerator<Region> seqgen;
 	private long tic;	
+	/** number of threads to count the k-mers in generateKmers(), 0 to use config.maxThreads */
+	private int countThreads = 0;
 
 	/** motif clusters */
 	ArrayList<MotifCluster> clusters = new ArrayList<MotifCluster>();
@@ -350,6 +364,51 @@ public class KMAC {
 			initAhoCorasick(kmers);
 		}
 	}
+	
+	/**
+	 * Construct a worker that runs discoverMotifsForK() for one k value, in discoverMotifsConcurrently().<br>
+	 * The input sequences, weights and config are shared with the parent (read only), 
+	 * the Sequence objects, k-mer map and AhoCorasick tree are the worker's own.
+	 */
+	private KMAC(KMAC parent, int countThreads){
+		config = parent.config;
+		standalone = parent.standalone;
+		isDebugging = parent.isDebugging;
+		engineInitialized = parent.engineInitialized;
+		outName = parent.outName;
+		params = parent.params;
+		bg = parent.bg;
+		profile = parent.profile;
+		seqgen = parent.seqgen;
+		neg_region_map = parent.neg_region_map;
+		negRegionDistance = parent.negRegionDistance;
+		seqs = parent.seqs;
+		seq_weights = parent.seq_weights;
+		coefficients = parent.coefficients;
+		seqsNeg = parent.seqsNeg;
+		seqsNegList = parent.seqsNegList;
+		posSeqCount = parent.posSeqCount;
+		negSeqCount = parent.negSeqCount;
+		posNegSeqRatio = parent.posNegSeqRatio;
+		pseudoCountRatios = parent.pseudoCountRatios;	// each worker sets only its own k
+		this.countThreads = countThreads;
+		initSequenceLists();
+		allKmerMap = new HashMap<Integer, HashMap<String, Kmer>>();
+	}
+	
+	/** The clusters found by a worker keep a reference to it, drop what they do not use */
+	private void releaseWorkerState(){
+		allKmerMap = null;
+		treeAhoCorasick = null;
+		id2kmers = null;
+		id2kmerEndOffsets = null;
+		seqList = null;
+		seqListNeg = null;
+		posHitStrings = null;
+		negHitStrings = null;
+		posCoveredWidth = null;
+		negCoveredWidth = null;
+	}
 	/**
 	 * Set up the light weight genome cache. Only load the sequences for the specified regions.<br>
 	 * At the same time, retrieve negative sequences (for only once, no caching)
@@ -543,19 +602,7 @@ public class KMAC {
 			config.kmer_hgp = -1.3;
 		}
 		
-		/** Initialize the sequence objects */
-		seqList = new ArrayList<Sequence>();
-		for (int i=0;i<seqs.length;i++){
-			Sequence s = new Sequence(seqs[i], i);
-			seqList.add(s);
-		}
-		seqList.trimToSize();
-		seqListNeg = new ArrayList<Sequence>();
-		for (int i=0;i<seqsNegList.size();i++){
-			Sequence s = new Sequence(seqsNegList.get(i), i);
-			seqListNeg.add(s);
-		}
-		seqListNeg.trimToSize();
+		initSequenceLists();
 				
 		/**
 		 * For each k, generate exact k-mers and gapped kmers, density clustering, KMAC
@@ -564,199 +611,12 @@ public class KMAC {
 		this.pseudoCountRatios = new double[k_max+1];
 		
 		System.out.println(String.format("\nMotif discovery from k_min=%d to k_max=%d ...", k_min, k_max));
-		for (int k=k_min;k<=k_max;k++){
-			if (config.verbose>1)
-				System.out.println("\nmemory used = "+
-					(Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory())/1048576  +"M");
-			pseudoCountRatios[k] = Math.max((seqs[0].length()-k+1)*(config.strand_type!=1?2:1) / Math.pow(4, k), 0.005);
-			StringBuilder sb = new StringBuilder();
-			System.out.println("\n----------------------------------------------------------\nRunning k="+k+" ...\n");
-			Pair<ArrayList<Kmer>, ArrayList<Kmer>> pair = selectEnrichedKmers(k);
-			ArrayList<Kmer> allSignificantKmers = pair.car();
-			ArrayList<Kmer> kmers = pair.cdr();
-		
-			if (kmers.isEmpty()){
-				System.out.println("\nNo enriched k-mer!");
-				continue;
-			}
-		
-//			COMMENT block start, to SKIP kmac, only get k-mers
-
-			kmers.trimToSize();
-			Collections.sort(kmers);
-			
-			// setup the matrix form of gapped k-mer representation, for distance calculation
-			for (Kmer km:kmers){
-				km.setMatrix();
-			}
-			
-			System.out.println("\n------------------------- k = "+ k +" ----------------------------\n");
-			System.out.println("Total number of k-mers: n = "+kmers.size());
-
-			ArrayList<Kmer> centerKmers = new ArrayList<Kmer> ();
-			if (config.mtree==-1){
-				// printout m-tree performance information
-				System.gc();
-				long mem = (Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory())/1048576;
-				System.out.println("n^2 / 2 = "+kmers.size()*(kmers.size()-1)/2 + "\tmem="+mem+"M");
-				for (int d=3;d<=4;d++){
-					for (int c=8;c<=8;c+=2){
-//					for (int c=8;c<=20;c+=2){
-//					for (int c=5;c<=55;c+=10){
-						System.gc();
-						long tic=System.currentTimeMillis();
-						numDistCalcuation = 0;
-						System.out.print("d="+d+"\t c="+c+"\t");
-						MTree dataPoints = MTree.constructTree(kmers, c, config.strand_type==1);
-						System.out.print("n_tree="+numDistCalcuation+"\t");
-						centerKmers = densityClusteringWithMTree(kmers, dataPoints, d);
-						System.out.print("\ttime="+CommonUtils.timeElapsed(tic));
-						System.out.println("\tmem="+
-						((Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory())/1048576 - mem) +"M");					
-					}
-					System.out.println();
-				}
-				
-				// printout distance matrix performance information
-				System.gc();
-				long tic=System.currentTimeMillis();
-				float[][] distanceMatrix = computeWeightedDistanceMatrix2(kmers, config.print_dist_matrix);
-				centerKmers = densityClusteringWithDistMatrix(kmers, distanceMatrix, config.dc>0?config.dc:k/3.0);
-				System.out.print("Distance Matrix: time="+CommonUtils.timeElapsed(tic));
-				System.out.println("\tmem="+
-				((Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory())/1048576 - mem) +"M");					
-				distanceMatrix = null;
-				continue;
-			}
-			else if (config.mtree!=0 || kmers.size()>10000){		// Explicitly setting capacity or better for mtree
-				long tic=System.currentTimeMillis();
-				int capacity = 0;
-				if (config.mtree==0)
-					capacity = kmers.size()/10000 + 8;
-				else
-					capacity = config.mtree;
-				if (config.verbose>1)
-					System.out.println("Construct m-tree for k-mers, node capacity = "+capacity);		
-				
-				MTree dataPoints = MTree.constructTree(kmers, capacity, config.strand_type==1);
-				centerKmers = densityClusteringWithMTree(kmers, dataPoints, config.dc>0?config.dc:k/3.0);
-				dataPoints = null;
-				System.gc();
-				if (config.verbose>1)
-					System.out.println("Density clustering: " + CommonUtils.timeElapsed(tic));
-			}
-			else{
-				long tic=System.currentTimeMillis();
-				if (config.verbose>1)
-					System.out.print("Computing k-mer pairwise distance matrix ...");
-				
-				float[][] distanceMatrix = computeWeightedDistanceMatrix2(kmers, config.print_dist_matrix);
-				
-				if (config.verbose>1)
-					System.out.println(" OK: "+CommonUtils.timeElapsed(tic));
-				
-				centerKmers = densityClusteringWithDistMatrix(kmers, distanceMatrix, config.dc>0?config.dc:k/3.0);
-				distanceMatrix = null;
-				System.gc();
-				if (config.verbose>1)
-					System.out.println("Density clustering: " + CommonUtils.timeElapsed(tic));
-			}
-			
-			// add in the designated seed k-mer
-			if (designatedSeedKmer!=null && designatedSeedKmer.k==k){
-				if (!centerKmers.contains(designatedSeedKmer)){
-					ArrayList<Kmer> tmp = new ArrayList<Kmer>();
-					tmp.add(designatedSeedKmer);
-					tmp.addAll(centerKmers);
-					centerKmers = tmp;
-					centerKmers.trimToSize();
-				}
-			}
-			
-			// use all the significant k-mers to get center-kmer neighbors
-			ArrayList<ArrayList<Kmer>> neighbourList = new ArrayList<ArrayList<Kmer>>();  // centerKmers and neighbourList are matched lists
-			double cutoff = config.kmer_deviation_factor*k;	// maximum kmer distance to be considered as neighbors
-			
-	        for (int j=0;j<centerKmers.size();j++){	
-		        	Kmer seedKmer = centerKmers.get(j);
-					
-				ArrayList<Kmer> tmp = new ArrayList<Kmer>();
-				for (Kmer km: allSignificantKmers){		// get all the k-mers
-					if (KMAC.editDistance(seedKmer, km, config.strand_type==1) <= cutoff)
-						tmp.add(km);
-				}
-				neighbourList.add(tmp);					
-	        }
-	        
-			// clear matrix, it is only used for calculating distance
-			for (Kmer km:allSignificantKmers){
-				km.clearMatrix();
-			}
-			kmers = null;
-			allSignificantKmers = null;
-			pair = null;
-			System.gc();
-			System.out.println();
-			
-	        ArrayList<MotifCluster> tmp = new ArrayList<MotifCluster>();
-	        for (int j=0;j<centerKmers.size();j++){	
-
-	        	Kmer seedKmer = centerKmers.get(j);
-				ArrayList<Kmer> neighbours = neighbourList.get(j);
-				neighbourList.set(j, null);	// clean up
-				System.gc();
-				if (config.verbose>1)
-	    			System.out.println("\n------------------------------------------------------------");
-				System.out.println("Align and cluster "+ neighbours.size() +" k-mers with seed "+ seedKmer.kmerString +",   \t#"+j);
-	    		if (config.verbose>1)
-	    			System.out.println("\nmemory used = "+
-						(Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory())/1048576  +"M");		
-
-	        	MotifCluster c = KmerMotifAlignmentClustering(seqList, neighbours, seedKmer, k);
-
-	        	if (c!=null && c.wm!=null){
-	        		if (seedKmer == designatedSeedKmer)
-	        			c.isDesignated = true;
-	        		tmp.add(c);
-		        	if (config.kg_hit_adjust_type==2)
-		        		c.setCoveredWidth(posCoveredWidth, negCoveredWidth);	// save a copy in the cluster
-		        	if (config.kg_hit_adjust_type==1)
-		        		c.setHitStrings(posHitStrings, negHitStrings);
-	        	}
-	        	if (tmp.size()==config.k_top)
-	        		break;
-	        }
-			sortMotifClusters(tmp, true);
-			
-//			
-//			COMMENT block to SKIP kmac, only get k-mers, for testing density clustering.
-			
-			// print all the motifs for k, before merging
-			sb.append("\n");
-			printMotifClusters(tmp, sb);
-			if (config.verbose>1)
-				System.out.println(sb.toString());
-			
-			if (config.verbose>1)
-				System.out.println("\nmemory used = "+
-					(Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory())/1048576  +"M");		
-
-			if (tmp.size()>1){
-				System.out.println("\nMerging redundant motifs ...");
-				boolean[][] checked = new boolean[tmp.size()][tmp.size()];	// a table indicating whether a pair has been checked
-				
-				tic = System.currentTimeMillis();
-				mergeOverlapPwmMotifs (tmp, seqList, checked, config.use_ksm, 0);
-				sb.append("After merging:\n");
-				printMotifClusters(tmp, sb);
-			}
-			
-			// print motifs for k, after merging
-			System.out.println("\n------------------------- k = "+ k +" ----------------------------");
-			System.out.println(sb.toString());
-			
-			allClusters.addAll(tmp);
-		} // for each k
+		if (config.k_threads>1 && k_max>k_min)
+			allClusters = discoverMotifsConcurrently(k_min, k_max);
+		else{
+			for (int k=k_min;k<=k_max;k++)
+				allClusters.addAll(discoverMotifsForK(k));
+		}
 		
 //		allK_allPatterns.clear(); allK_allPatterns = null;
 		allKmerMap.clear();	allKmerMap = null;
@@ -1066,6 +926,259 @@ public class KMAC {
 		computeMotifDistanceDistribution(outName);
 		outputClusters(eventCounts);
 	}
+
+	/**
+	 * Generate the exact and gapped k-mers for k, density clustering, KMAC<br>
+	 * @return the motif clusters of k, after merging the redundant motifs
+	 */
+	private ArrayList<MotifCluster> discoverMotifsForK(int k){
+		if (config.verbose>1)
+			System.out.println("\nmemory used = "+
+				(Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory())/1048576  +"M");
+		pseudoCountRatios[k] = Math.max((seqs[0].length()-k+1)*(config.strand_type!=1?2:1) / Math.pow(4, k), 0.005);
+		StringBuilder sb = new StringBuilder();
+		System.out.println("\n----------------------------------------------------------\nRunning k="+k+" ...\n");
+		Pair<ArrayList<Kmer>, ArrayList<Kmer>> pair = selectEnrichedKmers(k);
+		ArrayList<Kmer> allSignificantKmers = pair.car();
+		ArrayList<Kmer> kmers = pair.cdr();
+	
+		if (kmers.isEmpty()){
+			System.out.println("\nNo enriched k-mer!");
+			return new ArrayList<MotifCluster>();
+		}
+	
+//			COMMENT block start, to SKIP kmac, only get k-mers
+
+		kmers.trimToSize();
+		Collections.sort(kmers);
+		
+		// setup the matrix form of gapped k-mer representation, for distance calculation
+		for (Kmer km:kmers){
+			km.setMatrix();
+		}
+		
+		System.out.println("\n------------------------- k = "+ k +" ----------------------------\n");
+		System.out.println("Total number of k-mers: n = "+kmers.size());
+
+		ArrayList<Kmer> centerKmers = new ArrayList<Kmer> ();
+		if (config.mtree==-1){
+			// printout m-tree performance information
+			System.gc();
+			long mem = (Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory())/1048576;
+			System.out.println("n^2 / 2 = "+kmers.size()*(kmers.size()-1)/2 + "\tmem="+mem+"M");
+			for (int d=3;d<=4;d++){
+				for (int c=8;c<=8;c+=2){
+//					for (int c=8;c<=20;c+=2){
+//					for (int c=5;c<=55;c+=10){
+					System.gc();
+					long tic=System.currentTimeMillis();
+					numDistCalcuation.set(0);
+					System.out.print("d="+d+"\t c="+c+"\t");
+					MTree dataPoints = MTree.constructTree(kmers, c, config.strand_type==1);
+					System.out.print("n_tree="+numDistCalcuation.get()+"\t");
+					centerKmers = densityClusteringWithMTree(kmers, dataPoints, d);
+					System.out.print("\ttime="+CommonUtils.timeElapsed(tic));
+					System.out.println("\tmem="+
+					((Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory())/1048576 - mem) +"M");					
+				}
+				System.out.println();
+			}
+			
+			// printout distance matrix performance information
+			System.gc();
+			long tic=System.currentTimeMillis();
+			float[][] distanceMatrix = computeWeightedDistanceMatrix2(kmers, config.print_dist_matrix);
+			centerKmers = densityClusteringWithDistMatrix(kmers, distanceMatrix, config.dc>0?config.dc:k/3.0);
+			System.out.print("Distance Matrix: time="+CommonUtils.timeElapsed(tic));
+			System.out.println("\tmem="+
+			((Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory())/1048576 - mem) +"M");					
+			distanceMatrix = null;
+			return new ArrayList<MotifCluster>();
+		}
+		else if (config.mtree!=0 || kmers.size()>10000){		// Explicitly setting capacity or better for mtree
+			long tic=System.currentTimeMillis();
+			int capacity = 0;
+			if (config.mtree==0)
+				capacity = kmers.size()/10000 + 8;
+			else
+				capacity = config.mtree;
+			if (config.verbose>1)
+				System.out.println("Construct m-tree for k-mers, node capacity = "+capacity);		
+			
+			MTree dataPoints = MTree.constructTree(kmers, capacity, config.strand_type==1);
+			centerKmers = densityClusteringWithMTree(kmers, dataPoints, config.dc>0?config.dc:k/3.0);
+			dataPoints = null;
+			System.gc();
+			if (config.verbose>1)
+				System.out.println("Density clustering: " + CommonUtils.timeElapsed(tic));
+		}
+		else{
+			long tic=System.currentTimeMillis();
+			if (config.verbose>1)
+				System.out.print("Computing k-mer pairwise distance matrix ...");
+			
+			float[][] distanceMatrix = computeWeightedDistanceMatrix2(kmers, config.print_dist_matrix);
+			
+			if (config.verbose>1)
+				System.out.println(" OK: "+CommonUtils.timeElapsed(tic));
+			
+			centerKmers = densityClusteringWithDistMatrix(kmers, distanceMatrix, config.dc>0?config.dc:k/3.0);
+			distanceMatrix = null;
+			System.gc();
+			if (config.verbose>1)
+				System.out.println("Density clustering: " + CommonUtils.timeElapsed(tic));
+		}
+		
+		// add in the designated seed k-mer
+		if (designatedSeedKmer!=null && designatedSeedKmer.k==k){
+			if (!centerKmers.contains(designatedSeedKmer)){
+				ArrayList<Kmer> tmp = new ArrayList<Kmer>();
+				tmp.add(designatedSeedKmer);
+				tmp.addAll(centerKmers);
+				centerKmers = tmp;
+				centerKmers.trimToSize();
+			}
+		}
+		
+		// use all the significant k-mers to get center-kmer neighbors
+		ArrayList<ArrayList<Kmer>> neighbourList = new ArrayList<ArrayList<Kmer>>();  // centerKmers and neighbourList are matched lists
+		double cutoff = config.kmer_deviation_factor*k;	// maximum kmer distance to be considered as neighbors
+		
+        for (int j=0;j<centerKmers.size();j++){	
+	        	Kmer seedKmer = centerKmers.get(j);
+				
+			ArrayList<Kmer> tmp = new ArrayList<Kmer>();
+			for (Kmer km: allSignificantKmers){		// get all the k-mers
+				if (KMAC.editDistance(seedKmer, km, config.strand_type==1) <= cutoff)
+					tmp.add(km);
+			}
+			neighbourList.add(tmp);					
+        }
+        
+		// clear matrix, it is only used for calculating distance
+		for (Kmer km:allSignificantKmers){
+			km.clearMatrix();
+		}
+		kmers = null;
+		allSignificantKmers = null;
+		pair = null;
+		System.gc();
+		System.out.println();
+		
+        ArrayList<MotifCluster> tmp = new ArrayList<MotifCluster>();
+        for (int j=0;j<centerKmers.size();j++){	
+
+        	Kmer seedKmer = centerKmers.get(j);
+			ArrayList<Kmer> neighbours = neighbourList.get(j);
+			neighbourList.set(j, null);	// clean up
+			System.gc();
+			if (config.verbose>1)
+    			System.out.println("\n------------------------------------------------------------");
+			System.out.println("Align and cluster "+ neighbours.size() +" k-mers with seed "+ seedKmer.kmerString +",   \t#"+j);
+    		if (config.verbose>1)
+    			System.out.println("\nmemory used = "+
+					(Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory())/1048576  +"M");		
+
+        	MotifCluster c = KmerMotifAlignmentClustering(seqList, neighbours, seedKmer, k);
+
+        	if (c!=null && c.wm!=null){
+        		if (seedKmer == designatedSeedKmer)
+        			c.isDesignated = true;
+        		tmp.add(c);
+	        	if (config.kg_hit_adjust_type==2)
+	        		c.setCoveredWidth(posCoveredWidth, negCoveredWidth);	// save a copy in the cluster
+	        	if (config.kg_hit_adjust_type==1)
+	        		c.setHitStrings(posHitStrings, negHitStrings);
+        	}
+        	if (tmp.size()==config.k_top)
+        		break;
+        }
+		sortMotifClusters(tmp, true);
+		
+//			
+//			COMMENT block to SKIP kmac, only get k-mers, for testing density clustering.
+		
+		// print all the motifs for k, before merging
+		sb.append("\n");
+		printMotifClusters(tmp, sb);
+		if (config.verbose>1)
+			System.out.println(sb.toString());
+		
+		if (config.verbose>1)
+			System.out.println("\nmemory used = "+
+				(Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory())/1048576  +"M");		
+
+		if (tmp.size()>1){
+			System.out.println("\nMerging redundant motifs ...");
+			boolean[][] checked = new boolean[tmp.size()][tmp.size()];	// a table indicating whether a pair has been checked
+			
+			tic = System.currentTimeMillis();
+			mergeOverlapPwmMotifs (tmp, seqList, checked, config.use_ksm, 0);
+			sb.append("After merging:\n");
+			printMotifClusters(tmp, sb);
+		}
+		
+		// print motifs for k, after merging
+		System.out.println("\n------------------------- k = "+ k +" ----------------------------");
+		System.out.println(sb.toString());
+		
+		return tmp;
+	}
+	
+	/**
+	 * Run discoverMotifsForK() for the k values on config.k_threads threads.<br>
+	 * Each k runs on its own copy of this KMAC, so that the k-mer maps, the AhoCorasick tree and the sequence alignments are not shared. 
+	 * At most config.k_threads copies are alive at a time, to bound the memory.<br>
+	 * The clusters are collected in the order of k, as in the sequential loop, so the merging afterwards gives the same result.
+	 */
+	private ArrayList<MotifCluster> discoverMotifsConcurrently(int k_min, int k_max){
+		int numThreads = Math.min(config.k_threads, k_max-k_min+1);
+		final int countThreads = Math.max(1, config.maxThreads/numThreads);
+		System.out.println(String.format("Running %d k values concurrently ...", numThreads));
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		ArrayList<Future<ArrayList<MotifCluster>>> futures = new ArrayList<Future<ArrayList<MotifCluster>>>();
+		for (int k=k_min;k<=k_max;k++){
+			final int kk = k;
+			futures.add(pool.submit(new Callable<ArrayList<MotifCluster>>(){
+				public ArrayList<MotifCluster> call(){
+					KMAC worker = new KMAC(KMAC.this, countThreads);
+					ArrayList<MotifCluster> kClusters = worker.discoverMotifsForK(kk);
+					worker.releaseWorkerState();
+					return kClusters;
+				}
+			}));
+		}
+		pool.shutdown();
+		ArrayList<MotifCluster> allClusters = new ArrayList<MotifCluster>();
+		try{
+			for (Future<ArrayList<MotifCluster>> f: futures)
+				allClusters.addAll(f.get());
+		}
+		catch (InterruptedException e){
+			pool.shutdownNow();
+			throw new RuntimeException(e);
+		}
+		catch (ExecutionException e){
+			pool.shutdownNow();
+			throw new RuntimeException(e.getCause());
+		}
+		return allClusters;
+	}
+	
+	private void initSequenceLists(){
+		seqList = new ArrayList<Sequence>();
+		for (int i=0;i<seqs.length;i++){
+			Sequence s = new Sequence(seqs[i], i);
+			seqList.add(s);
+		}
+		seqList.trimToSize();
+		seqListNeg = new ArrayList<Sequence>();
+		for (int i=0;i<seqsNegList.size();i++){
+			Sequence s = new Sequence(seqsNegList.get(i), i);
+			seqListNeg.add(s);
+		}
+		seqListNeg.trimToSize();
+	}
 	
 	
 	/** 
@@ -1096,56 +1209,41 @@ public class KMAC {
 		/*******************************************************************
 		 * Scan the sequences to generate kmers
 		 ******************************************************************/
-		HashMap<String, HashSet<Integer>> kmerstr2seqs = new HashMap<String, HashSet<Integer>>();
-		for (int seqId=0;seqId<posSeqCount;seqId++){
-			// only count one direction, k-mer and its RC will be merged with all hits being added together
-			String seq = seqs[seqId];
-			int numPos = seq.length()-k+1;		// substring() is end exclusive
-			HashSet<String> uniqueKmers = new HashSet<String>();			// only count repeated kmer once in a sequence
-			for (int i=0;i<numPos;i++){
-				String kstring = seq.substring(i, i+k);
-				if (kstring.contains("N"))									// ignore 'N', converted from repeat when loading the sequences
-					continue;
-				uniqueKmers.add(kstring);
-			}
-			for (String s: uniqueKmers){
-				if (!kmerstr2seqs.containsKey(s)){
-					 kmerstr2seqs.put(s, new HashSet<Integer>());
-				}
-				kmerstr2seqs.get(s).add(seqId);
-			}
-		}
+		// only count one direction, k-mer and its RC will be merged with all hits being added together
+		// k-mers with 'N' (converted from repeat when loading the sequences) are ignored
+		KmerCounter counter = new KmerCounter(k, countThreads>0?countThreads:config.maxThreads);
+		OpenLongObjectHashMap code2seqs = counter.findHits(Arrays.asList(seqs).subList(0, posSeqCount), null, false);
 
 		// Merge kmer and its reverse compliment(RC)
 		// Remove low-count base k-mers
-		ArrayList<String> kmerStrings = new ArrayList<String>();
-		kmerStrings.addAll(kmerstr2seqs.keySet());
-		
-		// create kmers from its and RC's counts
 		if (config.strand_type != 1){		// if not single stranded
-			for (String key:kmerStrings){
-				if (!kmerstr2seqs.containsKey(key))		// this kmer has been removed, represented by RC
+			LongArrayList codes = code2seqs.keys();
+			for (int i=0;i<codes.size();i++){
+				long key = codes.getQuick(i);
+				if (!code2seqs.containsKey(key))		// this kmer has been removed, represented by RC
 					continue;
 				// consolidate kmer and its reverseComplment kmer, remove if count is not high enough
-				String key_rc = SequenceUtils.reverseComplement(key);				
-				if (!key_rc.equals(key)){	// if it is not reverse compliment itself
-					if (kmerstr2seqs.containsKey(key_rc)){
-						int kCount = kmerstr2seqs.get(key).size();
-						int rcCount = kmerstr2seqs.get(key_rc).size();
+				long key_rc = counter.reverseComplement(key);
+				if (key_rc!=key){	// if it is not reverse compliment itself
+					IntArrayList kHits = (IntArrayList) code2seqs.get(key);
+					IntArrayList rcHits = (IntArrayList) code2seqs.get(key_rc);
+					if (rcHits!=null){
+						int kCount = kHits.size();
+						int rcCount = rcHits.size();
 						// if k-mer hit is less than expected count, remove
 						if (kCount+rcCount < expectedBaseKmerCount){
-							kmerstr2seqs.remove(key);	
-							kmerstr2seqs.remove(key_rc);	
+							code2seqs.removeKey(key);	
+							code2seqs.removeKey(key_rc);	
 						}
 						else{
-							String winner = kCount>=rcCount?key:key_rc;
-							String loser = kCount>=rcCount?key_rc:key;
-							kmerstr2seqs.get(winner).addAll(kmerstr2seqs.get(loser));	// winner takes all
-							kmerstr2seqs.remove(loser);					// remove the loser kmer because it is represented by its RC
+							// the k-mer with more hits wins, the smaller code (string) on a tie
+							boolean kWins = kCount>rcCount || (kCount==rcCount && key<key_rc);
+							code2seqs.put(kWins?key:key_rc, mergeSorted(kHits, rcHits));	// winner takes all
+							code2seqs.removeKey(kWins?key_rc:key);		// remove the loser kmer because it is represented by its RC
 						}
 					}
-					else if (kmerstr2seqs.get(key).size()<expectedBaseKmerCount){
-						kmerstr2seqs.remove(key);						
+					else if (kHits.size()<expectedBaseKmerCount){
+						code2seqs.removeKey(key);						
 					}				
 				}
 			}
@@ -1153,7 +1251,7 @@ public class KMAC {
 		
 		if (config.verbose > 1)
 			System.out.println(String.format("k=%d, mapped %d base k-mers, min_base_kmer_Hit=%d, %s", k,
-				kmerstr2seqs.keySet().size(), expectedBaseKmerCount, CommonUtils.timeElapsed(tic)));
+				code2seqs.size(), expectedBaseKmerCount, CommonUtils.timeElapsed(tic)));
 
 		
 		/*****************************************************************
@@ -1162,58 +1260,32 @@ public class KMAC {
 		 *****************************************************************/
 		
 		tic = System.currentTimeMillis();
-		//Aho-Corasick for searching Kmers in negative sequences
-		//ahocorasick_java-1.1.tar.gz is an implementation of Aho-Corasick automata for Java. BSD license.
-		//from <http://hkn.eecs.berkeley.edu/~dyoo/java/index.html> 
-		AhoCorasick tmp = new AhoCorasick();
 		/** Base K-mer String to k-mer map */
 		HashMap<String, Kmer> bkMap = new HashMap<String, Kmer>();
-		for (String s:kmerstr2seqs.keySet()){	
-			Kmer kmer = new Kmer(s, kmerstr2seqs.get(s), seq_weights);		// create k-mers
+		OpenLongObjectHashMap code2kmer = new OpenLongObjectHashMap(code2seqs.size());
+		LongArrayList codes = code2seqs.keys();
+		for (int i=0;i<codes.size();i++){
+			long code = codes.getQuick(i);
+			Kmer kmer = new Kmer(counter.decode(code), toBitSet((IntArrayList) code2seqs.get(code)), seq_weights);		// create k-mers
 			bkMap.put(kmer.kmerString,kmer);
-			tmp.add(s.getBytes(), s);
-		}
-		kmerstr2seqs=null;	// clean up
-		System.gc();
-
-		tmp.prepare();
-		
-		// count hits in the negative sequences
-		HashMap<String, HashSet<Integer>> kmerstr2negSeqs = new HashMap<String, HashSet<Integer>>();
-		for (int negSeqId=0; negSeqId<negSeqCount;negSeqId++){
-			String seq = seqsNegList.get(negSeqId);
-			HashSet<Object> kmerHits = new HashSet<Object>();	// to ensure each sequence is only counted once for each kmer
-			Iterator searcher = tmp.search(seq.getBytes());
-			while (searcher.hasNext()) {
-				SearchResult result = (SearchResult) searcher.next();
-				kmerHits.addAll(result.getOutputs());
-			}
-			if (config.strand_type != 1){	// if not want single strand only 
-				String seq_rc = SequenceUtils.reverseComplement(seq);
-				searcher = tmp.search(seq_rc.getBytes());
-				while (searcher.hasNext()) {
-					SearchResult result = (SearchResult) searcher.next();
-					kmerHits.addAll(result.getOutputs());
-				}
-			}
-			for (Object o: kmerHits){
-				String ks = (String) o;
-				if (!kmerstr2negSeqs.containsKey(ks))					
-					kmerstr2negSeqs.put(ks, new HashSet<Integer>());
-				kmerstr2negSeqs.get(ks).add(negSeqId);
-			}
+			code2kmer.put(code, kmer);
 		}
+		code2seqs=null;	// clean up
+		
+		// count hits in the negative sequences, on both strands if not want single strand only
+		OpenLongObjectHashMap code2negSeqs = counter.findHits(seqsNegList, code2kmer, config.strand_type != 1);
 		
 		// remove k-mers that do not pass the relaxed hgp cutoff
 		HashSet<String> toRemove = new HashSet<String>();
-		for (Kmer kmer:bkMap.values()){
-			HashSet<Integer> neghits = kmerstr2negSeqs.get(kmer.kmerString);
-			if (neghits==null)
-				neghits = new HashSet<Integer>();
-			if (kmer.getPosHitCount() > neghits.size() / get_NP_ratio() * relaxed_fold){
-				double hgp = computeHGP(kmer.getPosHitCount(), neghits.size());
+		for (int i=0;i<codes.size();i++){
+			Kmer kmer = (Kmer) code2kmer.get(codes.getQuick(i));
+			IntArrayList neghits = (IntArrayList) code2negSeqs.get(codes.getQuick(i));
+			int negHitCount = neghits==null ? 0 : neghits.size();
+			if (kmer.getPosHitCount() > negHitCount / get_NP_ratio() * relaxed_fold){
+				double hgp = computeHGP(kmer.getPosHitCount(), negHitCount);
 				if (hgp < relaxed_hgp){		// the hgp and fold change here is slightly relaxed for base-kmers
-					kmer.setNegHits(neghits);	
+					if (neghits!=null)
+						kmer.setNegBits(toBitSet(neghits));	
 					kmer.setHgp(hgp);
 				}
 				else
@@ -1226,13 +1298,45 @@ public class KMAC {
 		for (String ks:toRemove)
 			bkMap.remove(ks);
 		
-		allKmerMap.put(k, bkMap);
+		if (allKmerMap!=null)		// the k-mers of each k are only kept while discoverMotifs() runs
+			allKmerMap.put(k, bkMap);
 		if (config.verbose > 1)
 			System.out.println(String.format("k=%d, relaxed_hgp=%.2f, total exact kmer=%d, %s", 
 				k, relaxed_hgp, bkMap.size(), CommonUtils.timeElapsed(tic)));
 		return bkMap;
 	}
 	
+	/** union of two sorted lists of sequence ids */
+	private static IntArrayList mergeSorted(IntArrayList a, IntArrayList b){
+		IntArrayList merged = new IntArrayList(a.size()+b.size());
+		int i=0, j=0;
+		while (i<a.size() && j<b.size()){
+			int x = a.getQuick(i), y = b.getQuick(j);
+			if (x<=y){
+				merged.add(x);
+				i++;
+				if (x==y)
+					j++;
+			}
+			else{
+				merged.add(y);
+				j++;
+			}
+		}
+		for (;i<a.size();i++)
+			merged.add(a.getQuick(i));
+		for (;j<b.size();j++)
+			merged.add(b.getQuick(j));
+		return merged;
+	}
+	
+	private static BitSet toBitSet(IntArrayList ids){
+		BitSet bits = new BitSet();
+		for (int i=0;i<ids.size();i++)
+			bits.set(ids.getQuick(i));
+		return bits;
+	}
+	
 	/***************************************************************************************
 	 * Compute pair-wise k-mer gap pattern, prepare for making gapped k-mers
 	 ***************************************************************************************/
@@ -1917,7 +2021,7 @@ public class KMAC {
 	 * It is similar to Levenshtein distance, but not considering internal insertion/deletion.<br>
 	 * It takes the min of distances from forward and reverse compliment orientation.
 	 */
-	public static int numDistCalcuation = 0;
+	public static AtomicLong numDistCalcuation = new AtomicLong(0);	// editDistance() calls, shared by the concurrent KMAC workers
 	public static float editDistance(Kmer k1, Kmer k2, boolean isForwardOnly) {
 		if (k1.kmerString.length() > k2.kmerString.length()) {
 			return KMAC.editDistance(k2, k1, isForwardOnly);
@@ -1932,7 +2036,7 @@ public class KMAC {
 			best = forwardDistance;
 		else
 			best = KMAC.editDistanceByMatrix(m1, m2RC, forwardDistance);
-		numDistCalcuation++;
+		numDistCalcuation.incrementAndGet();
 
 		return best;
 	}
@@ -2446,7 +2550,7 @@ eachSliding:for (int it = 0; it < idxs.length; it++) {
 		HashMap<Integer, ArrayList<Kmer>> rangeResults = new HashMap<Integer, ArrayList<Kmer>>();
 		ArrayList<DensityClusteringPoint> data = new ArrayList<DensityClusteringPoint>();
 		StatUtil util = new StatUtil();
-		int tmp = numDistCalcuation;
+		long tmp = numDistCalcuation.get();
 		ArrayList<TreeObject> traversal = MTree.traverse(mtreeDataPoints.getRoot());
 		for (TreeObject o : traversal) {
 			ArrayList<Kmer> rangeResult = mtreeDataPoints.rangeSearch(o.getData(), distanceCutoff);
@@ -2476,8 +2580,8 @@ eachSliding:for (int it = 0; it < idxs.length; it++) {
 		}
 //		TODO: printout m-tree performance information
 		if (mtree==-1){
-			System.out.print("n_range="+(numDistCalcuation-tmp)+"\t");
-			tmp = numDistCalcuation;
+			System.out.print("n_range="+(numDistCalcuation.get()-tmp)+"\t");
+			tmp = numDistCalcuation.get();
 		}
 		
 		// compute density using the range search results
@@ -2589,8 +2693,8 @@ eachSliding:for (int it = 0; it < idxs.length; it++) {
 //		data.get(0).memberIds.add(data.get(0).id);
 		
 		if (mtree==-1){
-			System.out.print("n_delta="+(numDistCalcuation-tmp));
-			System.out.print("\tn_total="+numDistCalcuation);
+			System.out.print("n_delta="+(numDistCalcuation.get()-tmp));
+			System.out.print("\tn_total="+numDistCalcuation.get());
 		}
 		Collections.sort(data, new Comparator<DensityClusteringPoint>(){
             public int compare(DensityClusteringPoint o1, DensityClusteringPoint o2) {
@@ -4202,22 +4306,18 @@ private void mergeOverlapPwmMotifs (ArrayList<MotifCluster> clusters, ArrayList<
 	 * @param excludes
 	 * @return
 	 */
-	private NewKSM extractKSM (ArrayList<Sequence> seqList, int seed_range, double pseudoCountRatio){
+	private NewKSM extractKSM (ArrayList<Sequence> seqList, final int seed_range, double pseudoCountRatio){
 
 		/** kmer2pos: record all the hit positions (in reference to the seed position) of all k-mers in the alignment */
-		HashMap<Kmer, ArrayList<Integer>> kmer2pos_seed = new HashMap<Kmer, ArrayList<Integer>>();
-		for (Sequence s:seqList){
+		final HashMap<Kmer, ArrayList<Integer>> kmer2pos_seed = new HashMap<Kmer, ArrayList<Integer>>();
+		for (final Sequence s:seqList){
 			if (s.pos != UNALIGNED){		// aligned seqs
 				// find all the k-mers in the sequence, and all of their positions
 				String seq = s.getAlignedSeq();		// aligned seqs are in seed orientation
-				Iterator searcher = treeAhoCorasick.search(seq.getBytes());
-				while (searcher.hasNext()) {
-					SearchResult sr = (SearchResult) searcher.next();
-					for (Object m: sr.getOutputs()){
-						for(Kmer km :str2kmers.get(m)){				// these have to be gapped k-mer
-//							if (km.getKmerStr().equals("AGCCTNCCTCC"))
-//								seed_range=seed_range+0;
-							int km_seq = sr.getLastIndex() - km.k + 1;	// minus k to get the k-mer position (i.e. first base of the k-mer)
+				treeAhoCorasick.search(seq, new DnaAhoCorasick.Visitor(){
+					public void match(int patternId, int endIndex){
+						for(Kmer km :id2kmers[patternId]){				// these have to be gapped k-mer
+							int km_seq = endIndex - km.k + 1;	// minus k to get the k-mer position (i.e. first base of the k-mer)
 							// km_seed = km_seq + seq_seed
 							int km_seed = km_seq+s.pos;
 							if (km_seed<-seed_range || km_seed>seed_range)
@@ -4227,18 +4327,14 @@ private void mergeOverlapPwmMotifs (ArrayList<MotifCluster> clusters, ArrayList<
 							kmer2pos_seed.get(km).add(km_seed);	
 						}
 					}
-				}
+				});
 				// the reverse compliment of alignment orientation
 				if (config.strand_type!=1){
-					String seq_rc = s.getAlignedSeqRC();
-					searcher = treeAhoCorasick.search(seq_rc.getBytes());
-					while (searcher.hasNext()) {
-						SearchResult sr = (SearchResult) searcher.next();
-						for (Object m: sr.getOutputs()){
-							for(Kmer km :str2kmers.get(m)){	
-								if (km.kmerString.equals("AGCCTNCCTCC"))
-									seed_range=seed_range+0;
-								int km_seq = seq_rc.length() - sr.getLastIndex() + 1;	// the start position of kmer_rc in seq
+					final String seq_rc = s.getAlignedSeqRC();
+					treeAhoCorasick.search(seq_rc, new DnaAhoCorasick.Visitor(){
+						public void match(int patternId, int endIndex){
+							for(Kmer km :id2kmers[patternId]){	
+								int km_seq = seq_rc.length() - endIndex + 1;	// the start position of kmer_rc in seq
 								int km_seed = km_seq+s.pos;  // km_seed = km_seq + seq_seed
 								if (km_seed<-seed_range || km_seed>seed_range)
 									continue;
@@ -4247,7 +4343,7 @@ private void mergeOverlapPwmMotifs (ArrayList<MotifCluster> clusters, ArrayList<
 								kmer2pos_seed.get(km).add(km_seed + RC);	// +RC: "found on RC strand"
 							}
 						}
-					}
+					});
 				}
 			}
 		}
@@ -4317,7 +4413,7 @@ private void mergeOverlapPwmMotifs (ArrayList<MotifCluster> clusters, ArrayList<
 			alignedKmers.add(km);
 		}	
 		
-		kmer2pos_seed = null;
+		kmer2pos_seed.clear();
 
 		if (alignedKmers.isEmpty())
 			return null;
@@ -4939,8 +5035,9 @@ private void mergeOverlapPwmMotifs (ArrayList<MotifCluster> clusters, ArrayList<
 	public static double computeHGP(int posSeq, int negSeq, int posHit, int negHit){
 		int allHit = posHit + negHit;
 		int allSeq = posSeq + negSeq;
+		HyperGeometric hg = HyperGeometric.forPopulation(allSeq);
 		if (posHit<negHit){		// select smaller x for hyperGeometricCDF_cache(), to reduce # of x sum operations
-			double hgcdf = StatUtil.hyperGeometricCDF_cache(posHit, allSeq, allHit, posSeq);
+			double hgcdf = hg.cdf(posHit, allHit, posSeq);
 			if (hgcdf>0.99)
 				return computeHGP_TINY(posSeq, negSeq, posHit, negHit);
 			else
@@ -4949,9 +5046,9 @@ private void mergeOverlapPwmMotifs (ArrayList<MotifCluster> clusters, ArrayList<
 		else{	// flip the problem, compute cdf of negative count, CDF for negative hit do not include negHit
 			double hgcdf=0;
 			if (negHit==0)
-				hgcdf = StatUtil.hyperGeometricCDF_cache(0, allSeq, allHit+2+1, negSeq);		// add 1 negHit, 2 posHit as pseudo count
+				hgcdf = hg.cdf(0, allHit+2+1, negSeq);		// add 1 negHit, 2 posHit as pseudo count
 			else
-				hgcdf = StatUtil.hyperGeometricCDF_cache(negHit-1, allSeq, allHit, negSeq);
+				hgcdf = hg.cdf(negHit-1, allHit, negSeq);
 			if (hgcdf==0||hgcdf<=Double.MIN_VALUE)
 				return computeHGP_TINY(posSeq, negSeq, posHit, negHit);
 			else
@@ -4966,12 +5063,13 @@ private void mergeOverlapPwmMotifs (ArrayList<MotifCluster> clusters, ArrayList<
 	public static double computeHGP_TINY(int posSeq, int negSeq, int posHit, int negHit){
 		int allHit = posHit + negHit;
 		int allSeq = posSeq + negSeq;
+		HyperGeometric hg = HyperGeometric.forPopulation(allSeq);
 		// flip the problem, compute cdf of negative count
 		double hgcdf_log10=0;
 		if (negHit==0)
-			hgcdf_log10 = StatUtil.log10_hyperGeometricCDF_cache_appr(0, allSeq, allHit+2+1, negSeq); // add 1 negHit, 2 posHit as pseudo count
+			hgcdf_log10 = hg.log10Cdf(0, allHit+2+1, negSeq); // add 1 negHit, 2 posHit as pseudo count
 		else
-			hgcdf_log10 = StatUtil.log10_hyperGeometricCDF_cache_appr(negHit-1, allSeq, allHit, negSeq);
+			hgcdf_log10 = hg.log10Cdf(negHit-1, allHit, negSeq);
 		return hgcdf_log10;
 	}
 	
@@ -5295,7 +5393,7 @@ private void mergeOverlapPwmMotifs (ArrayList<MotifCluster> clusters, ArrayList<
 	}
 	
 	/** Prepare the AhoCorasic search Engine, assuming the kmers are unique<br>
-	 * Also setup str2kmers and str2kmerOffsets hash table to retrieve K-mer object once k-mer strings are matched
+	 * Also setup id2kmers and id2kmerEndOffsets arrays to retrieve K-mer object once k-mer strings are matched
 	 * @param kmers List of kmers (with kmerString, sequence hit count)
 	 * @param use_base_kmers true: use base kmers for KG scoring; false: use whole gapped k-mer for scoring
 	 * @param areKmersAligned true: set string orientation as seed, for alignKSM(); false: set String orientation as kmer, for extractKSM()
@@ -5307,9 +5405,8 @@ private void mergeOverlapPwmMotifs (ArrayList<MotifCluster> clusters, ArrayList<
 		}
 		
 		//Init Aho-Corasick (AC) algorithm for searching multiple Kmers in sequences
-		//ahocorasick_java-1.1.tar.gz is an implementation of Aho-Corasick automata for Java. BSD license.
-		//from <http://hkn.eecs.berkeley.edu/~dyoo/java/index.html> 
-		treeAhoCorasick = new AhoCorasick();
+		//DnaAhoCorasick keeps the transitions in int arrays and reports the matches as pattern IDs
+		treeAhoCorasick = new DnaAhoCorasick();
 		// str2Kmers use a list/array to store kmers because a base k-mer string may represent different gapped k-mers, 
 		// with different offsets
 		HashMap<String, ArrayList<Kmer>> tmpStr2kmers = new HashMap<String, ArrayList<Kmer>>();	
@@ -5385,8 +5482,8 @@ private void mergeOverlapPwmMotifs (ArrayList<MotifCluster> clusters, ArrayList<
 				tmpStr2kmerEndOffsets.get(kmerStr).add(-km.kmerStartOffset-km.k);
 			}			
 	    }
-		str2kmers.clear();
-		str2kmerEndOffsets.clear();
+		id2kmers = new Kmer[tmpStr2kmers.size()][];
+		id2kmerEndOffsets = new int[tmpStr2kmers.size()][];
 		// convert ArrayList to array, for more efficient access, b/c these data structure are used for every k-mer match
 		for (String s: tmpStr2kmers.keySet()){
 			ArrayList<Kmer> ks = tmpStr2kmers.get(s);
@@ -5415,11 +5512,10 @@ private void mergeOverlapPwmMotifs (ArrayList<MotifCluster> clusters, ArrayList<
 			int[] ofs = new int[os.size()];
 			for (int i=0;i<ofs.length;i++)
 				ofs[i] = os.get(i);
-			str2kmers.put(s, kms);
-			str2kmerEndOffsets.put(s, ofs);
+			int id = treeAhoCorasick.add(s);
+			id2kmers[id] = kms;
+			id2kmerEndOffsets[id] = ofs;
 		}
-		for (String s: str2kmers.keySet())
-			treeAhoCorasick.add(s.getBytes(), s);
 	    treeAhoCorasick.prepare();
 	    engineInitialized = true;
 	}		
@@ -5466,52 +5562,26 @@ private void mergeOverlapPwmMotifs (ArrayList<MotifCluster> clusters, ArrayList<
 	 */
 	public KmerGroup[] findUnstrandedKsmGroupHits (String seq){
 		seq = seq.toUpperCase();
-		HashMap<Integer, ArrayList<Kmer>> result = new HashMap<Integer, ArrayList<Kmer>> ();
 		
 		//Search for all kmers in the sequences using Aho-Corasick algorithms (initialized)
-		//ahocorasick_java-1.1.tar.gz is an implementation of Aho-Corasick automata for Java. BSD license.
-		//from <http://hkn.eecs.berkeley.edu/~dyoo/java/index.html> 
-		Iterator searcher = treeAhoCorasick.search(seq.getBytes());
-		while (searcher.hasNext()) {
-			SearchResult sr = (SearchResult) searcher.next();
-			for (Object s: sr.getOutputs()){
-				Kmer[] kmers = str2kmers.get(s);	
-				// AC search returns end+1 position, end_seq; endOffset is seed_end;
-				// thus   seed_end + end_seq --> seed_seq
-				int[] kmerOffsets = str2kmerEndOffsets.get(s);	
-				for(int i=0;i<kmers.length;i++){	
-					int x = sr.getLastIndex() + kmerOffsets[i];	
-					if (!result.containsKey(x))
-						result.put(x, new ArrayList<Kmer>());
-					result.get(x).add(kmers[i]);	
-				}
-			}
-		}
-		// the reverse compliment
+		KsmHits hits = new KsmHits(id2kmers, id2kmerEndOffsets);
+		treeAhoCorasick.search(seq, hits);
+		// the reverse compliment, searched without building it, seq_rc is only needed for the matched sequences
 		String seq_rc=null;
 		if (config.strand_type!=1){
-			seq_rc = SequenceUtils.reverseComplement(seq);
-			searcher = treeAhoCorasick.search(seq_rc.getBytes());
-			while (searcher.hasNext()) {
-				SearchResult sr = (SearchResult) searcher.next();
-				for (Object s: sr.getOutputs()){
-					Kmer[] kmers = str2kmers.get(s);	
-					int[] kmerOffsets = str2kmerEndOffsets.get(s);	
-					for(int i=0;i<kmers.length;i++){	
-						int x = sr.getLastIndex() + kmerOffsets[i];		// match position in seq_rc
-						x += RC;		// mark as a match on rc strand		//TODO: double check
-						if (!result.containsKey(x))
-							result.put(x, new ArrayList<Kmer>());
-						result.get(x).add(kmers[i]);	
-					}
-				}
-			}
+			hits.shift = RC;		// mark as a match on rc strand		//TODO: double check
+			treeAhoCorasick.searchReverseComplement(seq, hits);
+			if (posHitStrings!=null)
+				seq_rc = SequenceUtils.reverseComplement(seq);
 		}
 		
-		KmerGroup[] matches = new KmerGroup[result.keySet().size()];
+		KmerGroup[] matches = new KmerGroup[hits.group()];
 		int idx = 0;
-		for (int p:result.keySet()){
-			ArrayList<Kmer> kmers = result.get(p);
+		for (int h=0; h<hits.size(); ){
+			int p = hits.getPosition(h);
+			ArrayList<Kmer> kmers = new ArrayList<Kmer>();
+			for (; h<hits.size() && hits.getPosition(h)==p; h++)
+				kmers.add(hits.getKmer(h));
 			int leftShift = 999;			// left most shift position
 			int longest = 0;				// length from the seed position
 			for (Kmer km:kmers){
@@ -5561,54 +5631,45 @@ private void mergeOverlapPwmMotifs (ArrayList<MotifCluster> clusters, ArrayList<
 	 * Note: the return value is different from query(), here the match on RC strand is labeled (pos+RC)
 	 */
 	public KmerGroup[] findKsmGroupHits (String seq, String seq_rc){
-//		seq = seq.toUpperCase();
 		//Search for all kmers in the sequences using Aho-Corasick algorithms (initialized)
-		//ahocorasick_java-1.1.tar.gz is an implementation of Aho-Corasick automata for Java. BSD license.
-		//from <http://hkn.eecs.berkeley.edu/~dyoo/java/index.html> 
-
-		// matches on negative strand are combined with matches on positive strand
-		HashMap<Integer, ArrayList<Kmer>> result = new HashMap<Integer, ArrayList<Kmer>> ();
-		
-		Iterator searcher = treeAhoCorasick.search(seq.getBytes());
-		while (searcher.hasNext()) {
-			SearchResult sr = (SearchResult) searcher.next();
-			for (Object s: sr.getOutputs()){
-				Kmer[] kmers = str2kmers.get(s);	
-				// AC search returns end+1 position, end_seq; endOffset is seed_end;
-				// thus   seed_end + end_seq --> seed_seq
-				int[] kmerOffsets = str2kmerEndOffsets.get(s);	
-				for(int i=0;i<kmers.length;i++){	
-					int x = sr.getLastIndex() + kmerOffsets[i];	// get the motif position
-					if (!result.containsKey(x))
-						result.put(x, new ArrayList<Kmer>());
-					result.get(x).add(kmers[i]);	
-				}
-			}
-		}
+		// matches on negative strand are kept apart from matches on positive strand, labeled (pos+RC)
+		KsmHits hits = new KsmHits(id2kmers, id2kmerEndOffsets);
+		treeAhoCorasick.search(seq, hits);
 		// the reverse compliment
 		if (config.strand_type!=1){
-			searcher = treeAhoCorasick.search(seq_rc.getBytes());
-			while (searcher.hasNext()) {
-				SearchResult sr = (SearchResult) searcher.next();
-				for (Object s: sr.getOutputs()){
-					Kmer[] kmers = str2kmers.get(s);	
-					int[] kmerOffsets = str2kmerEndOffsets.get(s);	
-					for(int i=0;i<kmers.length;i++){	
-						int x = sr.getLastIndex() + kmerOffsets[i] + RC;	// get the motif position, +RC: "found on RC"
-						if (!result.containsKey(x))
-							result.put(x, new ArrayList<Kmer>());
-						result.get(x).add(kmers[i]);	
-					}
-				}
-			}
+			hits.shift = RC;		// +RC: "found on RC"
+			treeAhoCorasick.search(seq_rc, hits);
+		}
+		return groupKsmHits(hits, seq, seq_rc);
+	}
+	
+	/** 
+	 * Same as findKsmGroupHits(seq, seq_rc), but the reverse compliment is searched without building it,<br>
+	 * seq_rc is only made if the matched sequences are needed (i.e. posHitStrings!=null). This is used for KSM motif scanning.
+	 */
+	public KmerGroup[] findKsmGroupHits (String seq){
+		KsmHits hits = new KsmHits(id2kmers, id2kmerEndOffsets);
+		treeAhoCorasick.search(seq, hits);
+		if (config.strand_type!=1){
+			hits.shift = RC;		// +RC: "found on RC"
+			treeAhoCorasick.searchReverseComplement(seq, hits);
 		}
-		if (result.isEmpty())
+		String seq_rc = posHitStrings!=null ? SequenceUtils.reverseComplement(seq) : null;
+		return groupKsmHits(hits, seq, seq_rc);
+	}
+	
+	/** Make the KmerGroups from the KSM hits, one for each match position, sorted by KG scores */
+	private KmerGroup[] groupKsmHits (KsmHits hits, String seq, String seq_rc){
+		if (hits.size()==0)
 			return null;
 		
-		KmerGroup[] matches = new KmerGroup[result.keySet().size()];
+		KmerGroup[] matches = new KmerGroup[hits.group()];
 		int idx = 0;
-		for (int p:result.keySet()){
-			ArrayList<Kmer> kmers = result.get(p);
+		for (int h=0; h<hits.size(); ){
+			int p = hits.getPosition(h);
+			ArrayList<Kmer> kmers = new ArrayList<Kmer>();
+			for (; h<hits.size() && hits.getPosition(h)==p; h++)
+				kmers.add(hits.getKmer(h));
 			int leftShift = 999;			// left most shift position
 			// get the matched sequence
 			String s = null;
@@ -5646,6 +5707,52 @@ private void mergeOverlapPwmMotifs (ArrayList<MotifCluster> clusters, ArrayList<
 		return matches;
 	}
 	
+	/** 
+	 * Collects the k-mer hits reported by treeAhoCorasick as (match position, k-mer) pairs, and groups them by position<br>
+	 * The positions are kept in a long array (position in the high bits, hit index in the low bits), so they are not boxed
+	 */
+	private static class KsmHits implements DnaAhoCorasick.Visitor{
+		private final Kmer[][] id2kmers;
+		private final int[][] id2kmerEndOffsets;
+		private long[] keys = new long[32];
+		private Kmer[] kmers = new Kmer[32];
+		private int size = 0;
+		/** added to the match positions, RC for the hits on the reverse compliment */
+		int shift = 0;
+		
+		KsmHits(Kmer[][] id2kmers, int[][] id2kmerEndOffsets){
+			this.id2kmers = id2kmers;
+			this.id2kmerEndOffsets = id2kmerEndOffsets;
+		}
+		public void match(int patternId, int endIndex){
+			Kmer[] kms = id2kmers[patternId];
+			// AC search returns end+1 position, end_seq; endOffset is seed_end;
+			// thus   seed_end + end_seq --> seed_seq
+			int[] kmerOffsets = id2kmerEndOffsets[patternId];
+			for (int i=0;i<kms.length;i++){
+				if (size==keys.length){
+					keys = Arrays.copyOf(keys, size*2);
+					kmers = Arrays.copyOf(kmers, size*2);
+				}
+				keys[size] = ((long)(endIndex + kmerOffsets[i] + shift) << 32) | size;
+				kmers[size] = kms[i];
+				size++;
+			}
+		}
+		/** Sort the hits by position (hits at the same position stay in the order found), return the number of positions */
+		int group(){
+			Arrays.sort(keys, 0, size);
+			int count = 0;
+			for (int i=0;i<size;i++)
+				if (i==0 || getPosition(i)!=getPosition(i-1))
+					count++;
+			return count;
+		}
+		int size(){ return size; }
+		int getPosition(int i){ return (int)(keys[i] >> 32); }
+		Kmer getKmer(int i){ return kmers[(int)keys[i]]; }
+	}
+	
 	public String getSequenceUppercase(Region r){
 		return seqgen.execute(r).toUpperCase();
 	}
@@ -5782,7 +5889,6 @@ private void mergeOverlapPwmMotifs (ArrayList<MotifCluster> clusters, ArrayList<
         		kmac.seqs.length, config.k_win, kmac.seqsNegList.size()));
         kmac.discoverMotifs(config.k_min, config.k_max, null);
         if (config.verbose>1){
-			System.out.println(StatUtil.cacheAccessCount);
 			System.out.println(StatUtil.getCacheSize());
         }
         System.out.println("Done: "+CommonUtils.timeElapsed(tic));
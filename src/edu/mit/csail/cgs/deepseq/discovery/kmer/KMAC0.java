@@ -1521,7 +1521,6 @@ public class KMAC0 {
 		Kmer.printKmers(allAlignedKmers, posSeqCount, negSeqCount, score, outName, false, true, false);
 		
 		System.out.println("\nFinish KMAC motif discovery, "+CommonUtils.timeElapsed(tic));
-		System.out.println(StatUtil.cacheAccessCount);
 		System.out.println(StatUtil.getCacheSize());
 		return allAlignedKmers;
 	}
@@ -203,6 +203,11 @@ public class Kmer implements Comparable<Kmer>{
 		this.posBits = posBits;
 		this.treeIndex = -1;
 	}
+	public Kmer(String kmerStr, BitSet posBits, double[] seq_weights ){
+		this(kmerStr, posBits);
+		if (use_weighted_hit_count)
+			setWeightedPosHitCount(seq_weights);
+	}
 	
 	public Kmer clone(){
 		Kmer n = new Kmer(getKmerStr(), (BitSet)(posBits.clone()));
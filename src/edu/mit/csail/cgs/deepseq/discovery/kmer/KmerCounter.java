@@ -0,0 +1,169 @@
+package edu.mit.csail.cgs.deepseq.discovery.kmer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import cern.colt.list.IntArrayList;
+import cern.colt.list.LongArrayList;
+import cern.colt.map.OpenLongObjectHashMap;
+
+/**
+ * Finds the sequences that contain each k-mer, with the k-mers encoded as 2-bit packed longs
+ * (A=0, C=1, G=2, T=3, the first base in the highest bits, so that the codes sort as the strings). <br>
+ * The forward and reverse complement codes are rolled along the sequence, windows with a base
+ * other than A/C/G/T (e.g. 'N' from masked repeats) are skipped. <br>
+ * The sequences are split into partitions that are scanned in parallel,
+ * each partition fills its own map, then the maps are merged in partition order,
+ * so that the sequence ids of each k-mer stay sorted. <br>
+ * k must be at most 31.
+ */
+public class KmerCounter {
+	private static final char[] BASES = {'A','C','G','T'};
+	private static final int MIN_SEQS_PER_THREAD = 100;
+
+	private final int k;
+	private final long mask;
+	private final int numThreads;
+
+	public KmerCounter(int k, int numThreads){
+		if (k<1 || k>31)
+			throw new IllegalArgumentException("k should be between 1 and 31: "+k);
+		this.k = k;
+		this.mask = (1L<<(2*k))-1;
+		this.numThreads = Math.max(1, numThreads);
+	}
+
+	public int getK(){ return k; }
+
+	/** 2-bit code of a base, -1 if it is not A/C/G/T */
+	public static int baseCode(char c){
+		switch(c){
+		case 'A': return 0;
+		case 'C': return 1;
+		case 'G': return 2;
+		case 'T': return 3;
+		default: return -1;
+		}
+	}
+
+	/** code of the k-mer string, -1 if it contains a base other than A/C/G/T */
+	public long encode(String kmer){
+		long code = 0;
+		for (int i=0;i<k;i++){
+			int b = baseCode(kmer.charAt(i));
+			if (b<0)
+				return -1;
+			code = (code<<2)|b;
+		}
+		return code;
+	}
+
+	public String decode(long code){
+		char[] s = new char[k];
+		for (int i=k-1;i>=0;i--){
+			s[i] = BASES[(int)(code&3)];
+			code >>>= 2;
+		}
+		return new String(s);
+	}
+
+	public long reverseComplement(long code){
+		long rc = 0;
+		for (int i=0;i<k;i++){
+			rc = (rc<<2)|(3-(code&3));
+			code >>>= 2;
+		}
+		return rc;
+	}
+
+	/**
+	 * For each k-mer, the sorted ids (indices in seqs) of the sequences that contain it.
+	 * @param filter		if not null, only the k-mers that are keys of this map are reported
+	 * @param bothStrands	if true, a k-mer also hits a sequence that contains its reverse complement
+	 * @return map of k-mer code to an IntArrayList of sequence ids
+	 */
+	public OpenLongObjectHashMap findHits(final List<String> seqs, final OpenLongObjectHashMap filter, final boolean bothStrands){
+		int threads = Math.max(1, Math.min(numThreads, seqs.size()/MIN_SEQS_PER_THREAD));
+		if (threads==1)
+			return scan(seqs, 0, seqs.size(), filter, bothStrands);
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		ArrayList<Future<OpenLongObjectHashMap>> futures = new ArrayList<Future<OpenLongObjectHashMap>>();
+		for (int t=0;t<threads;t++){
+			final int start = (int)((long)seqs.size()*t/threads);
+			final int end = (int)((long)seqs.size()*(t+1)/threads);
+			futures.add(pool.submit(new Callable<OpenLongObjectHashMap>(){
+				public OpenLongObjectHashMap call(){
+					return scan(seqs, start, end, filter, bothStrands);
+				}
+			}));
+		}
+		pool.shutdown();
+		try{
+			OpenLongObjectHashMap hits = futures.get(0).get();
+			for (int t=1;t<threads;t++){
+				OpenLongObjectHashMap part = futures.get(t).get();
+				LongArrayList codes = part.keys();
+				for (int i=0;i<codes.size();i++){
+					long code = codes.getQuick(i);
+					IntArrayList ids = (IntArrayList) hits.get(code);
+					if (ids==null)
+						hits.put(code, part.get(code));
+					else
+						ids.addAllOf((IntArrayList) part.get(code));
+				}
+			}
+			return hits;
+		}
+		catch (InterruptedException e){
+			pool.shutdownNow();
+			throw new RuntimeException(e);
+		}
+		catch (ExecutionException e){
+			pool.shutdownNow();
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	private OpenLongObjectHashMap scan(List<String> seqs, int start, int end, OpenLongObjectHashMap filter, boolean bothStrands){
+		OpenLongObjectHashMap hits = new OpenLongObjectHashMap();
+		int rcShift = 2*(k-1);
+		for (int seqId=start;seqId<end;seqId++){
+			String seq = seqs.get(seqId);
+			long code = 0, rc = 0;
+			int valid = 0;			// number of consecutive A/C/G/T bases up to i
+			for (int i=0;i<seq.length();i++){
+				int b = baseCode(seq.charAt(i));
+				if (b<0){
+					valid = 0;
+					continue;
+				}
+				code = ((code<<2)|b)&mask;
+				rc = (rc>>>2)|((long)(3-b)<<rcShift);
+				if (++valid<k)
+					continue;
+				if (filter==null || filter.containsKey(code))
+					addHit(hits, code, seqId);
+				if (bothStrands && (filter==null || filter.containsKey(rc)))
+					addHit(hits, rc, seqId);
+			}
+		}
+		return hits;
+	}
+
+	private static void addHit(OpenLongObjectHashMap hits, long code, int seqId){
+		IntArrayList ids = (IntArrayList) hits.get(code);
+		if (ids==null){
+			ids = new IntArrayList(2);
+			hits.put(code, ids);
+		}
+		else if (ids.getQuick(ids.size()-1)==seqId)		// count a sequence once for each k-mer
+			return;
+		ids.add(seqId);
+	}
+}
@@ -11,6 +11,8 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.TreeMap;
 
+import cern.colt.list.FloatArrayList;
+import cern.colt.list.IntArrayList;
 import edu.mit.csail.cgs.datasets.chipseq.ChipSeqAlignment;
 import edu.mit.csail.cgs.datasets.general.Region;
 import edu.mit.csail.cgs.datasets.species.Genome;
@@ -62,7 +64,7 @@ public abstract class AlignmentFileReader {
 	 */
 	protected int[][][] fivePrimes=null;
 	
-	protected ArrayList<Integer>[][] fivePrimeList = null;
+	protected IntArrayList[][] fivePrimeList = null;
 	
 	/**
 	 * Number of hits that corresponds to the <tt>Read</tt> of each <tt>ReadHit</tt><br>
@@ -72,7 +74,7 @@ public abstract class AlignmentFileReader {
 	 */
 	protected float[][][] hitCounts=null;
 	
-	protected ArrayList<Float>[][] hitCountsList = null;
+	protected FloatArrayList[][] hitCountsList = null;
 	
 	/**
 	 * The IDs of the read hits<br>
@@ -82,7 +84,7 @@ public abstract class AlignmentFileReader {
 	 */
 	protected int[][][] hitIDs=null;//Only necessary if the ID field in ReadHit becomes important
 	
-	protected ArrayList<Integer>[][] hitIDsList = null;
+	protected IntArrayList[][] hitIDsList = null;
 	
 	/**
 	 * Strands of the read hits
@@ -103,6 +105,15 @@ public abstract class AlignmentFileReader {
 	
 	public AlignmentFileReader(File f, Genome g, int mis, boolean nonUnique, int idSeed,
 			HashMap<String, Integer> chrom2ID, HashMap<Integer,String> id2Chrom){
+		this(f, g, mis, nonUnique, idSeed, chrom2ID, id2Chrom, true);
+	}
+	
+	/**
+	 * With <tt>load</tt> false, the reads are not loaded until the subclass calls <tt>load()</tt>, 
+	 * so that it can set its own fields first
+	 */
+	protected AlignmentFileReader(File f, Genome g, int mis, boolean nonUnique, int idSeed,
+			HashMap<String, Integer> chrom2ID, HashMap<Integer,String> id2Chrom, boolean load){
 		gen=g;
 		totalHits=0;
 		totalWeight=0;
@@ -122,15 +133,20 @@ public abstract class AlignmentFileReader {
 		hitCounts = new float[numChroms][2][];
 		hitIDs    = new int[numChroms][2][];
 		
-		fivePrimeList    = new ArrayList[numChroms][2];
-		for(int i = 0; i < fivePrimeList.length; i++) { for(int j = 0; j < fivePrimeList[i].length; j++) { fivePrimeList[i][j] = new ArrayList<Integer>(); } }
+		fivePrimeList    = new IntArrayList[numChroms][2];
+		for(int i = 0; i < fivePrimeList.length; i++) { for(int j = 0; j < fivePrimeList[i].length; j++) { fivePrimeList[i][j] = new IntArrayList(); } }
 		
-		hitCountsList = new ArrayList[numChroms][2];
-		for(int i = 0; i < hitCountsList.length; i++) { for(int j = 0; j < hitCountsList[i].length; j++) { hitCountsList[i][j] = new ArrayList<Float>(); } }
+		hitCountsList = new FloatArrayList[numChroms][2];
+		for(int i = 0; i < hitCountsList.length; i++) { for(int j = 0; j < hitCountsList[i].length; j++) { hitCountsList[i][j] = new FloatArrayList(); } }
 		
-		hitIDsList    = new ArrayList[numChroms][2];
-		for(int i = 0; i < hitIDsList.length; i++) { for(int j = 0; j < hitIDsList[i].length; j++) { hitIDsList[i][j] = new ArrayList<Integer>(); } }
+		hitIDsList    = new IntArrayList[numChroms][2];
+		for(int i = 0; i < hitIDsList.length; i++) { for(int j = 0; j < hitIDsList[i].length; j++) { hitIDsList[i][j] = new IntArrayList(); } }
 		
+		if (load)
+			load();
+	}
+	
+	protected void load(){
 		countReads();
 		System.out.println("Loaded");		
 	}
@@ -257,40 +273,33 @@ public abstract class AlignmentFileReader {
 	 */
 	protected void populateArrays() {
 		
-		for(int i = 0; i < fivePrimeList.length; i++)
-			for(int j = 0; j < fivePrimeList[i].length; j++)
-				fivePrimes[i][j] = list2int(fivePrimeList[i][j]);
-		
-		for(int i = 0; i < fivePrimeList.length; i++) { for(int j = 0; j < fivePrimeList[i].length; j++) { fivePrimeList[i][j].clear(); } }
-		fivePrimeList = null;
-
-		////////////////////////////////////////////////////////////////////////
-
-		for(int i = 0; i < hitIDsList.length; i++)
-			for(int j = 0; j < hitIDsList[i].length; j++)
-				hitIDs[i][j] = list2int(hitIDsList[i][j]);
-		
-		for(int i = 0; i < hitIDsList.length; i++) { for(int j = 0; j < hitIDsList[i].length; j++) { hitIDsList[i][j].clear(); } }
-		hitIDsList = null;
-		
-		////////////////////////////////////////////////////////////////////////
-
-		for(int i = 0; i < hitCountsList.length; i++)
-			for(int j = 0; j < hitCountsList[i].length; j++)
-				hitCounts[i][j] = list2Float(hitCountsList[i][j]);
-		
-		for(int i = 0; i < hitCountsList.length; i++) { for(int j = 0; j < hitCountsList[i].length; j++) { hitCountsList[i][j].clear(); } }
-		hitCountsList = null;
-		
-		////////////////////////////////////////////////////////////////////////
-		
 		for(int i = 0; i < fivePrimes.length; i++) {  // chr
 			for(int j = 0; j < fivePrimes[i].length; j++) { // strand
-				int[] inds = StatUtil.findSort(fivePrimes[i][j]);
-				hitIDs[i][j] = StatUtil.permute(hitIDs[i][j], inds);
-				hitCounts[i][j] = StatUtil.permute(hitCounts[i][j], inds);
+				fivePrimeList[i][j].trimToSize();
+				hitIDsList[i][j].trimToSize();
+				hitCountsList[i][j].trimToSize();
+				fivePrimes[i][j] = fivePrimeList[i][j].elements();
+				hitIDs[i][j] = hitIDsList[i][j].elements();
+				hitCounts[i][j] = hitCountsList[i][j].elements();
+				fivePrimeList[i][j] = null;
+				hitIDsList[i][j] = null;
+				hitCountsList[i][j] = null;
+				
+				// sort the hits by 5' position, the file is often sorted already
+				boolean sorted = true;
+				int[] pos = fivePrimes[i][j];
+				for(int k = 1; k < pos.length && sorted; k++)
+					sorted = pos[k-1] <= pos[k];
+				if (!sorted){
+					int[] inds = StatUtil.findSort(fivePrimes[i][j]);
+					hitIDs[i][j] = StatUtil.permute(hitIDs[i][j], inds);
+					hitCounts[i][j] = StatUtil.permute(hitCounts[i][j], inds);
+				}
 			}
 		}
+		fivePrimeList = null;
+		hitIDsList = null;
+		hitCountsList = null;
 	}//end of populateArrays method
 
 	
@@ -353,22 +362,6 @@ public abstract class AlignmentFileReader {
 		return fivePrimes;
 	}
 	
-
-	private int[] list2int(List<Integer> list) {
-		int[] out = new int[list.size()];
-		for(int i = 0; i < out.length; i++)
-			out[i] = list.get(i);
-	   
-		return out;
-	}//end of list2int method
-
-	private float[] list2Float(List<Float> list) {
-		float[] out = new float[list.size()];
-		for(int i = 0; i < out.length; i++)
-			out[i] = list.get(i);
-	   
-		return out;
-	}//end of list2int method
 	
 	public void cleanup(){
 		fivePrimes=null;
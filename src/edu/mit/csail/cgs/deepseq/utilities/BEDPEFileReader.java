@@ -1,9 +1,7 @@
 package edu.mit.csail.cgs.deepseq.utilities;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
@@ -33,39 +31,26 @@ public class BEDPEFileReader extends PairedAlignmentFileReader {
     @Override
     protected void estimateGenome(File f) {
         HashMap<String, Integer> chrLenMap = new HashMap<String, Integer>();
-        BufferedReader reader;
         try {
-            reader = new BufferedReader(new FileReader(f));
-            String line;
-            while ((line = reader.readLine()) != null) {
-                line = line.trim();
-                if(line.charAt(0)!='#'){
-                    String[] words = line.split("\\s+");
-                    String readOneChr = words[0];
-                    String[] tmp = readOneChr.split("\\.");
-                    readOneChr=tmp[0].replaceFirst("chr", "");
-                    readOneChr=readOneChr.replaceFirst("^>", "");
-                    String readTwoChr = words[3];
-                    tmp = readTwoChr.split("\\.");
-                    readTwoChr=tmp[0].replaceFirst("chr", "");
-                    readTwoChr=readOneChr.replaceFirst("^>", "");
-                    if (readOneChr.equals(readTwoChr)) {
-                        int readOneMax = Math.max(new Integer(words[1]).intValue(), new Integer(words[2]).intValue());
-                        int readTwoMax = Math.max(new Integer(words[4]).intValue(), new Integer(words[5]).intValue());
+            FieldTokenizer reader = new FieldTokenizer(f, false);
+            while (reader.nextLine()) {
+                if(reader.getChar(0)!='#' && reader.numFields()>=6){
+                    try{
+                        // the pair is counted on the chromosome of read one
+                        String readOneChr = reader.getChrom(0);
+                        int readOneMax = Math.max(reader.getInt(1), reader.getInt(2));
+                        int readTwoMax = Math.max(reader.getInt(4), reader.getInt(5));
                         int max = Math.max(readOneMax, readTwoMax);
                         
                         if(!chrLenMap.containsKey(readOneChr) || chrLenMap.get(readOneChr)<max)
                             chrLenMap.put(readOneChr, max+1);
+                    } catch (NumberFormatException e){
+                        // skip header lines
                     }
                 }
             }
+            reader.close();
             gen=new Genome("Genome", chrLenMap);
-        } catch (FileNotFoundException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        } catch (NumberFormatException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
         } catch (IOException e) {
             // TODO Auto-generated catch block
             e.printStackTrace();
@@ -81,18 +66,15 @@ public class BEDPEFileReader extends PairedAlignmentFileReader {
             insertLength=-1;
             totalHits=0;
             totalWeight=0;
-            BufferedReader reader = new BufferedReader(new FileReader(inFile));
-            String line, lastID="";
+            FieldTokenizer reader = new FieldTokenizer(inFile, false);
             double currReadHitCount=0;
             Read currReadOne=null;
             Read currReadTwo=null;
-            while ((line = reader.readLine()) != null) {
-                line = line.trim();
-                if(line.charAt(0)!='#'){
-                    String[] words = line.split("\\s+");
-                    if (words.length<10){
+            while (reader.nextLine()) {
+                if(reader.getChar(0)!='#'){
+                    if (reader.numFields()<10){
                         System.err.println("Line "+(currID+1));
-                        System.err.println(line+"\nBEDPE format should have at least 10 fields!");
+                        System.err.println(reader.getLine()+"\nBEDPE format should have at least 10 fields!");
                         return;
                     }
                         
@@ -111,23 +93,16 @@ public class BEDPEFileReader extends PairedAlignmentFileReader {
                     }
                     currReadHitCount=1;                     
                     try{
-                        chrOne = words[0];
-                        String[] tmp = chrOne.split("\\.");
-                        chrOne=tmp[0].replaceFirst("chr", "");
-                        chrOne=chrOne.replaceFirst("^>", "");
-                        
-                        chrTwo = words[3];
-                        String[] tmp2 = chrTwo.split("\\.");
-                        chrTwo=tmp2[0].replaceFirst("chr", "");
-                        chrTwo=chrTwo.replaceFirst("^>", "");
+                        chrOne = reader.getChrom(0);
+                        chrTwo = reader.getChrom(3);
                         // http://genome.ucsc.edu/FAQ/FAQformat.html#format1
                         //BED format is half open - The chromEnd base is not included  
                         // For example, the first 100 bases of a chromosome are defined as chromStart=0, chromEnd=100, and span the bases numbered 0-99.
-                        startOne = new Integer(words[1]).intValue();
-                        endOne = new Integer(words[2]).intValue();
+                        startOne = reader.getInt(1);
+                        endOne = reader.getInt(2);
                         
-                        startTwo = new Integer(words[4]).intValue();
-                        endTwo = new Integer(words[5]).intValue();
+                        startTwo = reader.getInt(4);
+                        endTwo = reader.getInt(5);
                         
                         if(readLengthOne==-1)
                             readLengthOne = endOne-startOne;
@@ -135,9 +110,9 @@ public class BEDPEFileReader extends PairedAlignmentFileReader {
                             readLengthTwo = endTwo-startTwo;
                         if(insertLength==-1)
                             insertLength = startTwo-endOne;
-                        strandOne = words[8].charAt(0);
-                        strandTwo = words[9].charAt(0);
-                        if (!chrOne.matches(chrTwo)||strandOne==strandTwo) {//wrong chr or improper strand pairing
+                        strandOne = reader.getChar(8);
+                        strandTwo = reader.getChar(9);
+                        if (!chrOne.equals(chrTwo)||strandOne==strandTwo) {//wrong chr or improper strand pairing
                             //System.out.println("invalid pair");
                             continue;
                         }
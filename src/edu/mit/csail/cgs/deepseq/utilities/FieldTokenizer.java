@@ -0,0 +1,250 @@
+package edu.mit.csail.cgs.deepseq.utilities;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Splits the lines of a text file into fields, working on the bytes of a ByteBuffer. <br>
+ * It replaces <tt>line.trim().split("\\s+")</tt> (or <tt>split("\t")</tt>) and <tt>Integer.parseInt()</tt>
+ * for the read files: the fields are byte ranges of the buffer and are parsed in place,
+ * no String is created per line. <br>
+ * Gzip files are detected by their magic number and decompressed on the fly. <br>
+ * Empty lines are skipped, the fields of a line are only valid until the next call of nextLine().
+ */
+public class FieldTokenizer {
+	private static final int BUFFER_SIZE = 1<<16;
+
+	private ReadableByteChannel channel;
+	private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+	private byte[] bytes = buffer.array();
+	private int pos = 0;			// start of the unread bytes
+	private int limit = 0;			// end of the bytes read from the channel
+	private boolean eof = false;
+	private final boolean tabOnly;
+
+	// the fields of the current line, as [start, end) offsets in bytes
+	private int[] starts = new int[16];
+	private int[] ends = new int[16];
+	private int numFields = 0;
+	private int lineStart, lineEnd;
+	private int lineNumber = 0;
+
+	// the last String of each field, returned again if the bytes are the same (e.g. the chromosome name)
+	private String[] lastStrings = new String[16];
+	private byte[][] lastBytes = new byte[16][];
+	private HashMap<String, String> chromNames = new HashMap<String, String>();
+
+	/**
+	 * @param tabOnly	true to split on tabs only, false to split on any run of spaces and tabs
+	 */
+	public FieldTokenizer(File f, boolean tabOnly) throws IOException {
+		this(new FileInputStream(f), tabOnly);
+	}
+
+	public FieldTokenizer(InputStream in, boolean tabOnly) throws IOException {
+		BufferedInputStream bin = new BufferedInputStream(in, 2);
+		bin.mark(2);
+		int b1 = bin.read();
+		int b2 = bin.read();
+		bin.reset();
+		InputStream source = (b1==0x1f && b2==0x8b) ? new GZIPInputStream(bin, BUFFER_SIZE) : bin;
+		channel = Channels.newChannel(source);
+		this.tabOnly = tabOnly;
+	}
+
+	/**
+	 * Reads the next non-empty line and splits it into fields
+	 * @return false at the end of the file
+	 */
+	public boolean nextLine() throws IOException {
+		while (true){
+			int eol = findLineEnd();
+			if (eol==-1)
+				return false;
+			lineNumber++;
+			lineStart = pos;
+			lineEnd = eol;
+			pos = eol<limit ? eol+1 : limit;
+			// trim, as String.trim() does
+			while (lineStart<lineEnd && (bytes[lineStart]&0xff)<=' ')
+				lineStart++;
+			while (lineEnd>lineStart && (bytes[lineEnd-1]&0xff)<=' ')
+				lineEnd--;
+			if (lineStart==lineEnd)
+				continue;
+			split();
+			return true;
+		}
+	}
+
+	// returns the index of the '\n' ending the line at pos (or the end of the data), refilling the buffer as needed
+	private int findLineEnd() throws IOException {
+		int i = pos;
+		while (true){
+			for (; i<limit; i++)
+				if (bytes[i]=='\n')
+					return i;
+			if (eof){
+				if (pos==limit)
+					return -1;
+				return limit;		// last line without '\n'
+			}
+			i = fill();
+		}
+	}
+
+	// moves the unread bytes to the front, reads more; returns the new index of the old limit
+	private int fill() throws IOException {
+		int remaining = limit-pos;
+		if (pos==0 && limit==bytes.length){		// line longer than the buffer
+			ByteBuffer bigger = ByteBuffer.allocate(bytes.length*2);
+			bigger.put(bytes, 0, limit);
+			buffer = bigger;
+			bytes = buffer.array();
+		}
+		else{
+			System.arraycopy(bytes, pos, bytes, 0, remaining);
+		}
+		pos = 0;
+		limit = remaining;
+		buffer.clear();
+		buffer.position(limit);
+		int n = 0;
+		while (n==0)
+			n = channel.read(buffer);
+		if (n==-1)
+			eof = true;
+		else
+			limit += n;
+		return remaining;
+	}
+
+	private void split(){
+		numFields = 0;
+		int i = lineStart;
+		while (i<lineEnd){
+			int s = i;
+			if (tabOnly){
+				while (i<lineEnd && bytes[i]!='\t')
+					i++;
+			}
+			else{
+				while (i<lineEnd && bytes[i]!=' ' && bytes[i]!='\t')
+					i++;
+			}
+			addField(s, i);
+			if (i<lineEnd){
+				i++;	// skip the delimiter
+				if (!tabOnly)
+					while (i<lineEnd && (bytes[i]==' ' || bytes[i]=='\t'))
+						i++;
+			}
+		}
+	}
+
+	private void addField(int s, int e){
+		if (numFields==starts.length){
+			int n = numFields*2;
+			starts = Arrays.copyOf(starts, n);
+			ends = Arrays.copyOf(ends, n);
+			lastStrings = Arrays.copyOf(lastStrings, n);
+			lastBytes = Arrays.copyOf(lastBytes, n);
+		}
+		starts[numFields] = s;
+		ends[numFields] = e;
+		numFields++;
+	}
+
+	public int numFields(){ return numFields; }
+
+	/** 1-based number of the current line in the file, empty lines included */
+	public int getLineNumber(){ return lineNumber; }
+
+	/** the current line, trimmed, for error messages */
+	public String getLine(){ return new String(bytes, lineStart, lineEnd-lineStart); }
+
+	public int fieldLength(int field){ return ends[field]-starts[field]; }
+
+	/** first character of the field (e.g. the strand) */
+	public char getChar(int field){ return (char)(bytes[starts[field]]&0xff); }
+
+	/**
+	 * Parses the field as an int, as Integer.parseInt()
+	 * @throws NumberFormatException if the field is not an integer
+	 */
+	public int getInt(int field){
+		int i = starts[field];
+		int end = ends[field];
+		boolean negative = false;
+		if (i<end && (bytes[i]=='-' || bytes[i]=='+')){
+			negative = bytes[i]=='-';
+			i++;
+		}
+		if (i==end || end-i>10)
+			return Integer.parseInt(getString(field));		// empty or possibly out of range, let parseInt sort it out
+		long value = 0;
+		for (; i<end; i++){
+			int d = bytes[i]-'0';
+			if (d<0 || d>9)
+				throw new NumberFormatException("For input string: \""+getString(field)+"\"");
+			value = value*10+d;
+		}
+		if (negative)
+			value = -value;
+		if (value<Integer.MIN_VALUE || value>Integer.MAX_VALUE)
+			throw new NumberFormatException("For input string: \""+getString(field)+"\"");
+		return (int)value;
+	}
+
+	/**
+	 * The field as a String. <br>
+	 * If the field has the same bytes as in the previous call for this field index,
+	 * the same String object is returned, so that repeated values (e.g. chromosome names) are not re-created.
+	 */
+	public String getString(int field){
+		int s = starts[field];
+		int len = ends[field]-s;
+		byte[] last = lastBytes[field];
+		if (last!=null && last.length==len){
+			int k = 0;
+			while (k<len && last[k]==bytes[s+k])
+				k++;
+			if (k==len)
+				return lastStrings[field];
+		}
+		last = new byte[len];
+		System.arraycopy(bytes, s, last, 0, len);
+		lastBytes[field] = last;
+		lastStrings[field] = new String(last);
+		return lastStrings[field];
+	}
+
+	/**
+	 * The field as a chromosome name, as the BED readers have it: cut at the first '.', 
+	 * without the first "chr" and a leading '>'. <br>
+	 * The names are cached, so that the repeated names are not converted again.
+	 */
+	public String getChrom(int field){
+		String raw = getString(field);
+		String chr = chromNames.get(raw);
+		if (chr==null){
+			int dot = raw.indexOf('.');
+			chr = (dot==-1 ? raw : raw.substring(0, dot)).replaceFirst("chr", "").replaceFirst("^>", "");
+			chromNames.put(raw, chr);
+		}
+		return chr;
+	}
+
+	public void close() throws IOException {
+		channel.close();
+	}
+}
@@ -98,6 +98,15 @@ public class FileReadLoader extends ReadLoader{
 	}
 
 	public FileReadLoader(Genome g, List<File> f, String format, int maxMismatch, boolean useNonUnique, int rLen, int idSeed){
+		this(g, f, format, maxMismatch, useNonUnique, rLen, idSeed, 1, false);
+	}
+	
+	/**
+	 * @param numThreads number of threads to load each SAM/BAM file
+	 * @param useBamIndex load indexed BAM files one chromosome per thread
+	 */
+	public FileReadLoader(Genome g, List<File> f, String format, int maxMismatch, boolean useNonUnique, int rLen, int idSeed, 
+			int numThreads, boolean useBamIndex){
 		super(g, rLen);
 		
 		this.maxMismatch=maxMismatch;
@@ -110,7 +119,7 @@ public class FileReadLoader extends ReadLoader{
 		for(File file : files){
 			if(!file.isFile()){System.err.println("File not found: "+file.getName());System.exit(1);}
 			if(format.equals("SAM")){
-				SAMReader currReader = new SAMReader(file,gen,maxMismatch,useNonUnique, currID, chrom2ID, id2Chrom);
+				SAMReader currReader = new SAMReader(file,gen,maxMismatch,useNonUnique, currID, chrom2ID, id2Chrom, numThreads, useBamIndex);
 				fileReaders.add(currReader);
 				currID = currReader.getCurrID();
 			}else if(format.equals("TOPSAM")){
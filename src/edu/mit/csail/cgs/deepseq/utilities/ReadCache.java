@@ -1,9 +1,19 @@
 package edu.mit.csail.cgs.deepseq.utilities;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
@@ -12,6 +22,8 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.TreeMap;
 
+import cern.colt.list.FloatArrayList;
+import cern.colt.list.IntArrayList;
 import cern.jet.random.Poisson;
 import cern.jet.random.engine.DRand;
 
@@ -20,6 +32,7 @@ import edu.mit.csail.cgs.datasets.species.Genome;
 import edu.mit.csail.cgs.deepseq.StrandedBase;
 import edu.mit.csail.cgs.utils.probability.NormalDistribution;
 import edu.mit.csail.cgs.utils.Pair;
+import edu.mit.csail.cgs.utils.stats.StatUtil;
 import edu.mit.csail.cgs.datasets.general.Point;
 /**
  * Modify from AlignmentFileReader.java
@@ -54,6 +67,9 @@ public class ReadCache {
 	private int[] binCounts;			// histogram bins, index: count at bases; value: number of bases.
 	private int[] bin500Counts;			// histogram bins, index: count at bases; value: number of bases.
 	static final int BINSIZE = 501;
+	static final int RSC_MAGIC = 0x52534342;		// "RSCB", binary RSC file
+	static final int RSC_VERSION = 1;
+	private static final int RSC_MAP_CHUNK = 1<<30;		// bytes mapped at a time when reading a column
 	//Data structures for pre-loading
 	
 	/**
@@ -69,7 +85,7 @@ public class ReadCache {
 	 */
 	private int[][][] fivePrimes=null;
 	
-	private ArrayList<Integer>[][] fivePrimesList = null;
+	private IntArrayList[][] fivePrimesList = null;
 	
 	/**
 	 * Number of read hits that corresponds to the 5' position
@@ -79,7 +95,7 @@ public class ReadCache {
 	 */
 	private float[][][] hitCounts=null;
 	
-	private ArrayList<Float>[][] hitCountsList = null;
+	private FloatArrayList[][] hitCountsList = null;
 	
 	/**
 	 * Strands of the read hits
@@ -113,17 +129,23 @@ public class ReadCache {
 		fivePrimes    = new int[numChroms][2][];
 		hitCounts = new float[numChroms][2][];
 		
-		fivePrimesList = new ArrayList[numChroms][2];
-		for(int i = 0; i < fivePrimesList.length; i++) { for(int j = 0; j < fivePrimesList[i].length; j++) { fivePrimesList[i][j] = new ArrayList<Integer>(); } }
-		
-		hitCountsList = new ArrayList[numChroms][2];
-		for(int i = 0; i < hitCountsList.length; i++) { for(int j = 0; j < hitCountsList[i].length; j++) { hitCountsList[i][j] = new ArrayList<Float>(); } }
+		initLists();
 	}//end of ReadCache constructor
 	
+	private void initLists(){
+		fivePrimesList = new IntArrayList[numChroms][2];
+		for(int i = 0; i < fivePrimesList.length; i++) { for(int j = 0; j < fivePrimesList[i].length; j++) { fivePrimesList[i][j] = new IntArrayList(); } }
+		
+		hitCountsList = new FloatArrayList[numChroms][2];
+		for(int i = 0; i < hitCountsList.length; i++) { for(int j = 0; j < hitCountsList[i].length; j++) { hitCountsList[i][j] = new FloatArrayList(); } }
+	}
+	
 	public List<StrandedBase> getUnstrandedBases(Region r) {
-		List<StrandedBase> bases = new ArrayList<StrandedBase>();
-		bases.addAll(getStrandedBases(r,'+'));
-		bases.addAll(getStrandedBases(r,'-'));
+		StrandedBaseView plus = getStrandedView(r,'+');
+		StrandedBaseView minus = getStrandedView(r,'-');
+		List<StrandedBase> bases = new ArrayList<StrandedBase>(plus.size()+minus.size());
+		plus.addBasesTo(bases);
+		minus.addBasesTo(bases);
 		return bases;
 	}
 	/*
@@ -132,36 +154,47 @@ public class ReadCache {
 	 * We do not want to modify the readCaches, thus do it here on the fly
 	 */
 	public List<StrandedBase> getSubtractedBases(Region r, ReadCache ctrl, double ratio) {
-		List<StrandedBase> bases = new ArrayList<StrandedBase>();
+		StrandedBaseView plus = getSubtractedView(r, '+', ctrl, ratio);
+		StrandedBaseView minus = getSubtractedView(r, '-', ctrl, ratio);
+		List<StrandedBase> bases = new ArrayList<StrandedBase>(plus.size()+minus.size());
+		plus.addBasesTo(bases);
+		minus.addBasesTo(bases);
+		return bases;
+	}
+	
+	/**
+	 * Subtract the Ctrl counts (scaled by ratio) from the IP counts of the region, for one strand. <br>
+	 * The bases left with no positive count are dropped. 
+	 * The result is a new view, the readCaches are not modified.
+	 */
+	public StrandedBaseView getSubtractedView(Region r, char strand, ReadCache ctrl, double ratio) {
+		StrandedBaseView ip_view = getStrandedView(r, strand);
+		StrandedBaseView ctrl_view = ctrl.getStrandedView(r, strand);
+		int[] ip_coords = ip_view.coords();
+		float[] ip_counts = ip_view.counts();
+		int[] ctrl_coords = ctrl_view.coords();
+		float[] ctrl_counts = ctrl_view.counts();
+		int ctrl_end = ctrl_view.getOffset()+ctrl_view.size();
 		
-		for (int s=0;s<2;s++){
-			List<StrandedBase> ip_bases = getStrandedBases(r,s==0?'+':'-');
-			List<StrandedBase> ctrl_bases = ctrl.getStrandedBases(r,s==0?'+':'-');
-			int ctrl_idx = 0;
-			for (StrandedBase b: ip_bases){
-				while(ctrl_idx<ctrl_bases.size() && 
-						ctrl_bases.get(ctrl_idx).getCoordinate()<b.getCoordinate()){
-					ctrl_idx++;
-				}
-				if (ctrl_idx==ctrl_bases.size()){	// reach end of control reads
-					bases.add(b);
+		int[] coords = new int[ip_view.size()];
+		float[] counts = new float[ip_view.size()];
+		int n = 0;
+		int ctrl_idx = ctrl_view.getOffset();
+		for (int k=ip_view.getOffset(); k<ip_view.getOffset()+ip_view.size(); k++){
+			while(ctrl_idx<ctrl_end && ctrl_coords[ctrl_idx]<ip_coords[k])
+				ctrl_idx++;
+			float count = ip_counts[k];
+			// if there is control reads at the same position, subtract it
+			if (ctrl_idx<ctrl_end && ctrl_coords[ctrl_idx]==ip_coords[k]){
+				count = (float) (count - ctrl_counts[ctrl_idx]*ratio);
+				if (count<=0)
 					continue;
-				}
-					
-				// if there is control reads at the same position, subtract it
-				if ( ctrl_bases.get(ctrl_idx).getCoordinate()==b.getCoordinate()){
-					float count = (float) (b.getCount() - ctrl_bases.get(ctrl_idx).getCount()*ratio);
-					if (count>0){
-						b.setCount(count);
-						bases.add(b);
-					}
-				}
-				else{
-					bases.add(b);
-				}
 			}
+			coords[n] = ip_coords[k];
+			counts[n] = count;
+			n++;
 		}
-		return bases;
+		return new StrandedBaseView(strand, coords, counts, 0, n);
 	}
 	
 	/**
@@ -170,31 +203,41 @@ public class ReadCache {
 	 * @return
 	 */
 	public List<StrandedBase> getStrandedBases(Region r, char strand) {
-		List<StrandedBase> bases = new ArrayList<StrandedBase>();
-		String chr = r.getChrom();
-		int chrID = chrom2ID.get(chr);
-		int j = (strand=='+') ? 0 : 1;
-		int[] tempStarts = fivePrimes[chrID][j];		
-		if(tempStarts.length != 0) {
-			int start_ind = Arrays.binarySearch(tempStarts, r.getStart());
-			int end_ind   = Arrays.binarySearch(tempStarts, r.getEnd());
-			
-			if( start_ind < 0 ) { start_ind = -start_ind - 1; }
-			if( end_ind < 0 )   { end_ind   = -end_ind - 1; }
-			
-            while (start_ind > 0 && tempStarts[start_ind - 1] >= r.getStart() ) {
-                start_ind--;
-            }
-            while (end_ind < tempStarts.length && tempStarts[end_ind] <= r.getEnd()) {
-                end_ind++;
-            }
-			for(int k = start_ind; k < end_ind; k++) {
-				bases.add(new StrandedBase(strand, tempStarts[k], hitCounts[chrID][j][k]));
-			}	
-		}	
+		StrandedBaseView view = getStrandedView(r, strand);
+		List<StrandedBase> bases = new ArrayList<StrandedBase>(view.size());
+		view.addBasesTo(bases);
 		return bases;
 	}//end of getStrandedBases method
 	
+	/**
+	 * Returns a view of the hits in the region, on the cache arrays, without copying
+	 * @param r
+	 * @return
+	 */
+	public StrandedBaseView getStrandedView(Region r, char strand) {
+		int chrID = chrom2ID.get(r.getChrom());
+		int j = (strand=='+') ? 0 : 1;
+		int[] tempStarts = fivePrimes[chrID][j];
+		int start_ind = firstIndexAtLeast(tempStarts, r.getStart());
+		int end_ind = firstIndexAtLeast(tempStarts, r.getEnd()+1);
+		return new StrandedBaseView(strand, tempStarts, hitCounts[chrID][j], start_ind, end_ind-start_ind);
+	}
+	
+	/**
+	 * Index of the first element of the sorted array that is >= key (a.length if none)
+	 */
+	private static int firstIndexAtLeast(int[] a, int key){
+		int lo = 0, hi = a.length;
+		while (lo<hi){
+			int mid = (lo+hi)>>>1;
+			if (a[mid]<key)
+				lo = mid+1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+	
 	/**
 	 * Count hits in the region, both strands
 	 * @param r
@@ -205,28 +248,7 @@ public class ReadCache {
 	}
 	
     public float countStrandedBases(Region r, char strand) {
-		String chr = r.getChrom();
-		int chrID = chrom2ID.get(chr);
-		int j = (strand=='+') ? 0 : 1;
-		int[] tempStarts = fivePrimes[chrID][j];		
-        float count = 0;
-		if(tempStarts.length != 0) {
-			int start_ind = Arrays.binarySearch(tempStarts, r.getStart());
-			int end_ind   = Arrays.binarySearch(tempStarts, r.getEnd());
-			if( start_ind < 0 ) { start_ind = -start_ind - 1; }
-			if( end_ind < 0 )   { end_ind   = -end_ind - 1; }
-			
-            while (start_ind > 0 && tempStarts[start_ind - 1] >= r.getStart() ) {
-                start_ind--;
-            }
-            while (end_ind < tempStarts.length && tempStarts[end_ind] <= r.getEnd()) {
-                end_ind++;
-            }
-			for(int k = start_ind; k < end_ind; k++) {
-                count += hitCounts[chrID][j][k];
-            }
-        }
-        return count;
+    	return StrandedBaseView.countBaseHits(getStrandedView(r, strand));
     }
 
 	/**
@@ -253,10 +275,16 @@ public class ReadCache {
 	public void addHits(String chrom, char strand, Collection<Integer> coords, Collection<Float> counts){
 		int chrID   = chrom2ID.get(chrom);
 		int strandInd = strand == '+' ? 0 : 1;
-		fivePrimesList[chrID][strandInd].addAll(coords);
-		hitCountsList[chrID][strandInd].addAll(counts);
-		for (float c: counts)
-			totalHits += c;
+		IntArrayList coordList = fivePrimesList[chrID][strandInd];
+		FloatArrayList countList = hitCountsList[chrID][strandInd];
+		coordList.ensureCapacity(coordList.size()+coords.size());
+		countList.ensureCapacity(countList.size()+counts.size());
+		for (int coord: coords)
+			coordList.add(coord);
+		for (float count: counts){
+			countList.add(count);
+			totalHits += count;
+		}
 		totalBases += coords.size();
 	}//end of addHits method	
 	
@@ -277,7 +305,6 @@ public class ReadCache {
 						allPositions = mergeOrderedList(allPositions, tmp[i][j]);
 						tmp[i][j]=null;
 					}
-					System.gc();
 					if (allPositions==null || allPositions.length==0)
 						continue;
 					// consolidate counts of same bp position
@@ -297,13 +324,10 @@ public class ReadCache {
 					// add the last element
 					fivePrimesList[i][j].add(previous);				// now file reader stores 5' end
 					hitCountsList[i][j].add((float)count);
-					fivePrimesList[i][j].trimToSize();
-					hitCountsList[i][j].trimToSize();
 					
 					// update stats
 					totalBases += fivePrimesList[i][j].size();
-					for (float c: hitCountsList[i][j])
-						totalHits += c;
+					totalHits += allPositions.length;
 				}catch (Exception e){
 					System.err.println("Error: loading chomosome "+id2Chrom.get(i)+" "+(j==0?"+":"-")+" strand.");
 					e.printStackTrace(System.err);
@@ -330,24 +354,70 @@ public class ReadCache {
 	}//end of mergeOrderedList method
 	
 	/**
-	 * Converts lists of Integers to integer arrays, deletes the lists for saving memory. <br>
+	 * Converts the staging lists to int/float arrays, deletes the lists for saving memory. <br>
 	 * This is usually called after addHits() or addAllFivePrimes().
-	 * All array elements are ordered in terms of the <tt>five primes of reads</tt>.
+	 * All array elements are ordered in terms of the <tt>five primes of reads</tt>,
+	 * the counts of a 5' position added more than once are summed.
 	 */
 	public void populateArrays(boolean generateStats) {
 		for(int i = 0; i < fivePrimesList.length; i++)
-			for(int j = 0; j < fivePrimesList[i].length; j++)
-				fivePrimes[i][j] = list2int(fivePrimesList[i][j]);
+			for(int j = 0; j < fivePrimesList[i].length; j++){
+				IntArrayList coordList = fivePrimesList[i][j];
+				FloatArrayList countList = hitCountsList[i][j];
+				coordList.trimToSize();
+				countList.trimToSize();
+				fivePrimesList[i][j] = null;
+				hitCountsList[i][j] = null;
+				sortAndMerge(i, j, coordList.elements(), countList.elements());
+			}
 		fivePrimesList = null;
-		for(int i = 0; i < hitCountsList.length; i++)
-			for(int j = 0; j < hitCountsList[i].length; j++)
-				hitCounts[i][j] = list2float(hitCountsList[i][j]);
 		hitCountsList = null;
 		System.gc();
 		if (generateStats)
 			generateStats();
 	}//end of populateArrays method
 	
+	/**
+	 * Sort the 5' positions (with their counts) if they are not sorted yet,
+	 * then merge the counts of the repeated positions
+	 */
+	private void sortAndMerge(int chrID, int strandInd, int[] coords, float[] counts){
+		boolean sorted = true;
+		boolean distinct = true;
+		for (int k=1;k<coords.length;k++){
+			if (coords[k]<coords[k-1]){
+				sorted = false;
+				break;
+			}
+			if (coords[k]==coords[k-1])
+				distinct = false;
+		}
+		if (!sorted){
+			int[] inds = StatUtil.findSort(coords);
+			counts = StatUtil.permute(counts, inds);
+			distinct = false;
+		}
+		if (!distinct){
+			int m = 0;
+			for (int k=0;k<coords.length;k++){
+				if (m>0 && coords[m-1]==coords[k])
+					counts[m-1] += counts[k];
+				else{
+					coords[m] = coords[k];
+					counts[m] = counts[k];
+					m++;
+				}
+			}
+			if (m<coords.length){
+				totalBases -= coords.length-m;
+				coords = Arrays.copyOf(coords, m);
+				counts = Arrays.copyOf(counts, m);
+			}
+		}
+		fivePrimes[chrID][strandInd] = coords;
+		hitCounts[chrID][strandInd] = counts;
+	}
+	
 	public void generateStats() {
 		// count readHit numbers in 1bp bins
 		int max = 200;
@@ -510,20 +580,6 @@ public class ReadCache {
 				for(int k = 0; k < hitCounts[i][j].length; k++)
 					totalHits += hitCounts[i][j][k];
 	}
-	private int[] list2int(List<Integer> list) {
-		int[] out = new int[list.size()];
-		for(int i = 0; i < out.length; i++)
-			out[i] = list.get(i);
-		return out;
-	}
-	
-	private float[] list2float(List<Float> list) {
-		float[] out = new float[list.size()];
-		for(int i = 0; i < out.length; i++)
-			out[i] = list.get(i);
-		return out;
-	}	
-	
 	//Accessors	
 	/**
 	 * get the total number of hits (of the all alignment/files)
@@ -550,11 +606,7 @@ public class ReadCache {
 	}
 	
 	public void deleteUnenrichedReadData(ArrayList<Region> enrichedRegions){
-		fivePrimesList = new ArrayList[numChroms][2];
-		for(int i = 0; i < fivePrimesList.length; i++) { for(int j = 0; j < fivePrimesList[i].length; j++) { fivePrimesList[i][j] = new ArrayList<Integer>(); } }
-		hitCountsList = new ArrayList[numChroms][2];
-		for(int i = 0; i < hitCountsList.length; i++) { for(int j = 0; j < hitCountsList[i].length; j++) { hitCountsList[i][j] = new ArrayList<Float>(); } }
-
+		initLists();
 		for(Region r:enrichedRegions){
 			int chrID   = chrom2ID.get(r.getChrom());
 			for (int strandInd=0; strandInd<=1;strandInd++){
@@ -597,27 +649,107 @@ public class ReadCache {
 		return binCounts.length;
 	}
 	/** 
-	 * Write Read Start Count (RSC) file
+	 * Write Read Start Count (RSC) file, in the binary format (see readRSC())
 	 */
 	public void writeRSC(){
-		StringBuilder sb = new StringBuilder();
-		for(int i = 0; i < hitCounts.length; i++){
-			String chrom = id2Chrom.get(i);
-			for(int j = 0; j < hitCounts[i].length; j++){
-				StringBuilder sb_sub = new StringBuilder();
-				char strand = j==0?'+':'-';
-				int subCount = hitCounts[i][j].length;
-				if (subCount>0){
-					for(int k = 0; k < subCount; k++){
-						sb_sub.append(String.format("%d\t%.1f\n",  fivePrimes[i][j][k], hitCounts[i][j][k]));
-					}
-					sb.append(String.format("%s\t%c\t%d\n",  chrom, strand, subCount));
-					sb.append(sb_sub).append("\n");
+		// header: chrom/strand entries, each pointing to its data columns
+		ArrayList<String> chroms = new ArrayList<String>();
+		ArrayList<Integer> strands = new ArrayList<Integer>();
+		for(int i = 0; i < hitCounts.length; i++)
+			for(int j = 0; j < hitCounts[i].length; j++)
+				if (hitCounts[i][j].length>0){
+					chroms.add(id2Chrom.get(i));
+					strands.add(i*2+j);
+				}
+		// write to a temporary file, so that a failed write doesn't leave a broken .rsc to be read later
+		File file = new File(name.trim()+".rsc");
+		File tmp = new File(name.trim()+".rsc.tmp");
+		FileOutputStream fos = null;
+		boolean written = false;
+		try{
+			byte[] header = rscHeader(chroms, strands, 0);
+			header = rscHeader(chroms, strands, header.length);
+			
+			fos = new FileOutputStream(tmp);
+			FileChannel fc = fos.getChannel();
+			fc.write(ByteBuffer.wrap(header));
+			ByteBuffer buf = ByteBuffer.allocateDirect(1<<20);
+			for (int e=0;e<strands.size();e++){
+				int i = strands.get(e)/2;
+				int j = strands.get(e)%2;
+				int[] pos = fivePrimes[i][j];
+				for (int k=0;k<pos.length;){
+					int n = Math.min(pos.length-k, buf.capacity()/4);
+					buf.clear();
+					buf.asIntBuffer().put(pos, k, n);
+					buf.limit(n*4);
+					while (buf.hasRemaining())
+						fc.write(buf);
+					k += n;
+				}
+				float[] counts = hitCounts[i][j];
+				for (int k=0;k<counts.length;){
+					int n = Math.min(counts.length-k, buf.capacity()/4);
+					buf.clear();
+					buf.asFloatBuffer().put(counts, k, n);
+					buf.limit(n*4);
+					while (buf.hasRemaining())
+						fc.write(buf);
+					k += n;
 				}
 			}
+			fos.close();		// also closes the channel
+			fos = null;
+			if (file.exists() && !file.delete())
+				throw new IOException("Can't replace "+file);
+			if (!tmp.renameTo(file))
+				throw new IOException("Can't rename "+tmp+" to "+file);
+			written = true;
+		}
+		catch (IOException e) {
+			e.printStackTrace();
 		}
-		CommonUtils.writeFile(name.trim()+".rsc", sb.toString());
+		finally{
+			if (fos!=null){
+				try{
+					fos.close();
+				}
+				catch (IOException e){
+					// already failed, the file is removed below
+				}
+			}
+			if (!written)
+				tmp.delete();
+		}
+	}
+	
+	/**
+	 * Binary RSC header, the data offsets are computed from <tt>headerLength</tt>
+	 */
+	private byte[] rscHeader(ArrayList<String> chroms, ArrayList<Integer> strands, int headerLength) throws IOException{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(RSC_MAGIC);
+		out.writeInt(RSC_VERSION);
+		out.writeDouble(totalHits);
+		out.writeLong(totalBases);
+		out.writeInt(strands.size());
+		long offset = headerLength;
+		for (int e=0;e<strands.size();e++){
+			int i = strands.get(e)/2;
+			int j = strands.get(e)%2;
+			out.writeUTF(chroms.get(e));
+			out.writeByte(j==0?'+':'-');
+			out.writeInt(fivePrimes[i][j].length);
+			out.writeLong(offset);
+			offset += 8L*fivePrimes[i][j].length;
+		}
+		while (out.size()%4!=0)			// keep the data columns aligned
+			out.writeByte(0);
+		out.flush();
+		return bytes.toByteArray();
 	}
+	
 	/** 
 	 * Write genetrack format file
 	 * # genetrack tab-delimited file lists the gnomic coordinates (chrome and index) of the 5' ends of sequencing tags on the forward and reverse strands.
@@ -662,19 +794,120 @@ public class ReadCache {
 		
 	}
 	/** 
-	 * Read Read Start Count (RSC) file
+	 * Read Read Start Count (RSC) file. <br>
+	 * The binary format (written by writeRSC()) is, in Java (big-endian) byte order: <br>
+	 * int magic, int version, double totalHits, long totalBases, int entryCount, <br>
+	 * then for each chrom/strand entry: UTF chrom name, byte strand, int baseCount, long dataOffset, <br>
+	 * padded to 4 bytes. The data of an entry is baseCount int 5' positions
+	 * followed by baseCount float counts, starting at dataOffset. <br>
+	 * The data columns are memory-mapped and copied without parsing. <br>
+	 * The old text format (chrom/strand/count header lines followed by position/count lines) is still read.
 	 */
 	public void readRSC(String filename) throws IOException{
-		BufferedReader bin = null;
-        bin = new BufferedReader(new InputStreamReader(new FileInputStream(filename)));
-		
 		for(int i = 0; i < fivePrimes.length; i++){
 			for(int j = 0; j < fivePrimes[i].length; j++){
 				fivePrimes[i][j] = new int[0];
 				hitCounts[i][j] = new float[0];
 			}
 		}
-
+		totalHits = 0;
+		totalBases = 0;
+		
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filename)));
+		int magic;
+		try{
+			magic = in.readInt();
+		}
+		catch (EOFException e){
+			magic = 0;
+		}
+		if (magic!=RSC_MAGIC){
+			in.close();
+			readTextRSC(filename);
+			return;
+		}
+		
+		int version = in.readInt();
+		if (version!=RSC_VERSION){
+			in.close();
+			throw new IOException("Unsupported RSC file version "+version+" in "+filename);
+		}
+		double fileTotalHits = in.readDouble();
+		long fileTotalBases = in.readLong();
+		int entryCount = in.readInt();
+		int[] chrIDs = new int[entryCount];
+		int[] strandInds = new int[entryCount];
+		int[] baseCounts = new int[entryCount];
+		long[] offsets = new long[entryCount];
+		boolean skipped = false;
+		for (int e=0;e<entryCount;e++){
+			String chrom = in.readUTF();
+			strandInds[e] = in.readByte()=='+'?0:1;
+			baseCounts[e] = in.readInt();
+			offsets[e] = in.readLong();
+			Integer id = chrom2ID.get(chrom);
+			chrIDs[e] = id==null ? -1 : id;
+			if (id==null){
+				System.err.println("RSC file "+filename+": chromosome "+chrom+" is not in the genome, skipped.");
+				skipped = true;
+			}
+		}
+		in.close();
+		
+		RandomAccessFile raf = new RandomAccessFile(filename, "r");
+		FileChannel fc = raf.getChannel();
+		try{
+			for (int e=0;e<entryCount;e++){
+				if (chrIDs[e]==-1)
+					continue;
+				int count = baseCounts[e];
+				int[] coords = new int[count];
+				float[] counts = new float[count];
+				readRSCInts(fc, offsets[e], coords);
+				readRSCFloats(fc, offsets[e]+4L*count, counts);
+				fivePrimes[chrIDs[e]][strandInds[e]] = coords;
+				hitCounts[chrIDs[e]][strandInds[e]] = counts;
+				totalBases += count;
+			}
+		}
+		finally{
+			fc.close();
+			raf.close();
+		}
+		if (skipped)
+			updateTotalHits();
+		else{
+			totalHits = fileTotalHits;
+			totalBases = (int)fileTotalBases;
+		}
+	}
+	
+	/**
+	 * Read an int column of the binary RSC file starting at <tt>offset</tt>. <br>
+	 * The column is mapped RSC_MAP_CHUNK bytes at a time, a single mapping can't be over 2GB.
+	 */
+	private static void readRSCInts(FileChannel fc, long offset, int[] values) throws IOException{
+		for (int k=0;k<values.length;){
+			int n = Math.min(values.length-k, RSC_MAP_CHUNK/4);
+			fc.map(FileChannel.MapMode.READ_ONLY, offset+4L*k, 4L*n).asIntBuffer().get(values, k, n);
+			k += n;
+		}
+	}
+	private static void readRSCFloats(FileChannel fc, long offset, float[] values) throws IOException{
+		for (int k=0;k<values.length;){
+			int n = Math.min(values.length-k, RSC_MAP_CHUNK/4);
+			fc.map(FileChannel.MapMode.READ_ONLY, offset+4L*k, 4L*n).asFloatBuffer().get(values, k, n);
+			k += n;
+		}
+	}
+	
+	/** 
+	 * Read the text Read Start Count (RSC) file, used before the binary format
+	 */
+	private void readTextRSC(String filename) throws IOException{
+		BufferedReader bin = null;
+        bin = new BufferedReader(new InputStreamReader(new FileInputStream(filename)));
+		
         int[] currentCoords = null;
         float[] currentCounts = null;
         int idx = -1;
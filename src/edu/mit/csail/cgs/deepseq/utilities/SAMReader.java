@@ -1,10 +1,16 @@
 package edu.mit.csail.cgs.deepseq.utilities;
 
 import java.io.File;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
-import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import net.sf.samtools.SAMFileReader;
 import net.sf.samtools.SAMRecord;
@@ -14,17 +20,41 @@ import net.sf.samtools.SAMFileReader.ValidationStringency;
 import net.sf.samtools.util.CloseableIterator;
 
 import edu.mit.csail.cgs.datasets.species.Genome;
-import edu.mit.csail.cgs.deepseq.Read;
-import edu.mit.csail.cgs.deepseq.ReadHit;
 
+/**
+ * Loads SAM/BAM files. <br>
+ * The records are decoded on one thread and handed in batches to worker threads, 
+ * which find the chromosome, strand and 5' end of each hit. The batches are merged in file order, 
+ * so the loaded hits do not depend on the number of threads. <br>
+ * With <tt>useIndex</tt>, an indexed BAM file is loaded one chromosome per thread instead, 
+ * unless its reads have several alignments (then the file is read as a whole, so the weights are the same).
+ */
 public class SAMReader extends AlignmentFileReader{
+	private static final int BATCH_SIZE = 4096;
+	/** number of threads to load a file, including the decoding thread */
+	private int numThreads = 1;
+	/** load the chromosomes in parallel through the BAM index, if the file has one */
+	private boolean useIndex = false;
+	
 	public SAMReader(File f){
 		super(f);
 	}
 
     public SAMReader(File f, Genome g, int mis, boolean nonUnique, int idSeed,
 			HashMap<String, Integer> chrom2ID, HashMap<Integer,String> id2Chrom) {
-	super(f, g, mis, nonUnique, idSeed, chrom2ID, id2Chrom);
+	this(f, g, mis, nonUnique, idSeed, chrom2ID, id2Chrom, 1, false);
+    }
+    
+    /**
+     * @param numThreads number of threads to load the file, including the decoding thread
+     * @param useIndex load the chromosomes in parallel through the BAM index, if the file has one
+     */
+    public SAMReader(File f, Genome g, int mis, boolean nonUnique, int idSeed,
+			HashMap<String, Integer> chrom2ID, HashMap<Integer,String> id2Chrom, int numThreads, boolean useIndex) {
+	super(f, g, mis, nonUnique, idSeed, chrom2ID, id2Chrom, false);
+	this.numThreads = Math.max(1, numThreads);
+	this.useIndex = useIndex;
+	load();
     }
     
 	protected void estimateGenome(File f) {
@@ -60,36 +90,69 @@ public class SAMReader extends AlignmentFileReader{
 		
 		SAMFileReader reader = new SAMFileReader(inFile);
 		reader.setValidationStringency(ValidationStringency.LENIENT);
-		CloseableIterator<SAMRecord> iter = reader.iterator();
-		Collection<SAMRecord> byRead = new ArrayList<SAMRecord>();
-		String lastread = null;
-		while (iter.hasNext()) {
-		    currID++;
-		    SAMRecord record = iter.next();
-		    if(readLength ==-1)
-		    	readLength = record.getReadLength();
-		    
-		    if (record.getReadUnmappedFlag()) {
-		    	continue; 
-		    }
-		    if (lastread == null || !lastread.equals(record.getReadName())) {
-		    	processRead(byRead);
-		    	byRead.clear();
-		    }
-		    lastread = record.getReadName();
-		    byRead.add(record);
+		SAMSequenceDictionary dictionary = reader.getFileHeader().getSequenceDictionary();
+		int[] refChromIDs = getRefChromIDs(dictionary);
+		if (useIndex && numThreads>1 && reader.hasIndex() && dictionary!=null){
+			if (countReadsByChrom(dictionary, refChromIDs)){
+				reader.close();
+				populateArrays();
+				return;
+			}
+			System.out.print("(multi-mapped reads, not using the BAM index) ");
+		}
+		
+		// this thread decodes the records and groups them by read, the workers find the 5' ends
+		ExecutorService pool = numThreads>1 ? Executors.newFixedThreadPool(numThreads-1) : null;
+		ArrayDeque<Future<RecordBatch>> pending = new ArrayDeque<Future<RecordBatch>>();
+		RecordBatch batch = new RecordBatch(refChromIDs);
+		try{
+			CloseableIterator<SAMRecord> iter = reader.iterator();
+			Collection<SAMRecord> byRead = new ArrayList<SAMRecord>();
+			String lastread = null;
+			while (iter.hasNext()) {
+			    currID++;
+			    SAMRecord record = iter.next();
+			    if(readLength ==-1)
+			    	readLength = record.getReadLength();
 			    
+			    if (record.getReadUnmappedFlag()) {
+			    	continue; 
+			    }
+			    if (lastread == null || !lastread.equals(record.getReadName())) {
+			    	batch = processRead(byRead, batch, pending, pool);
+			    	byRead.clear();
+			    }
+			    lastread = record.getReadName();
+			    byRead.add(record);
+				    
+			}
+			batch = processRead(byRead, batch, pending, pool);
+			submit(batch, pending, pool);
+			while (!pending.isEmpty())
+				addHits(pending.poll().get());
+			iter.close();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Error: loading reads from "+inFile.getName(), e.getCause());
+		} finally {
+			if (pool!=null)
+				pool.shutdownNow();
+			reader.close();
 		}
-		processRead(byRead);
-		iter.close();
-		reader.close();
 		populateArrays();
     }//end of countReads method
     
-    protected void processRead(Collection<SAMRecord> records) {
+    /**
+     * Adds the hits of one read to the batch, the full batches are handed to the workers. <br>
+     * Returns the batch to continue with.
+     */
+    private RecordBatch processRead(Collection<SAMRecord> records, RecordBatch batch, 
+    		ArrayDeque<Future<RecordBatch>> pending, ExecutorService pool) throws InterruptedException, ExecutionException {
         int mapcount = records.size();
         if (mapcount == 0) {
-            return;
+            return batch;
         }
 //        if (!useNonUnique && mapcount > 1) {		// old code: this will ignore paired-end reads
 //            return;
@@ -105,31 +168,261 @@ public class SAMReader extends AlignmentFileReader{
     	
     	if (!useNonUnique) {		// accepting only uniquely-mapped reads 
         	if (!paired && mapcount > 1)
-        		return;
+        		return batch;
         }
         
-        float weight = 1 / ((float)mapcount);
-        if (paired)
-        	weight = 1;
-        Read currRead = new Read((int)totalWeight);
+        // the hit weight is 1/mapcount, also for paired reads (as Read.setNumHits() used to set it)
+        float weight = (float)(1 / (double)mapcount);
 		for (SAMRecord record : records) {
-		    int start = record.getAlignmentStart();
-		    int end = record.getAlignmentEnd();
-		    ReadHit currHit = new ReadHit(gen,
-						  currID,
-						  record.getReferenceName().replaceFirst("^chr", ""), 
-						  start, end, 
-						  record.getReadNegativeStrandFlag() ? '-' : '+',
-						  weight);
-		    currRead.addHit(currHit);
+			if (batch.isFull()){
+				submit(batch, pending, pool);
+				batch = new RecordBatch(batch.refChromIDs);
+			}
+			batch.add(record, weight, currID);
 		    currID++;
 		}
-		currRead.setNumHits(mapcount);
-		addHits(currRead);
 		if (paired)
 			totalWeight+=mapcount;
 		else
 			totalWeight++;
+		return batch;
     }//end of processRead
-
+    
+    /**
+     * Hands the batch to a worker (or converts it in place without workers), 
+     * the oldest batches are merged while too many are pending.
+     */
+    private void submit(RecordBatch batch, ArrayDeque<Future<RecordBatch>> pending, ExecutorService pool) 
+    		throws InterruptedException, ExecutionException {
+    	if (pool==null){
+    		addHits(batch.call());
+    		return;
+    	}
+    	pending.add(pool.submit(batch));
+    	// keep the batches in file order, and bound the records held in memory
+    	while (pending.size() > 2*numThreads)
+    		addHits(pending.poll().get());
+    }
+    
+    /**
+     * Loads each chromosome with its own reader through the BAM index. <br>
+     * Reads are grouped within a chromosome, and the hit IDs are numbered in chromosome order. <br>
+     * Returns false, without adding any hits, if a read may be grouped across chromosomes when reading 
+     * the whole file: it has secondary alignments, or the same read ends one chromosome and starts the next.
+     */
+    private boolean countReadsByChrom(SAMSequenceDictionary dictionary, final int[] refChromIDs) {
+    	ArrayList<String> refNames = new ArrayList<String>();
+    	for(SAMSequenceRecord record : dictionary.getSequences())		// all of them, the total weight counts the reads on every chromosome
+    		refNames.add(record.getSequenceName());
+    	
+    	ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+    	ArrayList<Future<ChromHits>> futures = new ArrayList<Future<ChromHits>>();
+    	for (final String refName : refNames){
+    		futures.add(pool.submit(new Callable<ChromHits>(){
+    			public ChromHits call(){
+    				return loadChrom(refName, refChromIDs);
+    			}
+    		}));
+    	}
+    	ArrayList<ChromHits> chroms = new ArrayList<ChromHits>();
+    	try{
+    		String lastread = null;
+	    	for (Future<ChromHits> f : futures){
+	    		ChromHits hits = f.get();
+	    		if (hits.multiMapped || (lastread!=null && lastread.equals(hits.firstRead)))
+	    			return false;
+	    		if (hits.lastRead!=null)
+	    			lastread = hits.lastRead;
+	    		chroms.add(hits);
+	    	}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Error: loading reads from "+inFile.getName(), e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+    	for (ChromHits hits : chroms){
+    		if(readLength ==-1)
+    			readLength = hits.readLength;
+    		RecordBatch batch = hits.batch;
+    		for (int k=0; k<batch.size; k++)
+    			batch.ids[k] += currID;
+    		currID += hits.numRecords+hits.numHits;
+    		totalWeight += hits.weight;
+    		addHits(batch);
+    	}
+    	return true;
+    }
+    
+    private ChromHits loadChrom(String refName, int[] refChromIDs){
+    	ChromHits hits = new ChromHits(refChromIDs);
+		SAMFileReader reader = new SAMFileReader(inFile);
+		reader.setValidationStringency(ValidationStringency.LENIENT);
+		CloseableIterator<SAMRecord> iter = reader.queryOverlapping(refName, 0, 0);
+		ArrayList<SAMRecord> byRead = new ArrayList<SAMRecord>();
+		String lastread = null;
+		while (iter.hasNext()) {
+		    hits.numRecords++;
+		    SAMRecord record = iter.next();
+		    if(hits.readLength ==-1)
+		    	hits.readLength = record.getReadLength();
+		    if (record.getReadUnmappedFlag()) {
+		    	continue; 
+		    }
+		    Integer nh = record.getIntegerAttribute("NH");
+		    if (record.getNotPrimaryAlignmentFlag() || (nh!=null && nh>1)){
+		    	hits.multiMapped = true;		// the other alignments may be on other chromosomes
+		    	break;
+		    }
+		    if (hits.firstRead == null)
+		    	hits.firstRead = record.getReadName();
+		    if (lastread == null || !lastread.equals(record.getReadName())) {
+		    	hits.addRead(byRead);
+		    	byRead.clear();
+		    }
+		    lastread = record.getReadName();
+		    byRead.add(record);
+		}
+		hits.addRead(byRead);
+		hits.lastRead = lastread;
+		iter.close();
+		reader.close();
+		hits.batch.call();
+		return hits;
+    }
+    
+    /**
+     * Appends the hits of a converted batch to the lists, in batch order
+     */
+    private void addHits(RecordBatch batch){
+    	for (int k=0; k<batch.size; k++){
+    		int chrStrand = batch.chrStrands[k];
+    		if (chrStrand==-1)		// chromosome not in the genome
+    			continue;
+    		int chrID = chrStrand>>1;
+    		int strandInd = chrStrand&1;
+    		fivePrimeList[chrID][strandInd].add(batch.fivePrimes[k]);
+    		hitIDsList[chrID][strandInd].add(batch.ids[k]);
+    		hitCountsList[chrID][strandInd].add(batch.weights[k]);
+    		totalHits++;
+    	}
+    }
+    
+    /**
+     * Maps the index of each reference sequence of the header to the chromosome ID (-1 if not in the genome)
+     */
+    private int[] getRefChromIDs(SAMSequenceDictionary dictionary){
+    	if (dictionary==null)
+    		return new int[0];
+    	int[] refChromIDs = new int[dictionary.size()];
+    	for(SAMSequenceRecord record : dictionary.getSequences()){
+    		String chr = record.getSequenceName().replaceFirst("^chr", "");
+    		refChromIDs[record.getSequenceIndex()] = chrom2ID.containsKey(chr) ? chrom2ID.get(chr) : -1;
+    	}
+    	return refChromIDs;
+    }
+    
+    /**
+     * A batch of mapped records with their weights and hit IDs. <br>
+     * call() converts the records to chromosome/strand and 5' positions, and drops the records.
+     */
+    private class RecordBatch implements Callable<RecordBatch> {
+    	final int[] refChromIDs;
+    	SAMRecord[] records = new SAMRecord[BATCH_SIZE];
+    	float[] weights = new float[BATCH_SIZE];
+    	int[] ids = new int[BATCH_SIZE];
+    	int[] chrStrands = new int[BATCH_SIZE];		// chrID*2 + strand index
+    	int[] fivePrimes = new int[BATCH_SIZE];
+    	int size = 0;
+    	
+    	RecordBatch(int[] refChromIDs){
+    		this.refChromIDs = refChromIDs;
+    	}
+    	
+    	boolean isFull(){ return size==records.length; }
+    	
+    	void add(SAMRecord record, float weight, int id){
+    		if (isFull()){
+    			int length = size*2;
+    			records = Arrays.copyOf(records, length);
+    			weights = Arrays.copyOf(weights, length);
+    			ids = Arrays.copyOf(ids, length);
+    			chrStrands = Arrays.copyOf(chrStrands, length);
+    			fivePrimes = Arrays.copyOf(fivePrimes, length);
+    		}
+    		records[size] = record;
+    		weights[size] = weight;
+    		ids[size] = id;
+    		size++;
+    	}
+    	
+    	public RecordBatch call(){
+    		for (int k=0; k<size; k++){
+    			SAMRecord record = records[k];
+    			int chrID = getChromID(record);
+    			if (chrID==-1){
+    				chrStrands[k] = -1;
+    			}
+    			else if (record.getReadNegativeStrandFlag()){
+    				chrStrands[k] = chrID*2+1;
+    				fivePrimes[k] = record.getAlignmentEnd();
+    			}
+    			else{
+    				chrStrands[k] = chrID*2;
+    				fivePrimes[k] = record.getAlignmentStart();
+    			}
+    			records[k] = null;
+    		}
+    		records = null;
+    		return this;
+    	}
+    	
+    	private int getChromID(SAMRecord record){
+    		Integer refIndex = record.getReferenceIndex();
+    		if (refIndex!=null && refIndex>=0 && refIndex<refChromIDs.length)
+    			return refChromIDs[refIndex];
+    		String chr = record.getReferenceName().replaceFirst("^chr", "");		// no sequence dictionary
+    		return chrom2ID.containsKey(chr) ? chrom2ID.get(chr) : -1;
+    	}
+    }
+    
+    /**
+     * The hits of one chromosome, loaded through the BAM index
+     */
+    private class ChromHits {
+    	RecordBatch batch;
+    	int numRecords = 0;
+    	int numHits = 0;
+    	int readLength = -1;
+    	double weight = 0;
+    	String firstRead = null;		// the first and last mapped reads, to check the chromosome boundaries
+    	String lastRead = null;
+    	boolean multiMapped = false;
+    	
+    	ChromHits(int[] refChromIDs){
+    		batch = new RecordBatch(refChromIDs);
+    	}
+    	
+    	// same read filtering and weights as processRead(), the hit IDs are offset in countReadsByChrom()
+    	void addRead(Collection<SAMRecord> records){
+            int mapcount = records.size();
+            if (mapcount == 0)
+                return;
+            boolean paired = false;
+        	for (SAMRecord record : records) {
+        		if (record.getReadPairedFlag()){
+        			paired = true;
+        			break;
+        		}
+        	}        
+        	if (!useNonUnique && !paired && mapcount > 1)
+        		return;
+            float weight = (float)(1 / (double)mapcount);
+    		for (SAMRecord record : records)
+    			batch.add(record, weight, numHits++);
+    		this.weight += paired ? mapcount : 1;
+    	}
+    }
 }
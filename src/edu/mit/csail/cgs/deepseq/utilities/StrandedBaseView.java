@@ -0,0 +1,81 @@
+package edu.mit.csail.cgs.deepseq.utilities;
+
+import java.util.List;
+
+import edu.mit.csail.cgs.deepseq.StrandedBase;
+
+/**
+ * A read-only view of the stranded bases of a region, as returned by ReadCache. <br>
+ * It exposes the slice [offset, offset+length) of the 5' position and count arrays
+ * without copying them or creating a <tt>StrandedBase</tt> for each base. <br>
+ * The arrays may be shared with the ReadCache, callers must not modify them.
+ */
+public class StrandedBaseView {
+	private char strand;
+	private int[] coords;
+	private float[] counts;
+	private int offset;
+	private int length;
+
+	StrandedBaseView(char strand, int[] coords, float[] counts, int offset, int length){
+		this.strand = strand;
+		this.coords = coords;
+		this.counts = counts;
+		this.offset = offset;
+		this.length = length;
+	}
+
+	public char getStrand(){return strand;}
+	public int size(){return length;}
+	public boolean isEmpty(){return length==0;}
+	/** index of the first base of this view in coords() and counts() */
+	public int getOffset(){return offset;}
+	/** backing array of 5' positions, only [offset, offset+size) belongs to this view */
+	public int[] coords(){return coords;}
+	/** backing array of counts, only [offset, offset+size) belongs to this view */
+	public float[] counts(){return counts;}
+
+	public int getCoordinate(int i){return coords[offset+i];}
+	public float getCount(int i){return counts[offset+i];}
+
+	/**
+	 * Sum the counts of the views, in the order of the views and the bases
+	 * (the same summation as StrandedBase.countBaseHits() on the materialized bases)
+	 */
+	public static float countBaseHits(StrandedBaseView... views){
+		float count = 0;
+		for (StrandedBaseView v: views)
+			for (int k=v.offset; k<v.offset+v.length; k++)
+				count += v.counts[k];
+		return count;
+	}
+
+	/**
+	 * Pack a list of bases into one view per strand, plus strand first, keeping the order of the bases in each strand
+	 */
+	public static StrandedBaseView[] fromBases(List<StrandedBase> bases){
+		int n = bases.size();
+		int[] coords = new int[n];
+		float[] counts = new float[n];
+		int numPlus = 0;
+		for (StrandedBase b: bases)
+			if (b.getStrand()=='+')
+				numPlus++;
+		int p = 0, m = numPlus;
+		for (StrandedBase b: bases){
+			int k = b.getStrand()=='+' ? p++ : m++;
+			coords[k] = b.getCoordinate();
+			counts[k] = b.getCount();
+		}
+		return new StrandedBaseView[]{new StrandedBaseView('+', coords, counts, 0, numPlus),
+									  new StrandedBaseView('-', coords, counts, numPlus, n-numPlus)};
+	}
+
+	/**
+	 * Materialize the bases of this view, for code that still needs <tt>StrandedBase</tt> objects
+	 */
+	public void addBasesTo(List<StrandedBase> bases){
+		for (int k=offset; k<offset+length; k++)
+			bases.add(new StrandedBase(strand, coords[k], counts[k]));
+	}
+}
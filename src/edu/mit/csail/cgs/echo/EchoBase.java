@@ -128,7 +128,7 @@ public class EchoBase {
 			if(proc != null) { procs.add(proc); }
 		}
 		
-		EchoScheduler sched = new EchoScheduler(procs);
+		EchoScheduler sched = new EchoScheduler(procs, Runtime.getRuntime().availableProcessors());
 		Thread t = new Thread(sched);
 		t.start();
 	}
@@ -63,6 +63,39 @@ public class EchoProcessor {
 	
 	public SelfDescribingVerb getVerb() { return verb; }
 	
+	/**
+	 * Sets the capacity of the output queues, see EchoQueue.setCapacity()
+	 */
+	public void setOutputCapacity(int c) { 
+		for(EchoQueue q : outputs) { q.setCapacity(c); }
+	}
+	
+	/**
+	 * A processor is blocked when any of its output queues is full; 
+	 * it shouldn't be run until the processors downstream catch up.
+	 */
+	public boolean isBlocked() { 
+		for(EchoQueue q : outputs) { 
+			if(q.isFull()) { 
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * The number of values waiting in the input queues.
+	 */
+	public int getInputDepth() { 
+		int depth = 0;
+		for(InputQueue inp : inputs) { 
+			if(inp instanceof EchoQueue) { 
+				depth += ((EchoQueue)inp).size();
+			}
+		}
+		return depth;
+	}
+	
 	public void finish() { 
         System.out.println("\t\tFinishing : " + verb.getClass().getName());
         
@@ -7,21 +7,41 @@ public class EchoQueue<X> implements InputQueue<X> {
 	private LinkedList<X> internalList;
 	private boolean finished;
 	private boolean expanding;
+	private int capacity;
 	
 	public EchoQueue() { 
 		internalList = new LinkedList<X>();
 		finished = false;
 		expanding = true;
+		capacity = 0;
 	}
 	
 	public EchoQueue(boolean exp) { 
 		internalList = new LinkedList<X>();
 		finished = false;
 		expanding = exp;
+		capacity = 0;
 	}
 	
 	public boolean isExpanding() { return expanding; }
 	
+	/**
+	 * Sets the number of values at which the queue counts as full, 0 for no limit.  
+	 * This is a soft limit: addValue() never refuses a value, but the EchoScheduler 
+	 * holds back the processor that writes to a full queue until it is drained.
+	 */
+	public synchronized void setCapacity(int c) { 
+		capacity = c;
+	}
+	
+	public synchronized boolean isFull() { 
+		return capacity > 0 && internalList.size() >= capacity;
+	}
+	
+	public synchronized int size() { 
+		return internalList.size();
+	}
+	
 	/* (non-Javadoc)
 	 * @see edu.mit.csail.cgs.echo.InputQueue#isFinished()
 	 */
@@ -4,6 +4,12 @@
 package edu.mit.csail.cgs.echo;
 
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import edu.mit.csail.cgs.echo.gui.*;
 
@@ -16,8 +22,17 @@ import edu.mit.csail.cgs.echo.gui.*;
  * 
  * This is the point of entry, for adding support on multiple machines or across
  * multiple threads.
+ * 
+ * With more than one thread, ready processors are run concurrently on a pool of 
+ * that many threads, at most one call to process() per processor at a time so that 
+ * each queue is still consumed in order.  The output queues get a capacity 
+ * (DEFAULT_CAPACITY), and a processor with a full output queue is held back 
+ * until the processors downstream have drained it.
  */
 public class EchoScheduler implements Runnable {
+	
+	/** capacity of the output queues when running on more than one thread */
+	public static final int DEFAULT_CAPACITY = 1000;
 
 	private Vector<EchoProcessor> procs;
 	private Map<EchoProcessor,String> procIDs;
@@ -25,8 +40,18 @@ public class EchoScheduler implements Runnable {
 	private GUIProgressPanel.Frame progressFrame;
 	private ProgressPanelInterface progress;
 	private int lastID;
+	private int threads;
 	
 	public EchoScheduler(Collection<EchoProcessor> p) { 
+		this(p, 1);
+	}
+	
+	/**
+	 * @param p the processors to run
+	 * @param threads the number of processors to run at once; 1 runs them round-robin on the scheduler's thread
+	 */
+	public EchoScheduler(Collection<EchoProcessor> p, int threads) { 
+		this.threads = Math.max(1, threads);
 		procs = new Vector<EchoProcessor>(p);
 		progressFrame = new GUIProgressPanel.Frame();
 		progress = progressFrame.getProgressPanel().getInterface();
@@ -35,6 +60,9 @@ public class EchoScheduler implements Runnable {
 		procIDs = new HashMap<EchoProcessor,String>();
 		for(EchoProcessor proc : procs) { 
 			procIDs.put(proc, getNextID());
+			if(this.threads > 1) { 
+				proc.setOutputCapacity(DEFAULT_CAPACITY);
+			}
 		}
 	}
 	
@@ -43,6 +71,10 @@ public class EchoScheduler implements Runnable {
 	}
 	
 	public void run() {
+		if(threads > 1) { 
+			runConcurrently();
+			return;
+		}
 		int index = 0;
         long iter = 0;
 
@@ -82,4 +114,99 @@ public class EchoScheduler implements Runnable {
             */
 		}		
 	}
+	
+	private void runConcurrently() {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		final LinkedBlockingQueue<EchoProcessor> done = new LinkedBlockingQueue<EchoProcessor>();
+		Map<EchoProcessor,Future<Object>> running = new HashMap<EchoProcessor,Future<Object>>();
+		Map<EchoProcessor,Integer> counts = new HashMap<EchoProcessor,Integer>();
+		long startTime = System.currentTimeMillis();
+
+		for(EchoProcessor proc : procIDs.keySet()) {
+			progress.registerProcessor(procIDs.get(proc), proc.toString());
+			counts.put(proc, 0);
+		}
+		
+		try { 
+			while(!procs.isEmpty()) { 
+				boolean progressed = false;
+				Vector<EchoProcessor> blocked = new Vector<EchoProcessor>();
+				
+				for(Iterator<EchoProcessor> itr = procs.iterator(); itr.hasNext(); ) { 
+					EchoProcessor proc = itr.next();
+					if(running.containsKey(proc)) { 
+						continue;
+					}
+					if(proc.isFinished()) { 
+						proc.finish();
+						itr.remove();
+						progress.unregisterProcessor(procIDs.get(proc));
+						progressed = true;
+					} else if(running.size() < threads && proc.isReady()) {
+						if(proc.isBlocked()) { 
+							blocked.add(proc);
+						} else { 
+							running.put(proc, submit(executor, proc, done));
+							progressed = true;
+						}
+					}
+				}
+				
+				if(running.isEmpty() && !progressed) { 
+					if(blocked.isEmpty()) { 
+						// nothing is running, so no queue can change any more
+						System.err.println("EchoScheduler: no processor can run, " + procs.size() + " left unfinished.");
+						break;
+					}
+					// the queues that are full aren't being drained, run one anyway rather than deadlock
+					EchoProcessor proc = blocked.get(0);
+					running.put(proc, submit(executor, proc, done));
+				}
+				
+				if(!running.isEmpty() && (!progressed || running.size() == threads)) {
+					// wait for a processor to finish before looking again
+					collect(done.take(), running, counts, startTime);
+				}
+				EchoProcessor proc;
+				while((proc = done.poll()) != null) { 
+					collect(proc, running, counts, startTime);
+				}
+			}
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			executor.shutdownNow();
+			throw new RuntimeException(e.getCause());
+		} finally { 
+			executor.shutdown();
+		}
+	}
+	
+	private Future<Object> submit(ExecutorService executor, final EchoProcessor proc, 
+			final LinkedBlockingQueue<EchoProcessor> done) { 
+		progress.markProcessorStart(procIDs.get(proc));
+		return executor.submit(new Callable<Object>() { 
+			public Object call() { 
+				try { 
+					proc.process();
+				} finally { 
+					done.add(proc);
+				}
+				return null;
+			}
+		});
+	}
+	
+	private void collect(EchoProcessor proc, Map<EchoProcessor,Future<Object>> running, 
+			Map<EchoProcessor,Integer> counts, long startTime) throws InterruptedException, ExecutionException { 
+		running.remove(proc).get();		// rethrows an exception from process()
+		String id = procIDs.get(proc);
+		progress.markProcessorEnd(id);
+		
+		int count = counts.get(proc) + 1;
+		counts.put(proc, count);
+		double seconds = Math.max(1, System.currentTimeMillis() - startTime) / 1000.0;
+		progress.markProcessorStatistics(id, proc.getInputDepth(), count / seconds);
+	}
 }
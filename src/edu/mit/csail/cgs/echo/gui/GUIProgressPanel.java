@@ -55,7 +55,8 @@ public class GUIProgressPanel extends JPanel implements Listener<ChangedEvent> {
 			g.setColor(Color.black);
 			int c = progress.getCount(id);
 			g.drawString("(" + c + ") " + id + " \"" + 
-					progress.getDescription(id) + "\"", 
+					progress.getDescription(id) + "\" " + 
+					String.format("[%d queued, %.1f/s]", progress.getQueueDepth(id), progress.getThroughput(id)), 
 					x+height+3, y);
 		}
 	}
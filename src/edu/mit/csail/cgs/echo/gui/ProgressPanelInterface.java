@@ -11,12 +11,19 @@ public interface ProgressPanelInterface {
 	public void unregisterProcessor(String id);
 	public void markProcessorStart(String id);
 	public void markProcessorEnd(String id);
+	/**
+	 * Reports the number of values waiting in the processor's input queues, 
+	 * and the number of values it has processed per second.
+	 */
+	public void markProcessorStatistics(String id, int queueDepth, double throughput);
 	
 	public static class ProcessorPanelImpl 
 		implements ProgressPanelInterface, EventSource<ChangedEvent> {
 		
 		private TreeMap<String,String> totalIDs;
 		private Map<String,Integer> markedCounts;
+		private Map<String,Integer> queueDepths;
+		private Map<String,Double> throughputs;
 		private TreeSet<String> currentIDs;
 		private EventSource.Default<ChangedEvent> src;
 		
@@ -24,6 +31,8 @@ public interface ProgressPanelInterface {
 			totalIDs = new TreeMap<String,String>();
 			currentIDs = new TreeSet<String>();
 			markedCounts = new HashMap<String,Integer>();
+			queueDepths = new HashMap<String,Integer>();
+			throughputs = new HashMap<String,Double>();
 			src = new EventSource.Default<ChangedEvent>();
 		}
 		
@@ -42,6 +51,14 @@ public interface ProgressPanelInterface {
 		public synchronized int getCount(String id) { 
 			return markedCounts.get(id);
 		}
+		
+		public synchronized int getQueueDepth(String id) { 
+			return queueDepths.containsKey(id) ? queueDepths.get(id) : 0;
+		}
+		
+		public synchronized double getThroughput(String id) { 
+			return throughputs.containsKey(id) ? throughputs.get(id) : 0.0;
+		}
 
 		public synchronized void markProcessorEnd(String id) {
 			currentIDs.remove(id);
@@ -54,6 +71,12 @@ public interface ProgressPanelInterface {
 			src.fireEvent(new ChangedEvent(this));
 		}
 
+		public synchronized void markProcessorStatistics(String id, int queueDepth, double throughput) {
+			queueDepths.put(id, queueDepth);
+			throughputs.put(id, throughput);
+			src.fireEvent(new ChangedEvent(this));
+		}
+
 		public synchronized void registerProcessor(String id, String description) {
 			totalIDs.put(id, description);
 			markedCounts.put(id, 0);
@@ -62,6 +85,8 @@ public interface ProgressPanelInterface {
 		public synchronized void unregisterProcessor(String id) {
 			totalIDs.remove(id);
 			markedCounts.remove(id);
+			queueDepths.remove(id);
+			throughputs.remove(id);
 		}
 
 		public void addEventListener(Listener<ChangedEvent> el) {
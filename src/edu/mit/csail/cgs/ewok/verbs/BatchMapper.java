@@ -0,0 +1,22 @@
+package edu.mit.csail.cgs.ewok.verbs;
+
+import java.util.List;
+
+/**
+ * A BatchMapper is a Mapper that can also map a list of inputs at once,
+ * e.g. with a single query for a list of Regions instead of one query per Region.
+ * MapperIterator hands a BatchMapper its input in lists of getBatchSize() elements,
+ * so existing chains get the batching without changes.
+ */
+public interface BatchMapper<A,B> extends Mapper<A,B> {
+
+    /**
+     * Maps each element of the input; the output has the same length and order as the input.
+     */
+    public List<B> executeBatch(List<A> a);
+
+    /**
+     * Number of inputs that MapperIterator collects for each call to executeBatch().
+     */
+    public int getBatchSize();
+}
@@ -6,23 +6,42 @@ import java.util.*;
  * A MapperIterator takes a Mapper<A,B> and an Iterator<A> and returns
  *  an Iterator<B> that is the result of applying the Mapper to each
  *  element of the input iterator.  
+ * If the Mapper is a BatchMapper, the input is mapped in lists of
+ *  getBatchSize() elements.
 */
 
 public class MapperIterator<A,B> implements Iterator<B> {
     private Mapper<A,B> mapper;
     private Iterator<A> input;
+    private LinkedList<B> batch;
 
     public MapperIterator(Mapper<A,B> mapper, Iterator<A> input) {
         this.mapper = mapper;
         this.input = input;
+        batch = mapper instanceof BatchMapper ? new LinkedList<B>() : null;
     }
 
     public boolean hasNext() {
-        return input.hasNext();
+        return (batch != null && !batch.isEmpty()) || input.hasNext();
     }
 
     public B next() {
-        return mapper.execute(input.next());
+        if (batch == null) {
+            return mapper.execute(input.next());
+        }
+        if (batch.isEmpty()) {
+            BatchMapper<A,B> batchMapper = (BatchMapper<A,B>)mapper;
+            int size = Math.max(1, batchMapper.getBatchSize());
+            List<A> inputs = new ArrayList<A>(size);
+            while (inputs.size() < size && input.hasNext()) {
+                inputs.add(input.next());
+            }
+            if (inputs.isEmpty()) {
+                throw new NoSuchElementException();
+            }
+            batch.addAll(batchMapper.executeBatch(inputs));
+        }
+        return batch.removeFirst();
     }
 
     public void remove() {
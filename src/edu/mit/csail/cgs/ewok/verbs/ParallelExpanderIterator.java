@@ -0,0 +1,108 @@
+package edu.mit.csail.cgs.ewok.verbs;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import edu.mit.csail.cgs.utils.Closeable;
+
+/** 
+ * A ParallelExpanderIterator is an ExpanderIterator that keeps up to inFlight
+ *  calls to the Expander running on an executor.  Each call's output is read to the
+ *  end on the executor's thread (and closed if it is Closeable), so the queries
+ *  behind a lazy iterator also run in parallel.  The output is in the order of the
+ *  input.  The Expander must be safe to call from several threads.
+ */
+public class ParallelExpanderIterator<A,B> implements Iterator<B>, Closeable {
+    private Expander<A,B> expander;
+    private Iterator<A> input;
+    private ExecutorService executor;
+    private boolean ownExecutor;
+    private int inFlight;
+    private LinkedList<Future<List<B>>> pending;
+    private Iterator<B> current;
+
+    /**
+     * Runs the expander on the executor, which is left running when the iterator is done
+     */
+    public ParallelExpanderIterator(Expander<A,B> expander, Iterator<A> input, ExecutorService executor, int inFlight) {
+        this.expander = expander;
+        this.input = input;
+        this.executor = executor;
+        this.inFlight = Math.max(1, inFlight);
+        ownExecutor = false;
+        pending = new LinkedList<Future<List<B>>>();
+        current = null;
+        fill();
+    }
+    /**
+     * Runs the expander on its own pool of threads, which is shut down once the
+     * input is exhausted or the iterator is closed
+     */
+    public ParallelExpanderIterator(Expander<A,B> expander, Iterator<A> input, int threads) {
+        this(expander, input, ParallelMapperIterator.newDaemonPool(threads), threads);
+        ownExecutor = true;
+    }
+
+    private void fill() {
+        while (input != null && pending.size() < inFlight && input.hasNext()) {
+            final A a = input.next();
+            pending.add(executor.submit(new Callable<List<B>>() {
+                public List<B> call() {
+                    Iterator<B> itr = expander.execute(a);
+                    List<B> output = new ArrayList<B>();
+                    while (itr.hasNext()) {
+                        output.add(itr.next());
+                    }
+                    if (itr instanceof Closeable) {
+                        ((Closeable)itr).close();
+                    }
+                    return output;
+                }
+            }));
+        }
+        if (pending.isEmpty() && ownExecutor) {
+            executor.shutdown();
+        }
+    }
+
+    public boolean hasNext() {
+        while ((current == null || !current.hasNext()) && !pending.isEmpty()) {
+            current = ParallelMapperIterator.take(pending.removeFirst()).iterator();
+            fill();
+        }
+        return current != null && current.hasNext();
+    }
+
+    public B next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return current.next();
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException("Can't remove from a ParallelExpanderIterator");
+    }
+
+    public void close() {
+        for (Future<List<B>> f : pending) {
+            f.cancel(true);
+        }
+        pending.clear();
+        current = null;
+        if (ownExecutor) {
+            executor.shutdownNow();
+        }
+        if (input instanceof Closeable) {
+            Closeable c = (Closeable)input;
+            if (!c.isClosed()) { c.close(); }
+        }
+        input = null;
+    }
+
+    public boolean isClosed() {
+        return input == null;
+    }
+}
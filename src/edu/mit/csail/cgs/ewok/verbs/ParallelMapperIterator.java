@@ -0,0 +1,135 @@
+package edu.mit.csail.cgs.ewok.verbs;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import edu.mit.csail.cgs.utils.Closeable;
+
+/** 
+ * A ParallelMapperIterator is a MapperIterator that keeps up to inFlight
+ *  calls to the Mapper running on an executor, so that a Mapper that waits on
+ *  the database or ReadDB overlaps its round trips.  The output is in the
+ *  order of the input.  The Mapper must be safe to call from several threads.
+ * The input iterator is only read from the thread calling hasNext() and next().
+ * If the Mapper is a BatchMapper, each call maps a list of getBatchSize() inputs.
+ */
+public class ParallelMapperIterator<A,B> implements Iterator<B>, Closeable {
+    private Mapper<A,B> mapper;
+    private Iterator<A> input;
+    private ExecutorService executor;
+    private boolean ownExecutor;
+    private int inFlight, batchSize;
+    private LinkedList<Future<List<B>>> pending;
+    private LinkedList<B> batch;
+
+    /**
+     * Runs the mapper on the executor, which is left running when the iterator is done
+     */
+    public ParallelMapperIterator(Mapper<A,B> mapper, Iterator<A> input, ExecutorService executor, int inFlight) {
+        this.mapper = mapper;
+        this.input = input;
+        this.executor = executor;
+        this.inFlight = Math.max(1, inFlight);
+        ownExecutor = false;
+        batchSize = mapper instanceof BatchMapper ? Math.max(1, ((BatchMapper<A,B>)mapper).getBatchSize()) : 1;
+        pending = new LinkedList<Future<List<B>>>();
+        batch = new LinkedList<B>();
+        fill();
+    }
+    /**
+     * Runs the mapper on its own pool of threads, which is shut down once the
+     * input is exhausted or the iterator is closed
+     */
+    public ParallelMapperIterator(Mapper<A,B> mapper, Iterator<A> input, int threads) {
+        this(mapper, input, newDaemonPool(threads), threads);
+        ownExecutor = true;
+    }
+
+    private void fill() {
+        while (input != null && pending.size() < inFlight && input.hasNext()) {
+            final List<A> inputs = new ArrayList<A>(batchSize);
+            while (inputs.size() < batchSize && input.hasNext()) {
+                inputs.add(input.next());
+            }
+            pending.add(executor.submit(new Callable<List<B>>() {
+                public List<B> call() {
+                    if (mapper instanceof BatchMapper) {
+                        return ((BatchMapper<A,B>)mapper).executeBatch(inputs);
+                    }
+                    List<B> output = new ArrayList<B>(1);
+                    output.add(mapper.execute(inputs.get(0)));
+                    return output;
+                }
+            }));
+        }
+        if (pending.isEmpty() && ownExecutor) {
+            executor.shutdown();
+        }
+    }
+
+    public boolean hasNext() {
+        return !batch.isEmpty() || !pending.isEmpty();
+    }
+
+    public B next() {
+        if (batch.isEmpty()) {
+            if (pending.isEmpty()) {
+                throw new NoSuchElementException();
+            }
+            batch.addAll(take(pending.removeFirst()));
+            fill();
+        }
+        return batch.removeFirst();
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException("Can't remove from a ParallelMapperIterator");
+    }
+
+    public void close() {
+        for (Future<List<B>> f : pending) {
+            f.cancel(true);
+        }
+        pending.clear();
+        batch.clear();
+        if (ownExecutor) {
+            executor.shutdownNow();
+        }
+        if (input instanceof Closeable) {
+            Closeable c = (Closeable)input;
+            if (!c.isClosed()) { c.close(); }
+        }
+        input = null;
+    }
+
+    public boolean isClosed() {
+        return input == null;
+    }
+
+    /* waits for the result of a call, rethrowing what the mapper threw */
+    static <X> X take(Future<X> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /* daemon threads, so that an iterator that is dropped unfinished doesn't keep the JVM alive */
+    static ExecutorService newDaemonPool(int threads) {
+        return Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+}
@@ -18,7 +18,10 @@ import edu.mit.csail.cgs.utils.io.parsing.FASTAStream;
  * <code>SequenceGenerator</code> maps a Region to the genomic
  * sequence included in that Region.
  */
-public class SequenceGenerator<X extends Region> implements Mapper<X,String>, SelfDescribingVerb {
+public class SequenceGenerator<X extends Region> implements BatchMapper<X,String>, SelfDescribingVerb {
+
+    /** regions in a batch that fall within this many bp of each other on a chromosome are fetched with one query */
+    public static final int MAXBATCHSPAN = 1000000;
 
     private static Map<Integer,String> cache;
     private boolean useCache = false;
@@ -188,6 +191,107 @@ public class SequenceGenerator<X extends Region> implements Mapper<X,String>, Se
         return result;
     }
     
+    public int getBatchSize() {
+        return 200;
+    }
+
+    /**
+     * get sequences of the specified regions, in the same order.  Without a cache, the regions of
+     * each chromosome are fetched from the database over one connection, with one query for each
+     * group of regions that fit in MAXBATCHSPAN bp.
+     */
+    public List<String> executeBatch(List<X> regions) {
+        String[] results = new String[regions.size()];
+        if (regionIsCached || useCache) {
+            for (int i = 0; i < results.length; i++) {
+                results[i] = execute(regions.get(i));
+            }
+            return Arrays.asList(results);
+        }
+
+        // indices of the regions, ordered by chromosome and start
+        Integer[] order = new Integer[results.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        final List<X> input = regions;
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                Region ra = input.get(a), rb = input.get(b);
+                int c = ra.getChrom().compareTo(rb.getChrom());
+                return c != 0 ? c : (ra.getStart() < rb.getStart() ? -1 : (ra.getStart() == rb.getStart() ? 0 : 1));
+            }
+        });
+
+        java.sql.Connection cxn = null;
+        PreparedStatement ps = null;
+        try {
+            cxn = DatabaseFactory.getConnection("core");
+            ps = cxn.prepareStatement("select substr(sequence,?,?) from chromsequence where id = ?");
+            int first = 0;
+            while (first < order.length) {
+                // extend the group while the regions stay on one chromosome within MAXBATCHSPAN
+                X r0 = regions.get(order[first]);
+                int spanStart = r0.getStart(), spanEnd = r0.getEnd();
+                int last = first + 1;
+                while (last < order.length) {
+                    X r = regions.get(order[last]);
+                    if (!r.getChrom().equals(r0.getChrom()) || 
+                        Math.max(spanEnd, r.getEnd()) - spanStart + 1 > MAXBATCHSPAN) {
+                        break;
+                    }
+                    spanEnd = Math.max(spanEnd, r.getEnd());
+                    last++;
+                }
+                if (spanStart < 0) {
+                    for (int i = first; i < last; i++) {
+                        results[order[i]] = execute(regions.get(order[i]));
+                    }
+                    first = last;
+                    continue;
+                }
+                ps.setInt(1, spanStart + 1);
+                ps.setInt(2, spanEnd - spanStart + 1);
+                ps.setInt(3, r0.getGenome().getChromID(r0.getChrom()));
+                String span = null;
+                ResultSet rs = ps.executeQuery();
+                if (rs.next()) {
+                    span = rs.getString(1);
+                }
+                rs.close();
+                for (int i = first; i < last; i++) {
+                    X region = regions.get(order[i]);
+                    if (span == null || region.getStart() - spanStart > span.length()) {
+                        throw new DatabaseException("Couldn't get any sequence for " + region);
+                    }
+                    String result = span.substring(region.getStart() - spanStart, 
+                                                   Math.min(region.getEnd() - spanStart + 1, span.length()));
+                    if (result.length() != region.getWidth()) {
+                        System.err.println("Wanted " + region + "(" + 
+                                           region.getWidth() + ") but only got " + result.length());
+                    }
+                    results[order[i]] = result;
+                }
+                first = last;
+            }
+            cxn.commit();
+        } catch (SQLException ex) {
+            ex.printStackTrace();
+            throw new DatabaseException("Couldn't get sequences " + ex.toString(), ex);
+        } catch (UnknownRoleException ex) {
+            ex.printStackTrace();
+            throw new DatabaseException("Couldn't connect to core",ex);
+        } finally {
+            if (ps != null) {
+                try { ps.close(); } catch (SQLException ex) { ex.printStackTrace(); }
+            }
+            if (cxn != null) {
+                DatabaseFactory.freeConnection(cxn);
+            }
+        }
+        return Arrays.asList(results);
+    }
+    
     /**
      * Setup light-weight region cache of genome sequences, cover only the specified regions<br>
      * So that it does not cache the whole chromosome, save memory space. <br>
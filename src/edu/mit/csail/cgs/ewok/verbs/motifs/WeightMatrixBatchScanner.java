@@ -0,0 +1,265 @@
+package edu.mit.csail.cgs.ewok.verbs.motifs;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import edu.mit.csail.cgs.datasets.motifs.WMHit;
+import edu.mit.csail.cgs.datasets.motifs.WeightMatrix;
+import edu.mit.csail.cgs.ewok.verbs.Sink;
+
+/**
+ * Scans sequences for many weight matrices in one pass.<br>
+ * The sequence is encoded once as bytes (see encode()), and every window is scored for all the matrices on both strands.
+ * The reverse strand is scored from the same window with complemented matrix columns, so the reverse complement
+ * is never built. Scoring a window stops as soon as the score so far plus the best possible score of the remaining
+ * columns can't reach the threshold of the matrix.<br>
+ * Hits are WMHits with scanid set to the index of the matrix, and start and end (inclusive) of the window on the
+ * forward strand, the same as WeightMatrixScanner.scanSequence().
+ */
+public class WeightMatrixBatchScanner {
+    /** codes of the bases in an encoded sequence, any other character is coded as N */
+    public static final byte A = 0, C = 1, G = 2, T = 3, N = 4;
+    private static final int BASES = 5;
+    private static final char[] LETTERS = {'A', 'C', 'G', 'T', 'N'};
+    private static final byte[] CODES = new byte[128];
+    static {
+        Arrays.fill(CODES, N);
+        for (byte b = 0; b < 4; b++) {
+            CODES[LETTERS[b]] = b;
+            CODES[Character.toLowerCase(LETTERS[b])] = b;
+        }
+    }
+    /** allowance for the rounding of the float sums, so that the bounds never drop a hit */
+    private static final float ROUNDING = 1e-3f;
+    /** number of windows scanned by one task in scan(Iterator, ...) */
+    private static final int CHUNK = 4000000;
+
+    private WeightMatrix[] matrices;
+    private int[] lengths;
+    private float[] thresholds;
+    /** forward[m][j*BASES+b]: score of base b at column j of matrix m */
+    private float[][] forward;
+    /** reverse[m][j*BASES+b]: score of the complement of base b at column j of matrix m */
+    private float[][] reverse;
+    /** bounds[m][j]: the best possible score of columns j to the end of matrix m */
+    private float[][] bounds;
+
+    /**
+     * A sequence to scan, e.g. a chromosome.
+     * chromid is set in its hits and offset is added to their positions
+     */
+    public static class Shard {
+        public byte[] seq;
+        public int chromid, offset;
+        public Shard(byte[] seq, int chromid, int offset) {
+            this.seq = seq;
+            this.chromid = chromid;
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * Scanner for hits of matrices.get(m) scoring at least thresholds[m]
+     */
+    public WeightMatrixBatchScanner(List<WeightMatrix> matrices, float[] thresholds) {
+        if (thresholds.length != matrices.size()) {
+            throw new IllegalArgumentException("need one threshold per matrix");
+        }
+        int count = matrices.size();
+        this.matrices = matrices.toArray(new WeightMatrix[count]);
+        this.thresholds = thresholds.clone();
+        lengths = new int[count];
+        forward = new float[count][];
+        reverse = new float[count][];
+        bounds = new float[count][];
+        for (int m = 0; m < count; m++) {
+            float[][] matrix = this.matrices[m].matrix;
+            int length = matrix.length;
+            lengths[m] = length;
+            forward[m] = new float[length * BASES];
+            reverse[m] = new float[length * BASES];
+            bounds[m] = new float[length + 1];
+            for (int j = 0; j < length; j++) {
+                for (int b = 0; b < BASES; b++) {
+                    forward[m][j * BASES + b] = matrix[j][LETTERS[b]];
+                    reverse[m][j * BASES + b] = matrix[j][LETTERS[b == N ? N : 3 - b]];
+                }
+            }
+            double best = 0;
+            for (int j = length - 1; j >= 0; j--) {
+                double max = Double.NEGATIVE_INFINITY;
+                for (int b = 0; b < BASES; b++) {
+                    if (forward[m][j * BASES + b] > max) {     // skips NaN, which never makes a hit
+                        max = forward[m][j * BASES + b];
+                    }
+                }
+                best += max;
+                bounds[m][j] = (float)best + ROUNDING;
+            }
+        }
+    }
+    /**
+     * Scanner without thresholds, for maxScores()
+     */
+    public WeightMatrixBatchScanner(List<WeightMatrix> matrices) {
+        this(matrices, negativeInfinities(matrices.size()));
+    }
+
+    /**
+     * Encodes a sequence for scanning.  Lower case bases are coded the same as upper case
+     */
+    public static byte[] encode(CharSequence seq) {
+        byte[] output = new byte[seq.length()];
+        for (int i = 0; i < output.length; i++) {
+            char c = seq.charAt(i);
+            output[i] = c < 128 ? CODES[c] : N;
+        }
+        return output;
+    }
+    public static byte[] encode(char[] seq) {
+        byte[] output = new byte[seq.length];
+        for (int i = 0; i < output.length; i++) {
+            char c = seq[i];
+            output[i] = c < 128 ? CODES[c] : N;
+        }
+        return output;
+    }
+
+    public int size() {return matrices.length;}
+    public WeightMatrix getMatrix(int m) {return matrices[m];}
+
+    /**
+     * Returns the hits in the encoded sequence.  chromid is -1 and positions are relative to the sequence.
+     */
+    public List<WMHit> scan(byte[] seq) {
+        List<WMHit> hits = new ArrayList<WMHit>();
+        scan(seq, 0, seq.length, -1, 0, hits);
+        return hits;
+    }
+    /**
+     * Adds to hits the hits of the windows starting in [from, to) of the encoded sequence, in order of position.
+     * chromid is set in the hits and offset is added to their positions.
+     */
+    public void scan(byte[] seq, int from, int to, int chromid, int offset, Collection<WMHit> hits) {
+        for (int i = from; i < to; i++) {
+            for (int m = 0; m < matrices.length; m++) {
+                int length = lengths[m];
+                if (i + length > seq.length) {
+                    continue;
+                }
+                float threshold = thresholds[m];
+                float[] f = forward[m], r = reverse[m], bound = bounds[m];
+                float score = 0;
+                int j = 0;
+                for (; j < length && score + bound[j] >= threshold; j++) {
+                    score += f[j * BASES + seq[i + j]];
+                }
+                if (j == length && score >= threshold) {
+                    hits.add(new WMHit(m, chromid, offset + i, offset + i + length - 1, "+", score));
+                }
+                // same order of columns as scoring the reverse complement, for the same float sums
+                score = 0;
+                for (j = 0; j < length && score + bound[j] >= threshold; j++) {
+                    score += r[j * BASES + seq[i + length - 1 - j]];
+                }
+                if (j == length && score >= threshold) {
+                    hits.add(new WMHit(m, chromid, offset + i, offset + i + length - 1, "-", score));
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the maximum score of each matrix over both strands of the encoded sequence,
+     * or the minimum score of the matrix if the sequence is shorter than the matrix
+     * (the same as WeightMatrixScorer.getMaxSeqScore(matrix, seq, false)).  Thresholds are not used.
+     */
+    public float[] maxScores(byte[] seq) {
+        float[] best = new float[matrices.length];
+        for (int m = 0; m < matrices.length; m++) {
+            best[m] = (float)matrices[m].getMinScore();
+        }
+        for (int i = 0; i < seq.length; i++) {
+            for (int m = 0; m < matrices.length; m++) {
+                int length = lengths[m];
+                if (i + length > seq.length) {
+                    continue;
+                }
+                float[] f = forward[m], r = reverse[m], bound = bounds[m];
+                float score = 0;
+                int j = 0;
+                for (; j < length && score + bound[j] > best[m]; j++) {
+                    score += f[j * BASES + seq[i + j]];
+                }
+                if (j == length && score > best[m]) {
+                    best[m] = score;
+                }
+                score = 0;
+                for (j = 0; j < length && score + bound[j] > best[m]; j++) {
+                    score += r[j * BASES + seq[i + length - 1 - j]];
+                }
+                if (j == length && score > best[m]) {
+                    best[m] = score;
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Scans the shards on nthreads threads, long shards in pieces of CHUNK windows.
+     * Shards are taken from the iterator as threads become free, so only a few are held at once.
+     * The hits are given to the sink from the calling thread, in the order of the shards and positions,
+     * so the sink doesn't need to be thread-safe.
+     */
+    public void scan(Iterator<Shard> shards, int nthreads, Sink<WMHit> sink) {
+        ExecutorService executor = Executors.newFixedThreadPool(nthreads);
+        LinkedList<Future<List<WMHit>>> pending = new LinkedList<Future<List<WMHit>>>();
+        sink.init();
+        try {
+            while (shards.hasNext()) {
+                final Shard shard = shards.next();
+                for (int start = 0; start < shard.seq.length; start += CHUNK) {
+                    final int from = start;
+                    final int to = (int)Math.min((long)start + CHUNK, shard.seq.length);
+                    pending.add(executor.submit(new Callable<List<WMHit>>() {
+                        public List<WMHit> call() {
+                            List<WMHit> hits = new ArrayList<WMHit>();
+                            scan(shard.seq, from, to, shard.chromid, shard.offset, hits);
+                            return hits;
+                        }
+                    }));
+                    if (pending.size() > nthreads) {
+                        consume(pending.removeFirst(), sink);
+                    }
+                }
+            }
+            while (!pending.isEmpty()) {
+                consume(pending.removeFirst(), sink);
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            executor.shutdownNow();
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+        sink.finish();
+    }
+    private static void consume(Future<List<WMHit>> future, Sink<WMHit> sink) throws InterruptedException, ExecutionException {
+        for (WMHit hit : future.get()) {
+            sink.consume(hit);
+        }
+    }
+    private static float[] negativeInfinities(int count) {
+        float[] output = new float[count];
+        Arrays.fill(output, Float.NEGATIVE_INFINITY);
+        return output;
+    }
+}
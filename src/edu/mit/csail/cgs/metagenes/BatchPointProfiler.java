@@ -0,0 +1,17 @@
+package edu.mit.csail.cgs.metagenes;
+
+import java.util.List;
+
+import edu.mit.csail.cgs.datasets.general.Point;
+
+/**
+ * A PointProfiler that can profile many points at once, sharing the data loaded
+ * for points that are close to each other.
+ */
+public interface BatchPointProfiler<PointClass extends Point, ProfileClass extends Profile> extends PointProfiler<PointClass,ProfileClass> {
+	/**
+	 * @return the profiles of the points, in the order of the points,
+	 * each equal to execute(point)
+	 */
+	public List<ProfileClass> executeBatch(List<PointClass> points);
+}
@@ -3,7 +3,15 @@ package edu.mit.csail.cgs.metagenes;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import edu.mit.csail.cgs.datasets.chipseq.ChipSeqExptHandler;
 import edu.mit.csail.cgs.datasets.chipseq.ChipSeqHit;
@@ -11,13 +19,14 @@ import edu.mit.csail.cgs.datasets.chipseq.ChipSeqLocator;
 import edu.mit.csail.cgs.datasets.general.Point;
 import edu.mit.csail.cgs.datasets.general.Region;
 import edu.mit.csail.cgs.datasets.general.StrandedPoint;
-import edu.mit.csail.cgs.datasets.general.StrandedRegion;
 import edu.mit.csail.cgs.datasets.species.Genome;
 import edu.mit.csail.cgs.ewok.verbs.chipseq.ChipSeqExpander;
 import edu.mit.csail.cgs.utils.NotFoundException;
 import edu.mit.csail.cgs.utils.RealValuedHistogram;
 
-public class ChipSeqProfiler implements PointProfiler<Point, Profile>{
+public class ChipSeqProfiler implements BatchPointProfiler<Point, Profile>{
+
+	private static final int MIN_POINTS_PER_THREAD = 100;
 
 	private Genome gen;
 	private BinningParameters params=null;
@@ -28,6 +37,7 @@ public class ChipSeqProfiler implements PointProfiler<Point, Profile>{
 	private ArrayList<ChipSeqExptHandler> handles;
 	private ArrayList<ChipSeqExptHandler> ctrl_handles;
 	private boolean zScoring=false;
+	private int numThreads=Runtime.getRuntime().availableProcessors();
 
 	public ChipSeqProfiler(BinningParameters bp, Genome g, ArrayList<ChipSeqLocator> experiments, ArrayList<ChipSeqLocator> controls, int readLength, int readExtension, boolean z){
 		this(bp, g, experiments, controls, readLength, readExtension);
@@ -85,38 +95,130 @@ public class ChipSeqProfiler implements PointProfiler<Point, Profile>{
 	}
 
 	public Profile execute(Point a) {
-		double[] array = new double[params.getNumBins()];
-		for(int i = 0; i < array.length; i++) { array[i] = 0; }
-		
+		Region query = query(a);
+		Region extQuery = extendedQuery(a, query);
+		HitSlab hits = new HitSlab(loadHits(handles, extQuery));
+		HitSlab backhits = backTotalHits>0 ? new HitSlab(loadHits(ctrl_handles, query)) : null;
+		return profile(a, query, extQuery, hits, backhits);
+	}
+
+	/**
+	 * Profiles the points with one query per experiment for each chromosome,
+	 * instead of one per point. The reads of each chromosome (over the span of its points)
+	 * are kept as sorted arrays, and the profiles of its points are computed in parallel.
+	 */
+	public List<Profile> executeBatch(List<Point> points) {
+		Profile[] profiles = new Profile[points.size()];
+		Map<String, List<Integer>> byChrom = new LinkedHashMap<String, List<Integer>>();
+		for(int i = 0; i < points.size(); i++) {
+			String chrom = points.get(i).getChrom();
+			if(!byChrom.containsKey(chrom))
+				byChrom.put(chrom, new ArrayList<Integer>());
+			byChrom.get(chrom).add(i);
+		}
+		for(String chrom : byChrom.keySet()) {
+			List<Integer> ids = byChrom.get(chrom);
+			int slabStart = Integer.MAX_VALUE, slabEnd = Integer.MIN_VALUE;
+			for(int i : ids) {
+				Region query = query(points.get(i));
+				Region extQuery = extendedQuery(points.get(i), query);
+				slabStart = Math.min(slabStart, Math.min(query.getStart(), extQuery.getStart()));
+				slabEnd = Math.max(slabEnd, Math.max(query.getEnd(), extQuery.getEnd()));
+			}
+			Region slab = new Region(points.get(ids.get(0)).getGenome(), chrom, slabStart, slabEnd);
+			HitSlab hits = new HitSlab(loadHits(handles, slab));
+			HitSlab backhits = backTotalHits>0 ? new HitSlab(loadHits(ctrl_handles, slab)) : null;
+			profileAll(points, ids, hits, backhits, profiles);
+		}
+		return Arrays.asList(profiles);
+	}
+
+	/**
+	 * Number of threads used by executeBatch, the number of processors by default.
+	 */
+	public void setNumThreads(int t) {
+		numThreads = Math.max(1, t);
+	}
+
+	private void profileAll(final List<Point> points, final List<Integer> ids, final HitSlab hits, final HitSlab backhits, final Profile[] profiles) {
+		int threads = Math.max(1, Math.min(numThreads, ids.size()/MIN_POINTS_PER_THREAD));
+		if(threads==1) {
+			profileRange(points, ids, 0, ids.size(), hits, backhits, profiles);
+			return;
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for(int t = 0; t < threads; t++) {
+			final int start = (int)((long)ids.size()*t/threads);
+			final int end = (int)((long)ids.size()*(t+1)/threads);
+			futures.add(pool.submit(new Callable<Object>() {
+				public Object call() {
+					profileRange(points, ids, start, end, hits, backhits, profiles);
+					return null;
+				}
+			}));
+		}
+		pool.shutdown();
+		try {
+			for(Future<?> f : futures)
+				f.get();
+		} catch (InterruptedException e) {
+			pool.shutdownNow();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			pool.shutdownNow();
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	private void profileRange(List<Point> points, List<Integer> ids, int start, int end, HitSlab hits, HitSlab backhits, Profile[] profiles) {
+		for(int j = start; j < end; j++) {
+			int i = ids.get(j);
+			Point a = points.get(i);
+			Region query = query(a);
+			profiles[i] = profile(a, query, extendedQuery(a, query), hits, backhits);
+		}
+	}
+
+	private Region query(Point a) {
 		int window = params.getWindowSize();
 		int left = window/2;
 		int right = window-left-1;
-		
-		boolean strand = (a instanceof StrandedPoint) ? 
-				((StrandedPoint)a).getStrand() == '+' : true;
-		
 		int start = Math.max(0, a.getLocation()-left);
 		int end = Math.min(a.getLocation()+right, a.getGenome().getChromLength(a.getChrom())-1);
-		Region query = new Region(gen, a.getChrom(), start, end);
-		Region extQuery = new Region(a.getGenome(), a.getChrom(), start-(readLen+readExt)>0 ? start-(readLen+readExt) : 1, end+(readLen+readExt) < a.getGenome().getChromLength(a.getChrom()) ? end+(readLen+readExt) : a.getGenome().getChromLength(a.getChrom()) );
-		
-		LinkedList<StrandedRegion> hits = new LinkedList<StrandedRegion>();
-		LinkedList<StrandedRegion> backhits = new LinkedList<StrandedRegion>();
-		for(ChipSeqExptHandler e: handles){
-			hits.addAll(e.loadExtendedHits(extQuery));
-		}
-		if(backTotalHits>0){
-			for(ChipSeqExptHandler e: ctrl_handles){
-				backhits.addAll(e.loadExtendedHits(query));
-			}
+		return new Region(gen, a.getChrom(), start, end);
+	}
+
+	private Region extendedQuery(Point a, Region query) {
+		int start = query.getStart(), end = query.getEnd();
+		return new Region(a.getGenome(), a.getChrom(), start-(readLen+readExt)>0 ? start-(readLen+readExt) : 1, end+(readLen+readExt) < a.getGenome().getChromLength(a.getChrom()) ? end+(readLen+readExt) : a.getGenome().getChromLength(a.getChrom()) );
+	}
+
+	private List<ChipSeqHit> loadHits(List<ChipSeqExptHandler> hs, Region r) {
+		List<ChipSeqHit> hits = new ArrayList<ChipSeqHit>();
+		for(ChipSeqExptHandler e: hs){
+			hits.addAll(e.loadExtendedHits(r));
 		}
+		return hits;
+	}
+
+	/*
+	 * Profile of a point from the experiment hits whose 5' end is in extQuery and the control
+	 * hits whose 5' end is in query, as loaded by ChipSeqExptHandler.loadExtendedHits().
+	 * The hits are counted per bin with difference arrays.
+	 */
+	private Profile profile(Point a, Region query, Region extQuery, HitSlab hits, HitSlab backhits) {
+		double[] array = new double[params.getNumBins()];
+		int window = params.getWindowSize();
+		boolean strand = (a instanceof StrandedPoint) ? 
+				((StrandedPoint)a).getStrand() == '+' : true;
 		
 		if(zScoring){
 			int winWidth = params.getBinSize();
-			int [] ipHitCounts = makeHitLandscape(hits, query, winWidth);
+			int [] ipHitCounts = makeHitLandscape(hits, extQuery, query, winWidth);
             int [] backHitCounts = null;
             if (backTotalHits>0) {
-                backHitCounts = makeHitLandscape(backhits, query, winWidth);
+                backHitCounts = makeHitLandscape(backhits, query, query, winWidth);
             }
 			
 			for(int i=query.getStart(); i<query.getEnd()-winWidth; i+=winWidth){
@@ -139,60 +241,51 @@ public class ChipSeqProfiler implements PointProfiler<Point, Profile>{
 					}
 					
 					int bin = params.findBin(centerOffset);
-					addToArray(bin, bin, array, Z0);
+					array[bin] += Z0;
 				}
 			}
 		}else{
-			//Experiment hits
-			for(StrandedRegion r : hits){
-				if(r.overlaps(query)){
-					int startOffset = Math.max(0, r.getStart()-query.getStart());
-					int endOffset = Math.max(0, Math.min(query.getEnd(), r.getEnd()-query.getStart()));
-					
-					if(!strand) { 
-						int tmpEnd = window-startOffset;
-						int tmpStart = window-endOffset;
-						startOffset = tmpStart;
-						endOffset = tmpEnd;
-					}
-					
-					int startbin = params.findBin(startOffset);
-					int endbin = params.findBin(endOffset);
-					
-					addToArray(startbin, endbin, array, 1/totalHits);
-				}
-			}
-			//Control hits
-			if(backTotalHits>0){
-				for(StrandedRegion r : backhits){
-					if(r.overlaps(query)){
-						int startOffset = Math.max(0, r.getStart()-query.getStart());
-						int endOffset = Math.max(0, Math.min(query.getEnd(), r.getEnd()-query.getStart()));
-						
-						if(!strand) { 
-							int tmpEnd = window-startOffset;
-							int tmpStart = window-endOffset;
-							startOffset = tmpStart;
-							endOffset = tmpEnd;
-						}
-						
-						int startbin = params.findBin(startOffset);
-						int endbin = params.findBin(endOffset);
-						
-						addToArray(startbin, endbin, array, -1*(1/backTotalHits));
-					}
-				}
+			int[] counts = binHits(hits, extQuery, query, strand);
+			int[] backCounts = backTotalHits>0 ? binHits(backhits, query, query, strand) : null;
+			for(int i = 0; i < array.length; i++) {
+				array[i] = counts[i]/totalHits;
+				if(backCounts!=null)
+					array[i] -= backCounts[i]/backTotalHits;
 			}
 		}
 		return new PointProfile(a, params, array, (a instanceof StrandedPoint));
 	}
 
-	private void addToArray(int i, int j, double[] array, double value) { 
-		for(int k = i; k <= j; k++) { 
-			array[k] += value;
+	/* number of hits (with 5' end in loaded) overlapping each bin of the query */
+	private int[] binHits(HitSlab hits, Region loaded, Region query, boolean strand) {
+		int window = params.getWindowSize();
+		int[] diff = new int[params.getNumBins()+1];
+		for(int k = hits.first(loaded.getStart()); k < hits.size() && hits.fivePrime[k] <= loaded.getEnd(); k++) {
+			int rStart = hits.starts[k], rEnd = hits.ends[k];
+			if(rStart <= query.getEnd() && rEnd >= query.getStart()){
+				int startOffset = Math.max(0, rStart-query.getStart());
+				int endOffset = Math.max(0, Math.min(query.getEnd(), rEnd-query.getStart()));
+				
+				if(!strand) { 
+					int tmpEnd = window-startOffset;
+					int tmpStart = window-endOffset;
+					startOffset = tmpStart;
+					endOffset = tmpEnd;
+				}
+				
+				int startbin = params.findBin(startOffset);
+				int endbin = params.findBin(endOffset);
+				if(startbin <= endbin) {
+					diff[startbin]++;
+					diff[endbin+1]--;
+				}
+			}
 		}
+		for(int i = 1; i < diff.length; i++)
+			diff[i] += diff[i-1];
+		return diff;
 	}
-	
+
 	/* Binomial test for differences between two population proportions */
 	private double binomialSampleEquality(double X1, double X2, double n1, double n2){
 		double P1 = X1/n1;
@@ -202,22 +295,71 @@ public class ChipSeqProfiler implements PointProfiler<Point, Profile>{
 		return(Z0);
 	}
 	
-	private int [] makeHitLandscape(LinkedList<StrandedRegion> hits, Region currReg, int winWidth){
+	private int [] makeHitLandscape(HitSlab hits, Region loaded, Region currReg, int winWidth){
 		int numBins = (int)(currReg.getWidth()/winWidth);
-		int [] land = new int[numBins+1];
-		for(int i=0; i<=numBins; i++){land[i]=0;}
-		for(StrandedRegion r : hits){
-			if(r.overlaps(currReg)){
-				int binstart = (int)Math.max(0, ((double)((r.getStart()-currReg.getStart())/winWidth)-(Math.floor(winWidth/winWidth)-1)));
-				int binend = (int)(Math.min((double)(r.getEnd()-currReg.getStart()), (double)currReg.getWidth())/winWidth);
-				for(int i=binstart; i<=binend; i++){
-					land[i]++; 
+		int [] land = new int[numBins+2];
+		for(int k = hits.first(loaded.getStart()); k < hits.size() && hits.fivePrime[k] <= loaded.getEnd(); k++) {
+			int rStart = hits.starts[k], rEnd = hits.ends[k];
+			if(rStart <= currReg.getEnd() && rEnd >= currReg.getStart()){
+				int binstart = (int)Math.max(0, ((double)((rStart-currReg.getStart())/winWidth)-(Math.floor(winWidth/winWidth)-1)));
+				int binend = (int)(Math.min((double)(rEnd-currReg.getStart()), (double)currReg.getWidth())/winWidth);
+				if(binstart <= binend) {
+					land[binstart]++;
+					land[binend+1]--;
 				}
 			}
 		}
+		for(int i=1; i<land.length; i++){land[i]+=land[i-1];}
 		return(land);
 	}
 	
+	/*
+	 * Extended hits as arrays sorted by the 5' end (the position of the read in ReadDB),
+	 * so that the hits loaded for any region within the slab are a contiguous range.
+	 */
+	private static class HitSlab {
+		int[] fivePrime, starts, ends;
+		
+		HitSlab(List<ChipSeqHit> hits) {
+			int n = hits.size();
+			long[] order = new long[n];
+			int[] s = new int[n], e = new int[n];
+			int i = 0;
+			for(ChipSeqHit h : hits) {
+				s[i] = h.getStart();
+				e[i] = h.getEnd();
+				int pos = h.getStrand()=='+' ? h.getStart() : h.getEnd();
+				order[i] = ((long)pos<<32) | i;
+				i++;
+			}
+			Arrays.sort(order);
+			fivePrime = new int[n];
+			starts = new int[n];
+			ends = new int[n];
+			for(i = 0; i < n; i++) {
+				int k = (int)order[i];
+				fivePrime[i] = (int)(order[i]>>32);
+				starts[i] = s[k];
+				ends[i] = e[k];
+			}
+		}
+		
+		int size() { return fivePrime.length; }
+		
+		/* index of the first hit with its 5' end at or after pos */
+		int first(int pos) {
+			int lo = 0, hi = fivePrime.length;
+			while(lo < hi) {
+				int mid = (lo+hi)>>>1;
+				if(fivePrime[mid] < pos)
+					lo = mid+1;
+				else
+					hi = mid;
+			}
+			return lo;
+		}
+	}
+	
 	//No cleanup
 	public void cleanup(){
 		for(ChipSeqExptHandler h : handles)
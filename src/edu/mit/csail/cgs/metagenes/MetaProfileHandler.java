@@ -7,6 +7,8 @@ import edu.mit.csail.cgs.datasets.chipseq.*;
 
 public class MetaProfileHandler<T extends Point, ProfileClass extends Profile> {
 
+	private static final int BATCH_SIZE = 10000;
+
 	private MetaProfile profile;
 	private PointProfiler<T, ProfileClass> profiler, threadSafe;
 	private Vector<PointAddingThread> currentlyAdding;
@@ -91,6 +93,9 @@ public class MetaProfileHandler<T extends Point, ProfileClass extends Profile> {
 		}
 		
 		public void run() { 
+			if(profiler instanceof BatchPointProfiler) { 
+				runBatches((BatchPointProfiler<T,ProfileClass>)profiler);
+			}
 			while(running && points.hasNext()) { 
 				T pt = points.next();
 				profile.addProfile(threadSafe.execute(pt));
@@ -98,5 +103,22 @@ public class MetaProfileHandler<T extends Point, ProfileClass extends Profile> {
 			running=false;
 			addingThreadFinished(this);
 		}
+		
+		/* profiles the points BATCH_SIZE at a time, in the order of the points */
+		private void runBatches(BatchPointProfiler<T,ProfileClass> batchProfiler) { 
+			while(running && points.hasNext()) { 
+				List<T> batch = new ArrayList<T>();
+				while(batch.size() < BATCH_SIZE && points.hasNext()) { 
+					batch.add(points.next());
+				}
+				List<ProfileClass> profiles;
+				synchronized(threadSafe) { 
+					profiles = batchProfiler.executeBatch(batch);
+				}
+				for(ProfileClass p : profiles) { 
+					profile.addProfile(p);
+				}
+			}
+		}
 	}
 }
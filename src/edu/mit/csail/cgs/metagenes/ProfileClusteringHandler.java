@@ -10,12 +10,14 @@ public class ProfileClusteringHandler {
 
 	private ProfileClusterRepresentative repr;
 	private PairwiseElementMetric<ProfileClusterable> metric;
-	private HierarchicalClustering<ProfileClusterable> clustering;
+	private LinkageClustering<ProfileClusterable> clustering;
 	
 	public ProfileClusteringHandler(BinningParameters bps) { 
 		repr = new ProfileClusterRepresentative(bps);
 		metric = new EuclideanDistance<ProfileClusterable>();
-		clustering = new HierarchicalClustering<ProfileClusterable>(repr, metric);
+		// average linkage, computed from the distance matrix, instead of recomputing the meta-profile of each merged cluster
+		clustering = new LinkageClustering<ProfileClusterable>(repr, metric, LinkageClustering.Linkage.AVERAGE);
+		clustering.setNumThreads(Runtime.getRuntime().availableProcessors());
 	}
 	
 	public Vector<Integer> runClustering(Vector<Profile> profs) { 
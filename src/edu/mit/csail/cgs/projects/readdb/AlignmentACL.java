@@ -4,7 +4,7 @@ import java.io.*;
 import java.util.*;
 import java.nio.channels.*;
 
-public class AlignmentACL implements Closeable {
+public class AlignmentACL implements Cacheable {
 
     /* set of principals that can read, write, and change acls
        for this directory.  Default ACLs are empty, so client code
@@ -73,5 +73,16 @@ public class AlignmentACL implements Closeable {
         }
         reader.close();
     }
+    /* rough estimate of the memory used by the three sets */
+    public long sizeInBytes() {
+        return 64 + sizeInBytes(readACL) + sizeInBytes(writeACL) + sizeInBytes(adminACL);
+    }
+    private static long sizeInBytes(Set<String> acl) {
+        long size = 0;
+        for (String s : acl) {
+            size += 48 + 2 * s.length();
+        }
+        return size;
+    }
     public void close() {}
 }
\ No newline at end of file
@@ -0,0 +1,211 @@
+package edu.mit.csail.cgs.projects.readdb;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of Cacheable objects, each associated with a key.  The cache is
+ * bounded by the total sizeInBytes() of its objects and by the number
+ * of objects.  When it's over either bound, it drops the least recently
+ * used objects.  Dropped objects are not closed, since another thread
+ * may still be using them.  Their memory and mappings are released
+ * once they're garbage collected (see CacheGCHook).
+ *
+ * The keys are split across segments.  Each segment is an access-ordered
+ * LinkedHashMap with its own lock, so threads working on different keys
+ * rarely wait on each other and get() updates the recency in constant time.
+ * The bounds are global: all the memory can go to one segment if its keys
+ * are the only ones in use.  To evict, the cache compares the least
+ * recently used entry of each segment and drops the oldest of them.
+ */
+
+public class ByteLRUCache<X extends Cacheable> {
+
+    /* at most this many segments, and at least MINSEGMENTENTRIES entries per segment */
+    private static final int MAXSEGMENTS = 16, MINSEGMENTENTRIES = 16;
+    private static AtomicLong removed = new AtomicLong(0);
+
+    private String name;
+    private List<Segment<X>> segments;
+    private long maxBytes;
+    private int maxEntries;
+    /* totals over all segments, and the access clock that orders entries across segments */
+    private AtomicLong bytes, entries, clock;
+    private AtomicLong hits, misses, evictions;
+
+    public ByteLRUCache(String name, int maxEntries, long maxBytes) {
+        this.name = name;
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        bytes = new AtomicLong(0);
+        entries = new AtomicLong(0);
+        clock = new AtomicLong(0);
+        hits = new AtomicLong(0);
+        misses = new AtomicLong(0);
+        evictions = new AtomicLong(0);
+        int numSegments = 1;
+        while (numSegments < MAXSEGMENTS && numSegments * 2 * MINSEGMENTENTRIES <= maxEntries) {
+            numSegments *= 2;
+        }
+        segments = new ArrayList<Segment<X>>(numSegments);
+        for (int i = 0; i < numSegments; i++) {
+            segments.add(new Segment<X>());
+        }
+    }
+    private Segment<X> segment(String k) {
+        int h = k.hashCode();
+        h ^= (h >>> 16);
+        return segments.get(h & (segments.size() - 1));
+    }
+
+    public boolean contains(String k) {
+        Segment<X> s = segment(k);
+        synchronized(s) {
+            return s.map.containsKey(k);
+        }
+    }
+    public void printKeys() {
+        List<String> keys = new ArrayList<String>();
+        for (Segment<X> s : segments) {
+            synchronized(s) {
+                keys.addAll(s.map.keySet());
+            }
+        }
+        System.err.println(name + " " + keys.toString());
+    }
+    public X get(String k) {
+        Segment<X> s = segment(k);
+        Entry<X> e;
+        synchronized(s) {
+            e = s.map.get(k);
+            if (e != null) {
+                e.lastUsed = clock.incrementAndGet();
+            }
+        }
+        if (e == null) {
+            misses.incrementAndGet();
+            return null;
+        } else {
+            hits.incrementAndGet();
+            return e.value;
+        }
+    }
+    public void add(String k, X o) {
+        Entry<X> e = new Entry<X>(o, clock.incrementAndGet());
+        Segment<X> s = segment(k);
+        synchronized(s) {
+            Entry<X> old = s.map.put(k, e);
+            if (old != null) {
+                bytes.addAndGet(-old.bytes);
+                entries.decrementAndGet();
+                removed.incrementAndGet();
+            }
+            bytes.addAndGet(e.bytes);
+            entries.incrementAndGet();
+        }
+        /* always keep the new entry, even if it alone is over the bounds */
+        int evicted = 0;
+        while ((bytes.get() > maxBytes || entries.get() > maxEntries) && evictEldest(e)) {
+            evicted++;
+        }
+        if (evicted > 0) {
+            evictions.addAndGet(evicted);
+            removed.addAndGet(evicted);
+        }
+    }
+    /**
+     * Drops the least recently used entry of the segment whose least recently used
+     * entry is the oldest.  Returns true if an entry was dropped, and false if there's
+     * nothing to drop but keep.  Only one segment is locked at a time.
+     */
+    private boolean evictEldest(Entry<X> keep) {
+        while (true) {
+            Segment<X> victim = null;
+            long oldest = Long.MAX_VALUE;
+            for (Segment<X> s : segments) {
+                synchronized(s) {
+                    Entry<X> eldest = s.eldest(keep);
+                    if (eldest != null && eldest.lastUsed < oldest) {
+                        oldest = eldest.lastUsed;
+                        victim = s;
+                    }
+                }
+            }
+            if (victim == null) {
+                return false;
+            }
+            synchronized(victim) {
+                /* the segment may have changed since it was picked, drop whatever is its eldest now */
+                Iterator<Entry<X>> iter = victim.map.values().iterator();
+                while (iter.hasNext()) {
+                    Entry<X> eldest = iter.next();
+                    if (eldest != keep) {
+                        iter.remove();
+                        bytes.addAndGet(-eldest.bytes);
+                        entries.decrementAndGet();
+                        return true;
+                    }
+                }
+            }
+            /* another thread emptied the segment in the meantime, pick again */
+        }
+    }
+    public void remove(String k) {
+        Segment<X> s = segment(k);
+        synchronized(s) {
+            Entry<X> old = s.map.remove(k);
+            if (old != null) {
+                bytes.addAndGet(-old.bytes);
+                entries.decrementAndGet();
+                removed.incrementAndGet();
+            }
+        }
+    }
+    public int size() {
+        return (int)entries.get();
+    }
+    public long sizeInBytes() {
+        return bytes.get();
+    }
+    public long hits() {return hits.get();}
+    public long misses() {return misses.get();}
+    public long evictions() {return evictions.get();}
+    /**
+     * one line summary of the cache: name, entries, bytes, hits, misses, and evictions
+     */
+    public String getStats() {
+        return String.format("%s entries=%d/%d bytes=%d/%d hits=%d misses=%d evictions=%d",
+                             name, size(), maxEntries, sizeInBytes(), maxBytes,
+                             hits(), misses(), evictions());
+    }
+    /** number of objects dropped from all caches since the last resetRemoved() */
+    public static long removed() {return removed.get();}
+    public static void resetRemoved() {removed.set(0);}
+
+    private static class Entry<X extends Cacheable> {
+        public final X value;
+        public final long bytes;
+        /* value of the cache's clock at the last add() or get(), guarded by the segment's lock */
+        public long lastUsed;
+        public Entry(X value, long lastUsed) {
+            this.value = value;
+            this.lastUsed = lastUsed;
+            bytes = value.sizeInBytes();
+        }
+    }
+    private static class Segment<X extends Cacheable> {
+        public final LinkedHashMap<String,Entry<X>> map;
+        public Segment() {
+            map = new LinkedHashMap<String,Entry<X>>(16, .75f, true);
+        }
+        /* least recently used entry other than keep, or null; call with the segment locked */
+        public Entry<X> eldest(Entry<X> keep) {
+            for (Entry<X> e : map.values()) {
+                if (e != keep) {
+                    return e;
+                }
+            }
+            return null;
+        }
+    }
+}
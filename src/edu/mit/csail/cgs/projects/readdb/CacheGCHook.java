@@ -14,9 +14,9 @@ public class CacheGCHook implements Runnable {
 
     public void run() {
         while (true) {
-            if (LRUCache.removed() > 200) {
+            if (ByteLRUCache.removed() > 200) {
                 logger.log(Level.INFO,"running GC");
-                LRUCache.resetRemoved();
+                ByteLRUCache.resetRemoved();
                 System.gc();
                 System.runFinalization();
             } 
@@ -0,0 +1,12 @@
+package edu.mit.csail.cgs.projects.readdb;
+
+/**
+ * An object that ByteLRUCache can hold.  sizeInBytes() is the
+ * (approximate) amount of memory or mapped file that the object
+ * keeps alive while it's in the cache.
+ */
+public interface Cacheable extends Closeable {
+
+    public long sizeInBytes();
+
+}
@@ -49,6 +49,10 @@ public class Client implements ReadOnlyClient {
     /* temporary space for receiving data; contents not persistent between method calls */
     byte[] buffer;
     private static final int BUFFERLEN = 8192*20;
+    /* most alignments in one batch request; they're sent as request lines, which the server limits */
+    public static final int MAXBATCHALIGNS = 80;
+    /* most queries in one batch request; the server refuses larger ones and the client splits them */
+    public static final int MAXBATCHQUERIES = 1000000;
     private Request request;
     private boolean printErrors;
 
@@ -239,6 +243,23 @@ public class Client implements ReadOnlyClient {
             System.out.println(response);
         }
     }
+    /**
+     * Converts the hits of an alignment to the server's compressed block format, which
+     * takes several times less disk and page cache.  Queries return the same results.
+     * @throws ClientException if the user can't write to the alignment
+     */
+    public void compress(String align, boolean paired) throws IOException, ClientException {
+        request.clear();
+        request.type = "compress";
+        request.alignid = align;
+        request.isPaired = paired;
+        sendString(request.toString());
+        outstream.flush();
+        String response = readLine();
+        if (!response.equals("OK")) {
+            throw new ClientException(response);
+        }
+    }
     /** This was to fix a bug in the server.  You shouldn't need it for general use.
      * Resort the hits for a single-ended alignment and regenerate the index.
      */
@@ -417,6 +438,28 @@ public class Client implements ReadOnlyClient {
             throw new ClientException(response);
         }
     }
+    /**
+     * Returns the server's cache statistics, one line per cache
+     */
+    public List<String> getCacheStats() throws IOException, ClientException {
+        request.clear();
+        request.type="cachestats";
+        sendString(request.toString());
+        String response = readLine();
+        if (!response.equals("OK")) {
+            if (printErrors) {
+                System.err.println("not-OK response to request: " + response);
+                System.err.println("request was " + request);
+            }
+            throw new ClientException(response);
+        }
+        int numlines = Integer.parseInt(readLine());
+        List<String> output = new ArrayList<String>();
+        while (numlines-- > 0) {
+            output.add(readLine());
+        }
+        return output;
+    }
     /**
      * Returns the set of chromosomes that exist for this alignment. 
      */
@@ -820,6 +863,15 @@ public class Client implements ReadOnlyClient {
         return getHistogram(alignids,chromid,paired,doReadExtension,binsize,0,start,stop,minWeight,plusStrand);
     }
     public TreeMap<Integer,Integer> getHistogram(Collection<String> alignids, int chromid, boolean paired, boolean doReadExtension, int binsize, int dedup, Integer start, Integer stop, Float minWeight, Boolean plusStrand) throws IOException, ClientException {
+        if (canMergeOnServer(alignids, paired, start, stop)) {
+            Histogram h = getHistograms(alignids, false, false, doReadExtension, binsize, dedup,
+                                        new int[]{chromid}, new int[]{start}, new int[]{stop}, minWeight, plusStrand).get(0);
+            TreeMap<Integer,Integer> output = new TreeMap<Integer,Integer>();
+            for (int i = 0; i < h.size(); i++) {
+                output.put(h.positions[i], h.counts[i]);
+            }
+            return output;
+        }
         TreeMap<Integer,Integer> output = null;
         for (String alignid : alignids) {
             TreeMap<Integer,Integer> o = getHistogram(alignid,chromid,paired,doReadExtension,binsize,dedup,start,stop,minWeight,plusStrand,true);
@@ -850,6 +902,15 @@ public class Client implements ReadOnlyClient {
         return getWeightHistogram(alignids,chromid,paired,doReadExtension,binsize,0,start,stop,minWeight,plusStrand);
     }
     public TreeMap<Integer,Float> getWeightHistogram(Collection<String> alignids, int chromid, boolean paired, boolean doReadExtension, int binsize, int dedup, Integer start, Integer stop, Float minWeight, Boolean plusStrand) throws IOException, ClientException {
+        if (canMergeOnServer(alignids, paired, start, stop)) {
+            Histogram h = getWeightHistograms(alignids, false, false, doReadExtension, binsize, dedup,
+                                              new int[]{chromid}, new int[]{start}, new int[]{stop}, minWeight, plusStrand).get(0);
+            TreeMap<Integer,Float> output = new TreeMap<Integer,Float>();
+            for (int i = 0; i < h.size(); i++) {
+                output.put(h.positions[i], h.weights[i]);
+            }
+            return output;
+        }
         TreeMap<Integer,Float> output = null;
         for (String alignid : alignids) {
             TreeMap<Integer,Float> o = getWeightHistogram(alignid,chromid,paired,doReadExtension,binsize,dedup,start,stop,minWeight,plusStrand, true);
@@ -870,6 +931,183 @@ public class Client implements ReadOnlyClient {
         return output;
     }
 
+    /* the paired-end overloads above also combine the left and right reads, so they keep
+       querying one alignment at a time */
+    private boolean canMergeOnServer(Collection<String> alignids, boolean paired, Integer start, Integer stop) {
+        return !paired && start != null && stop != null && !alignids.isEmpty() && alignids.size() <= MAXBATCHALIGNS;
+    }
+
+    /**
+     * Returns the number of hits in each range (chromids[i], starts[i] to stops[i]), summed over
+     * the alignments.  All the ranges are sent to the server in a single request and the server
+     * merges the alignments.  An alignment without hits on a chromosome contributes nothing.
+     */
+    public int[] getCounts(Collection<String> alignids, boolean paired, Boolean isLeft, int[] chromids, int[] starts, int[] stops, Float minWeight, Boolean plusStrand) throws IOException, ClientException {
+        request.clear();
+        request.type="batch";
+        request.map.put("querytype","count");
+        request.minWeight = minWeight;
+        request.isPlusStrand = plusStrand;
+        request.isPaired = paired;
+        request.isLeft = isLeft == null ? true : isLeft;
+        checkBatch(alignids, chromids, starts, stops);
+        ReadableByteChannel rbc = Channels.newChannel(instream);
+        int[] output = new int[chromids.length];
+        for (int from = 0; from < chromids.length; from += MAXBATCHQUERIES) {
+            int to = Math.min(chromids.length, from + MAXBATCHQUERIES);
+            sendBatch(new ArrayList<String>(alignids), null, chromids, starts, stops, from, to);
+            System.arraycopy(readIntArray(to - from, rbc), 0, output, from, to - from);
+        }
+        return output;
+    }
+    /**
+     * Returns the histogram of each range (chromids[i], starts[i] to stops[i]), summed over
+     * the alignments, with one request to the server for all the ranges.  The
+     * parameters are the same as for getHistogram() and the histograms hold the same bins.
+     */
+    public List<Histogram> getHistograms(Collection<String> alignids, boolean paired, boolean isLeft, boolean doReadExtension, int binsize, int dedup, int[] chromids, int[] starts, int[] stops, Float minWeight, Boolean plusStrand) throws IOException, ClientException {
+        return getHistograms("histogram", alignids, paired, isLeft, doReadExtension, binsize, dedup, chromids, starts, stops, minWeight, plusStrand);
+    }
+    /**
+     * Returns the weight histogram of each range (chromids[i], starts[i] to stops[i]), summed over
+     * the alignments, with one request to the server for all the ranges.
+     */
+    public List<Histogram> getWeightHistograms(Collection<String> alignids, boolean paired, boolean isLeft, boolean doReadExtension, int binsize, int dedup, int[] chromids, int[] starts, int[] stops, Float minWeight, Boolean plusStrand) throws IOException, ClientException {
+        return getHistograms("weighthistogram", alignids, paired, isLeft, doReadExtension, binsize, dedup, chromids, starts, stops, minWeight, plusStrand);
+    }
+    private List<Histogram> getHistograms(String type, Collection<String> alignids, boolean paired, boolean isLeft, boolean doReadExtension, int binsize, int dedup, int[] chromids, int[] starts, int[] stops, Float minWeight, Boolean plusStrand) throws IOException, ClientException {
+        request.clear();
+        request.type="batch";
+        request.map.put("querytype",type);
+        request.isLeft = isLeft;
+        request.minWeight = minWeight;
+        request.isPlusStrand = plusStrand;
+        request.isPaired = paired;
+        request.map.put("binsize",Integer.toString(binsize));
+        if (dedup > 0) {
+            request.map.put("dedup",Integer.toString(dedup));
+        }
+        if (doReadExtension) {
+            request.map.put("extension","1");
+        }
+        checkBatch(alignids, chromids, starts, stops);
+        ReadableByteChannel rbc = Channels.newChannel(instream);
+        List<Histogram> output = new ArrayList<Histogram>();
+        for (int from = 0; from < chromids.length; from += MAXBATCHQUERIES) {
+            int to = Math.min(chromids.length, from + MAXBATCHQUERIES);
+            sendBatch(new ArrayList<String>(alignids), null, chromids, starts, stops, from, to);
+            for (int q = from; q < to; q++) {
+                int n = readIntArray(1, rbc)[0];
+                int[] positions = readIntArray(n, rbc);
+                if (type.equals("histogram")) {
+                    output.add(new Histogram(positions, readIntArray(n, rbc), null));
+                } else {
+                    output.add(new Histogram(positions, null, readFloatArray(n, rbc)));
+                }
+            }
+        }
+        return output;
+    }
+    /**
+     * Returns the single-ended hits of each query (alignids[i], chromids[i], starts[i] to stops[i])
+     * with one request to the server for all the queries.  Each list is sorted by position, as
+     * from getSingleHits(), and is empty if the alignment has no hits on the chromosome.
+     */
+    public List<List<SingleHit>> getSingleHits(List<String> alignids, int[] chromids, int[] starts, int[] stops, Float minWeight, Boolean plusStrand) throws IOException, ClientException {
+        if (alignids.size() != chromids.length) {
+            throw new IllegalArgumentException("need one alignment per query");
+        }
+        List<String> distinct = new ArrayList<String>();
+        Map<String,Integer> indices = new HashMap<String,Integer>();
+        int[] aligns = new int[alignids.size()];
+        for (int q = 0; q < aligns.length; q++) {
+            String alignid = alignids.get(q);
+            if (!indices.containsKey(alignid)) {
+                indices.put(alignid, distinct.size());
+                distinct.add(alignid);
+            }
+            aligns[q] = indices.get(alignid);
+        }
+        request.clear();
+        request.type="batch";
+        request.map.put("querytype","gethits");
+        request.minWeight = minWeight;
+        request.isPlusStrand = plusStrand;
+        request.isPaired = false;
+        checkBatch(distinct, chromids, starts, stops);
+        ReadableByteChannel rbc = Channels.newChannel(instream);
+        List<List<SingleHit>> output = new ArrayList<List<SingleHit>>();
+        for (int from = 0; from < chromids.length; from += MAXBATCHQUERIES) {
+            int to = Math.min(chromids.length, from + MAXBATCHQUERIES);
+            sendBatch(distinct, aligns, chromids, starts, stops, from, to);
+            for (int q = from; q < to; q++) {
+                int n = readIntArray(1, rbc)[0];
+                int[] positions = readIntArray(n, rbc);
+                float[] weights = readFloatArray(n, rbc);
+                int[] las = readIntArray(n, rbc);
+                List<SingleHit> hits = new ArrayList<SingleHit>(n);
+                for (int i = 0; i < n; i++) {
+                    hits.add(new SingleHit(chromids[q], positions[i], weights[i],
+                                           Hits.getStrandOne(las[i]), Hits.getLengthOne(las[i])));
+                }
+                output.add(hits);
+            }
+        }
+        return output;
+    }
+    private void checkBatch(Collection<String> alignids, int[] chromids, int[] starts, int[] stops) {
+        if (starts.length != chromids.length || stops.length != chromids.length) {
+            throw new IllegalArgumentException("chromids, starts and stops must have the same length");
+        }
+        if (alignids.isEmpty() || alignids.size() > MAXBATCHALIGNS) {
+            throw new IllegalArgumentException("a batch needs between 1 and " + MAXBATCHALIGNS + " alignments");
+        }
+    }
+    /**
+     * Sends the batch request that has been set up in request for queries from to to-1 (at most
+     * MAXBATCHQUERIES), with the alignments as request lines, followed by the queries as four ints each:
+     * the index of the alignment (-1 for all of them, merged), chromid, start and stop.
+     * Reads the response line and throws ClientException if it isn't OK.
+     */
+    private void sendBatch(List<String> alignids, int[] aligns, int[] chromids, int[] starts, int[] stops, int from, int to) throws IOException, ClientException {
+        request.list.clear();
+        request.list.addAll(alignids);
+        request.map.put("numqueries",Integer.toString(to - from));
+        int[] queries = new int[(to - from) * 4];
+        for (int q = from; q < to; q++) {
+            int i = q - from;
+            queries[i*4] = aligns == null ? -1 : aligns[q];
+            queries[i*4+1] = chromids[q];
+            queries[i*4+2] = starts[q];
+            queries[i*4+3] = stops[q];
+        }
+        /* the queries follow the request without waiting for a response */
+        outstream.write(request.toString().getBytes());
+        Bits.sendInts(queries, outstream, buffer);
+        String response = readLine();
+        if (!response.equals("OK")) {
+            if (printErrors) {
+                System.err.println("not-OK response to request: " + response);
+                System.err.println("request was " + request);
+            }
+            throw new ClientException(response);
+        }
+    }
+    private int[] readIntArray(int n, ReadableByteChannel rbc) throws IOException {
+        IntBP ints = new IntBP(n);
+        Bits.readBytes(ints.bb, rbc);
+        int[] output = new int[n];
+        ints.ib.get(output);
+        return output;
+    }
+    private float[] readFloatArray(int n, ReadableByteChannel rbc) throws IOException {
+        FloatBP floats = new FloatBP(n);
+        Bits.readBytes(floats.bb, rbc);
+        float[] output = new float[n];
+        floats.fb.get(output);
+        return output;
+    }
+
     /**
      * Returns a Map from READ, WRITE, and ADMIN to lists of principals that have those privileges on the specified alignment.
      */
@@ -1,25 +1,46 @@
 package edu.mit.csail.cgs.projects.readdb;
 
+import java.io.*;
+import java.nio.channels.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.logging.*;
 
 /**
- * Dispatch is a thread that manages the WorkerThreads and assigns
- * WorkerThreads to ServerTasks.
+ * Dispatch runs the server's Selector loop.  It accepts connections, reads
+ * from the clients that have input without blocking, and hands a ServerTask
+ * to the WorkerThreads once it holds a complete request.
+ *
+ * While a WorkerThread runs a task, the task's channel is taken off the
+ * Selector and put in blocking mode, so ServerTask can use its streams
+ * as before.  When the WorkerThread is done, the channel goes back
+ * to non-blocking mode and is registered again.
  */
 
 public class Dispatch implements Runnable {
 
-    private Vector<WorkerThread> freePool, allThreads;
-    private Vector<ServerTask> workQueue;
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private SelectionKey acceptKey;
+    /* tasks with a complete request, waiting for a WorkerThread */
+    private LinkedBlockingQueue<ServerTask> workQueue;
+    /* tasks handed back by the WorkerThreads, to be registered with the selector again */
+    private ConcurrentLinkedQueue<ServerTask> returned;
+    private Vector<WorkerThread> allThreads;
     private Vector<Thread> threads;
     private Server server;
     private int maxConnections;
-    private int warnedMaxConn = 0;
-    public Dispatch (Server s, int numThreads, int maxC) {
+    private volatile int numConnections;
+    private boolean warnedMaxConn = false;
+
+    public Dispatch (Server s, int numThreads, int maxC, ServerSocketChannel ssc) throws IOException {
         server = s;
-        workQueue = new Vector<ServerTask>();
-        freePool = new Vector<WorkerThread>();
+        serverChannel = ssc;
+        selector = Selector.open();
+        serverChannel.configureBlocking(false);
+        acceptKey = serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        workQueue = new LinkedBlockingQueue<ServerTask>();
+        returned = new ConcurrentLinkedQueue<ServerTask>();
         allThreads = new Vector<WorkerThread>();
         threads = new Vector<Thread>();
         for (int i = 0; i < numThreads; i++) {
@@ -27,33 +48,17 @@ public class Dispatch implements Runnable {
             Thread t = new Thread(servthread);
             t.start();
             threads.add(t);
-            freePool.add(servthread);
             allThreads.add(servthread);
         }
         maxConnections = maxC;
+        numConnections = 0;
     }
 
     /**
-     * Add a new ServerTask to the set of tasks that will
-     * be run.  Called by Server when it accepts a new connection.
+     * Called by a WorkerThread to get the next task to run.  Blocks until there is one.
      */
-    public void addWork(ServerTask s) {
-        System.err.println("workqueue size is " + workQueue.size() + "\n");
-        while (workQueue.size() > maxConnections) {
-            try {
-                if (warnedMaxConn++ % 100 == 0) {
-                    server.getLogger().log(Level.WARNING,(String.format("Hit maxconnections (%d)",maxConnections)));
-                }
-                Thread.sleep(10);
-            } catch (InterruptedException e) {
-
-            }
-        }
-        warnedMaxConn = 0;
-        workQueue.add(s);
-        synchronized(this) {
-            notifyAll();
-        }
+    public ServerTask takeWork() throws InterruptedException {
+        return workQueue.take();
     }
     /**
      * called by WorkerThread when it's finished with a ServerTask.
@@ -63,94 +68,163 @@ public class Dispatch implements Runnable {
      *
      */
     public void freeThread(WorkerThread t, ServerTask s) {
+        if (!s.shouldClose()) {
+            /* the client may already have sent the next request */
+            s.drainInput();
+        }
         if (s.shouldClose()) {
-            s.close();
-        } else {
+            closeTask(s);
+            selector.wakeup();
+        } else if (s.readyToRun()) {
             workQueue.add(s);
+        } else {
+            try {
+                s.getChannel().configureBlocking(false);
+                returned.add(s);
+            } catch (IOException e) {
+                server.getLogger().logp(Level.INFO,"Dispatch","freeThread",e.toString(),e);
+                closeTask(s);
+            }
+            selector.wakeup();
         }
-        freePool.add(t);
+    }
+    /**
+     * Wakes up the selector, eg so that the main loop notices that the server is stopping.
+     */
+    public void wakeup() {
+        selector.wakeup();
+    }
+    private void closeTask(ServerTask s) {
+        s.close();
         synchronized(this) {
-            notifyAll();
+            numConnections--;
         }
     }
     /**
-     * our main loop.  work through the tasks, seeing who appears
-     * to have input
+     * our main loop.  Waits on the selector for new connections and for
+     * client input.
      */
     public void run() {
-        int noTasksWaiting = 0;
-        int noInputAvailable = 0;
-        int threadCheck = 0;
-        int sleep = server.getSleepiness();
-        while (server.keepRunning()) {            
-            if (workQueue.size() > 0) {
-                noTasksWaiting = 0;
-                ServerTask s = workQueue.remove(0);
-                if (s.shouldClose()) {
-                    s.close();
-                } else if (s.inputAvailable()) {
-                    while (freePool.size() == 0) {                        
-                        try {
-                            synchronized(this) {
-                                wait(2);
-                            }
-                        } catch (InterruptedException e) {}
-                    }                        
-                    WorkerThread w = freePool.remove(0);
-                    w.handle(s);
-                    noInputAvailable = 0;
-                } else {
-                    noInputAvailable++;
-                    workQueue.add(s);
-                    if (noInputAvailable > workQueue.size() * 2) {
-                        try {
-                            synchronized(this) {
-                                wait(sleep);
-                            }
-                        } catch (InterruptedException e) {}                
-                        noInputAvailable = 0;
+        long lastThreadCheck = System.currentTimeMillis();
+        while (server.keepRunning()) {
+            try {
+                ServerTask s;
+                while ((s = returned.poll()) != null) {
+                    try {
+                        s.getChannel().register(selector, SelectionKey.OP_READ, s);
+                    } catch (IOException e) {
+                        closeTask(s);
                     }
                 }
-            } else {
-                noTasksWaiting++;
-                try {
-                    synchronized(this) {
-                        wait(sleep*2);
+                /* stop accepting while we're at maxconnections */
+                if (numConnections >= maxConnections) {
+                    if (!warnedMaxConn) {
+                        server.getLogger().log(Level.WARNING,(String.format("Hit maxconnections (%d)",maxConnections)));
+                        warnedMaxConn = true;
+                    }
+                    acceptKey.interestOps(0);
+                } else {
+                    warnedMaxConn = false;
+                    acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+                }
+
+                selector.select(1000);
+                List<ServerTask> ready = new ArrayList<ServerTask>();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
                     }
-                } catch (InterruptedException e) {}                
-            } 
-            if (threadCheck++ > 1000) {
-                threadCheck = 0;
-                for (int i = 0; i < threads.size(); i++) {
-                    if (!threads.get(i).isAlive()) {
-                        server.getLogger().log(Level.INFO,"Dispatch","run: DEAD THREAD.  Adding a new one");
-                        WorkerThread servthread = new WorkerThread(this);
-                        Thread t = new Thread(servthread);
-                        t.start();
-                        threads.set(i,t);
-                        freePool.add(servthread);
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else if (key.isReadable()) {
+                        s = (ServerTask)key.attachment();
+                        s.readChannel();
+                        if (s.shouldClose()) {
+                            key.cancel();
+                            closeTask(s);
+                        } else if (s.readyToRun()) {
+                            key.cancel();
+                            ready.add(s);
+                        }
+                    }
+                }
+                if (!ready.isEmpty()) {
+                    /* flush the cancelled keys so the channels can go into blocking mode */
+                    selector.selectNow();
+                    for (ServerTask t : ready) {
                         try {
-                            allThreads.get(i).stopRunning();
-                        } catch (Exception e) {
-                            server.getLogger().logp(Level.INFO,"Dispatch","run: trying to stop old thread",e.toString(),e);
+                            t.getChannel().configureBlocking(true);
+                            workQueue.add(t);
+                        } catch (IOException e) {
+                            server.getLogger().logp(Level.INFO,"Dispatch","run",e.toString(),e);
+                            closeTask(t);
                         }
-                        allThreads.set(i,servthread);
                     }
                 }
+            } catch (ClosedSelectorException e) {
+                break;
+            } catch (IOException e) {
+                server.getLogger().logp(Level.INFO,"Dispatch","run",e.toString(),e);
             }
-        }
-        while (freePool.size() < allThreads.size()) {
-            try {
-                Thread.sleep(100);
-            } catch (InterruptedException e) {
-                
+            if (System.currentTimeMillis() - lastThreadCheck > 1000) {
+                lastThreadCheck = System.currentTimeMillis();
+                checkThreads();
             }
         }
-        for (WorkerThread t : freePool) {
+        for (WorkerThread t : allThreads) {
             t.stopRunning();
         }
+        for (Thread t : threads) {
+            t.interrupt();
+        }
+        try {
+            selector.close();
+            serverChannel.close();
+        } catch (IOException e) {
+            // ignore it
+        }
     }
-
-
-
-}
\ No newline at end of file
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        server.getLogger().log(Level.INFO,"accepted from " + channel.socket().getInetAddress());
+        try {
+            channel.socket().setSoLinger(false,0);
+            ServerTask st = new ServerTask(server,channel.socket());
+            if (server.debug()) {
+                System.err.println("New Task is " + st);
+            }
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ, st);
+            synchronized(this) {
+                numConnections++;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            channel.close();
+        }
+    }
+    /* replace the WorkerThreads that died */
+    private void checkThreads() {
+        for (int i = 0; i < threads.size(); i++) {
+            if (!threads.get(i).isAlive()) {
+                server.getLogger().log(Level.INFO,"Dispatch","run: DEAD THREAD.  Adding a new one");
+                WorkerThread servthread = new WorkerThread(this);
+                Thread t = new Thread(servthread);
+                t.start();
+                threads.set(i,t);
+                try {
+                    allThreads.get(i).stopRunning();
+                } catch (Exception e) {
+                    server.getLogger().logp(Level.INFO,"Dispatch","run: trying to stop old thread",e.toString(),e);
+                }
+                allThreads.set(i,servthread);
+            }
+        }
+    }
+}
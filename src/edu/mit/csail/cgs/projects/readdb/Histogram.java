@@ -0,0 +1,22 @@
+package edu.mit.csail.cgs.projects.readdb;
+
+/**
+ * The non-empty bins of a histogram returned by the batch methods of Client.
+ * positions are the centers of the bins in ascending order.  For a histogram
+ * of counts, counts holds the number of hits in each bin and weights is null.
+ * For a weight histogram, weights holds the total weight in each bin and counts is null.
+ */
+public class Histogram {
+    public int[] positions;
+    public int[] counts;
+    public float[] weights;
+
+    public Histogram(int[] positions, int[] counts, float[] weights) {
+        this.positions = positions;
+        this.counts = counts;
+        this.weights = weights;
+    }
+    public int size() {
+        return positions.length;
+    }
+}
@@ -0,0 +1,367 @@
+package edu.mit.csail.cgs.projects.readdb;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * Compressed block format for the hits of one chromosome, an alternative to
+ * the one mapped file per column of SingleHits and PairedHits.
+ *
+ * The hits are cut into blocks of BLOCKSIZE hits.  A directory at the start of the
+ * file holds the first and last position and the offset of each block, so a query only
+ * decodes the blocks that overlap it, and counting hits doesn't decode the blocks that
+ * lie entirely inside the query.  Within a block each column (in the order of
+ * Hits.getColumns()) is stored either as runs of equal values, which suits the weights
+ * and lengths, or bit-packed: the values are XORed with the first one and only the
+ * bits that differ somewhere in the block are kept, which packs the position deltas
+ * into a few bits each and the strands into one.
+ *
+ * File layout (big-endian):
+ * <pre>
+ * int magic, int version, int numHits, int blockSize, int numColumns, int numBlocks
+ * numBlocks * (int minPosition, int maxPosition, long offset)
+ * per block, per column: int length, then the encoded column
+ *   runs:   byte 0, int numRuns, numRuns * (int value, varint runLength)
+ *   packed: byte 1, int base, int mask, bitCount(mask) bits per value, LSB first
+ * </pre>
+ * The positions column holds the difference from the previous position in the block.
+ */
+public class HitBlocks {
+
+    public static final int MAGIC = 0x52424c4b;
+    public static final int VERSION = 1;
+    public static final int BLOCKSIZE = 16384;
+    private static final int HEADERBYTES = 24, DIRENTRYBYTES = 16;
+    private static final byte RUNS = 0, PACKED = 1;
+
+    private ByteBuffer bb;
+    private int numHits, blockSize, numColumns, numBlocks;
+    private int[] minPositions, maxPositions, offsets;
+
+    /** maps the block file fname */
+    public HitBlocks(String fname) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(fname,"r");
+        try {
+            FileChannel fc = raf.getChannel();
+            bb = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+        } finally {
+            raf.close();
+        }
+        if (bb.getInt(0) != MAGIC || bb.getInt(4) != VERSION) {
+            throw new IOException("Not a hit block file : " + fname);
+        }
+        numHits = bb.getInt(8);
+        blockSize = bb.getInt(12);
+        numColumns = bb.getInt(16);
+        numBlocks = bb.getInt(20);
+        minPositions = new int[numBlocks];
+        maxPositions = new int[numBlocks];
+        offsets = new int[numBlocks];
+        for (int b = 0; b < numBlocks; b++) {
+            int p = HEADERBYTES + b * DIRENTRYBYTES;
+            minPositions[b] = bb.getInt(p);
+            maxPositions[b] = bb.getInt(p + 4);
+            offsets[b] = (int)bb.getLong(p + 8);
+        }
+    }
+    public int size() {return numHits;}
+    public int getNumColumns() {return numColumns;}
+    public int getNumBlocks() {return numBlocks;}
+    public long sizeInBytes() {return bb == null ? 0 : bb.capacity();}
+    public int getFirstPosition() {return minPositions[0];}
+    public int getLastPosition() {return maxPositions[numBlocks - 1];}
+    /** index of the first hit in block b */
+    public int getBlockStart(int b) {return b * blockSize;}
+    public int getBlockLength(int b) {return Math.min(blockSize, numHits - b * blockSize);}
+    /** first block that may hold a position >= start.  numBlocks if there is none */
+    public int getFirstBlock(int start) {
+        int lo = 0, hi = numBlocks;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (maxPositions[mid] < start) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+    /** last block that may hold a position <= stop.  -1 if there is none */
+    public int getLastBlock(int stop) {
+        int lo = 0, hi = numBlocks;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (minPositions[mid] <= stop) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo - 1;
+    }
+    /**
+     * number of hits with start <= position <= stop.  Blocks entirely inside the
+     * range are counted from the directory, and only the positions of the blocks
+     * at the ends of the range are decoded.
+     */
+    public int getCountBetween(int start, int stop) {
+        int first = getFirstBlock(start), last = getLastBlock(stop);
+        int count = 0;
+        int[] positions = null;
+        for (int b = first; b <= last; b++) {
+            int n = getBlockLength(b);
+            if (minPositions[b] >= start && maxPositions[b] <= stop) {
+                count += n;
+                continue;
+            }
+            if (positions == null) {
+                positions = new int[blockSize];
+            }
+            decodeColumn(b, 0, positions, 0);
+            for (int i = 0; i < n; i++) {
+                if (positions[i] >= start && positions[i] <= stop) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+    /**
+     * decodes the blocks firstBlock through lastBlock.  Returns the columns in
+     * the order of Hits.getColumns(), null for the columns that aren't wanted.
+     * Column 1 (the weights) is a FloatBP and the others are IntBPs.
+     */
+    public ByteBP[] decode(int firstBlock, int lastBlock, boolean[] wanted) {
+        int total = 0;
+        for (int b = firstBlock; b <= lastBlock; b++) {
+            total += getBlockLength(b);
+        }
+        ByteBP[] output = new ByteBP[numColumns];
+        int[] values = new int[total];
+        for (int c = 0; c < numColumns; c++) {
+            if (!wanted[c]) {
+                continue;
+            }
+            int offset = 0;
+            for (int b = firstBlock; b <= lastBlock; b++) {
+                decodeColumn(b, c, values, offset);
+                offset += getBlockLength(b);
+            }
+            ByteBuffer column = ByteBuffer.allocate(total * 4);
+            column.asIntBuffer().put(values);
+            output[c] = c == 1 ? new FloatBP(column) : new IntBP(column);
+        }
+        return output;
+    }
+    /** decodes all of the hits */
+    public ByteBP[] decodeAll() {
+        boolean[] wanted = new boolean[numColumns];
+        java.util.Arrays.fill(wanted, true);
+        return decode(0, numBlocks - 1, wanted);
+    }
+    /* decodes column c of block b into output, starting at offset */
+    private void decodeColumn(int b, int c, int[] output, int offset) {
+        int n = getBlockLength(b);
+        int p = offsets[b];
+        for (int i = 0; i < c; i++) {
+            p += 4 + bb.getInt(p);
+        }
+        p += 4;
+        byte mode = bb.get(p++);
+        if (mode == RUNS) {
+            int runs = bb.getInt(p);
+            p += 4;
+            int i = offset;
+            for (int r = 0; r < runs; r++) {
+                int value = bb.getInt(p);
+                p += 4;
+                int length = 0, shift = 0;
+                byte x;
+                do {
+                    x = bb.get(p++);
+                    length |= (x & 0x7f) << shift;
+                    shift += 7;
+                } while ((x & 0x80) != 0);
+                for (int end = i + length; i < end; i++) {
+                    output[i] = value;
+                }
+            }
+        } else {
+            int base = bb.getInt(p);
+            int mask = bb.getInt(p + 4);
+            p += 8;
+            int width = Integer.bitCount(mask);
+            int shift = Integer.numberOfTrailingZeros(mask);
+            boolean contiguous = width == 0 || width + shift == 32 || (mask >>> shift) == (1 << width) - 1;
+            long valueMask = (1L << width) - 1;
+            long acc = 0;
+            int nbits = 0;
+            for (int i = offset; i < offset + n; i++) {
+                while (nbits < width) {
+                    acc |= (long)(bb.get(p++) & 0xff) << nbits;
+                    nbits += 8;
+                }
+                int bits = (int)(acc & valueMask);
+                acc >>>= width;
+                nbits -= width;
+                output[i] = base ^ (contiguous ? bits << shift : deposit(bits, mask));
+            }
+        }
+        if (c == 0) {
+            output[offset] += minPositions[b];
+            for (int i = offset + 1; i < offset + n; i++) {
+                output[i] += output[i-1];
+            }
+        }
+    }
+
+    /**
+     * Writes the columns (in the order of Hits.getColumns(), sorted by position)
+     * to fname in the block format.
+     */
+    public static void write(ByteBP[] columns, String fname) throws IOException {
+        IntBuffer[] input = new IntBuffer[columns.length];
+        for (int c = 0; c < columns.length; c++) {
+            input[c] = HitSegments.asInts(columns[c]);
+        }
+        int numHits = input[0].limit();
+        int numBlocks = (numHits + BLOCKSIZE - 1) / BLOCKSIZE;
+        int[] minPositions = new int[numBlocks], maxPositions = new int[numBlocks];
+        long[] offsets = new long[numBlocks];
+        RandomAccessFile raf = new RandomAccessFile(fname,"rw");
+        try {
+            raf.setLength(0);
+            raf.seek(HEADERBYTES + (long)numBlocks * DIRENTRYBYTES);
+            int[] values = new int[BLOCKSIZE];
+            ByteArrayOutputStream block = new ByteArrayOutputStream();
+            ByteArrayOutputStream column = new ByteArrayOutputStream();
+            for (int b = 0; b < numBlocks; b++) {
+                int start = b * BLOCKSIZE;
+                int n = Math.min(BLOCKSIZE, numHits - start);
+                minPositions[b] = input[0].get(start);
+                maxPositions[b] = input[0].get(start + n - 1);
+                offsets[b] = raf.getFilePointer();
+                block.reset();
+                DataOutputStream out = new DataOutputStream(block);
+                for (int c = 0; c < columns.length; c++) {
+                    for (int i = 0; i < n; i++) {
+                        values[i] = input[c].get(start + i);
+                    }
+                    if (c == 0) {
+                        for (int i = n - 1; i > 0; i--) {
+                            values[i] -= values[i-1];
+                        }
+                        values[0] = 0;
+                    }
+                    column.reset();
+                    encodeColumn(values, n, new DataOutputStream(column));
+                    out.writeInt(column.size());
+                    column.writeTo(out);
+                }
+                out.flush();
+                raf.write(block.toByteArray());
+            }
+            ByteArrayOutputStream directory = new ByteArrayOutputStream();
+            DataOutputStream header = new DataOutputStream(directory);
+            header.writeInt(MAGIC);
+            header.writeInt(VERSION);
+            header.writeInt(numHits);
+            header.writeInt(BLOCKSIZE);
+            header.writeInt(columns.length);
+            header.writeInt(numBlocks);
+            for (int b = 0; b < numBlocks; b++) {
+                header.writeInt(minPositions[b]);
+                header.writeInt(maxPositions[b]);
+                header.writeLong(offsets[b]);
+            }
+            header.flush();
+            raf.seek(0);
+            raf.write(directory.toByteArray());
+        } finally {
+            raf.close();
+        }
+    }
+    /* writes values[0..n) as runs or bit-packed, whichever is smaller */
+    private static void encodeColumn(int[] values, int n, DataOutputStream out) throws IOException {
+        int runs = 0, runbytes = 0, mask = 0;
+        for (int i = 0; i < n; ) {
+            int j = i + 1;
+            while (j < n && values[j] == values[i]) {
+                j++;
+            }
+            runs++;
+            runbytes += 4 + varintLength(j - i);
+            i = j;
+        }
+        for (int i = 1; i < n; i++) {
+            mask |= values[i] ^ values[0];
+        }
+        int width = Integer.bitCount(mask);
+        long packedbytes = 8 + ((long)n * width + 7) / 8;
+        if (4 + runbytes <= packedbytes) {
+            out.writeByte(RUNS);
+            out.writeInt(runs);
+            for (int i = 0; i < n; ) {
+                int j = i + 1;
+                while (j < n && values[j] == values[i]) {
+                    j++;
+                }
+                out.writeInt(values[i]);
+                int length = j - i;
+                while (length >= 0x80) {
+                    out.writeByte((length & 0x7f) | 0x80);
+                    length >>>= 7;
+                }
+                out.writeByte(length);
+                i = j;
+            }
+        } else {
+            out.writeByte(PACKED);
+            out.writeInt(values[0]);
+            out.writeInt(mask);
+            long acc = 0;
+            int nbits = 0;
+            for (int i = 0; i < n; i++) {
+                acc |= (extract(values[i] ^ values[0], mask) & 0xffffffffL) << nbits;
+                nbits += width;
+                while (nbits >= 8) {
+                    out.writeByte((int)acc);
+                    acc >>>= 8;
+                    nbits -= 8;
+                }
+            }
+            if (nbits > 0) {
+                out.writeByte((int)acc);
+            }
+        }
+    }
+    private static int varintLength(int v) {
+        int n = 1;
+        while (v >= 0x80) {
+            v >>>= 7;
+            n++;
+        }
+        return n;
+    }
+    /* the bits of x selected by mask, packed into the low bits */
+    private static int extract(int x, int mask) {
+        int r = 0, bit = 0;
+        for (int m = mask; m != 0; m &= m - 1, bit++) {
+            if ((x & m & -m) != 0) {
+                r |= 1 << bit;
+            }
+        }
+        return r;
+    }
+    /* inverse of extract */
+    private static int deposit(int bits, int mask) {
+        int r = 0, bit = 0;
+        for (int m = mask; m != 0; m &= m - 1, bit++) {
+            if ((bits & (1 << bit)) != 0) {
+                r |= m & -m;
+            }
+        }
+        return r;
+    }
+}
@@ -0,0 +1,297 @@
+package edu.mit.csail.cgs.projects.readdb;
+
+import java.io.*;
+import java.nio.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Delta segments of the hits for one chromosome.
+ *
+ * When hits are stored for a chromosome that already has hits, ServerTask writes the new
+ * (sorted) hits as a delta segment rather than merging them into the existing files.  A
+ * segment has the same files as the base hits, with "delta<N>." in front of the file names,
+ * and N increases with each store.  Hits merges the hits of its segments that fall in each
+ * query window with the base hits.  The Server compacts the segments in the background: runs
+ * of segments of about the same size are merged into one segment, and the segments are only
+ * folded into the base files once they hold a fixed fraction of its hits, so that a bulk
+ * import doesn't rewrite the base files for every store.
+ *
+ * Each chromosome with segments has a state file next to its base positions file (see
+ * getStateFname()) that holds the next segment number, so numbers are never reused, and the
+ * last segment merged into the base files.  Segments up to that one are ignored.  A compaction
+ * first writes the merged files as .tmp files, then commits by writing the state file with the
+ * list of .tmp files to rename and segments to delete.  A merge of segments commits the same
+ * way, with the merged files renamed over the last of its segments.  recover() finishes a
+ * commit that was interrupted, so a crash can't count the hits of a segment twice.
+ *
+ * Columns are handled as ByteBPs of four byte values (positions, weights, lengths and strands,
+ * and for paired hits the other chromosome and position) so that the same merge works for
+ * single and paired hits.  Column 0 must be the positions and column 2 the lengths and strands.
+ */
+public class HitSegments {
+
+    public static final String DELTAPREFIX = "delta";
+    public static final String STATESUFFIX = ".segments";
+
+    /** prefix for the files of the specified segment given the prefix of the base files */
+    public static String getSegmentPrefix(String prefix, int segment) {
+        return prefix + DELTAPREFIX + segment + ".";
+    }
+    /** name of the state file of the segments of the hits whose base positions file is positionsFname */
+    public static String getStateFname(String positionsFname) {
+        return positionsFname + STATESUFFIX;
+    }
+    /**
+     * returns the numbers of the segments of the hits whose base positions
+     * file is positionsFname, in increasing order.  Segments that have
+     * already been merged into the base files are left out.
+     */
+    public static synchronized List<Integer> getSegments(String positionsFname) throws IOException {
+        int compacted = readState(getStateFname(positionsFname)).compacted;
+        List<Integer> output = new ArrayList<Integer>();
+        for (int s : listSegments(positionsFname)) {
+            if (s > compacted) {
+                output.add(s);
+            }
+        }
+        return output;
+    }
+    /* the numbers of all the segment files, in increasing order */
+    private static List<Integer> listSegments(String positionsFname) {
+        File base = new File(positionsFname);
+        List<Integer> output = new ArrayList<Integer>();
+        String[] names = base.getParentFile() == null ? null : base.getParentFile().list();
+        if (names == null) {
+            return output;
+        }
+        Pattern pattern = Pattern.compile(DELTAPREFIX + "(\\d+)\\." + Pattern.quote(base.getName()));
+        for (String name : names) {
+            Matcher m = pattern.matcher(name);
+            if (m.matches()) {
+                output.add(Integer.parseInt(m.group(1)));
+            }
+        }
+        Collections.sort(output);
+        return output;
+    }
+    /**
+     * Returns the number to use for a new segment of the hits whose base positions file is
+     * positionsFname.  The number is saved in the state file before it's returned, so it is
+     * higher than the number of any segment written or merged before.
+     */
+    public static synchronized int newSegment(String positionsFname) throws IOException {
+        String stateFname = getStateFname(positionsFname);
+        State state = readState(stateFname);
+        int segment = state.next;
+        for (int s : listSegments(positionsFname)) {
+            segment = Math.max(segment, s + 1);
+        }
+        state.next = segment + 1;
+        writeState(stateFname, state);
+        return segment;
+    }
+    /**
+     * Commits a compaction of the segments up to lastSegment into the base files: saves that
+     * in the state file along with the files to rename from fname.tmp to fname and the segment
+     * files to delete, and then does the renames and deletes (see recover()).
+     */
+    public static synchronized void commitCompaction(String positionsFname, int lastSegment,
+                                                     List<String> renames, List<String> deletes) throws IOException {
+        String stateFname = getStateFname(positionsFname);
+        State state = readState(stateFname);
+        state.compacted = Math.max(state.compacted, lastSegment);
+        state.next = Math.max(state.next, lastSegment + 1);
+        commit(stateFname, state, renames, deletes);
+    }
+    /**
+     * Commits a merge of delta segments into one segment: renames the merged files
+     * from fname.tmp over the files of the last merged segment and deletes the files
+     * of the others, through the state file as in commitCompaction()
+     */
+    public static synchronized void commitMerge(String positionsFname,
+                                                List<String> renames, List<String> deletes) throws IOException {
+        String stateFname = getStateFname(positionsFname);
+        commit(stateFname, readState(stateFname), renames, deletes);
+    }
+    private static void commit(String stateFname, State state,
+                               List<String> renames, List<String> deletes) throws IOException {
+        state.renames.addAll(renames);
+        state.deletes.addAll(deletes);
+        writeState(stateFname, state);
+        recover(stateFname);
+    }
+    /**
+     * Finishes the compaction recorded in a state file, if any: renames the .tmp files that
+     * are still there over the base files and deletes the merged segments.  Safe to repeat.
+     */
+    public static synchronized void recover(String stateFname) throws IOException {
+        State state = readState(stateFname);
+        if (state.renames.isEmpty() && state.deletes.isEmpty()) {
+            return;
+        }
+        for (String fname : state.renames) {
+            File tmp = new File(fname + ".tmp");
+            if (tmp.exists() && !tmp.renameTo(new File(fname))) {
+                throw new IOException("Can't rename " + tmp + " to " + fname);
+            }
+        }
+        for (String fname : state.deletes) {
+            (new File(fname)).delete();
+        }
+        state.renames.clear();
+        state.deletes.clear();
+        writeState(stateFname, state);
+    }
+    /* contents of a state file */
+    private static class State {
+        int next = 1, compacted = 0;
+        Set<String> renames = new TreeSet<String>();
+        Set<String> deletes = new TreeSet<String>();
+    }
+    /* a missing state file is the state of hits that have never been compacted */
+    private static State readState(String stateFname) throws IOException {
+        State state = new State();
+        File f = new File(stateFname);
+        if (!f.exists()) {
+            return state;
+        }
+        BufferedReader reader = new BufferedReader(new FileReader(f));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int space = line.indexOf(' ');
+                if (space < 0) {
+                    continue;
+                }
+                String key = line.substring(0, space), value = line.substring(space + 1);
+                if (key.equals("next")) {
+                    state.next = Integer.parseInt(value);
+                } else if (key.equals("compacted")) {
+                    state.compacted = Integer.parseInt(value);
+                } else if (key.equals("rename")) {
+                    state.renames.add(value);
+                } else if (key.equals("delete")) {
+                    state.deletes.add(value);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return state;
+    }
+    /* writes the state to a temporary file and renames it over the state file */
+    private static void writeState(String stateFname, State state) throws IOException {
+        File tmp = new File(stateFname + ".tmp");
+        PrintWriter writer = new PrintWriter(new FileWriter(tmp));
+        try {
+            writer.println("next " + state.next);
+            writer.println("compacted " + state.compacted);
+            for (String fname : state.renames) {
+                writer.println("rename " + fname);
+            }
+            for (String fname : state.deletes) {
+                writer.println("delete " + fname);
+            }
+        } finally {
+            writer.close();
+        }
+        if (writer.checkError()) {
+            throw new IOException("Error writing " + tmp);
+        }
+        if (!tmp.renameTo(new File(stateFname))) {
+            throw new IOException("Can't rename " + tmp + " to " + stateFname);
+        }
+    }
+    /**
+     * Merges the columns of sorted runs of hits into one sorted set of columns,
+     * with the weights (column 1) as a FloatBP.  Hits are ordered by position and
+     * then by length.  Ties go to the earlier run, so runs should be in the order
+     * they were stored.  A column that is null in any run (eg a column of a block
+     * window that wasn't decoded) is null in the output.
+     */
+    public static ByteBP[] merge(List<ByteBP[]> runs) {
+        int k = runs.size();
+        int ncols = runs.get(0).length;
+        IntBuffer[][] input = new IntBuffer[k][ncols];
+        boolean[] wanted = new boolean[ncols];
+        Arrays.fill(wanted, true);
+        int[] sizes = new int[k];
+        int total = 0;
+        for (int r = 0; r < k; r++) {
+            for (int c = 0; c < ncols; c++) {
+                if (runs.get(r)[c] == null) {
+                    wanted[c] = false;
+                } else {
+                    input[r][c] = asInts(runs.get(r)[c]);
+                }
+            }
+            sizes[r] = input[r][0].limit();
+            total += sizes[r];
+        }
+        IntBP[] merged = new IntBP[ncols];
+        for (int c = 0; c < ncols; c++) {
+            if (wanted[c]) {
+                merged[c] = new IntBP(total);
+            }
+        }
+        int[] next = new int[k];
+        for (int i = 0; i < total; i++) {
+            /* k is small (the base plus a few segments), so a linear scan
+               over the heads of the runs is cheaper than a heap */
+            int best = -1, bestpos = 0, bestlen = 0;
+            for (int r = 0; r < k; r++) {
+                if (next[r] == sizes[r]) {
+                    continue;
+                }
+                int pos = input[r][0].get(next[r]);
+                int len = Hits.getLengthOne(input[r][2].get(next[r]));
+                if (best == -1 || pos < bestpos || (pos == bestpos && len < bestlen)) {
+                    best = r;
+                    bestpos = pos;
+                    bestlen = len;
+                }
+            }
+            for (int c = 0; c < ncols; c++) {
+                if (wanted[c]) {
+                    merged[c].put(i, input[best][c].get(next[best]));
+                }
+            }
+            next[best]++;
+        }
+        ByteBP[] output = new ByteBP[ncols];
+        for (int c = 0; c < ncols; c++) {
+            output[c] = merged[c];
+        }
+        output[1] = merged[1] == null ? null : new FloatBP(merged[1].bb);
+        return output;
+    }
+    /** writes each column to the corresponding file name, replacing any existing file */
+    public static void writeColumns(ByteBP[] columns, String[] fnames) throws IOException {
+        for (int c = 0; c < columns.length; c++) {
+            RandomAccessFile raf = new RandomAccessFile(fnames[c],"rw");
+            try {
+                raf.setLength(0);
+                Bits.sendBytes(columns[c].bb, raf.getChannel());
+            } finally {
+                raf.close();
+            }
+        }
+    }
+    /* view of the whole buffer as ints, independent of its current position */
+    static IntBuffer asInts(ByteBP b) {
+        ByteBuffer d;
+        synchronized(b.bb) {
+            d = b.bb.duplicate();
+        }
+        d.position(0);
+        return d.asIntBuffer();
+    }
+
+}
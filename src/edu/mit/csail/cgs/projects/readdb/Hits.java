@@ -3,8 +3,10 @@ package edu.mit.csail.cgs.projects.readdb;
 import java.io.*;
 import java.nio.*;
 import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.List;
 
-public abstract class Hits implements Closeable {
+public abstract class Hits implements Cacheable {
 
     public static IntBP emptyIntBP = new IntBP(0);
     public static FloatBP emptyFloatBP = new FloatBP(0);
@@ -117,6 +119,12 @@ public abstract class Hits implements Closeable {
     private IntBP lenAndStrand;
     private int chrom;
     private String fname;
+    /* non-null if the hits are stored in the block format.  The buffers
+       above are then null until something asks for all of the hits */
+    private HitBlocks blocks;
+    /* delta segments (see HitSegments), in the order they were stored.  Each query
+       merges the hits of the segments in its window with the hits above */
+    private List<Hits> segments = new ArrayList<Hits>();
 
     public Hits (int chrom, String positionsFname, String weightsFname, String lasFname) throws FileNotFoundException, SecurityException, IOException {
         this.chrom = chrom;
@@ -125,18 +133,183 @@ public abstract class Hits implements Closeable {
         lenAndStrand = openIntBP(lasFname);
         fname = positionsFname;
     }
+    /**
+     * Maps the block file if it exists (see HitBlocks) and the files of
+     * the individual columns otherwise
+     */
+    public Hits (int chrom, String blocksFname, String positionsFname, String weightsFname, String lasFname) throws FileNotFoundException, SecurityException, IOException {
+        this.chrom = chrom;
+        if ((new File(blocksFname)).exists()) {
+            blocks = new HitBlocks(blocksFname);
+            fname = blocksFname;
+        } else {
+            positions = openIntBP(positionsFname);
+            weights = openFloatBP(weightsFname);
+            lenAndStrand = openIntBP(lasFname);
+            fname = positionsFname;
+        }
+    }
+    /**
+     * Adds a delta segment of these hits.  Segments must be added in the order
+     * they were stored.  The segment's files stay mapped, and queries merge
+     * only the hits of the segments that fall between their start and stop.
+     */
+    public void addSegment(Hits segment) {
+        segments.add(segment);
+    }
+    public boolean hasSegments() {
+        return segments.size() > 0;
+    }
+    /** true if the hits are stored in the block format */
+    public boolean isBlocks() {
+        return blocks != null;
+    }
+    /**
+     * For hits in the block format, decodes all of the hits into buffers, which
+     * the get*Buffer() methods and getColumns() need.  The queries (getCountBetween, 
+     * histogram, etc) only decode the blocks they need.
+     */
+    protected synchronized void decodeAll() {
+        if (blocks != null && positions == null) {
+            setColumns(blocks.decodeAll());
+        }
+    }
+    /* sets the buffers from the columns decoded from the blocks */
+    protected void setColumns(ByteBP[] columns) {
+        positions = (IntBP)columns[0];
+        weights = (FloatBP)columns[1];
+        lenAndStrand = (IntBP)columns[2];
+    }
+    /**
+     * the buffers of this object in the column order of HitSegments.  With delta
+     * segments, each call merges all of the hits into new buffers on the heap, so
+     * queries use getWindow() instead.
+     */
+    public ByteBP[] getColumns() {
+        if (segments.isEmpty()) {
+            return getBaseColumns();
+        }
+        List<ByteBP[]> runs = new ArrayList<ByteBP[]>();
+        runs.add(getBaseColumns());
+        for (Hits s : segments) {
+            runs.add(s.getColumns());
+        }
+        return HitSegments.merge(runs);
+    }
+    /* the buffers of the hits without their delta segments */
+    protected ByteBP[] getBaseColumns() {
+        decodeAll();
+        return new ByteBP[]{positions, weights, lenAndStrand};
+    }
     /** gets the buffer of positions */
     public IntBP getPositionsBuffer() {
-        return positions;
+        return (IntBP)getColumn(0);
     }
     /** returns the buffer of weights */
     public FloatBP getWeightsBuffer() {
-        return weights;
+        return (FloatBP)getColumn(1);
     }
     /** returns the buffer of lengths and strands */
     public IntBP getLASBuffer() {
-        return lenAndStrand;
+        return (IntBP)getColumn(2);
+    }
+    protected ByteBP getColumn(int column) {
+        return segments.isEmpty() ? getBaseColumns()[column] : getColumns()[column];
+    }
+    /** number of hits, including those of the delta segments */
+    public int size() {
+        int n = blocks != null ? blocks.size() : positions.limit();
+        for (Hits s : segments) {
+            n += s.size();
+        }
+        return n;
+    }
+    public int getFirstPosition() {
+        int output = blocks != null ? blocks.getFirstPosition() : positions.get(0);
+        for (Hits s : segments) {
+            if (s.size() > 0) {
+                output = Math.min(output, s.getFirstPosition());
+            }
+        }
+        return output;
+    }
+    public int getLastPosition() {
+        int output = blocks != null ? blocks.getLastPosition() : positions.get(positions.limit() - 1);
+        for (Hits s : segments) {
+            if (s.size() > 0) {
+                output = Math.max(output, s.getLastPosition());
+            }
+        }
+        return output;
+    }
+
+    /*
+     * The hits that a query between start and stop looks at: the buffers themselves with
+     * the bounds firstindex and lastindex from the Header, or for hits in the block format,
+     * the blocks that overlap start and stop, decoded.  With delta segments, the window is
+     * the hits of the base and of each segment between start and stop, merged.
+     */
+    protected static class Window {
+        ByteBP[] columns;
+        IntBP positions, lenAndStrand;
+        FloatBP weights;
+        int firstindex, lastindex;
+        Window(ByteBP[] columns, int firstindex, int lastindex) {
+            this.columns = columns;
+            this.firstindex = firstindex;
+            this.lastindex = lastindex;
+            positions = (IntBP)columns[0];
+            weights = (FloatBP)columns[1];
+            lenAndStrand = (IntBP)columns[2];
+        }
+        /* the columns of the hits in this window between start and stop */
+        ByteBP[] slice(int start, int stop) {
+            int[] p = getIndices(positions, firstindex, lastindex, start, stop);
+            int length = Math.max(p[1] - p[0], 0);
+            ByteBP[] output = new ByteBP[columns.length];
+            for (int c = 0; c < columns.length; c++) {
+                if (columns[c] instanceof FloatBP) {
+                    output[c] = ((FloatBP)columns[c]).slice(p[0], length);
+                } else if (columns[c] != null) {
+                    output[c] = ((IntBP)columns[c]).slice(p[0], length);
+                }
+            }
+            return output;
+        }
     }
+    /* column is a further column that the query needs, beyond the positions, weights and lengths and strands, or -1 */
+    protected Window getWindow(int firstindex, int lastindex, int start, int stop, int column) {
+        Window w = getBaseWindow(firstindex, lastindex, start, stop, column);
+        if (segments.isEmpty()) {
+            return w;
+        }
+        /* the Header only indexes the base hits, so the segments are searched from their ends */
+        List<ByteBP[]> runs = new ArrayList<ByteBP[]>();
+        runs.add(w.slice(start, stop));
+        for (Hits s : segments) {
+            runs.add(s.getWindow(0, s.size(), start, stop, column).slice(start, stop));
+        }
+        ByteBP[] merged = HitSegments.merge(runs);
+        return new Window(merged, 0, merged[0].bb.limit() / 4);
+    }
+    /* the window of the hits without their delta segments */
+    private Window getBaseWindow(int firstindex, int lastindex, int start, int stop, int column) {
+        if (blocks == null) {
+            assert(firstindex >= 0);
+            assert(lastindex >= firstindex);
+            assert(lastindex <= positions.ib.limit());
+            return new Window(getBaseColumns(), firstindex, lastindex);
+        } else {
+            boolean[] wanted = new boolean[blocks.getNumColumns()];
+            wanted[0] = wanted[1] = wanted[2] = true;
+            if (column >= 0) {
+                wanted[column] = true;
+            }
+            ByteBP[] columns = blocks.decode(blocks.getFirstBlock(start), blocks.getLastBlock(stop), wanted);
+            return new Window(columns, 0, columns[0].bb.limit() / 4);
+        }
+    }
+
     /**
      * returns indices = int[2] 
      * such that indices[0] is the first element of positions >= startpos
@@ -146,6 +319,7 @@ public abstract class Hits implements Closeable {
      * lastindex is an inclusive upper bound on the index of lastpos
      */
     public int[] getIndicesLinear(int firstindex, int lastindex, int startpos, int lastpos) {
+        IntBP positions = getPositionsBuffer();
         assert(startpos <= lastpos);
         assert(firstindex <= lastindex);
         assert(firstindex >= 0);
@@ -168,6 +342,9 @@ public abstract class Hits implements Closeable {
 
     }
     public int[] getIndices(int firstindex, int lastindex, int startpos, int lastpos) {
+        return getIndices(getPositionsBuffer(), firstindex, lastindex, startpos, lastpos);
+    }
+    protected static int[] getIndices(IntBP positions, int firstindex, int lastindex, int startpos, int lastpos) {
         assert(startpos <= lastpos);
         assert(firstindex <= lastindex);
         int indices[] = new int[2]; // will be the output
@@ -234,17 +411,22 @@ public abstract class Hits implements Closeable {
                                 int stop,
                                 Float minweight,
                                 Boolean isPlus) throws IOException {       
-        assert(firstindex >= 0);
-        assert(lastindex >= firstindex);
-        assert(lastindex <= positions.ib.limit());
-        int[] p = getIndices(firstindex, lastindex, start,stop);
+        /* counts don't depend on the order of the hits, so the segments are counted separately */
+        int count = 0;
+        for (Hits s : segments) {
+            count += s.getCountBetween(0, s.size(), start, stop, minweight, isPlus);
+        }
+        if (blocks != null && minweight == null && isPlus == null) {
+            return count + blocks.getCountBetween(start, stop);
+        }
+        Window w = getBaseWindow(firstindex, lastindex, start, stop, -1);
+        int[] p = getIndices(w.positions, w.firstindex, w.lastindex, start,stop);
         if (minweight == null && isPlus == null) {
-            return p[1] - p[0];
+            return count + p[1] - p[0];
         }
-        int count = 0;
         for (int i = p[0]; i < p[1]; i++) {
-            count += ((minweight == null || (weights.get(i) >= minweight)) &&
-                      (isPlus == null || (getStrandOne(lenAndStrand.get(i)) == isPlus))) ? 1 : 0;
+            count += ((minweight == null || (w.weights.get(i) >= minweight)) &&
+                      (isPlus == null || (getStrandOne(w.lenAndStrand.get(i)) == isPlus))) ? 1 : 0;
         }
         return count;
     }
@@ -254,35 +436,38 @@ public abstract class Hits implements Closeable {
                                     int stop,
                                     Float minweight,
                                     Boolean isPlus) throws IOException {       
-        assert(firstindex >= 0);
-        assert(lastindex >= firstindex);
-        assert(lastindex <= positions.ib.limit());
-        int[] p = getIndices(firstindex, lastindex, start,stop);
+        Window w = getWindow(firstindex, lastindex, start, stop, -1);
+        int[] p = getIndices(w.positions, w.firstindex, w.lastindex, start,stop);
         double sum = 0;
         for (int i = p[0]; i < p[1]; i++) {
-            float f = weights.get(i);
+            float f = w.weights.get(i);
             sum += ((minweight == null || (f >= minweight)) &&
-                    (isPlus == null || (getStrandOne(lenAndStrand.get(i)) == isPlus))) ? f : 0;
+                    (isPlus == null || (getStrandOne(w.lenAndStrand.get(i)) == isPlus))) ? f : 0;
         }
         return sum;
     }
-    public IntBP getIntsBetween(IntBP buffer,
-                                int firstindex,
-                                int lastindex,
-                                int start,
-                                int stop,
-                                Float minweight,
-                                Boolean isPlus) throws IOException {
-        assert(firstindex >= 0);
-        assert(lastindex >= firstindex);
-        assert(lastindex <= positions.ib.limit());
-        int[] p = getIndices(firstindex, lastindex, start,stop);
+    /** 
+     * returns the values of column (in the order of getColumns()) for
+     * the hits between start and stop 
+     */
+    protected IntBP getIntsBetween(int column,
+                                   int firstindex,
+                                   int lastindex,
+                                   int start,
+                                   int stop,
+                                   Float minweight,
+                                   Boolean isPlus) throws IOException {
+        Window w = getWindow(firstindex, lastindex, start, stop, column);
+        IntBP buffer = (IntBP)w.columns[column];
+        FloatBP weights = w.weights;
+        IntBP lenAndStrand = w.lenAndStrand;
+        int[] p = getIndices(w.positions, w.firstindex, w.lastindex, start,stop);
         if (p[0] >= p[1]) {
             return emptyIntBP;
         }
         assert(p[0] >= 0);
         if (p[1] > buffer.limit()) {
-            System.err.println("buffer limit is " + buffer.limit() + " but positions.size is " + positions.size());
+            System.err.println("buffer limit is " + buffer.limit() + " but positions.size is " + w.positions.size());
         }
         assert(p[1] <= buffer.limit());
         if (minweight == null && isPlus == null) {
@@ -319,7 +504,7 @@ public abstract class Hits implements Closeable {
                                 int stop,
                                 Float minweight,
                                 Boolean isPlus) throws IOException {
-        return getIntsBetween(positions,firstindex,lastindex,start,stop,minweight,isPlus);
+        return getIntsBetween(0,firstindex,lastindex,start,stop,minweight,isPlus);
     }
     public IntBP getLASBetween(int firstindex,
                                int lastindex,
@@ -327,7 +512,7 @@ public abstract class Hits implements Closeable {
                                int stop,
                                Float minweight,
                                Boolean isPlus) throws IOException {
-        return getIntsBetween(lenAndStrand,firstindex,lastindex,start,stop,minweight,isPlus);
+        return getIntsBetween(2,firstindex,lastindex,start,stop,minweight,isPlus);
     }
     /** returns the weights between firstindex and last index and between start and stop, inclusive.
      *  firstindex and lastindex come from Header.getFirstIndex and Header.getLastIndex
@@ -338,10 +523,10 @@ public abstract class Hits implements Closeable {
                                      int stop,
                                      Float minweight,
                                      Boolean isPlus) throws IOException {
-        assert(firstindex >= 0);
-        assert(lastindex >= firstindex);
-        assert(lastindex <= positions.ib.limit());
-        int[] p = getIndices(firstindex, lastindex, start,stop);
+        Window w = getWindow(firstindex, lastindex, start, stop, -1);
+        FloatBP weights = w.weights;
+        IntBP lenAndStrand = w.lenAndStrand;
+        int[] p = getIndices(w.positions, w.firstindex, w.lastindex, start,stop);
         if (p[0] >= p[1]) {
             return emptyFloatBP;
         }
@@ -392,7 +577,10 @@ public abstract class Hits implements Closeable {
             output[j] = 0;
         }
 
-        int[] p = getIndices(firstindex, lastindex, start,stop);        
+        Window w = getWindow(firstindex, lastindex, start, stop, -1);
+        IntBP positions = w.positions, lenAndStrand = w.lenAndStrand;
+        FloatBP weights = w.weights;
+        int[] p = getIndices(positions, w.firstindex, w.lastindex, start,stop);        
         int lastpos = -1, lastposcount = 0;
         if (!extension) {
             for (int i = p[0]; i < p[1]; i++) {
@@ -424,7 +612,7 @@ public abstract class Hits implements Closeable {
                 }
             }
         } else {
-            IntBP las = getLASBuffer();
+            IntBP las = lenAndStrand;
             for (int i = p[0]; i < p[1]; i++) {
                 int pos = positions.get(i);
                 assert(pos >= start);
@@ -475,7 +663,10 @@ public abstract class Hits implements Closeable {
             output[j] = 0;
         }
 
-        int[] p = getIndices(firstindex, lastindex, start,stop);        
+        Window w = getWindow(firstindex, lastindex, start, stop, -1);
+        IntBP positions = w.positions, lenAndStrand = w.lenAndStrand;
+        FloatBP weights = w.weights;
+        int[] p = getIndices(positions, w.firstindex, w.lastindex, start,stop);        
         int lastpos = -1, lastposcount = 0;
         if (!extension) {
             for (int i = p[0]; i < p[1]; i++) {
@@ -499,7 +690,7 @@ public abstract class Hits implements Closeable {
                 }
             }
         } else {
-            IntBP las = getLASBuffer();
+            IntBP las = lenAndStrand;
             for (int i = p[0]; i < p[1]; i++) {
                 int pos = positions.get(i);
                 assert(pos >= start);
@@ -537,7 +728,27 @@ public abstract class Hits implements Closeable {
         }
         return output;
     }    
+    /** bytes of the mapped files (or the decoded blocks) held by this object and its delta segments */
+    public long sizeInBytes() {
+        long output = capacity(positions) + capacity(weights) + capacity(lenAndStrand) +
+            (blocks == null ? 0 : blocks.sizeInBytes());
+        for (Hits s : segments) {
+            output += s.sizeInBytes();
+        }
+        return output;
+    }
+    protected static long capacity(ByteBP b) {
+        return (b == null || b.bb == null) ? 0 : b.bb.capacity();
+    }
     public void close() throws IOException {        
+        for (Hits s : segments) {
+            s.close();
+        }
+        segments.clear();
+        blocks = null;
+        if (positions == null) {
+            return;
+        }
         positions.ib = null;
         positions.bb = null;
         positions = null;
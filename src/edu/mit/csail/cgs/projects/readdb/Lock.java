@@ -29,13 +29,12 @@ public class Lock {
             }
         }
         java.util.concurrent.locks.Lock lock = null;
-        synchronized(locks) {
-            if (!locks.containsKey(fname)) {
-                locks.put(fname, new ReentrantReadWriteLock());
-            }
-            lock = locks.get(fname).readLock();
+        ReentrantReadWriteLock rwl;
+        do {
+            rwl = getLock(fname);
+            lock = rwl.readLock();
             lock.lock();
-        }
+        } while (!isCurrent(fname, rwl, lock));
         threadlocks.get(t).add(lock);
         //        System.err.println("READLOCK by " + t + " of " + fname + " as " + lock);
         return lock;
@@ -48,19 +47,48 @@ public class Lock {
             }
         }
         java.util.concurrent.locks.Lock rl = null, lock = null;
+        ReentrantReadWriteLock rwl = getLock(fname);
+        rl = rwl.readLock();
+        rl.unlock();
+        threadlocks.get(t).remove(rl);
+        do {
+            rwl = getLock(fname);
+            lock = rwl.writeLock();
+            lock.lock();
+        } while (!isCurrent(fname, rwl, lock));
+        threadlocks.get(t).add(lock);
+        //        System.err.println("WRITELOCK by " + t + " of " + fname + " as " + lock);
+        return lock;
+    }
+    /* 
+     * The blocking lock() calls happen outside of the synchronized(locks) blocks: a thread
+     * waiting there for a write lock would otherwise keep the threads that hold read locks
+     * on the same file from upgrading or locking anything else.
+     */
+    private static ReentrantReadWriteLock getLock(String fname) {
         synchronized(locks) {
             if (!locks.containsKey(fname)) {
                 locks.put(fname, new ReentrantReadWriteLock());
             }
-            rl = locks.get(fname).readLock();
-            rl.unlock();
-            threadlocks.get(t).remove(rl);
-            lock = locks.get(fname).writeLock();
-            lock.lock();
+            return locks.get(fname);
+        }
+    }
+    /* false (and releases lock) if the cleanup in releaseLocks dropped rwl before it was locked */
+    private static boolean isCurrent(String fname, ReentrantReadWriteLock rwl, java.util.concurrent.locks.Lock lock) {
+        synchronized(locks) {
+            if (locks.get(fname) == rwl) {
+                return true;
+            }
+        }
+        lock.unlock();
+        return false;
+    }
+    /* releases one lock taken by this thread, before releaseLocks() */
+    protected static void releaseLock(java.util.concurrent.locks.Lock lock) {
+        Set<java.util.concurrent.locks.Lock> held = threadlocks.get(Thread.currentThread());
+        if (held != null && held.remove(lock)) {
+            lock.unlock();
         }
-        threadlocks.get(t).add(lock);
-        //        System.err.println("WRITELOCK by " + t + " of " + fname + " as " + lock);
-        return lock;
     }
     /* call to ensure that all a thread's locks have been released */
     protected static void releaseLocks() {
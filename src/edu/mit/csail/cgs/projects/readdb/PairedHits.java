@@ -27,23 +27,42 @@ public class PairedHits extends Hits {
 
     public PairedHits(String prefix, int chrom, boolean isLeft) throws FileNotFoundException, SecurityException, IOException {
         super(chrom,
+              getBlocksFname(prefix,chrom,isLeft),
               getPositionsFname(prefix,chrom,isLeft),
               getWeightsFname(prefix,chrom,isLeft), 
               getLaSFname(prefix,chrom,isLeft));
         this.isLeft = isLeft;
-        chroms = openIntBP(getChromsFname(prefix,chrom,isLeft));
-        otherPositions = openIntBP(getOtherPosFname(prefix,chrom,isLeft));
+        if (!isBlocks()) {
+            chroms = openIntBP(getChromsFname(prefix,chrom,isLeft));
+            otherPositions = openIntBP(getOtherPosFname(prefix,chrom,isLeft));
+        }
     }
     public boolean isLeft () {return isLeft;}
-    public IntBP getChromsBuffer() {return chroms;}
-    public IntBP getOtherPosBuffer() {return otherPositions;}
+    public long sizeInBytes() {
+        return super.sizeInBytes() + capacity(chroms) + capacity(otherPositions);
+    }
+    protected void setColumns(ByteBP[] columns) {
+        super.setColumns(columns);
+        chroms = (IntBP)columns[3];
+        otherPositions = (IntBP)columns[4];
+    }
+    protected ByteBP[] getBaseColumns() {
+        ByteBP[] columns = super.getBaseColumns();
+        return new ByteBP[]{columns[0], columns[1], columns[2], chroms, otherPositions};
+    }
+    public IntBP getChromsBuffer() {
+        return (IntBP)getColumn(3);
+    }
+    public IntBP getOtherPosBuffer() {
+        return (IntBP)getColumn(4);
+    }
     public IntBP getOtherChromsBetween(int firstindex,
                                        int lastindex,
                                        int start,
                                        int stop,
                                        Float minweight,
                                        Boolean isPlus) throws IOException {
-        return getIntsBetween(chroms,firstindex,lastindex,start,stop,minweight,isPlus);
+        return getIntsBetween(3,firstindex,lastindex,start,stop,minweight,isPlus);
     }
     public IntBP getOtherPositionsBetween(int firstindex,
                                           int lastindex,
@@ -51,7 +70,7 @@ public class PairedHits extends Hits {
                                           int stop,
                                           Float minweight,
                                           Boolean isPlus) throws IOException {
-        return getIntsBetween(otherPositions,firstindex,lastindex,start,stop,minweight,isPlus);
+        return getIntsBetween(4,firstindex,lastindex,start,stop,minweight,isPlus);
     }
     private static DataOutputStream dos(String f) throws IOException {
         return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)));
@@ -255,6 +274,18 @@ public class PairedHits extends Hits {
         (new File(chrtmp)).renameTo(new File(getChromsFname(prefix,chrom,isLeft)));
         (new File(optmp)).renameTo(new File(getOtherPosFname(prefix,chrom,isLeft)));                               
     }
+    /** names of the files of the hits in the column order of getColumns() */
+    public static String[] getColumnFnames(String prefix, int chrom, boolean isLeft) {
+        return new String[]{getPositionsFname(prefix,chrom,isLeft),
+                            getWeightsFname(prefix,chrom,isLeft),
+                            getLaSFname(prefix,chrom,isLeft),
+                            getChromsFname(prefix,chrom,isLeft),
+                            getOtherPosFname(prefix,chrom,isLeft)};
+    }
+    /** name of the file of the hits in the block format (see HitBlocks) */
+    public static String getBlocksFname(String prefix, int chrom, boolean isLeft) {
+        return prefix + chrom + getLeftRightSuffix(isLeft) + ".blocks";
+    }
     private static String getLeftRightSuffix(boolean isLeft) {
         return isLeft ? ".prleft" : ".prright";
     }
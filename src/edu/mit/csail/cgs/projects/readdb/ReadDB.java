@@ -19,6 +19,8 @@ import java.io.*;
  *  <li>getcount alignname chromname (eg, chromname = 1+)
  *  <li>addtogroup username groupname
  *  <li>reindex alignname chromname
+ *  <li>compress alignname
+ *  <li>cachestats
  * 
  * <p>The --paired flag can be provided to make getweight, getcount, and getchroms work on paire-end rather than
  * single-end alignments
@@ -98,6 +100,8 @@ public class ReadDB {
         System.out.println("  getcount alignname chromnameStrand   (eg, 1+)");
         System.out.println("  setacl alignname username|groupname add|delete write|read|admin ");
         System.out.println("  addtogroup username groupname");
+        System.out.println("  compress alignname   (convert to the compressed block format)");
+        System.out.println("  cachestats");
     }
 
     public void run() throws IOException, ClientException {
@@ -108,6 +112,10 @@ public class ReadDB {
             // username, groupname
             client.addToGroup(otherargs[1], otherargs[2]);
 
+        } else if (cmd.equals("cachestats")) {
+            for (String s : client.getCacheStats()) {
+                System.out.println(s);
+            }
         } else {
             String align = otherargs[1];
             if (cmd.equals("exists")) {
@@ -127,6 +135,8 @@ public class ReadDB {
                     }
                 } else if (cmd.equals("reindex")) {
                     client.reIndex(otherargs[1], Integer.parseInt(otherargs[2]), false);
+                } else if (cmd.equals("compress")) {
+                    client.compress(align, paired);
                 } else if (cmd.equals("checksort")) {
                     client.checksort(otherargs[1], Integer.parseInt(otherargs[2]));
                 } else if (cmd.equals("getacl")) {
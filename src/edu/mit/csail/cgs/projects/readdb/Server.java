@@ -1,7 +1,9 @@
 package edu.mit.csail.cgs.projects.readdb;
 
 import java.net.*;
+import java.nio.channels.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.logging.*;
 import java.io.*;
 import org.apache.commons.cli.*;
@@ -16,8 +18,12 @@ import org.apache.commons.cli.*;
  * <li>--port 52000     port to listen on
  * <li>--threads 5      number of threads to start to handle client requests
  * <li>--cachesize 100  number of chromosomes to keep files open for
+ * <li>--hitcachemb 4096  megabytes of hits files to keep mapped
+ * <li>--headercachemb 256  megabytes of headers and ACLs to keep in memory
  * <li>--maxconn 200    maximum number of client connections
- * <li>--sleepiness 2   how sleepy the server should be waiting for input.  Lower values use more CPU but improve responsiveness
+ * <li>--sleepiness 2   unused.  Dispatch waits on a Selector rather than polling the clients
+ * <li>--compactsecs 60  seconds without new hits for an alignment before its delta segments are compacted
+ * <li>--maxsegments 16  number of delta segments for a chromosome that triggers an immediate compaction
  * <li>--help           print the usage message and exit
  *
  */
@@ -28,7 +34,8 @@ public class Server {
 
 	private Logger logger;
     private int port;
-    private int numThreads, cacheSize, maxConnections, sleepiness;
+    private int numThreads, cacheSize, maxConnections, sleepiness, compactSeconds, maxSegments;
+    private long hitCacheBytes, headerCacheBytes;
     private boolean debug;
     /* topdir is the top-level directory for our data files.
       pwfile is "${topdir}/users.txt" and groupfile is 
@@ -42,19 +49,31 @@ public class Server {
     // in buffers when the buffer is allocated in bytes.
     public static final int BUFFERLEN = 8192 * 16;
 
-    private LRUCache<Header> headers;
-    private LRUCache<SingleHits> singleHits;
-    private LRUCache<PairedHits> pairedHits;
-    private LRUCache<AlignmentACL> acls;    
+    private ByteLRUCache<Header> headers;
+    private ByteLRUCache<SingleHits> singleHits;
+    private ByteLRUCache<PairedHits> pairedHits;
+    private ByteLRUCache<AlignmentACL> acls;    
 
-    private ServerSocket socket;
+    /* compacts the delta segments of alignments after stores; see HitSegments */
+    private ScheduledExecutorService compactor;
+    private Map<String,ScheduledFuture<?>> pendingCompactions;
+    /* delta segments are folded into the base hits once they hold this fraction as many hits */
+    private static final double FOLDFRACTION = 0.25;
+    /* number of consecutive delta segments in the same size tier that are merged into one */
+    private static final int TIERSEGMENTS = 4;
+
+    private ServerSocketChannel socket;
 
     public Server () {
         port = 52000;
         sleepiness = 4;
         numThreads = 5;
         cacheSize = numThreads * 10;
+        hitCacheBytes = 4096L << 20;
+        headerCacheBytes = 256L << 20;
         maxConnections = 250;
+        compactSeconds = 60;
+        maxSegments = 16;
         topdir = "/tmp";
         keepRunning = true;
         logger = Logger.getLogger("edu.mit.csail.cgs.tools.readdb.Server");
@@ -68,8 +87,12 @@ public class Server {
         options.addOption("d","datadir",true,"directory to use for data");
         options.addOption("D","debug",false,"provide debugging output");
         options.addOption("C","cachesize",true,"how many files to keep open (this value times three)");
+        options.addOption("H","hitcachemb",true,"megabytes of hits files to keep mapped");
+        options.addOption("I","headercachemb",true,"megabytes of headers and ACLs to keep in memory");
         options.addOption("M","maxconn",true,"how many connections are allowed");
-        options.addOption("S","sleepiness",true,"how sleepy the server should be while waiting for input.  1-100");
+        options.addOption("S","sleepiness",true,"unused, kept for compatibility");
+        options.addOption("c","compactsecs",true,"seconds without new hits before an alignment is compacted");
+        options.addOption("m","maxsegments",true,"number of delta segments that triggers an immediate compaction");
         options.addOption("h","help",false,"print help message");
         CommandLineParser parser = new GnuParser();
         CommandLine line = parser.parse( options, args, false );            
@@ -91,9 +114,21 @@ public class Server {
         if (line.hasOption("cachesize")) {
             cacheSize = Integer.parseInt(line.getOptionValue("cachesize"));
         }
+        if (line.hasOption("hitcachemb")) {
+            hitCacheBytes = Long.parseLong(line.getOptionValue("hitcachemb")) << 20;
+        }
+        if (line.hasOption("headercachemb")) {
+            headerCacheBytes = Long.parseLong(line.getOptionValue("headercachemb")) << 20;
+        }
         if (line.hasOption("maxconn")) {
             maxConnections = Integer.parseInt(line.getOptionValue("maxconn"));
         }
+        if (line.hasOption("compactsecs")) {
+            compactSeconds = Integer.parseInt(line.getOptionValue("compactsecs"));
+        }
+        if (line.hasOption("maxsegments")) {
+            maxSegments = Integer.parseInt(line.getOptionValue("maxsegments"));
+        }
         if (line.hasOption("sleepiness")) {
             sleepiness = Integer.parseInt(line.getOptionValue("sleepiness"));
             if (sleepiness < 1) {
@@ -105,10 +140,19 @@ public class Server {
         }
 
 
-        singleHits = new LRUCache<SingleHits>(cacheSize);
-        pairedHits = new LRUCache<PairedHits>(cacheSize);
-        headers = new LRUCache<Header>(cacheSize);
-        acls = new LRUCache<AlignmentACL>(cacheSize);
+        /* cacheSize still caps the number of entries in each cache */
+        singleHits = new ByteLRUCache<SingleHits>("singlehits", cacheSize, hitCacheBytes / 2);
+        pairedHits = new ByteLRUCache<PairedHits>("pairedhits", cacheSize, hitCacheBytes / 2);
+        headers = new ByteLRUCache<Header>("headers", cacheSize, headerCacheBytes * 3 / 4);
+        acls = new ByteLRUCache<AlignmentACL>("acls", cacheSize, headerCacheBytes / 4);
+        compactor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "ReadDB compactor");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        pendingCompactions = new HashMap<String,ScheduledFuture<?>>();
         debug = line.hasOption("debug");
         logger.log(Level.INFO,String.format("Server parsed args: port %d, threads %d, directory %s",port,numThreads,topdir));
         pwfile = topdir + System.getProperty("file.separator") + "users.txt";
@@ -120,9 +164,13 @@ public class Server {
         System.out.println(" [--threads 4]   use three worker threads to process requests.");
         System.out.println(" [--cachesize 400]  number of datasets to keep open.  Actual number of open files will be");
         System.out.println("                  three times this value");
+        System.out.println(" [--hitcachemb 4096]  megabytes of hits files to keep mapped");
+        System.out.println(" [--headercachemb 256]  megabytes of headers and ACLs to keep in memory");
         System.out.println(" [--maxconn 250]   maximum number of open connections");
         System.out.println(" [--debug]  print debugging output");
-        System.out.println(" [--sleepiness 4]  (1-100) higher values use less CPU when idle but may incur more delay in processing requests");
+        System.out.println(" [--sleepiness 4]  unused, kept for compatibility with old startup scripts");
+        System.out.println(" [--compactsecs 60]  seconds without new hits before an alignment's delta segments are compacted");
+        System.out.println(" [--maxsegments 16]  number of delta segments for a chromosome that triggers an immediate compaction");
     }
     public static void main(String args[]) throws Exception {
         Server server = new Server();
@@ -136,12 +184,9 @@ public class Server {
     }
     public void keepRunning(boolean k) {
         keepRunning = k;
-        if (keepRunning == false && socket != null) {
-            try {
-                socket.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        if (keepRunning == false && dispatch != null) {
+            /* Dispatch notices that it should stop and closes the socket */
+            dispatch.wakeup();
         }
 
     }
@@ -150,27 +195,14 @@ public class Server {
     public void listen() throws IOException {
         Thread t = new Thread(new CacheGCHook(logger));
         t.start();
-        dispatch = new Dispatch(this,numThreads, maxConnections);
-        t = new Thread(dispatch);
-        t.start();
-        socket = new ServerSocket(port);
-        socket.setReuseAddress(true);
-        socket.setReceiveBufferSize(BUFFERLEN);
-        socket.setSoTimeout(1000*3600*24);
-        while (keepRunning) {
-            try {
-                Socket s = socket.accept();
-                logger.log(Level.INFO,"accepted from " + s.getInetAddress());
-                s.setSoLinger(false,0);
-                ServerTask st = new ServerTask(this,s);
-                if (debug) {
-                    System.err.println("New Task is " + st);
-                }
-                dispatch.addWork(st);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
+        recoverCompactions();
+        socket = ServerSocketChannel.open();
+        socket.socket().setReuseAddress(true);
+        socket.socket().setReceiveBufferSize(BUFFERLEN);
+        socket.socket().bind(new InetSocketAddress(port));
+        dispatch = new Dispatch(this,numThreads, maxConnections, socket);
+        dispatch.run();
+        compactor.shutdown();
     }
     public Logger getLogger() {return logger;}
     public String getTopDir() {
@@ -230,7 +262,10 @@ public class Server {
         SingleHits output = singleHits.get(key);
         if (output == null) {
             String prefix = getAlignmentDir(alignID) + System.getProperty("file.separator");
-            output = new SingleHits(prefix,chrom);
+            output = new SingleHits(prefix, chrom);
+            for (int s : HitSegments.getSegments(SingleHits.getColumnFnames(prefix,chrom)[0])) {
+                output.addSegment(new SingleHits(HitSegments.getSegmentPrefix(prefix,s), chrom));
+            }
             singleHits.add(key, output);
         }
         return output;
@@ -243,6 +278,9 @@ public class Server {
         if (output == null) {
             String prefix = getAlignmentDir(alignID) + System.getProperty("file.separator");
             output = new PairedHits(prefix, chrom, isLeft);
+            for (int s : HitSegments.getSegments(PairedHits.getColumnFnames(prefix,chrom,isLeft)[0])) {
+                output.addSegment(new PairedHits(HitSegments.getSegmentPrefix(prefix,s), chrom, isLeft));
+            }
             pairedHits.add(key, output);
         }
         return output;
@@ -250,6 +288,7 @@ public class Server {
     /**
      * Returns the requested Header object.  Creates it or retrieves from cache.
      * Client code is responsible for locking the file as necessary.
+     * The index file only covers the base hits; Hits searches its delta segments itself.
      */
     public Header getSingleHeader(String alignID, int chromID) throws IOException {
         String key = alignID + chromID;
@@ -294,6 +333,297 @@ public class Server {
         headers.remove(alignID + chromID + isLeft);
     }
     public void removeACL(String alignID) {acls.remove(alignID);}
+
+    /**
+     * Schedules the compaction of the delta segments of an alignment.  The compaction
+     * runs once no new segments have been written for compactSeconds, or right away
+     * if a chromosome has maxSegments segments.
+     */
+    public void scheduleCompaction(final String alignID, int numSegments) {
+        synchronized(pendingCompactions) {
+            ScheduledFuture<?> pending = pendingCompactions.get(alignID);
+            if (pending != null) {
+                pending.cancel(false);
+            }
+            pendingCompactions.put(alignID,
+                                   compactor.schedule(new Runnable() {
+                                           public void run() {
+                                               synchronized(pendingCompactions) {
+                                                   pendingCompactions.remove(alignID);
+                                               }
+                                               try {
+                                                   compact(alignID);
+                                               } catch (Exception e) {
+                                                   logger.logp(Level.WARNING,"Server","compact " + alignID,
+                                                               "Error compacting " + alignID,e);
+                                               }
+                                           }
+                                       },
+                                       numSegments >= maxSegments ? 0 : compactSeconds,
+                                       TimeUnit.SECONDS));
+        }
+    }
+    /**
+     * Compacts the delta segments of an alignment (see prepareCompactions()).  The merged files
+     * are written under a read lock, so readers aren't blocked, and the write lock is only held
+     * to rename them over the files they replace.
+     */
+    public void compact(String alignID) throws IOException {
+        Lock.readLock(alignID);
+        try {
+            List<Compaction> compactions = prepareCompactions(alignID, false);
+            if (compactions.size() > 0) {
+                Lock.writeLock(alignID);
+                finishCompactions(alignID, compactions);
+            }
+        } finally {
+            Lock.releaseLocks();
+        }
+    }
+    /**
+     * Merges all of the delta segments of an alignment into its base files.
+     * The caller must hold the write lock on the alignment.
+     */
+    public void compactLocked(String alignID) throws IOException {
+        finishCompactions(alignID, prepareCompactions(alignID, true));
+    }
+    /*
+     * Writes the merged files of each chromosome with delta segments to temporary files.
+     * Unless full is true, the segments are only folded into the base files once they hold
+     * FOLDFRACTION as many hits as the base, so a bulk import rewrites the base files a
+     * logarithmic number of times.  Until then, TIERSEGMENTS or more consecutive segments in
+     * the same size tier are merged into one segment, which lands in a higher tier.
+     */
+    private List<Compaction> prepareCompactions(String alignID, boolean full) throws IOException {
+        List<Compaction> output = new ArrayList<Compaction>();
+        Set<Integer> chroms = getChroms(alignID, false, false);
+        if (chroms != null) {
+            for (int c : chroms) {
+                prepareCompactions(output, alignID, c, false, false, full);
+            }
+        }
+        for (boolean isLeft : new boolean[]{true, false}) {
+            chroms = getChroms(alignID, true, isLeft);
+            if (chroms == null) {
+                continue;
+            }
+            for (int c : chroms) {
+                prepareCompactions(output, alignID, c, true, isLeft, full);
+            }
+        }
+        return output;
+    }
+    private void prepareCompactions(List<Compaction> output, String alignID, int chrom,
+                                    boolean paired, boolean isLeft, boolean full) throws IOException {
+        String prefix = getAlignmentDir(alignID) + System.getProperty("file.separator");
+        String[] fnames = getColumnFnames(prefix, chrom, paired, isLeft);
+        List<Integer> segments = HitSegments.getSegments(fnames[0]);
+        if (segments.size() == 0) {
+            return;
+        }
+        /* segments are always in the column format, so their sizes come from their positions files */
+        long[] sizes = new long[segments.size()];
+        long total = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = (new File(getColumnFnames(HitSegments.getSegmentPrefix(prefix, segments.get(i)), chrom, paired, isLeft)[0])).length() / 4;
+            total += sizes[i];
+        }
+        Hits base = paired ? new PairedHits(prefix, chrom, isLeft) : new SingleHits(prefix, chrom);
+        if (!full && total < FOLDFRACTION * base.size()) {
+            int merges = 0;
+            int i = 0;
+            while (i < sizes.length) {
+                int j = i + 1;
+                while (j < sizes.length && getTier(sizes[j]) == getTier(sizes[i])) {
+                    j++;
+                }
+                if (j - i >= TIERSEGMENTS) {
+                    Compaction comp = new Compaction(chrom, paired, isLeft, fnames[0]);
+                    List<ByteBP[]> runs = new ArrayList<ByteBP[]>();
+                    for (int s : segments.subList(i, j)) {
+                        runs.add(comp.readSegment(s, prefix));
+                    }
+                    comp.writeSegment(HitSegments.merge(runs),
+                                      getColumnFnames(HitSegments.getSegmentPrefix(prefix, segments.get(j - 1)), chrom, paired, isLeft));
+                    output.add(comp);
+                    merges++;
+                }
+                i = j;
+            }
+            /* fold the segments anyway if there are too many for the queries to merge */
+            if (merges > 0 || segments.size() < maxSegments) {
+                return;
+            }
+        }
+        Compaction comp = new Compaction(chrom, paired, isLeft, fnames[0]);
+        List<ByteBP[]> runs = new ArrayList<ByteBP[]>();
+        runs.add(base.getColumns());
+        for (int s : segments) {
+            runs.add(comp.readSegment(s, prefix));
+        }
+        comp.writeBase(HitSegments.merge(runs), fnames,
+                       paired ? PairedHits.getBlocksFname(prefix, chrom, isLeft) : SingleHits.getBlocksFname(prefix, chrom),
+                       paired ? getPairedHeaderFileName(alignID, chrom, isLeft) : getSingleHeaderFileName(alignID, chrom));
+        output.add(comp);
+    }
+    /* size tier of a segment of n hits: floor(log(n) / log(TIERSEGMENTS)) */
+    private static int getTier(long n) {
+        int tier = 0;
+        while (n >= TIERSEGMENTS) {
+            n /= TIERSEGMENTS;
+            tier++;
+        }
+        return tier;
+    }
+    private static String[] getColumnFnames(String prefix, int chrom, boolean paired, boolean isLeft) {
+        return paired ? PairedHits.getColumnFnames(prefix, chrom, isLeft) : SingleHits.getColumnFnames(prefix, chrom);
+    }
+    /* 
+     * replaces the files of each compaction with its merged files and removes the merged segments,
+     * through HitSegments.commitCompaction() or commitMerge() so that a crash can't leave both.
+     * If a segment is gone or has changed since it was merged, eg because the alignment
+     * was deleted or compacted while the merged files were written, the merged files are discarded.
+     */
+    private void finishCompactions(String alignID, List<Compaction> compactions) throws IOException {
+        for (Compaction comp : compactions) {
+            try {
+                if (comp.isCurrent()) {
+                    List<String> renames = new ArrayList<String>(Arrays.asList(comp.fnames));
+                    if (comp.headerFname != null) {
+                        renames.add(comp.headerFname);
+                        HitSegments.commitCompaction(comp.positionsFname, comp.lastSegment, renames, comp.segmentFnames);
+                    } else {
+                        List<String> deletes = new ArrayList<String>(comp.segmentFnames);
+                        deletes.removeAll(renames);
+                        HitSegments.commitMerge(comp.positionsFname, renames, deletes);
+                    }
+                } else {
+                    for (int i = 0; i < comp.fnames.length; i++) {
+                        (new File(comp.fnames[i] + ".tmp")).delete();
+                    }
+                    if (comp.headerFname != null) {
+                        (new File(comp.headerFname + ".tmp")).delete();
+                    }
+                }
+            } finally {
+                if (comp.paired) {
+                    removePairedHits(alignID, comp.chrom, comp.isLeft);
+                    removePairedHeader(alignID, comp.chrom, comp.isLeft);
+                } else {
+                    removeSingleHits(alignID, comp.chrom);
+                    removeSingleHeader(alignID, comp.chrom);
+                }
+            }
+        }
+    }
+    /**
+     * Finishes the compactions that were interrupted when the server stopped
+     * (see HitSegments.recover()).  Called before the server accepts connections.
+     */
+    public void recoverCompactions() {
+        File[] dirs = (new File(getTopDir())).listFiles();
+        if (dirs == null) {
+            return;
+        }
+        for (File dir : dirs) {
+            File[] files = dir.listFiles();
+            if (files == null) {
+                continue;
+            }
+            for (File f : files) {
+                if (f.getName().endsWith(HitSegments.STATESUFFIX)) {
+                    try {
+                        HitSegments.recover(f.getPath());
+                    } catch (IOException e) {
+                        logger.logp(Level.WARNING,"Server","recoverCompactions",
+                                    "Error recovering the compaction in " + f,e);
+                    }
+                }
+            }
+        }
+    }
+    /* 
+     * the files of one compaction of a chromosome: its delta segments merged either into
+     * its base files or, if headerFname is null, into the last of the segments
+     */
+    private static class Compaction {
+        int chrom;
+        boolean paired, isLeft;
+        String headerFname, positionsFname;
+        /* the files that the merged files replace */
+        String[] fnames;
+        int lastSegment;
+        /* the segment files with their sizes and times when they were merged */
+        List<String> segmentFnames;
+        List<Long> segmentLengths, segmentTimes;
+        Compaction(int chrom, boolean paired, boolean isLeft, String positionsFname) {
+            this.chrom = chrom;
+            this.paired = paired;
+            this.isLeft = isLeft;
+            this.positionsFname = positionsFname;
+            segmentFnames = new ArrayList<String>();
+            segmentLengths = new ArrayList<Long>();
+            segmentTimes = new ArrayList<Long>();
+        }
+        /* records the files of a segment and then reads its columns */
+        ByteBP[] readSegment(int segment, String prefix) throws IOException {
+            lastSegment = Math.max(lastSegment, segment);
+            String segmentPrefix = HitSegments.getSegmentPrefix(prefix, segment);
+            for (String fname : getColumnFnames(segmentPrefix, chrom, paired, isLeft)) {
+                File f = new File(fname);
+                segmentFnames.add(fname);
+                segmentLengths.add(f.length());
+                segmentTimes.add(f.lastModified());
+            }
+            Hits hits = paired ? new PairedHits(segmentPrefix, chrom, isLeft) : new SingleHits(segmentPrefix, chrom);
+            return hits.getColumns();
+        }
+        /* true if the segment files are the ones that were merged */
+        boolean isCurrent() {
+            for (int i = 0; i < segmentFnames.size(); i++) {
+                File f = new File(segmentFnames.get(i));
+                if (!f.exists() || f.length() != segmentLengths.get(i) || f.lastModified() != segmentTimes.get(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        /* base hits in the block format stay in the block format */
+        void writeBase(ByteBP[] merged, String[] columnFnames, String blocksFname, String headerFname) throws IOException {
+            this.headerFname = headerFname;
+            if ((new File(blocksFname)).exists()) {
+                fnames = new String[]{blocksFname};
+                HitBlocks.write(merged, blocksFname + ".tmp");
+            } else {
+                fnames = columnFnames;
+                HitSegments.writeColumns(merged, getTmpFnames());
+            }
+            new Header(((IntBP)merged[0]).ib).writeIndexFile(headerFname + ".tmp");
+        }
+        /* the merged segments replace the files of the last one, segmentFnames */
+        void writeSegment(ByteBP[] merged, String[] segmentFnames) throws IOException {
+            fnames = segmentFnames;
+            HitSegments.writeColumns(merged, getTmpFnames());
+        }
+        private String[] getTmpFnames() {
+            String[] tmpnames = new String[fnames.length];
+            for (int i = 0; i < fnames.length; i++) {
+                tmpnames[i] = fnames[i] + ".tmp";
+            }
+            return tmpnames;
+        }
+    }
+    /**
+     * Returns one line of statistics per cache (see ByteLRUCache.getStats())
+     */
+    public List<String> getCacheStats() {
+        List<String> output = new ArrayList<String>();
+        output.add(headers.getStats());
+        output.add(singleHits.getStats());
+        output.add(pairedHits.getStats());
+        output.add(acls.getStats());
+        return output;
+    }
     protected void printCacheContents() {
         headers.printKeys();
         singleHits.printKeys();
@@ -10,9 +10,10 @@ import javax.security.sasl.*;
 import javax.security.auth.callback.*;
 
 /** 
- * ServerTask represents a client connection.  Server creates ServerTasks when it receives
- * a connection and passes them to Dispatch.  Dispatch manages a pool of WorkerThreads and
- * assigns them to ServerTasks as the tasks appear to be available.  
+ * ServerTask represents a client connection.  Dispatch creates ServerTasks when it accepts
+ * a connection and reads the client's input into the task's line buffer.  Dispatch manages
+ * a pool of WorkerThreads and assigns them to ServerTasks once readyToRun() says that
+ * a complete request has arrived.
  */
 
 public class ServerTask {
@@ -30,7 +31,6 @@ public class ServerTask {
     private boolean shouldClose;
     /* Socket, streams from the socket */
     private Socket socket;
-    private int haventTriedRead;
     //    private BufferedInputStream instream;
     private BufferedInputStream instream;
     private OutputStream outstream;
@@ -41,6 +41,7 @@ public class ServerTask {
     private int bufferpos;
     private byte[] buffer;
     private static final int MAXPARAMLINES = 100;
+    private static final byte[] ENDREQUEST = "ENDREQUEST".getBytes();
     /* other variables maintained across calls to Run but reset between connections */
     private Request request;
     private List<String> args;
@@ -60,7 +61,6 @@ public class ServerTask {
         shouldClose = false;
         username = null;
         uname = null;
-        haventTriedRead = 0;
         socket.setReceiveBufferSize(Server.BUFFERLEN);
         socket.setSendBufferSize(Server.BUFFERLEN);
         socket.setSoTimeout(1000000);
@@ -93,47 +93,86 @@ public class ServerTask {
             // ignore it
         }
     }
-    public boolean inputAvailable() {
-        boolean avail = false;
+    public SocketChannel getChannel() {
+        return socket.getChannel();
+    }
+    /**
+     * Called by Dispatch when the selector says that the channel is readable.  Reads
+     * whatever is available into the line buffer without blocking.  Sets shouldClose
+     * if the client closed the connection or if the buffer is full.
+     */
+    public void readChannel() {
         if (bufferpos >= buffer.length) {
             shouldClose = true;
-            System.err.println("inputAvailable: Buffer was full.  Closing");
-            return false;
+            System.err.println("readChannel: Buffer was full.  Closing");
+            return;
         }
         try {
-            avail = instream.available() > 0;
-            if (avail || haventTriedRead++ > 1000) {
-                haventTriedRead = 0;
-                socket.setSoTimeout(1);
-                int r = instream.read();
-                socket.setSoTimeout(1000000);
+            int r;
+            synchronized(buffer) {
+                r = getChannel().read(ByteBuffer.wrap(buffer, bufferpos, buffer.length - bufferpos));
+                if (r > 0) {
+                    bufferpos += r;
+                }
+            }
+            if (r == -1) {
+                shouldClose = true;
+                System.err.println("readChannel: Connection Closed");
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            shouldClose = true;
+        }
+    }
+    /**
+     * Called by Dispatch after a WorkerThread is done with the task.  Moves the bytes
+     * that the client has already sent, including any that instream has buffered,
+     * into the line buffer so that readyToRun() sees them.
+     */
+    public void drainInput() {
+        try {
+            int avail = Math.min(instream.available(), buffer.length - bufferpos);
+            while (avail > 0) {
+                int r = instream.read(buffer, bufferpos, avail);
                 if (r == -1) {
-                    avail = false;
                     shouldClose = true;
-                    System.err.println("inputAvailable: Connection Closed");
-                } else {
-                    synchronized(buffer) {
-                        buffer[bufferpos++] = (byte)r;
-                    }
-                    //                    System.err.println("iA has read through " + new String(buffer,0,bufferpos));
+                    return;
                 }
-            }                
-        } catch (SocketTimeoutException e) {
-            // timeout means the socket is still open but there's no data.  That's ok.
-            try {
-                socket.setSoTimeout(1000000);   
-            } catch (IOException e2) {
-                server.getLogger().logp(Level.INFO,"serverTask","inputAvailable","socket.setSoTimeout",e2);
-                avail = false;
-                shouldClose = true;                
+                bufferpos += r;
+                avail -= r;
             }
-            avail = false;
         } catch (IOException e) {
             e.printStackTrace();
-            avail = false;
             shouldClose = true;
         }
-        return avail;
+    }
+    /**
+     * Returns true if the line buffer holds enough for run() to make progress: a line
+     * while authenticating, or a complete request afterwards.
+     */
+    public boolean readyToRun() {
+        int linestart = 0;
+        boolean anyLine = false;
+        for (int i = 0; i < bufferpos; i++) {
+            if (buffer[i] == '\n') {
+                if (username == null) {
+                    return true;
+                }
+                anyLine = true;
+                if (i - linestart == ENDREQUEST.length) {
+                    int j = 0;
+                    while (j < ENDREQUEST.length && buffer[linestart + j] == ENDREQUEST[j]) {
+                        j++;
+                    }
+                    if (j == ENDREQUEST.length) {
+                        return true;
+                    }
+                }
+                linestart = i + 1;
+            }
+        }
+        /* a full buffer must be handed to run() so that it can consume the lines */
+        return anyLine && bufferpos >= buffer.length;
     }
     /** prints the response header signifying a valid request.  Only happens after
      *  the ServerTask has read enough information from the socket and done
@@ -170,9 +209,7 @@ public class ServerTask {
             if (buffer[i] == '\n') {
                 String out = new String(buffer,0,i);
                 synchronized(buffer) {
-                    for (int j = 0; j < i; j++) {
-                        buffer[j] = buffer[i+j+1];
-                    }
+                    System.arraycopy(buffer, i+1, buffer, 0, bufferpos - (i+1));
                     bufferpos -= i+1;
                 }
                 //System.err.println("READ EXISTING " + out);
@@ -208,6 +245,25 @@ public class ServerTask {
             return null;
         }
     }
+    /**
+     * Reads length bytes into out, starting with what is left in the line buffer
+     */
+    private void readBytes(byte[] out, int length) throws IOException {
+        int read = 0;
+        synchronized(buffer) {
+            read = Math.min(length, bufferpos);
+            System.arraycopy(buffer, 0, out, 0, read);
+            System.arraycopy(buffer, read, buffer, 0, bufferpos - read);
+            bufferpos -= read;
+        }
+        while (read < length) {
+            int r = instream.read(out, read, length - read);
+            if (r == -1) {
+                throw new EOFException("connection closed");
+            }
+            read += r;
+        }
+    }
     /**
      * main method for the task.  This method is asynchronous- it shouldn't block too long on the client.  It does block
      * on disk reads and such and it does block on the client while waiting, eg, for more hits to store.  It does
@@ -318,9 +374,7 @@ public class ServerTask {
                 int length = Integer.parseInt(l);
                 byte[] response = new byte[length];
                 int read = 0;
-                while (read < length) {
-                    read += instream.read(response, read, length - read);
-                }                
+                readBytes(response, length);
                 byte[] challenge = sasl.evaluateResponse(response);
                 if (challenge == null) {
                     challenge = new byte[0];
@@ -366,6 +420,8 @@ public class ServerTask {
                 processPairedStore();
             } else if (request.type.equals("reindex")) {
                 processReindex();
+            } else if (request.type.equals("compress")) {
+                processCompress();
             } else if (request.type.equals("bye")) {
                 shouldClose = true;
             } else if (request.type.equals("getchroms")) {
@@ -378,6 +434,10 @@ public class ServerTask {
                 processDeleteAlignment();
             } else if (request.type.equals("addtogroup")) {
                 processAddToGroup();
+            } else if (request.type.equals("cachestats")) {
+                processCacheStats();
+            } else if (request.type.equals("batch")) {
+                processBatch();
             } else if (request.type.equals("shutdown")) {
                 server.getLogger().logp(Level.INFO,"ServerTask","processRequest " + toString(),"Received shutdown from " + username);
                 if (server.isAdmin(username)) {
@@ -531,6 +591,17 @@ public class ServerTask {
         server.addToGroup(this,group,princ);
         printOK();
     }
+    /* sends the number of caches and then one line of statistics for each */
+    public void processCacheStats() throws IOException {
+        List<String> stats = server.getCacheStats();
+        printOK();
+        StringBuffer sb = new StringBuffer();
+        sb.append(stats.size() + "\n");
+        for (String s : stats) {
+            sb.append(s + "\n");
+        }
+        printString(sb.toString());
+    }
     public void processGetACL() throws IOException {
         assert(request != null);
         assert(request.alignid != null);
@@ -706,6 +777,7 @@ public class ServerTask {
                     name.indexOf(".pairedleftindex") > 0 ||
                     name.indexOf(".pairedrightindex") > 0;
                 boolean singlefile = name.indexOf("singleindex") > 0||
+                    name.indexOf("sblocks") > 0 ||
                     name.indexOf("spositions") > 0 ||
                     name.indexOf("sweights") > 0 ||
                     name.indexOf("slas") > 0;
@@ -813,16 +885,26 @@ public class ServerTask {
                     printInvalid(e.toString());
                     return;
                 }
+                /* write the new hits as a delta segment.  The server merges it with the
+                   existing hits when reading and compacts it into them later */
+                int numSegments;
                 try {
-                    server.getSingleHits(request.alignid,
-                                         request.chromid).appendSingleHits(newhits,
-                                                                           server.getAlignmentDir(request.alignid) + System.getProperty("file.separator"),
-                                                                           request.chromid);
+                    String prefix = server.getAlignmentDir(request.alignid) + System.getProperty("file.separator");
+                    String positionsFname = SingleHits.getColumnFnames(prefix, request.chromid)[0];
+                    SingleHits.writeSingleHits(newhits,
+                                               HitSegments.getSegmentPrefix(prefix, HitSegments.newSegment(positionsFname)),
+                                               request.chromid);
+                    numSegments = HitSegments.getSegments(positionsFname).size();
                 } catch (Exception e) {
                     server.getLogger().logp(Level.INFO,"ServerTask","processSingleStore "+toString(),"error writing hits",e);
                     printInvalid(e.toString());
                     return;
                 }
+                printOK();
+                server.removeSingleHits(request.alignid, request.chromid);
+                server.removeSingleHeader(request.alignid, request.chromid);
+                server.scheduleCompaction(request.alignid, numSegments);
+                return;
             } else {
                 /* this is a new alignment, so set a default ACL */
                 AlignmentACL acl = new AlignmentACL();
@@ -976,17 +1058,21 @@ public class ServerTask {
         }
         newhits = null;
         Comparator<PairedHit> comp = isLeft ? new PairedHitLeftComparator() : new PairedHitRightComparator();
+        String prefix = server.getAlignmentDir(request.alignid) + System.getProperty("file.separator");
+        Set<Integer> chroms = server.getChroms(request.alignid, true, isLeft);
         for (int chromid : map.keySet()) {
             List<PairedHit> nhlist = map.get(chromid);
             Collections.sort(nhlist, comp);
-            try {
-                PairedHits oldhits = server.getPairedHits(request.alignid,
-                                                          chromid,
-                                                          isLeft);
-                oldhits.appendPairedHits(nhlist,server.getAlignmentDir(request.alignid) + System.getProperty("file.separator"), chromid, isLeft);
-            } catch (FileNotFoundException e) {
-                PairedHits.writePairedHits(nhlist, server.getAlignmentDir(request.alignid) + System.getProperty("file.separator"), chromid, isLeft);
-            } 
+            String[] fnames = PairedHits.getColumnFnames(prefix, chromid, isLeft);
+            if (chroms != null && chroms.contains(chromid)) {
+                /* existing hits: write a delta segment, as in processSingleStore */
+                PairedHits.writePairedHits(nhlist, HitSegments.getSegmentPrefix(prefix, HitSegments.newSegment(fnames[0])), chromid, isLeft);
+                server.removePairedHits(request.alignid, chromid, isLeft);
+                server.removePairedHeader(request.alignid, chromid, isLeft);
+                server.scheduleCompaction(request.alignid, HitSegments.getSegments(fnames[0]).size());
+                continue;
+            }
+            PairedHits.writePairedHits(nhlist, prefix, chromid, isLeft);
             PairedHits pairedhits = new PairedHits(server.getAlignmentDir(request.alignid) + System.getProperty("file.separator"),
                                                    chromid, 
                                                    isLeft);
@@ -999,11 +1085,64 @@ public class ServerTask {
         }
     }
 
+    /**
+     * Converts the hits of an alignment to the block format (see HitBlocks).
+     * The index files stay the same since the order of the hits doesn't change.
+     */
+    public void processCompress() throws IOException {
+        assert(request != null);
+        assert(request.alignid != null);
+        AlignmentACL acl = null;
+        try {
+            acl = server.getACL(request.alignid);
+        } catch (IOException e) {
+            printString("No such alignment\n");
+            return;
+        }
+        if (!authorizeRead(acl) || !authorizeWrite(acl)) {
+            printAuthError();
+            return;
+        }
+        Lock.writeLock(request.alignid);
+        server.compactLocked(request.alignid);
+        String prefix = server.getAlignmentDir(request.alignid) + System.getProperty("file.separator");
+        boolean paired = request.isPaired != null && request.isPaired;
+        for (boolean isLeft : paired ? new boolean[]{true, false} : new boolean[]{false}) {
+            Set<Integer> chroms = server.getChroms(request.alignid, paired, isLeft);
+            if (chroms == null) {
+                continue;
+            }
+            for (int c : chroms) {
+                Hits hits = paired ? server.getPairedHits(request.alignid, c, isLeft) : server.getSingleHits(request.alignid, c);
+                if (hits.isBlocks()) {
+                    continue;
+                }
+                String blocksFname = paired ? PairedHits.getBlocksFname(prefix, c, isLeft) : SingleHits.getBlocksFname(prefix, c);
+                String[] fnames = paired ? PairedHits.getColumnFnames(prefix, c, isLeft) : SingleHits.getColumnFnames(prefix, c);
+                HitBlocks.write(hits.getColumns(), blocksFname + ".tmp");
+                (new File(blocksFname + ".tmp")).renameTo(new File(blocksFname));
+                if (paired) {
+                    server.removePairedHits(request.alignid, c, isLeft);
+                    server.removePairedHeader(request.alignid, c, isLeft);
+                } else {
+                    server.removeSingleHits(request.alignid, c);
+                    server.removeSingleHeader(request.alignid, c);
+                }
+                hits = null;
+                for (String f : fnames) {
+                    (new File(f)).delete();
+                }
+            }
+        }
+        printOK();
+    }
+
     public void processReindex() throws IOException {
         assert(request != null);
         assert(request.alignid != null);
         assert(request.chromid != null);        
         Lock.writeLock(request.alignid);
+        server.compactLocked(request.alignid);
         if (request.isPaired) {
             PairedHits hits = server.getPairedHits(request.alignid, request.chromid, true);
             Header header = new Header(hits.getPositionsBuffer().ib);
@@ -1032,7 +1171,8 @@ public class ServerTask {
     public void processCount(Header header, Hits hits) throws IOException {
         printOK();
         if (request.start == null && request.end == null && request.minWeight == null && request.isPlusStrand == null) {
-            printString(Integer.toString(header.getNumHits()) + "\n");
+            /* the header only counts the base hits, not those of the delta segments */
+            printString(Integer.toString(hits.size()) + "\n");
             return;
         }
         if (request.start == null) {
@@ -1076,7 +1216,7 @@ public class ServerTask {
         int first = header.getFirstIndex(request.start);
         int last = header.getLastIndex(request.end);
         if (request.start == 0 && request.end == Integer.MAX_VALUE && request.minWeight == null && request.isPlusStrand == null) {
-            count = header.getNumHits();
+            count = hits.size();
         } else {
             count = hits.getCountBetween(first,last,request.start,request.end,request.minWeight, request.isPlusStrand);
         }
@@ -1106,12 +1246,10 @@ public class ServerTask {
     public void processHistogram(Header header, Hits hits) throws IOException {
         int binsize = 10;
         if (request.start == null) {
-            IntBP ib = hits.getPositionsBuffer();
-            request.start = ib.get(0);
+            request.start = hits.getFirstPosition();
         }
         if (request.end == null) {
-            IntBP ib = hits.getPositionsBuffer();
-            request.end = ib.get(ib.limit()-1);
+            request.end = hits.getLastPosition();
         }
         try {
             binsize = Integer.parseInt(request.map.get("binsize"));
@@ -1165,12 +1303,10 @@ public class ServerTask {
     public void processWeightHistogram(Header header, Hits hits) throws IOException {
         int binsize = 10;
         if (request.start == null) {
-            IntBP ib = hits.getPositionsBuffer();
-            request.start = ib.get(0);
+            request.start = hits.getFirstPosition();
         }
         if (request.end == null) {
-            IntBP ib = hits.getPositionsBuffer();
-            request.end = ib.get(ib.limit()-1);
+            request.end = hits.getLastPosition();
         }
         try {
             binsize = Integer.parseInt(request.map.get("binsize"));
@@ -1216,6 +1352,241 @@ public class ServerTask {
         Bits.sendInts(parray, outstream, buffer);        
         Bits.sendFloats(farray, outstream, buffer);
     }
+    /**
+     * Answers a batch of queries in a single response.  The request lines that aren't key=value
+     * pairs are the alignments, and numqueries queries follow the request as four ints each:
+     * the index of the alignment in the list (or -1 for all the alignments, merged), chromid, start, and end.
+     * querytype is count, histogram, weighthistogram, or gethits (single-ended only) and the
+     * other parameters (binsize, minweight, etc) apply to all the queries.
+     *
+     * After OK, the response is, in the order of the queries,
+     *   count : one int per query
+     *   histogram : for each query, the number of non-empty bins n, n bin centers and n counts
+     *   weighthistogram : for each query, n, n bin centers and n weights
+     *   gethits : for each query, the number of hits n, n positions, n weights and n lengths-and-strands,
+     *      with merged alignments one after the other
+     * all as binary ints and floats.  An alignment without hits on a chromosome contributes nothing.
+     */
+    public void processBatch() throws IOException {
+        int numQueries;
+        try {
+            numQueries = Integer.parseInt(request.map.get("numqueries"));
+        } catch (NumberFormatException e) {
+            numQueries = -1;
+        }
+        if (numQueries < 0 || numQueries > Client.MAXBATCHQUERIES) {
+            /* can't tell how many bytes of queries follow, so the connection is unusable */
+            printString("Invalid numqueries value : " + request.map.get("numqueries") + "\n");
+            shouldClose = true;
+            return;
+        }
+        byte[] raw = new byte[numQueries * 16];
+        readBytes(raw, raw.length);
+        IntBuffer queries = ByteBuffer.wrap(raw).asIntBuffer();
+
+        String type = request.map.get("querytype");
+        if (type == null || !(type.equals("count") || type.equals("histogram") ||
+                              type.equals("weighthistogram") || type.equals("gethits"))) {
+            printInvalid("querytype " + type);
+            return;
+        }
+        if (type.equals("gethits") && request.isPaired) {
+            printInvalid("gethits batches are single-ended only");
+            return;
+        }
+        int binsize = 0, dedup = 0;
+        if (type.endsWith("histogram")) {
+            try {
+                binsize = Integer.parseInt(request.map.get("binsize"));
+                if (request.map.containsKey("dedup")) {
+                    dedup = Integer.parseInt(request.map.get("dedup"));
+                }
+            } catch (NumberFormatException e) {
+                printString("missing or invalid bin size : " + request.map.get("binsize") + "\n");
+                return;
+            }
+            if (binsize <= 0) {
+                printString("missing or invalid bin size : " + request.map.get("binsize") + "\n");
+                return;
+            }
+        }
+        boolean extension = request.map.containsKey("extension");
+        List<String> aligns = request.list;
+        if (aligns.isEmpty()) {
+            printInvalid("no alignments");
+            return;
+        }
+        /* lock the alignments in sorted order so that two batches can't each wait on a lock the other holds,
+           and release them in the reverse order */
+        List<java.util.concurrent.locks.Lock> held = new ArrayList<java.util.concurrent.locks.Lock>();
+        try {
+            for (String alignid : new TreeSet<String>(aligns)) {
+                held.add(Lock.readLock(alignid));
+                if (!(new File(server.getAlignmentDir(alignid))).exists()) {
+                    printString("No Such Alignment " + alignid + "\n");
+                    return;
+                }
+                try {
+                    if (!authorizeRead(server.getACL(alignid))) {
+                        printAuthError();
+                        return;
+                    }
+                } catch (IOException e) {
+                    printInvalid(e.toString());
+                    return;
+                }
+            }
+            answerBatch(numQueries, queries, type, binsize, dedup, extension, aligns);
+        } finally {
+            for (int i = held.size() - 1; i >= 0; i--) {
+                Lock.releaseLock(held.get(i));
+            }
+        }
+    }
+    /* answers the queries of processBatch() while it holds the read locks on the alignments */
+    private void answerBatch(int numQueries, IntBuffer queries, String type, int binsize, int dedup,
+                             boolean extension, List<String> aligns) throws IOException {
+        /* check the queries and open their files before sending OK, so that errors can still be reported */
+        Map<String,Hits> hitsByKey = new HashMap<String,Hits>();
+        Map<String,Header> headersByKey = new HashMap<String,Header>();
+        for (int q = 0; q < numQueries; q++) {
+            int align = queries.get(q*4), chrom = queries.get(q*4+1), start = queries.get(q*4+2), end = queries.get(q*4+3);
+            if (align < -1 || align >= aligns.size() || start > end) {
+                printInvalid(String.format("query %d : %d %d %d %d", q, align, chrom, start, end));
+                return;
+            }
+            for (int a = (align == -1 ? 0 : align); a < (align == -1 ? aligns.size() : align + 1); a++) {
+                String key = a + ":" + chrom;
+                if (hitsByKey.containsKey(key)) {
+                    continue;
+                }
+                try {
+                    if (request.isPaired) {
+                        hitsByKey.put(key, server.getPairedHits(aligns.get(a), chrom, request.isLeft));
+                        headersByKey.put(key, server.getPairedHeader(aligns.get(a), chrom, request.isLeft));
+                    } else {
+                        hitsByKey.put(key, server.getSingleHits(aligns.get(a), chrom));
+                        headersByKey.put(key, server.getSingleHeader(aligns.get(a), chrom));
+                    }
+                } catch (FileNotFoundException e) {
+                    hitsByKey.put(key, null);
+                } catch (IOException e) {
+                    server.getLogger().logp(Level.INFO,"ServerTask","processBatch " + toString(),
+                                            String.format("read error on header or hits for %s, %d : %s",
+                                                          aligns.get(a), chrom, e.toString()));
+                    printInvalid(e.toString());
+                    return;
+                }
+            }
+        }
+        printOK();
+
+        BufferedOutputStream bufferedout = new BufferedOutputStream(outstream, Server.BUFFERLEN);
+        WritableByteChannel channel = Channels.newChannel(bufferedout);
+        IntBP counts = type.equals("count") ? new IntBP(numQueries) : null;
+        for (int q = 0; q < numQueries; q++) {
+            int align = queries.get(q*4), chrom = queries.get(q*4+1), start = queries.get(q*4+2), end = queries.get(q*4+3);
+            int firstAlign = align == -1 ? 0 : align;
+            int lastAlign = align == -1 ? aligns.size() : align + 1;
+            int[] histogram = null;
+            float[] weightHistogram = null;
+            int count = 0;
+            List<int[]> ranges = new ArrayList<int[]>();
+            for (int a = firstAlign; a < lastAlign; a++) {
+                String key = a + ":" + chrom;
+                Hits hits = hitsByKey.get(key);
+                if (hits == null) {
+                    ranges.add(null);
+                    continue;
+                }
+                Header header = headersByKey.get(key);
+                int first = header.getFirstIndex(start);
+                int last = header.getLastIndex(end);
+                ranges.add(new int[]{first, last});
+                if (type.equals("histogram")) {
+                    int[] h = hits.histogram(first, last, start, end, binsize, dedup, request.minWeight, request.isPlusStrand, extension);
+                    if (histogram == null) {
+                        histogram = h;
+                    } else {
+                        for (int i = 0; i < h.length; i++) {
+                            histogram[i] += h[i];
+                        }
+                    }
+                } else if (type.equals("weighthistogram")) {
+                    float[] h = hits.weightHistogram(first, last, start, end, binsize, dedup, request.minWeight, request.isPlusStrand, extension);
+                    if (weightHistogram == null) {
+                        weightHistogram = h;
+                    } else {
+                        for (int i = 0; i < h.length; i++) {
+                            weightHistogram[i] += h[i];
+                        }
+                    }
+                } else {
+                    count += hits.getCountBetween(first, last, start, end, request.minWeight, request.isPlusStrand);
+                }
+            }
+            if (type.equals("count")) {
+                counts.put(q, count);
+            } else if (type.equals("gethits")) {
+                IntBP n = new IntBP(1);
+                n.put(0, count);
+                Bits.sendBytes(n.bb, channel);
+                for (int column = 0; column < 3; column++) {
+                    for (int a = firstAlign; a < lastAlign; a++) {
+                        int[] range = ranges.get(a - firstAlign);
+                        if (range == null) {
+                            continue;
+                        }
+                        Hits hits = hitsByKey.get(a + ":" + chrom);
+                        ByteBP data;
+                        if (column == 0) {
+                            data = hits.getHitsBetween(range[0], range[1], start, end, request.minWeight, request.isPlusStrand);
+                        } else if (column == 1) {
+                            data = hits.getWeightsBetween(range[0], range[1], start, end, request.minWeight, request.isPlusStrand);
+                        } else {
+                            data = hits.getLASBetween(range[0], range[1], start, end, request.minWeight, request.isPlusStrand);
+                        }
+                        Bits.sendBytes(data.bb, channel);
+                    }
+                }
+            } else {
+                sendSparseHistogram(histogram, weightHistogram, start, binsize, channel);
+            }
+        }
+        if (counts != null) {
+            Bits.sendBytes(counts.bb, channel);
+        }
+        bufferedout.flush();
+    }
+    /* sends the non-empty bins of the histogram (one of the two is null, as are both if no alignment had hits) */
+    private void sendSparseHistogram(int[] histogram, float[] weightHistogram, int start, int binsize,
+                                     WritableByteChannel channel) throws IOException {
+        int length = histogram != null ? histogram.length : (weightHistogram != null ? weightHistogram.length : 0);
+        int n = 0;
+        for (int i = 0; i < length; i++) {
+            if (histogram != null ? histogram[i] > 0 : weightHistogram[i] > 0) {
+                n++;
+            }
+        }
+        IntBP positions = new IntBP(n + 1);
+        IntBP values = new IntBP(n);
+        FloatBP weights = new FloatBP(n);
+        positions.put(0, n);
+        int pos = 0;
+        for (int i = 0; i < length; i++) {
+            if (histogram != null ? histogram[i] > 0 : weightHistogram[i] > 0) {
+                positions.put(pos + 1, start + binsize * i + binsize / 2);
+                if (histogram != null) {
+                    values.put(pos, histogram[i]);
+                } else {
+                    weights.put(pos, weightHistogram[i]);
+                }
+                pos++;
+            }
+        }
+        Bits.sendBytes(positions.bb, channel);
+        Bits.sendBytes(weightHistogram != null ? weights.bb : values.bb, channel);
+    }
     public void processCheckSort(Header header, Hits hits) throws IOException {
         IntBP ints = hits.getPositionsBuffer();
         boolean needsort = false;
@@ -1229,6 +1600,10 @@ public class ServerTask {
         if (needsort) {
             if (hits instanceof SingleHits) {
                 server.getLogger().logp(Level.INFO,"ServerTask","processCheckSort",String.format("Resorting %s %d",request.alignid, request.chromid));
+                /* resort rewrites the base files, so fold any delta segments into them first */
+                Lock.writeLock(request.alignid);
+                server.compactLocked(request.alignid);
+                hits = server.getSingleHits(request.alignid, request.chromid);
                 ((SingleHits)hits).resort(server.getAlignmentDir(request.alignid) + System.getProperty("file.separator"),
                                           request.chromid);
                 
@@ -12,10 +12,12 @@ import java.util.Arrays;
  */
 public class SingleHits extends Hits {
     /**
-     * Initializes a Hits object from a file
+     * Initializes a Hits object from a file, either the block file or the
+     * files of the individual columns
      */
     public SingleHits (String prefix, int chrom) throws FileNotFoundException, SecurityException, IOException {
         super(chrom,
+              getBlocksFname(prefix,chrom),
               getPositionsFname(prefix,chrom),
               getWeightsFname(prefix,chrom), 
               getLaSFname(prefix,chrom));
@@ -58,100 +60,6 @@ public class SingleHits extends Hits {
         }
         writeSingleHits(p,w,l,prefix,chrom);
     }
-    /** appends a sorted list of hits to an existing set of hits. */
-    public void appendSingleHits(SingleHit[] hits,
-                                 String prefix,
-                                 int chrom) throws IOException {
-        if (hits.length == 0) {
-            return;
-        }
-        int s = getPositionsBuffer().limit() - 1;
-        SingleHit last = new SingleHit(chrom, getPositionsBuffer().get(s), getWeightsBuffer().get(s),
-                                       Hits.getStrandOne(getLASBuffer().get(s)),
-                                       Hits.getLengthOne(getLASBuffer().get(s)));
-        if (hits[0].compareTo(last) > 0 ) {
-            append(hits,prefix,chrom);
-        } else {
-            merge(hits,prefix,chrom);
-        }
-    }
-    private void append(SingleHit[] hits,
-                       String prefix,
-                       int chrom) throws IOException {
-        RandomAccessFile  positionsRAF = new RandomAccessFile(getPositionsFname(prefix,chrom),"rw");
-        RandomAccessFile weightsRAF = new RandomAccessFile(getWeightsFname(prefix,chrom),"rw");
-        RandomAccessFile lasRAF = new RandomAccessFile(getLaSFname(prefix,chrom),"rw");
-        positionsRAF.seek(positionsRAF.length());
-        weightsRAF.seek(weightsRAF.length());
-        lasRAF.seek(lasRAF.length());
-        for (int i = 0; i < hits.length; i++) {
-            SingleHit h = hits[i];
-            positionsRAF.writeInt(h.pos);
-            weightsRAF.writeFloat(h.weight);
-            lasRAF.writeInt(makeLAS(h.length, h.strand));
-        }
-        positionsRAF.close();
-        weightsRAF.close();
-        lasRAF.close();        
-    }
-    private void merge(SingleHit[] hits,
-                       String prefix,
-                       int chrom) throws IOException {
-        String postmp = getPositionsFname(prefix,chrom) + ".tmp";
-        String weightstmp = getWeightsFname(prefix,chrom) + ".tmp";
-        String lastmp = getLaSFname(prefix,chrom) + ".tmp";
-        RandomAccessFile positionsRAF = new RandomAccessFile(postmp,"rw");
-        RandomAccessFile weightsRAF = new RandomAccessFile(weightstmp,"rw");
-        RandomAccessFile lasRAF = new RandomAccessFile(lastmp,"rw");
-        int newsize = getPositionsBuffer().limit() + hits.length;
-        IntBP posfile = new IntBP(positionsRAF.getChannel().map(FileChannel.MapMode.READ_WRITE,
-                                                                0,
-                                                                newsize * 4));
-        FloatBP weightfile = new FloatBP(weightsRAF.getChannel().map(FileChannel.MapMode.READ_WRITE,
-                                                                     0,
-                                                                     newsize * 4));
-        IntBP lasfile = new IntBP(lasRAF.getChannel().map(FileChannel.MapMode.READ_WRITE,
-                                                          0,
-                                                          newsize * 4));
-
-
-        int oldp = 0;
-        int newp = 0;
-        int pos = 0;
-        IntBP oldpositions = getPositionsBuffer();
-        FloatBP oldweights = getWeightsBuffer();
-        IntBP oldlas = getLASBuffer();
-        while (oldp < oldpositions.limit() || newp < hits.length) {
-            while (newp < hits.length && (oldp == oldpositions.limit() || hits[newp].pos <= oldpositions.get(oldp))) {
-                posfile.put(pos, hits[newp].pos);
-                weightfile.put(pos, hits[newp].weight);
-                lasfile.put(pos, Hits.makeLAS(hits[newp].length, hits[newp].strand));
-                newp++;
-                pos++;
-            }
-            while (oldp < oldpositions.limit() && (newp == hits.length || oldpositions.get(oldp) <= hits[newp].pos)) {
-                posfile.put(pos,oldpositions.get(oldp));
-                weightfile.put(pos,oldweights.get(oldp));
-                lasfile.put(pos,oldlas.get(oldp));
-                oldp++;
-                pos++;                
-            }          
-            //            System.err.println(String.format("%d %d %d", pos, newp, oldp));
-        }
-        posfile = null;
-        weightfile = null;
-        lasfile = null;        
-        oldpositions = null;
-        oldweights =null;
-        oldlas = null;
-        positionsRAF.close();
-        weightsRAF.close();
-        lasRAF.close();
-        /* ideally this part with the renames would atomic... */
-        (new File(postmp)).renameTo(new File(getPositionsFname(prefix,chrom)));
-        (new File(weightstmp)).renameTo(new File(getWeightsFname(prefix,chrom)));
-        (new File(lastmp)).renameTo(new File(getLaSFname(prefix,chrom)));
-    }
     public void resort(String prefix, int chrom) throws IOException {
         IntBP positions = getPositionsBuffer();
         FloatBP weights = getWeightsBuffer();
@@ -199,7 +107,18 @@ public class SingleHits extends Hits {
         (new File(postmp)).renameTo(new File(getPositionsFname(prefix,chrom)));
         (new File(weightstmp)).renameTo(new File(getWeightsFname(prefix,chrom)));
         (new File(lastmp)).renameTo(new File(getLaSFname(prefix,chrom)));
-
+        /* the resorted files replace the block file, if there was one */
+        (new File(getBlocksFname(prefix,chrom))).delete();
+    }
+    /** names of the files of the hits in the column order of getColumns() */
+    public static String[] getColumnFnames(String prefix, int chrom) {
+        return new String[]{getPositionsFname(prefix,chrom),
+                            getWeightsFname(prefix,chrom),
+                            getLaSFname(prefix,chrom)};
+    }
+    /** name of the file of the hits in the block format (see HitBlocks) */
+    public static String getBlocksFname(String prefix, int chrom) {
+        return prefix + chrom + ".sblocks";
     }
     private static String getPositionsFname(String prefix, int chrom) {
         return prefix + chrom + ".spositions";
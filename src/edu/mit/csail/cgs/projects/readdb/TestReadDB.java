@@ -541,6 +541,110 @@ public class TestReadDB {
         }        
         c.close();
     }
+    @Test public void testBatch() throws IOException, ClientException {
+        int MAXVALUE = 10000;
+        Client c = new Client(hostname, portnum, user, passwd);
+        String names[] = {"testBatch1", "testBatch2"};
+        for (int a = 0; a < names.length; a++) {
+            for (int chrom = 1; chrom <= 2 + a; chrom++) {
+                ArrayList<SingleHit> hits = new ArrayList<SingleHit>();
+                for (int i = 0; i < 2000; i++) {
+                    hits.add(new SingleHit(chrom, (int)Math.round(Math.random() * MAXVALUE), (float)(Math.random() * 4),
+                                           Math.random() < .5, 10 + a));
+                }
+                c.storeSingle(names[a], hits);
+            }
+        }
+        /* chromosome 3 only exists in the second alignment */
+        int n = 20;
+        int[] chroms = new int[n], starts = new int[n], stops = new int[n];
+        List<String> aligns = new ArrayList<String>();
+        for (int q = 0; q < n; q++) {
+            chroms[q] = 1 + q % 3;
+            starts[q] = (int)Math.round(Math.random() * MAXVALUE / 2);
+            stops[q] = starts[q] + (int)Math.round(Math.random() * MAXVALUE / 2);
+            aligns.add(names[q % 2]);
+        }
+        List<String> both = Arrays.asList(names);
+        int[] counts = c.getCounts(both, false, null, chroms, starts, stops, null, null);
+        List<Histogram> hists = c.getHistograms(both, false, false, false, 25, 0, chroms, starts, stops, null, true);
+        List<Histogram> whists = c.getWeightHistograms(both, false, false, false, 25, 0, chroms, starts, stops, null, null);
+        List<List<SingleHit>> hits = c.getSingleHits(aligns, chroms, starts, stops, 1f, null);
+        for (int q = 0; q < n; q++) {
+            int count = 0;
+            Map<Integer,Integer> hist = new HashMap<Integer,Integer>();
+            Map<Integer,Float> whist = new HashMap<Integer,Float>();
+            for (String name : names) {
+                if (!c.getChroms(name, false, false).contains(chroms[q])) {
+                    continue;
+                }
+                count += c.getCount(name, chroms[q], false, starts[q], stops[q], null, null, null);
+                TreeMap<Integer,Integer> h = c.getHistogram(name, chroms[q], false, false, 25, starts[q], stops[q], null, true);
+                for (int k : h.keySet()) {
+                    hist.put(k, h.get(k) + (hist.containsKey(k) ? hist.get(k) : 0));
+                }
+                TreeMap<Integer,Float> w = c.getWeightHistogram(name, chroms[q], false, false, 25, starts[q], stops[q], null, null);
+                for (int k : w.keySet()) {
+                    whist.put(k, w.get(k) + (whist.containsKey(k) ? whist.get(k) : 0));
+                }
+            }
+            assertEquals("count " + q, count, counts[q]);
+            assertEquals("histogram size " + q, hist.size(), hists.get(q).size());
+            for (int i = 0; i < hists.get(q).size(); i++) {
+                assertEquals("histogram bin " + q, hist.get(hists.get(q).positions[i]), (Integer)hists.get(q).counts[i]);
+            }
+            assertEquals("weight histogram size " + q, whist.size(), whists.get(q).size());
+            for (int i = 0; i < whists.get(q).size(); i++) {
+                assertEquals("weight histogram bin " + q, whist.get(whists.get(q).positions[i]), whists.get(q).weights[i], .0001);
+            }
+            List<SingleHit> single = c.getChroms(aligns.get(q), false, false).contains(chroms[q]) ?
+                c.getSingleHits(aligns.get(q), chroms[q], starts[q], stops[q], 1f, null) : new ArrayList<SingleHit>();
+            assertEquals("hits " + q, single, hits.get(q));
+        }
+        c.close();
+    }
+    @Test public void testCompress() throws IOException, ClientException {
+        int MAXVALUE = 1000000;
+        Client c = new Client(hostname, portnum, user, passwd);
+        String name = "testCompress";
+        ArrayList<SingleHit> hits = new ArrayList<SingleHit>();
+        /* several blocks, mostly unit weights */
+        for (int i = 0; i < 50000; i++) {
+            hits.add(new SingleHit(1, (int)Math.round(Math.random() * MAXVALUE), Math.random() < .9 ? 1f : (float)(Math.random() * 4),
+                                   Math.random() < .5, 36));
+        }
+        c.storeSingle(name, hits);
+        int n = 20;
+        int[] starts = new int[n], stops = new int[n];
+        for (int q = 0; q < n; q++) {
+            starts[q] = (int)Math.round(Math.random() * MAXVALUE);
+            stops[q] = starts[q] + (int)Math.round(Math.random() * MAXVALUE / (q < n / 2 ? 100 : 2));
+        }
+        List<Object> before = new ArrayList<Object>();
+        for (int q = 0; q < n; q++) {
+            before.add(c.getCount(name, 1, false, starts[q], stops[q], null, null, null));
+            before.add(c.getCount(name, 1, false, starts[q], stops[q], 2f, null, true));
+            before.add(c.getHistogram(name, 1, false, q % 2 == 0, 50, starts[q], stops[q], null, null));
+            before.add(c.getWeightHistogram(name, 1, false, false, 50, starts[q], stops[q], null, false));
+            before.add(c.getSingleHits(name, 1, starts[q], stops[q], null, null));
+        }
+        c.compress(name, false);
+        List<Object> after = new ArrayList<Object>();
+        for (int q = 0; q < n; q++) {
+            after.add(c.getCount(name, 1, false, starts[q], stops[q], null, null, null));
+            after.add(c.getCount(name, 1, false, starts[q], stops[q], 2f, null, true));
+            after.add(c.getHistogram(name, 1, false, q % 2 == 0, 50, starts[q], stops[q], null, null));
+            after.add(c.getWeightHistogram(name, 1, false, false, 50, starts[q], stops[q], null, false));
+            after.add(c.getSingleHits(name, 1, starts[q], stops[q], null, null));
+        }
+        assertEquals(before, after);
+        assertEquals(hits.size(), c.getCount(name, 1, false, null, null, null, null, null));
+
+        /* more hits for a compressed chromosome */
+        c.storeSingle(name, hits.subList(0, 1000));
+        assertEquals(hits.size() + 1000, c.getCount(name, 1, false, null, null, null, null, null));
+        c.close();
+    }
     @Test public void testMaximumStore() throws IOException, ClientException {
         Client c = new Client(hostname, portnum, user, passwd);
         for (int n = 100000; n <= 50000000; n *= 2) {
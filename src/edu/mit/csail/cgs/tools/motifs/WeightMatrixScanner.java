@@ -22,6 +22,7 @@ import edu.mit.csail.cgs.datasets.motifs.*;
 import edu.mit.csail.cgs.ewok.verbs.Sink;
 import edu.mit.csail.cgs.ewok.verbs.SequenceGenerator;
 import edu.mit.csail.cgs.ewok.verbs.motifs.PerBaseMotifMatch;
+import edu.mit.csail.cgs.ewok.verbs.motifs.WeightMatrixBatchScanner;
 import edu.mit.csail.cgs.tools.utils.Args;
 
 /** Scans a genome for a previously loaded weight matrix.  Can read either from FASTA files or from the database.  Can put results
@@ -35,6 +36,7 @@ import edu.mit.csail.cgs.tools.utils.Args;
  * [--print]  print results rather than storing to db
  * [--loadfile foo.txt]  load results from file rather than doing a new scan
  * [--cutoff .9] as a fraction of maximum log-odds score
+ * [--threads 8]  threads for scanning FASTA files, which are scanned once for all the matrices
  */
 
 public class WeightMatrixScanner {
@@ -53,6 +55,8 @@ public class WeightMatrixScanner {
     private boolean print;
     private WMConsumer consumer;
     private String outfile;
+    private int threads;
+    private List<PreparedStatement> hitStatements = new ArrayList<PreparedStatement>();
 
     public static void main(String args[]) throws Exception {
         WeightMatrixScanner scanner = new WeightMatrixScanner();
@@ -76,6 +80,9 @@ public class WeightMatrixScanner {
         if (insertHit != null) {
             insertHit.close();
         }
+        for (PreparedStatement ps : hitStatements) {
+            ps.close();
+        }
         core.close();
         cxn.close();
         consumer.close();
@@ -94,6 +101,7 @@ public class WeightMatrixScanner {
         print = Args.parseFlags(args).contains("print");
         regions = Args.parseRegionsOrDefault(args);
         outfile = Args.parseString(args, "outfile", "");
+        threads = Args.parseInteger(args, "threads", Runtime.getRuntime().availableProcessors());
 
         if (!print) {            
             if (scanname == null) {
@@ -147,6 +155,10 @@ public class WeightMatrixScanner {
         }
     } 
     public void scanMatrices() throws SQLException, FileNotFoundException {
+        if (fastafiles.size() != 0) {
+            scanMatricesFasta();
+            return;
+        }
     	DateFormat dfm = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
     	if (print) {
     		if (!outfile.equals("")) {
@@ -216,6 +228,54 @@ public class WeightMatrixScanner {
         }
     }
     
+    /* scans the FASTA files once for all the matrices.  Each matrix gets its own consumer (or
+       shares the PrintConsumer) and hits are routed to it by their scanid, which the
+       WeightMatrixBatchScanner sets to the index of the matrix */
+    public void scanMatricesFasta() throws SQLException, FileNotFoundException {
+        final WMConsumer[] consumers = new WMConsumer[matrices.size()];
+        int[] scanids = new int[matrices.size()];
+        float[] cutoffscores = new float[matrices.size()];
+        if (print) {
+            consumer = outfile.equals("") ? new PrintConsumer(genome, null) : new PrintConsumer(genome, null, outfile);
+        }
+        for (int m = 0; m < matrices.size(); m++) {
+            WeightMatrix matrix = matrices.get(m);
+            cutoffscores[m] = (float) (matrix.getMaxScore() * cutoff);
+            if (print) {
+                scanids[m] = -1;
+                consumers[m] = consumer;
+            } else {
+                scanids[m] = getScanID(matrix.dbid,scanname,cutoffscores[m]);
+                System.err.println("SCAN ID is " + scanids[m]);
+                PreparedStatement ps = cxn.prepareStatement("insert into wms_hits(scan,chromosome,startpos,stoppos,strand,score) " +
+                                                            " values (" + scanids[m] + ",?,?,?,?,?)");
+                hitStatements.add(ps);
+                consumers[m] = new StoreConsumer(cxn, ps);
+                consumer = consumers[m];
+                getScannedGenome.setInt(1,scanids[m]);
+                getScannedGenome.setInt(2,genome.getDBID());
+                ResultSet rs = getScannedGenome.executeQuery();
+                rs.next();
+                if (rs.getInt(1) == 0) {
+                    insertScannedGenome.setInt(1,scanids[m]);
+                    insertScannedGenome.setInt(2,genome.getDBID());
+                    insertScannedGenome.execute();
+                }
+                rs.close();
+            }
+        }
+        WeightMatrixBatchScanner scanner = new WeightMatrixBatchScanner(matrices, cutoffscores);
+        regions.clear();
+        for (String fastafile : fastafiles) {
+            scanFasta(genome, scanner, consumers, fastafile, regions);
+        }
+        if (!print) {
+            for (int m = 0; m < matrices.size(); m++) {
+                storeRegionList(genome,scanids[m],regions);
+            }
+        }
+    }
+
     /* sets up SQL statements.  Must be called before anything else is done */
     public void setup() throws SQLException {
         getScan = cxn.prepareStatement("select id from weightmatrixscan where weightmatrix = ? and name = ?");            
@@ -435,6 +495,91 @@ public class WeightMatrixScanner {
         return new ArrayList<WMHit>();
     }
 
+    /* scans a FASTA file for all the matrices of the scanner, one sequence per shard on
+       the scanner's threads.  consumers[m] gets the hits of matrix m. */
+    public void scanFasta(final Genome genome,
+                          WeightMatrixBatchScanner scanner,
+                          final WMConsumer[] consumers,
+                          String fastafile,
+                          final List<Region> regions) {
+        try {
+            File file = new File(fastafile);
+            final FASTAStream stream = new FASTAStream(file);
+            final Pattern p = Pattern.compile("(.*):(\\d*)\\-(\\d*)");
+            Iterator<WeightMatrixBatchScanner.Shard> shards = new Iterator<WeightMatrixBatchScanner.Shard>() {
+                public boolean hasNext() {
+                    return stream.hasNext();
+                }
+                public WeightMatrixBatchScanner.Shard next() {
+                    Pair<String,String> pair = stream.next();
+                    String name = pair.getFirst();
+                    byte[] seq = WeightMatrixBatchScanner.encode(pair.getLast());
+                    pair = null;
+
+                    int chromid = -1;
+                    int offset = 0, end = -1;
+                    if(name.startsWith("chr")) { name = name.substring(3, name.length()); }
+                    Matcher m = p.matcher(name);
+                    if (m.matches()) {
+                        try {
+                            Region tmp = Region.fromString(genome, name);
+                            name = tmp.getChrom();
+                            offset = tmp.getStart();
+                            end = tmp.getEnd();
+                        } catch (Exception e) {
+                            System.err.println(name);
+                        }
+                    }
+                    try {
+                        if (genome != null) {
+                            chromid = genome.getChromID(name);
+                        }
+                    } catch (NullPointerException e) {
+                        chromid = madeupChromosomeID--;
+                        madeupChromMap.put(chromid, name);
+                    }
+                    if (chromid >= 0) {
+                        if (end == -1) {
+                            regions.add(new Region(genome, name, 0, seq.length));
+                        } else {
+                            regions.add(new Region(genome, name, offset, end));
+                        }
+                    }
+                    return new WeightMatrixBatchScanner.Shard(seq, chromid, chromid > 0 ? offset : 0);
+                }
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+            scanner.scan(shards, threads, new WMConsumer() {
+                    public void init() {
+                        for (WMConsumer c : consumers) {
+                            c.init();
+                        }
+                    }
+                    public void consume(WMHit hit) {
+                        WMConsumer c = consumers[hit.scanid];
+                        c.setMatrix(matrices.get(hit.scanid));
+                        c.consume(hit);
+                    }
+                    public void consume(Iterator<WMHit> hits) {
+                        while(hits.hasNext()) { consume(hits.next()); }
+                    }
+                    public void finish() {
+                        for (WMConsumer c : consumers) {
+                            c.finish();
+                        }
+                    }
+                    public void close() {}
+                    public void setMatrix(WeightMatrix m) {}
+                });
+            stream.close();
+        } catch (IOException ex) {
+            System.err.println(ex.toString());
+            ex.printStackTrace();
+        }
+    }
+
     /* Scans a list of regions for a weight matrix using the given cutoff. */
     public void scanFromDB(Genome genome,
                            WeightMatrix matrix,
@@ -3,6 +3,11 @@ package edu.mit.csail.cgs.utils.hmm;
 import java.text.*;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /** 
  * Implements a hidden Markov model and its algorithms including
@@ -102,57 +107,301 @@ public class HMM
    */
   public void baumWelch(int[] o, int steps)
   { 
+    List<int[]> seqs = new ArrayList<int[]>();
+    seqs.add(o);
+    baumWelch(seqs, steps, 1);
+  }
+
+  /**
+   * Baum-Welch algorithm for several observation sequences. The
+   * expected counts of all the sequences are added up before each
+   * re-estimation.  The sequences are split into numThreads blocks
+   * that are run in parallel; the counts are added in block order,
+   * so the result does not depend on the thread timing.
+   * <p>
+   * The Forward and Backward variables are scaled at each time t,
+   * so long sequences do not underflow.  Only the Forward variables
+   * are stored, the expected counts are accumulated during the 
+   * Backward pass.  
+   *
+   * @param seqs		the observation sequences
+   * @param steps		the number of iterations performed
+   * @param numThreads	the number of threads
+   * @return			the log likelihood of the sequences before the last iteration
+   */
+  public double baumWelch(List<int[]> seqs, int steps, int numThreads)
+  {
+    int blocks = Math.max(1, Math.min(numThreads, seqs.size()));
+    ExecutorService pool = blocks > 1 ? Executors.newFixedThreadPool(blocks) : null;
+    Workspace[] workspaces = new Workspace[blocks];
+    for (int w = 0; w < blocks; w++)
+      workspaces[w] = new Workspace();
+    double logLikelihood = 0;
+    try {
+      for (int s = 0; s < steps; s++) {
+        Counts counts = expectedCounts(seqs, workspaces, pool);
+        logLikelihood = counts.logLikelihood;
+        reestimate(counts);
+      }
+    }
+    finally {
+      if (pool != null)
+        pool.shutdown();
+    }
+    return logLikelihood;
+  }
+
+  /**
+   * Log likelihood of the observation sequence o on this HMM, from the
+   * scaling factors of the Forward variables.
+   *
+   * @param o		the observation sequence
+   * @return		ln P(o | hmm)
+   */
+  public double logLikelihood(int[] o)
+  {
+    Workspace ws = new Workspace();
+    return forwardScaled(o, ws);
+  }
+
+  /* Expected counts of all the sequences under the current parameters */
+  private Counts expectedCounts(final List<int[]> seqs, final Workspace[] workspaces, ExecutorService pool)
+  {
+    final int blocks = workspaces.length;
+    if (pool == null) {
+      Counts counts = new Counts(numStates, sigmaSize);
+      for (int[] o : seqs)
+        accumulate(o, workspaces[0], counts);
+      return counts;
+    }
+    List<Future<Counts>> futures = new ArrayList<Future<Counts>>();
+    for (int w = 0; w < blocks; w++) {
+      final int block = w;
+      futures.add(pool.submit(new Callable<Counts>() {
+        public Counts call() {
+          Counts counts = new Counts(numStates, sigmaSize);
+          int start = (int)((long)seqs.size() * block / blocks);
+          int end = (int)((long)seqs.size() * (block + 1) / blocks);
+          for (int n = start; n < end; n++)
+            accumulate(seqs.get(n), workspaces[block], counts);
+          return counts;
+        }
+      }));
+    }
+    try {
+      Counts counts = futures.get(0).get();
+      for (int w = 1; w < blocks; w++)
+        counts.add(futures.get(w).get());
+      return counts;
+    }
+    catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+    catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  /*
+   * Scaled Forward variables of o, stored in ws.fwd[t][i],
+   * each time t sums to one, ws.scale[t] is the sum before scaling.
+   * Returns ln P(o | hmm), or -Infinity if o is impossible.
+   */
+  private double forwardScaled(int[] o, Workspace ws)
+  {
     int T = o.length;
-    double[][] fwd;
-    double[][] bwd;
+    int N = numStates;
+    ws.ensureCapacity(T, N);
+    double[][] fwd = ws.fwd;
+    double[] scale = ws.scale;
+    double logLikelihood = 0;
+
+    double sum = 0;
+    double[] row = fwd[0];
+    for (int i = 0; i < N; i++) {
+      row[i] = pi[i] * b[i][o[0]];
+      sum += row[i];
+    }
+    for (int t = 0; ; t++) {
+      if (sum == 0)
+        return Double.NEGATIVE_INFINITY;
+      scale[t] = sum;
+      logLikelihood += Math.log(sum);
+      row = fwd[t];
+      for (int i = 0; i < N; i++)
+        row[i] /= sum;
+      if (t == T - 1)
+        break;
 
+      // induction
+      double[] next = fwd[t+1];
+      int sym = o[t+1];
+      for (int j = 0; j < N; j++)
+        next[j] = 0;
+      for (int i = 0; i < N; i++) {
+        double f = row[i];
+        if (f == 0)
+          continue;
+        double[] ai = a[i];
+        for (int j = 0; j < N; j++)
+          next[j] += f * ai[j];
+      }
+      sum = 0;
+      for (int j = 0; j < N; j++) {
+        next[j] *= b[j][sym];
+        sum += next[j];
+      }
+    }
+    return logLikelihood;
+  }
+
+  /*
+   * Adds the expected counts of o to counts.  The Backward variables
+   * are scaled with the Forward scaling factors, so gamma_t(i) is
+   * fwd(i,t)*bwd(i,t), and only bwd at t+1 is kept.
+   * As in the former implementation, the transition counts at the 
+   * last time T-1 are gamma_T-1(i)*a[i][j].
+   */
+  private void accumulate(int[] o, Workspace ws, Counts counts)
+  {
+    double logLikelihood = forwardScaled(o, ws);
+    if (logLikelihood == Double.NEGATIVE_INFINITY)
+      return;		// the sequence can not be generated by this HMM, it has no counts
+    counts.logLikelihood += logLikelihood;
+
+    int T = o.length;
+    int N = numStates;
+    double[][] fwd = ws.fwd;
+    double[] scale = ws.scale;
+    double[] bwd = ws.bwd;
+    double[] bwdNext = ws.bwdNext;
+    double[] tmp = ws.tmp;
+
+    // t = T-1, bwd = 1
+    double[] row = fwd[T - 1];
+    for (int i = 0; i < N; i++) {
+      double g = row[i];
+      bwdNext[i] = 1;
+      counts.gammaSum[i] += g;
+      counts.emit[i][o[T-1]] += g;
+      double[] ai = a[i];
+      double[] ni = counts.trans[i];
+      for (int j = 0; j < N; j++)
+        ni[j] += g * ai[j];
+    }
+    if (T == 1)
+      for (int i = 0; i < N; i++)
+        counts.pi[i] += row[i];
+
+    for (int t = T - 2; t >= 0; t--) {
+      row = fwd[t];
+      int sym = o[t+1];
+      double c = scale[t+1];
+      for (int j = 0; j < N; j++)
+        tmp[j] = b[j][sym] * bwdNext[j] / c;
+      for (int i = 0; i < N; i++) {
+        double f = row[i];
+        double[] ai = a[i];
+        double[] ni = counts.trans[i];
+        double bi = 0;
+        for (int j = 0; j < N; j++) {
+          double x = ai[j] * tmp[j];
+          bi += x;
+          ni[j] += f * x;
+        }
+        bwd[i] = bi;
+        double g = f * bi;
+        counts.gammaSum[i] += g;
+        counts.emit[i][o[t]] += g;
+        if (t == 0)
+          counts.pi[i] += g;
+      }
+      double[] swap = bwdNext;
+      bwdNext = bwd;
+      bwd = swap;
+    }
+    counts.sequences++;
+  }
+
+  /* New parameters from the expected counts */
+  private void reestimate(Counts counts)
+  {
     double pi1[] = new double[numStates];
     double a1[][] = new double[numStates][numStates];
     double b1[][] = new double[numStates][sigmaSize];
+    for (int i = 0; i < numStates; i++) {
+      pi1[i] = divide(counts.pi[i], counts.sequences);
+      for (int j = 0; j < numStates; j++)
+        a1[i][j] = divide(counts.trans[i][j], counts.gammaSum[i]);
+      for (int k = 0; k < sigmaSize; k++)
+        b1[i][k] = divide(counts.emit[i][k], counts.gammaSum[i]);
+    }
+    pi = pi1;
+    a = a1;
+    b = b1;
+  }
 
-    for (int s = 0; s < steps; s++) {
-      // calculation of Forward and Backward Variables from the current model
-      fwd = forwardProc(o);
-      bwd = backwardProc(o);
-
-      // re-estimation of initial state probabilities
-      for (int i = 0; i < numStates; i++)
-			pi1[i] = gamma(i, 0, o, fwd, bwd);
+  /*
+   * Buffers of one thread, reused for all the sequences and iterations.
+   * The Forward variables are one row of numStates per time, so the table
+   * is not limited to 2^31 values for long sequences.
+   */
+  private static class Workspace
+  {
+    double[][] fwd = new double[0][];
+    double[] scale = new double[0];
+    double[] bwd, bwdNext, tmp;
 
-      // re-estimation of transition probabilities
-      for (int i = 0; i < numStates; i++) {
-		for (int j = 0; j < numStates; j++) {
-		  double num = 0;
-		  double denom = 0;
-		  for (int t = 0; t <= T - 1; t++) {
-		    num += xi(t, i, j, o, fwd, bwd);
-		    denom += gamma(i, t, o, fwd, bwd);
-		  }
-		  a1[i][j] = divide(num, denom);
-		}
+    void ensureCapacity(int T, int N)
+    {
+      if (fwd.length < T)
+        fwd = Arrays.copyOf(fwd, T);
+      for (int t = 0; t < T; t++)
+        if (fwd[t] == null || fwd[t].length != N)
+          fwd[t] = new double[N];
+      if (scale.length < T)
+        scale = new double[T];
+      if (bwd == null || bwd.length != N) {
+        bwd = new double[N];
+        bwdNext = new double[N];
+        tmp = new double[N];
       }
+    }
+  }
 
-      // re-estimation of emission probabilities
-      for (int i = 0; i < numStates; i++) {
-		for (int k = 0; k < sigmaSize; k++) {
-		  double num = 0;
-		  double denom = 0;
-	
-		  for (int t = 0; t <= T - 1; t++) {
-		    double g = gamma(i, t, o, fwd, bwd);
-		    num += g * (k == o[t] ? 1 : 0);
-		    denom += g;
-		  }
-		  b1[i][k] = divide(num, denom);
-		}
+  /* Expected counts for the re-estimation */
+  private static class Counts
+  {
+    double[] pi;
+    double[][] trans;
+    double[][] emit;
+    double[] gammaSum;
+    int sequences = 0;
+    double logLikelihood = 0;
+
+    Counts(int numStates, int sigmaSize)
+    {
+      pi = new double[numStates];
+      trans = new double[numStates][numStates];
+      emit = new double[numStates][sigmaSize];
+      gammaSum = new double[numStates];
+    }
+
+    void add(Counts c)
+    {
+      for (int i = 0; i < pi.length; i++) {
+        pi[i] += c.pi[i];
+        gammaSum[i] += c.gammaSum[i];
+        for (int j = 0; j < pi.length; j++)
+          trans[i][j] += c.trans[i][j];
+        for (int k = 0; k < emit[i].length; k++)
+          emit[i][k] += c.emit[i][k];
       }
-      pi = pi1;
-      a = a1;
-      b = b1;
+      sequences += c.sequences;
+      logLikelihood += c.logLikelihood;
     }
   }
 
-
   /**
    * Calculation of Forward variables f(i,t) for state i at time
    * t for sequence o with the current HMM parameters.
@@ -287,43 +536,56 @@ public class HMM
   public double[][] viterbi(int[] o)
   {
   	int T = o.length;
+  	int N = numStates;
   	int min_state;
   	double min_weight, weight;
-  	double stateOptProb = 0.0;
   	int[] Q = new int[T];
-  	int[][] sTable = new int[numStates][T];
-  	double[][] aTable = new double[numStates][T];
+  	int[][] sTable = new int[T][N];
+  	double[] prev = new double[N];
+  	double[] cur = new double[N];
   	double[][] answer = new double[2][T];
   	
-  	// calulate accumulations and best states for time 0
-  	for(int i = 0; i < numStates; i++) {
-  		aTable[i][0] = -1*Math.log(pi[i]) - Math.log(b[i][o[0]]);
-  		sTable[i][0] = 0;
+  	// costs, -ln of the probabilities, computed once
+  	double[][] aCost = new double[N][N];
+  	double[][] bCost = new double[N][sigmaSize];
+  	for(int i = 0; i < N; i++) {
+  		for(int j = 0; j < N; j++)
+  			aCost[i][j] = -Math.log(a[i][j]);
+  		for(int k = 0; k < sigmaSize; k++)
+  			bCost[i][k] = -Math.log(b[i][k]);
   	}
   	
-  	// fill up the rest of the tables
+  	// calulate accumulations and best states for time 0
+  	for(int i = 0; i < N; i++)
+  		prev[i] = -1*Math.log(pi[i]) + bCost[i][o[0]];
+  	
+  	// fill up the rest of the table, only the costs at t-1 are kept
   	for(int t = 1; t < T; t++) {
-  		for(int j = 0; j < numStates; j++) {
-  			min_weight = aTable[0][t-1] - Math.log(a[0][j]);
+  		int[] states = sTable[t];
+  		for(int j = 0; j < N; j++) {
+  			min_weight = prev[0] + aCost[0][j];
   			min_state = 0;
-  			for(int i = 1; i < numStates; i++) {
-  				weight = aTable[i][t-1] - Math.log(a[i][j]);
+  			for(int i = 1; i < N; i++) {
+  				weight = prev[i] + aCost[i][j];
   				if(weight < min_weight) {
   					min_weight = weight;
   					min_state = i;
   				}
   			}
-  			aTable[j][t] = min_weight - Math.log(b[j][o[t]]);
-  			sTable[j][t] = min_state;
+  			cur[j] = min_weight + bCost[j][o[t]];
+  			states[j] = min_state;
   		}
+  		double[] swap = prev;
+  		prev = cur;
+  		cur = swap;
   	}
   	
   	// find minimum value for time T-1
-  	min_weight = aTable[0][T-1];
-  	min_state = 1;
-  	for(int i = 1; i < numStates; i++) {
-  		if(aTable[i][T-1] < min_weight) {
-  			min_weight = aTable[i][T-1];
+  	min_weight = prev[0];
+  	min_state = 0;
+  	for(int i = 1; i < N; i++) {
+  		if(prev[i] < min_weight) {
+  			min_weight = prev[i];
   			min_state = i;
   		}
   	}
@@ -331,7 +593,7 @@ public class HMM
   	// trace back to find the optimized state sequence
   	Q[T-1] = min_state;
   	for(int t = T-2; t >= 0; t--)
-  		Q[t] = sTable[Q[t+1]][t+1];
+  		Q[t] = sTable[t+1][Q[t+1]];
   	
   	// store answers and return them
   	answer[0][0] = min_weight;
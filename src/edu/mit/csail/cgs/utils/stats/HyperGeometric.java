@@ -0,0 +1,154 @@
+package edu.mit.csail.cgs.utils.stats;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hypergeometric probabilities for a fixed population size <tt>N</tt>. <br>
+ * The log-factorial table is computed once, when the engine is created, and is never resized,
+ * so the engine can be shared by many threads. <br>
+ * The CDF is computed from the PDF at <tt>x</tt>, going down with the ratio of consecutive terms
+ * (no log or exp per term), and stops when the remaining terms are negligible. <br>
+ * The CDF values are kept in a bounded cache keyed by a long packing (x, s, n);
+ * a new value replaces the value in its slot. <br>
+ * Parameter names follow StatUtil: x = # observed successes in the sample,
+ * s = # of successes in the population, n = sample size.
+ */
+public class HyperGeometric {
+	private static final double LN10 = Math.log(10);
+	private static final int CACHE_BITS = 16;
+	private static final int KEY_BITS = 21;			// x, s and n are cached if they are less than 2^21
+	private static final int MAX_ENGINES = 8;
+	private static final double EPSILON = 1e-17;
+
+	private static ConcurrentHashMap<Integer, HyperGeometric> engines = new ConcurrentHashMap<Integer, HyperGeometric>();
+	private static volatile HyperGeometric last;
+
+	private final int N;
+	private final double[] logFactorials;
+	private final Entry[] cache = new Entry[1<<CACHE_BITS];
+	// approximate counts, not synchronized
+	private long cacheHits = 0;
+	private long cacheMisses = 0;
+
+	public HyperGeometric(int N){
+		this.N = N;
+		logFactorials = new double[N+1];
+		for (int i=1;i<=N;i++)
+			logFactorials[i] = logFactorials[i-1]+Math.log(i);
+	}
+
+	/**
+	 * The shared engine for population size N. <br>
+	 * A few engines are kept, so that callers alternating between populations do not rebuild the tables.
+	 */
+	public static HyperGeometric forPopulation(int N){
+		HyperGeometric h = last;
+		if (h!=null && h.N==N)
+			return h;
+		h = engines.get(N);
+		if (h==null){
+			if (engines.size()>=MAX_ENGINES)
+				engines.clear();
+			HyperGeometric created = new HyperGeometric(N);
+			h = engines.putIfAbsent(N, created);
+			if (h==null)
+				h = created;
+		}
+		last = h;
+		return h;
+	}
+
+	public static String getCacheStats(){
+		StringBuilder sb = new StringBuilder();
+		for (HyperGeometric h: engines.values())
+			sb.append(String.format("N=%d: cache hits=%d, misses=%d; ", h.N, h.cacheHits, h.cacheMisses));
+		return sb.toString();
+	}
+
+	public int getPopulationSize(){ return N; }
+
+	/** ln(i!) */
+	public double logFactorial(int i){ return logFactorials[i]; }
+
+	/** natural log of the hypergeometric PDF */
+	public double logPdf(int x, int s, int n){
+		if (x<0 || x>s || x>n || x+N-s-n<0)
+			return Double.NEGATIVE_INFINITY;
+		double kx = logFactorials[s]-logFactorials[x]-logFactorials[s-x];
+		double mknx = logFactorials[N-s]-logFactorials[n-x]-logFactorials[N-s-(n-x)];
+		double mn = logFactorials[N]-logFactorials[n]-logFactorials[N-n];
+		return kx + mknx - mn;
+	}
+
+	public double pdf(int x, int s, int n){
+		return Math.exp(logPdf(x, s, n));
+	}
+
+	public double log10Pdf(int x, int s, int n){
+		return logPdf(x, s, n)/LN10;
+	}
+
+	/** hypergeometric CDF, P(X&lt;=x) */
+	public double cdf(int x, int s, int n){
+		return getEntry(x, s, n).cdf;
+	}
+
+	/** log10 of the hypergeometric CDF, accurate also when the CDF is smaller than Double.MIN_VALUE */
+	public double log10Cdf(int x, int s, int n){
+		return getEntry(x, s, n).logCdf/LN10;
+	}
+
+	private Entry getEntry(int x, int s, int n){
+		if ((x|s|n)<0 || x>=(1<<KEY_BITS) || s>=(1<<KEY_BITS) || n>=(1<<KEY_BITS))
+			return computeCdf(0, x, s, n);
+		long key = ((long)x<<(2*KEY_BITS)) | ((long)s<<KEY_BITS) | n;
+		int slot = (int)((key*0x9E3779B97F4A7C15L)>>>(64-CACHE_BITS));
+		Entry e = cache[slot];		// Entry is immutable, a racing read sees either the old or the new entry
+		if (e!=null && e.key==key){
+			cacheHits++;
+			return e;
+		}
+		cacheMisses++;
+		e = computeCdf(key, x, s, n);
+		cache[slot] = e;
+		return e;
+	}
+
+	private Entry computeCdf(long key, int x, int s, int n){
+		int lo = Math.max(0, n+s-N);
+		int hi = Math.min(s, n);
+		if (x<lo)
+			return new Entry(key, 0, Double.NEGATIVE_INFINITY);
+		if (x>=hi)
+			return new Entry(key, 1, 0);
+		// sum P(k)/P(x) for k=x down to lo, P(k-1)/P(k) = k(N-s-n+k) / ((s-k+1)(n-k+1))
+		double logPx = logPdf(x, s, n);
+		double term = 1;
+		double sum = 1;
+		for (int k=x;k>lo;k--){
+			double ratio = (double)k*(N-s-n+k)/((double)(s-k+1)*(n-k+1));
+			term *= ratio;
+			sum += term;
+			if (ratio<1 && term<sum*EPSILON)		// past the mode, the remaining terms keep shrinking
+				break;
+			if (sum>1e250){							// rescale to avoid overflow when x is far above the mode
+				logPx += Math.log(sum);
+				term /= sum;
+				sum = 1;
+			}
+		}
+		double logCdf = logPx + Math.log(sum);
+		return new Entry(key, Math.min(1.0, Math.exp(logCdf)), Math.min(0, logCdf));
+	}
+
+	private static class Entry{
+		final long key;
+		final double cdf;
+		final double logCdf;
+		Entry(long key, double cdf, double logCdf){
+			this.key = key;
+			this.cdf = cdf;
+			this.logCdf = logCdf;
+		}
+	}
+}
@@ -14,7 +14,6 @@ import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
-import java.util.concurrent.ConcurrentHashMap;
 
 import cern.jet.random.Beta;
 import cern.jet.random.Binomial;
@@ -30,16 +29,9 @@ import edu.mit.csail.cgs.utils.probability.NormalDistribution;
 
 public class StatUtil {
 //	static cern.jet.random.engine.RandomEngine engine = new cern.jet.random.engine.MersenneTwister();
-	static private double[] logFactorials;
-	static private ConcurrentHashMap<String, Double> HGP_table = new ConcurrentHashMap<String, Double>();
-	static private ConcurrentHashMap<String, Double> log10_HGP_table = new ConcurrentHashMap<String, Double>();
-	static private ConcurrentHashMap<String, Double> HGPDF_table = new ConcurrentHashMap<String, Double>();
-	static private ConcurrentHashMap<String, Double> log10_HGPDF_table = new ConcurrentHashMap<String, Double>();
 	static public String getCacheSize(){
-		return String.format("HGP_table=%s, log10_HGP_table=%s, HGPDF_table=%s, log10_HGPDF_table=%s", 
-				HGP_table.size(), log10_HGP_table.size(), HGPDF_table.size(), log10_HGPDF_table.size());
+		return HyperGeometric.getCacheStats();
 	}
-	static public int cacheAccessCount = 0;
 	
 	public static double uniform_rnd() {
 		return Uniform.staticNextDouble();
@@ -217,26 +209,18 @@ public class StatUtil {
 	 * @return positions of the original array corresponding to the ordered elements
 	 */
 	public static int[] findSort(int[] a) {
-		int[] sortedInds = new int[a.length];
-		Map<Integer, ArrayList<Integer>> val2Index = new HashMap<Integer, ArrayList<Integer>>();
-		
+		// sort (value, original index) pairs packed into longs, without boxing,
+		// equal values keep the order of their original positions
+		long[] keyed = new long[a.length];
 		for(int i = 0; i < a.length; i++)
-		{
-			if( !val2Index.containsKey(a[i])) 
-				val2Index.put(a[i], new ArrayList<Integer>());
-			
-			val2Index.get(a[i]).add(i);
-		}
+			keyed[i] = ((long)a[i] << 32) | i;
 		
-		Arrays.sort(a);
+		Arrays.sort(keyed);
 	
-		Set<Integer> uniqueEls = new LinkedHashSet<Integer>();
-		for(int i = 0; i < a.length; i++) { uniqueEls.add(a[i]); }
-		int count = 0;
-		for(Object key:uniqueEls.toArray()){
-			List<Integer> currVal_idxs = val2Index.get(key);
-			for(Integer curr_idx:currVal_idxs)
-				sortedInds[count++] = curr_idx;
+		int[] sortedInds = new int[a.length];
+		for(int i = 0; i < a.length; i++){
+			a[i] = (int)(keyed[i] >> 32);
+			sortedInds[i] = (int)keyed[i];
 		}
 		return sortedInds;	
 	}//end of findSort method 
@@ -1278,24 +1262,7 @@ public class StatUtil {
 	 * @return
 	 */
 	public static double hyperGeometricCDF_cache(int x, int N, int s, int n) {
-		String key = String.format("%d_%d_%d_%d", x, N, s, n);
-		if (HGP_table.containsKey(key)){
-			cacheAccessCount++;
-			return HGP_table.get(key);
-		}
-		else{
-			double v = 0.0;
-			int k = 0;
-			for (k=0;k<=x;k++) {
-				double v1= hyperGeometricPDF_cache(k,N,s,n);
-				v += v1;
-			}
-			
-			if (v > 1.0)
-				v = 1.0;
-			HGP_table.put(key, v);
-			return v;	
-		}
+		return HyperGeometric.forPopulation(N).cdf(x, s, n);
 	}
 	/**
 	 * Returns the hypergeometric cumulative probability
@@ -1326,21 +1293,7 @@ public class StatUtil {
 	 * @param n sample size
 	 **/
 	public static double log10_hyperGeometricCDF_cache_appr(int x, int N, int s, int n) {
-		String key = String.format("%d_%d_%d_%d", x, N, s, n);
-		if (log10_HGP_table.containsKey(key)){
-			cacheAccessCount++;
-			return log10_HGP_table.get(key);
-		}
-		else{
-			double Lx = log10_hyperGeometricPDF_cache(x,N,s,n);
-			double sum = 1;
-			for (int k=x-1;k>=0;k--) {
-				sum += Math.pow(10, log10_hyperGeometricPDF_cache(k,N,s,n)-Lx);
-			}
-			Lx += Math.log10(sum);
-			HGP_table.put(key, Lx);
-			return Lx;
-		}
+		return HyperGeometric.forPopulation(N).log10Cdf(x, s, n);
 	}
 	/**
 	 * Returns the hypergeometric density probability of number <tt>x</tt> 
@@ -1355,71 +1308,11 @@ public class StatUtil {
 	 * @return
 	 */
 	public static double hyperGeometricPDF_cache(int x, int N, int s, int n) {
-		if (x+N-s-n<0)
-			return 0;
-		String key = String.format("%d_%d_%d_%d", x, N, s, n);
-		if (HGPDF_table.containsKey(key)){
-			cacheAccessCount++;
-			return HGPDF_table.get(key);
-		}
-		else{
-	
-			// extend the cache if N is large than existing cache
-			int len = (logFactorials==null)?0:logFactorials.length;
-			if (logFactorials==null || logFactorials.length < N+1){
-				double[] old = logFactorials;
-				logFactorials = new double[N+1];
-				if (len!=0)
-					System.arraycopy(old, 0, logFactorials, 0, len);
-				else{
-					logFactorials[0]=0;
-					len++;
-				}
-				for (int i=len;i<=N;i++)
-					logFactorials[i] = logFactorials[i-1]+Math.log(i);
-			}
-			// compute
-			double kx = logFactorials[s]-logFactorials[x]-logFactorials[s-x];
-			double mknx = logFactorials[N-s]-logFactorials[n-x]-logFactorials[N-s-(n-x)];
-			double mn = logFactorials[N]-logFactorials[n]-logFactorials[N-n];
-			double result = Math.exp(kx + mknx - mn);
-			HGPDF_table.put(key, result);
-			return result;
-		}
+		return HyperGeometric.forPopulation(N).pdf(x, s, n);
 	}
 	
 	public static double log10_hyperGeometricPDF_cache (int x, int N, int s, int n) {
-		if (x+N-s-n<0)
-			return Double.NEGATIVE_INFINITY;
-		String key = String.format("%d_%d_%d_%d", x, N, s, n);
-		if (log10_HGPDF_table.containsKey(key)){
-			cacheAccessCount++;
-			return log10_HGPDF_table.get(key);
-		}
-		else{
-		// extend the cache if N is large than existing cache
-		int len = (logFactorials==null)?0:logFactorials.length;
-		if (logFactorials==null || logFactorials.length < N+1){
-			double[] old = logFactorials;
-			logFactorials = new double[N+1];
-			if (len!=0)
-				System.arraycopy(old, 0, logFactorials, 0, len);
-			else{
-				logFactorials[0]=0;
-				len++;
-			}
-			for (int i=len;i<=N;i++)
-				logFactorials[i] = logFactorials[i-1]+Math.log(i);
-		}
-		// compute
-		double kx = logFactorials[s]-logFactorials[x]-logFactorials[s-x];
-		double mknx = logFactorials[N-s]-logFactorials[n-x]-logFactorials[N-s-(n-x)];
-		double mn = logFactorials[N]-logFactorials[n]-logFactorials[N-n];
-		double result = (kx + mknx - mn)*Math.log10(Math.exp(1));
-		log10_HGPDF_table.put(key, result);
-
-		return result;
-		}
+		return HyperGeometric.forPopulation(N).log10Pdf(x, s, n);
 	}
 	
 	/**Use BigDecimal to compute hyperGeometric, high precision, but very slow, use for verification
@@ -1431,25 +1324,7 @@ public class StatUtil {
 	public static BigDecimal hyperGeometricPDF_cache_BIG (int x, int N, int s, int n) {
 		if (x+N-s-n<0)
 			return BigDecimal.ZERO;
-		// extend the cache if N is large than existing cache
-		int len = (logFactorials==null)?0:logFactorials.length;
-		if (logFactorials==null || logFactorials.length < N+1){
-			double[] old = logFactorials;
-			logFactorials = new double[N+1];
-			if (len!=0)
-				System.arraycopy(old, 0, logFactorials, 0, len);
-			else{
-				logFactorials[0]=0;
-				len++;
-			}
-			for (int i=len;i<=N;i++)
-				logFactorials[i] = logFactorials[i-1]+Math.log(i);
-		}
-		// compute
-		double kx = logFactorials[s]-logFactorials[x]-logFactorials[s-x];
-		double mknx = logFactorials[N-s]-logFactorials[n-x]-logFactorials[N-s-(n-x)];
-		double mn = logFactorials[N]-logFactorials[n]-logFactorials[N-n];
-		BigDecimal v = exp_BIG(kx + mknx - mn);
+		BigDecimal v = exp_BIG(HyperGeometric.forPopulation(N).logPdf(x, s, n));
 		return v;
 	}
 	
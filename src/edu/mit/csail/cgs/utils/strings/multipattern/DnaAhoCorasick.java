@@ -0,0 +1,312 @@
+package edu.mit.csail.cgs.utils.strings.multipattern;
+
+import java.util.Arrays;
+
+
+/**
+   <p>An Aho-Corasick automaton specialized for DNA sequences.  The
+   alphabet is {A,C,G,T,N}, the transitions of all states are stored
+   in one flat int array (the fail transitions are folded in by
+   prepare(), so a search does a single array access per base), and
+   keywords are identified by the int IDs returned from add().</p>
+
+   <p>Matches are reported to a Visitor as (patternId, endIndex),
+   where endIndex is one after the last matching base, the same as
+   SearchResult.getLastIndex().  A search does not allocate.  Any
+   character outside the alphabet (including lowercase bases) never
+   matches, as with AhoCorasick.</p>
+
+   <p>
+   Example usage:
+   <code><pre>
+       DnaAhoCorasick tree = new DnaAhoCorasick();
+       int acgt = tree.add("ACGT");
+       int cg = tree.add("CG");
+       tree.prepare();
+
+       tree.search("TTACGTT", new DnaAhoCorasick.Visitor() {
+           public void match(int patternId, int endIndex) {
+               System.out.println(patternId + " found at index: " + endIndex);
+           }
+       });
+   </pre></code>
+   </p>
+
+   <p>Once prepared, the automaton is read only and may be searched
+   by several threads at once.</p>
+ */
+public class DnaAhoCorasick {
+    /** number of symbols in the alphabet */
+    public static final int SYMBOLS = 5;
+    private static final String ALPHABET = "ACGTN";
+    /** symbol of each char, -1 if it is not in the alphabet */
+    private static final byte[] CODES = new byte[128];
+    /** symbol of the complement of each char, -1 if it is not in the alphabet */
+    private static final byte[] RC_CODES = new byte[128];
+    static {
+	Arrays.fill(CODES, (byte) -1);
+	Arrays.fill(RC_CODES, (byte) -1);
+	for (int i = 0; i < SYMBOLS; i++) {
+	    CODES[ALPHABET.charAt(i)] = (byte) i;
+	    RC_CODES[ALPHABET.charAt(i)] = (byte) (i == 4 ? 4 : 3 - i);
+	}
+    }
+
+    /**
+       Receives the matches of a search.
+     */
+    public interface Visitor {
+	/**
+	   Called for each keyword found, in order of endIndex; endIndex
+	   is one after the last matching base.
+	 */
+	void match(int patternId, int endIndex);
+    }
+
+    /** transitions, SYMBOLS entries per state; -1 for none until prepare() */
+    private int[] delta;
+    private int numStates;
+    /** before prepare(): the keyword ending at each state, or -1 */
+    private int[] terminal;
+    /** after prepare(): the patterns of state s are outputs[outputStart[s] .. outputStart[s+1]-1] */
+    private int[] outputStart;
+    private int[] outputs;
+    private int numPatterns;
+    private boolean prepared;
+
+    public DnaAhoCorasick() {
+	this.delta = new int[16 * SYMBOLS];
+	this.terminal = new int[16];
+	Arrays.fill(this.delta, -1);
+	Arrays.fill(this.terminal, -1);
+	this.numStates = 1;
+	this.numPatterns = 0;
+	this.prepared = false;
+    }
+
+
+
+    /**
+       Adds a new keyword and returns its pattern ID.  IDs are
+       assigned in the order keywords are added, starting from 0.
+       Adding the same keyword twice gives it two IDs, both of
+       which are reported for each match.
+     */
+    public int add(CharSequence keyword) {
+	if (this.prepared)
+	    throw new IllegalStateException
+		("can't add keywords after prepare() is called");
+	if (keyword.length() == 0)
+	    throw new IllegalArgumentException("empty keyword");
+	int state = 0;
+	for (int i = 0; i < keyword.length(); i++) {
+	    int c = code(keyword.charAt(i));
+	    if (c < 0)
+		throw new IllegalArgumentException
+		    ("keyword " + keyword + " is not in the alphabet " + ALPHABET);
+	    int next = this.delta[state * SYMBOLS + c];
+	    if (next < 0) {
+		next = newState();
+		this.delta[state * SYMBOLS + c] = next;
+	    }
+	    state = next;
+	}
+	if (this.terminal[state] >= 0) {
+	    // a keyword added again becomes an extra output of the same state
+	    this.duplicates = appendPair(this.duplicates, this.numDuplicates++, state, this.numPatterns);
+	}
+	else
+	    this.terminal[state] = this.numPatterns;
+	return this.numPatterns++;
+    }
+    /** (state, patternId) pairs for keywords added more than once */
+    private int[] duplicates = new int[0];
+    private int numDuplicates = 0;
+
+
+
+    /**
+       Prepares the automaton for searching.  This must be called
+       before any search.
+     */
+    public void prepare() {
+	if (this.prepared)
+	    return;
+	int n = this.numStates;
+	int[] fail = new int[n];
+	int[] order = new int[n];		// states in breadth first order
+	int head = 0, tail = 0;
+	for (int c = 0; c < SYMBOLS; c++) {
+	    int s = this.delta[c];
+	    if (s < 0)
+		this.delta[c] = 0;
+	    else {
+		fail[s] = 0;
+		order[tail++] = s;
+	    }
+	}
+	while (head < tail) {
+	    int r = order[head++];
+	    for (int c = 0; c < SYMBOLS; c++) {
+		int s = this.delta[r * SYMBOLS + c];
+		int f = this.delta[fail[r] * SYMBOLS + c];	// already complete, fail[r] is closer to the root
+		if (s < 0)
+		    this.delta[r * SYMBOLS + c] = f;
+		else {
+		    fail[s] = f;
+		    order[tail++] = s;
+		}
+	    }
+	}
+
+	// the outputs of a state are its own keywords followed by those of its fail state
+	int[] own = new int[n + 1];
+	for (int s = 0; s < n; s++)
+	    if (this.terminal[s] >= 0)
+		own[s]++;
+	for (int i = 0; i < this.numDuplicates; i++)
+	    own[this.duplicates[2 * i]]++;
+	int[] count = new int[n];
+	for (int i = 0; i < tail; i++) {		// fail states come first in breadth first order
+	    int s = order[i];
+	    count[s] = own[s] + count[fail[s]];
+	}
+	this.outputStart = new int[n + 1];
+	for (int s = 0; s < n; s++)
+	    this.outputStart[s + 1] = this.outputStart[s] + count[s];
+	this.outputs = new int[this.outputStart[n]];
+	int[] fill = new int[n];
+	for (int s = 0; s < n; s++) {
+	    fill[s] = this.outputStart[s];
+	    if (this.terminal[s] >= 0)
+		this.outputs[fill[s]++] = this.terminal[s];
+	}
+	for (int i = 0; i < this.numDuplicates; i++) {
+	    int s = this.duplicates[2 * i];
+	    this.outputs[fill[s]++] = this.duplicates[2 * i + 1];
+	}
+	for (int i = 0; i < tail; i++) {
+	    int s = order[i];
+	    int f = fail[s];
+	    System.arraycopy(this.outputs, this.outputStart[f], this.outputs, fill[s], count[f]);
+	}
+
+	this.delta = Arrays.copyOf(this.delta, n * SYMBOLS);
+	this.terminal = null;
+	this.duplicates = null;
+	this.prepared = true;
+    }
+
+
+
+    /**
+       Searches the sequence and reports every keyword found to the visitor.
+     */
+    public void search(CharSequence seq, Visitor visitor) {
+	search(seq, 0, seq.length(), visitor);
+    }
+    /**
+       Searches seq[start, end).  endIndex is reported relative to
+       the start of seq.
+     */
+    public void search(CharSequence seq, int start, int end, Visitor visitor) {
+	checkPrepared();
+	final int[] delta = this.delta;
+	final int[] outputStart = this.outputStart;
+	final int[] outputs = this.outputs;
+	int state = 0;
+	for (int i = start; i < end; i++) {
+	    int c = code(seq.charAt(i));
+	    if (c < 0) {
+		state = 0;
+		continue;
+	    }
+	    state = delta[state * SYMBOLS + c];
+	    for (int o = outputStart[state]; o < outputStart[state + 1]; o++)
+		visitor.match(outputs[o], i + 1);
+	}
+    }
+    /**
+       Searches the reverse complement of the sequence without
+       building it.  endIndex is reported in the coordinates of the
+       reverse complement, i.e. the same as for
+       search(reverseComplement(seq), visitor).
+     */
+    public void searchReverseComplement(CharSequence seq, Visitor visitor) {
+	checkPrepared();
+	final int[] delta = this.delta;
+	final int[] outputStart = this.outputStart;
+	final int[] outputs = this.outputs;
+	int len = seq.length();
+	int state = 0;
+	for (int i = len - 1; i >= 0; i--) {
+	    char ch = seq.charAt(i);
+	    int c = ch < 128 ? RC_CODES[ch] : -1;
+	    if (c < 0) {
+		state = 0;
+		continue;
+	    }
+	    state = delta[state * SYMBOLS + c];
+	    for (int o = outputStart[state]; o < outputStart[state + 1]; o++)
+		visitor.match(outputs[o], len - i);
+	}
+    }
+
+
+    /** number of keywords added */
+    public int getNumPatterns() {
+	return this.numPatterns;
+    }
+    /** number of states, including the root */
+    public int getNumStates() {
+	return this.numStates;
+    }
+    public boolean isPrepared() {
+	return this.prepared;
+    }
+
+
+
+    private static int code(char ch) {
+	return ch < 128 ? CODES[ch] : -1;
+    }
+    private void checkPrepared() {
+	if (! this.prepared)
+	    throw new IllegalStateException
+		("can't start search until prepare()");
+    }
+    private int newState() {
+	if (this.numStates == this.terminal.length) {
+	    int size = this.terminal.length * 2;
+	    this.terminal = Arrays.copyOf(this.terminal, size);
+	    Arrays.fill(this.terminal, this.numStates, size, -1);
+	    this.delta = Arrays.copyOf(this.delta, size * SYMBOLS);
+	    Arrays.fill(this.delta, this.numStates * SYMBOLS, size * SYMBOLS, -1);
+	}
+	return this.numStates++;
+    }
+    private static int[] appendPair(int[] pairs, int index, int a, int b) {
+	if (2 * index + 2 > pairs.length)
+	    pairs = Arrays.copyOf(pairs, Math.max(8, pairs.length * 2));
+	pairs[2 * index] = a;
+	pairs[2 * index + 1] = b;
+	return pairs;
+    }
+
+    public static void main(String[] args) {
+        DnaAhoCorasick tree = new DnaAhoCorasick();
+        tree.add("ACGT");
+        tree.add("CGTN");
+        tree.add("CG");
+        tree.prepare();
+
+        DnaAhoCorasick.Visitor printer = new DnaAhoCorasick.Visitor() {
+            public void match(int patternId, int endIndex) {
+                System.out.println(patternId + " found at index: " + endIndex);
+            }
+        };
+        tree.search("TTACGTNACGT", printer);
+        tree.searchReverseComplement("TTACGTNACGT", printer);
+    }
+
+}